@@ -126,6 +126,12 @@ public abstract class AbstractBlockChain {
     // were downloading the block chain.
     private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
 
+    // See setAssumeValid(). Headers are only trusted once proveAssumedValid() has linked them to one of these blocks.
+    @Nullable private volatile StoredBlock vAssumeValid;
+    @Nullable private volatile CheckpointManager vAssumeValidCheckpoints;
+    // Headers proven by the last call to proveAssumedValid() that haven't been connected yet.
+    private final Set<Sha256Hash> provenHeaders = new HashSet<Sha256Hash>();
+
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
     /** False positive estimation uses a double exponential moving average. */
@@ -162,6 +168,8 @@ public abstract class AbstractBlockChain {
 
         this.versionTally = new VersionTally(context.getParams());
         this.versionTally.initialize(blockStore, chainHead);
+        // Transactions derive their depth from the height of the chain.
+        context.getConfidenceTable().setChainHeight(chainHead.getHeight());
     }
 
     /**
@@ -453,19 +461,25 @@ public abstract class AbstractBlockChain {
             final StoredBlock storedPrev;
             final int height;
             final EnumSet<Block.VerifyFlag> flags;
+            final boolean assumedValid;
 
             // Prove the block is internally valid: hash is lower than target, etc. This only checks the block contents
             // if there is a tx sending or receiving coins using an address in one of our wallets. And those transactions
             // are only lightly verified: presence in a valid connecting block is taken as proof of validity. See the
             // article here for more details: https://bitcoinj.github.io/security-model
             try {
-                block.verifyHeader();
                 storedPrev = getStoredBlockInCurrentScope(block.getPrevBlockHash());
                 if (storedPrev != null) {
                     height = storedPrev.getHeight() + 1;
                 } else {
                     height = Block.BLOCK_HEIGHT_UNKNOWN;
                 }
+                // Headers proven to lead to an assumed valid block only have to link up.
+                assumedValid = storedPrev != null && !shouldVerifyTransactions() && provenHeaders.remove(block.getHash());
+                if (assumedValid)
+                    block.verifyHeaderExceptProofOfWork();
+                else
+                    block.verifyHeader();
                 flags = params.getBlockVerificationFlags(block, versionTally, height);
                 if (shouldVerifyTransactions())
                     block.verifyTransactions(height, flags);
@@ -489,7 +503,8 @@ public abstract class AbstractBlockChain {
             } else {
                 checkState(lock.isHeldByCurrentThread());
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
-                params.checkDifficulty(storedPrev, block, blockStore);
+                if (!assumedValid)
+                    params.checkDifficulty(storedPrev, block, blockStore);
                 connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
 
                 if (tryConnecting)
@@ -502,6 +517,101 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    /**
+     * <p>Sets the block that headers are assumed to be valid up to, typically the latest checkpoint from a
+     * {@link CheckpointManager}, or null to check every header in full (the default). Only applies in SPV mode.</p>
+     *
+     * <p>A header skips the proof of work and difficulty checks only once {@link #proveAssumedValid(List)} has shown
+     * that it is an ancestor of that block: the run of headers it belongs to has to link up to a header with the hash
+     * and chain work of the block. Use {@link #setAssumeValid(CheckpointManager)} to also accept every checkpoint on
+     * the way, so that runs of headers can be proven long before the assumed valid block itself is reached.</p>
+     */
+    public void setAssumeValid(@Nullable StoredBlock assumeValid) {
+        lock.lock();
+        try {
+            vAssumeValid = assumeValid;
+            vAssumeValidCheckpoints = null;
+            provenHeaders.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #setAssumeValid(StoredBlock)} with the latest checkpoint, except that headers linking up to any of
+     * the checkpoints are accepted as proven.
+     */
+    public void setAssumeValid(CheckpointManager checkpoints) {
+        lock.lock();
+        try {
+            vAssumeValid = checkpoints.getLatestCheckpoint();
+            vAssumeValidCheckpoints = checkpoints;
+            provenHeaders.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the block that headers are assumed to be valid up to, or null if all headers are checked in full. */
+    @Nullable
+    public StoredBlock getAssumeValid() {
+        return vAssumeValid;
+    }
+
+    /**
+     * <p>Checks how many of the given headers lead to the assumed valid block set by
+     * {@link #setAssumeValid(StoredBlock)} or one of the checkpoints set by {@link #setAssumeValid(CheckpointManager)}.
+     * The headers must be in chain order, the first one connecting to a block in the chain. Returns the number of
+     * headers, counted from the first, which are ancestors of the highest such block among them. Those headers skip
+     * the proof of work and difficulty checks when they are then {@link #add(Block)}ed, all others are checked in full.
+     * Headers proven by an earlier call that haven't been added yet are forgotten.</p>
+     *
+     * <p>Returns 0 in full verification mode or if the headers don't reach any of these blocks.</p>
+     *
+     * @throws VerificationException if a header is at the height of one of these blocks but doesn't match it.
+     */
+    public int proveAssumedValid(List<Block> headers) throws BlockStoreException, VerificationException {
+        lock.lock();
+        try {
+            provenHeaders.clear();
+            StoredBlock assumeValid = vAssumeValid;
+            if (assumeValid == null || shouldVerifyTransactions() || headers.isEmpty())
+                return 0;
+            StoredBlock storedPrev = getStoredBlockInCurrentScope(headers.get(0).getPrevBlockHash());
+            if (storedPrev == null)
+                return 0;
+            // Only a run of headers that link up can be walked back from the anchor.
+            int linked = 1;
+            while (linked < headers.size()
+                    && headers.get(linked).getPrevBlockHash().equals(headers.get(linked - 1).getHash()))
+                linked++;
+            int top = Math.min(storedPrev.getHeight() + linked, assumeValid.getHeight());
+            StoredBlock anchor;
+            if (top == assumeValid.getHeight())
+                anchor = assumeValid;
+            else if (vAssumeValidCheckpoints != null)
+                anchor = vAssumeValidCheckpoints.getCheckpointBeforeHeight(top);
+            else
+                return 0;
+            int count = anchor.getHeight() - storedPrev.getHeight();
+            if (count <= 0)
+                return 0;
+            BigInteger chainWork = storedPrev.getChainWork();
+            for (int i = 0; i < count; i++)
+                chainWork = chainWork.add(headers.get(i).getWork());
+            Block header = headers.get(count - 1);
+            if (!header.getHash().equals(anchor.getHeader().getHash()) || !chainWork.equals(anchor.getChainWork()))
+                throw new VerificationException("Block " + header.getHashAsString() + " at height "
+                        + anchor.getHeight() + " does not match the assumed valid block "
+                        + anchor.getHeader().getHashAsString());
+            for (int i = 0; i < count; i++)
+                provenHeaders.add(headers.get(i).getHash());
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns the hashes of the currently stored orphan blocks and then deletes them from this objects storage.
      * Used by Peer when a filter exhaustion event has occurred and thus any orphan blocks that have been downloaded
@@ -792,6 +902,9 @@ public abstract class AbstractBlockChain {
             // (Finally) write block to block store
             storedNewHead = addToBlockStore(storedPrev, newChainHead.getHeader());
         }
+        // The depth of transactions follows from the chain height, which must be that of the new chain by the time the
+        // wallets reorganize.
+        Context.get().getConfidenceTable().setChainHeight(storedNewHead.getHeight());
         // Now inform the listeners. This is necessary so the set of currently active transactions (that we can spend)
         // can be updated to take into account the re-organize. We might also have received new coins we didn't have
         // before and our previous spends might have been undone.
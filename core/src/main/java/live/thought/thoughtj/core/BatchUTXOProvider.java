@@ -0,0 +1,51 @@
+package live.thought.thoughtj.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * A {@link UTXOProvider} that can look up the unspent outputs of many addresses at once. Use
+ * {@link Helper#findOpenTransactionOutputs(UTXOProvider, Collection, UTXOReceiver)} to query any provider this way,
+ * falling back to {@link UTXOProvider#getOpenTransactionOutputs(java.util.List)} for those that don't implement this
+ * interface.
+ */
+public interface BatchUTXOProvider extends UTXOProvider {
+
+    /**
+     * Receives the outputs found by {@link #findOpenTransactionOutputs(Collection, UTXOReceiver)} one by one. Calls
+     * may come from different threads, but never at the same time.
+     */
+    interface UTXOReceiver {
+        void receive(UTXO output);
+    }
+
+    /**
+     * Finds the {@link UTXO}'s of many addresses in a single pass over a consistent view of the unspent outputs, so
+     * that an output moving between two of the addresses is seen exactly once. Outputs are handed to the receiver as
+     * soon as they are found instead of being collected first. Returns once all outputs have been handed over.
+     * @param addresses The addresses to look for.
+     * @param receiver Receives the outputs, in no particular order.
+     * @throws UTXOProviderException If there is an error.
+     */
+    void findOpenTransactionOutputs(Collection<Address> addresses, UTXOReceiver receiver) throws UTXOProviderException;
+
+    class Helper {
+        private Helper() {
+        }
+
+        /**
+         * Finds the outputs of the given addresses with {@link BatchUTXOProvider#findOpenTransactionOutputs} if the
+         * provider supports it, or else with one call to {@link UTXOProvider#getOpenTransactionOutputs(java.util.List)}
+         * whose results are then handed to the receiver.
+         */
+        public static void findOpenTransactionOutputs(UTXOProvider provider, Collection<Address> addresses,
+                UTXOReceiver receiver) throws UTXOProviderException {
+            if (provider instanceof BatchUTXOProvider) {
+                ((BatchUTXOProvider) provider).findOpenTransactionOutputs(addresses, receiver);
+            } else {
+                for (UTXO output : provider.getOpenTransactionOutputs(new ArrayList<Address>(addresses)))
+                    receiver.receive(output);
+            }
+        }
+    }
+}
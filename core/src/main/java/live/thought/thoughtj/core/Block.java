@@ -326,11 +326,29 @@ public class Block extends Message
   }
 
   public boolean isCuckooBlock()
+  {
+    return isCuckooVersion(version);
+  }
+
+  /**
+   * Returns true if headers of the given version carry a cuckoo proof after the
+   * standard 80 bytes.
+   */
+  static boolean isCuckooVersion(long version)
   {
     // Hack for now
     return (version >= 1610612736L);
   }
 
+  /**
+   * Returns the serialized length of a header of the given version, including
+   * the cuckoo proof if there is one.
+   */
+  static int getHeaderLength(long version)
+  {
+    return HEADER_SIZE + (isCuckooVersion(version) ? NetworkParameters.CUCKOO_PROOF_SIZE * 4 : 0);
+  }
+
   /**
    * <p>
    * A utility method that calculates how much new Bitcoin would be created by the
@@ -981,7 +999,7 @@ public class Block extends Message
     }
   }
 
-  private Sha256Hash calculateMerkleRoot()
+  Sha256Hash calculateMerkleRoot()
   {
     List<byte[]> tree = buildMerkleTree();
     return Sha256Hash.wrap(tree.get(tree.size() - 1));
@@ -1099,6 +1117,15 @@ public class Block extends Message
     // If the difficulty is high
     // enough, it's probably been done by the network.
     checkProofOfWork(true);
+    verifyHeaderExceptProofOfWork();
+  }
+
+  /**
+   * Runs the checks of {@link #verifyHeader()} other than proof of work. Used for headers that the chain assumes to
+   * be valid, see {@link AbstractBlockChain#setAssumeValid(StoredBlock)}.
+   */
+  void verifyHeaderExceptProofOfWork() throws VerificationException
+  {
     checkTimestamp();
 
     // Check DevNet
@@ -0,0 +1,203 @@
+package live.thought.thoughtj.core;
+
+import live.thought.thoughtj.utils.BlockFileLoader;
+import live.thought.thoughtj.utils.ContextPropagatingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Imports blocks from block files into a chain using all cores. The files are memory mapped by a
+ * {@link BlockFileLoader}, and a pool of worker threads parses the blocks and runs the checks that don't depend on
+ * the chain: proof of work, timestamp and merkle root. The parsed blocks are handed to the chain in the order they
+ * appear in the files, so the result is the same as adding them one by one.</p>
+ *
+ * <p>The chain repeats these checks when the block is added, but by then the block and transaction hashes are cached
+ * and it costs little. If the chain is a {@link FullPrunedBlockChain} with pipelined connection enabled, the outputs
+ * spent by the next parsed block are prefetched whilst the current one is connected.</p>
+ *
+ * <p>Progress is logged every {@link #PROGRESS_INTERVAL_MILLIS} and can be read from any thread while the import
+ * runs.</p>
+ */
+public class BlockImportPipeline {
+    private static final Logger log = LoggerFactory.getLogger(BlockImportPipeline.class);
+
+    /** How often progress is logged. */
+    public static final long PROGRESS_INTERVAL_MILLIS = 10 * 1000;
+    /** How many blocks each worker may parse ahead of the chain. */
+    public static final int BLOCKS_AHEAD_PER_THREAD = 8;
+
+    private final AbstractBlockChain chain;
+    private final BlockFileLoader loader;
+    private final NetworkParameters params;
+    private final int threads;
+
+    private final AtomicLong blocksAdded = new AtomicLong();
+    private final AtomicLong orphans = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private volatile long vStartTime;
+    private long lastProgressTime;
+
+    /** Creates a pipeline that uses one worker per available processor. */
+    public BlockImportPipeline(AbstractBlockChain chain, BlockFileLoader loader) {
+        this(chain, loader, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BlockImportPipeline(AbstractBlockChain chain, BlockFileLoader loader, int threads) {
+        checkArgument(threads > 0);
+        this.chain = chain;
+        this.loader = loader;
+        this.params = chain.params;
+        this.threads = threads;
+    }
+
+    /**
+     * Reads all blocks from the loader and adds them to the chain, returning once the last one was added. Blocks that
+     * can't be parsed are skipped, like {@link BlockFileLoader} does.
+     *
+     * @throws VerificationException if a block fails verification, either on a worker or in the chain.
+     */
+    public void run() throws VerificationException, PrunedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ContextPropagatingThreadFactory("block import"));
+        ArrayDeque<Future<Block>> queue = new ArrayDeque<Future<Block>>();
+        int window = threads * BLOCKS_AHEAD_PER_THREAD;
+        vStartTime = lastProgressTime = Utils.currentTimeMillis();
+        try {
+            boolean moreFiles = true;
+            while (true) {
+                // Keep the workers busy, but don't let them run too far ahead or parsed blocks pile up in memory.
+                while (moreFiles && queue.size() < window) {
+                    ByteBuffer bytes = loader.nextRawBlock();
+                    if (bytes == null)
+                        moreFiles = false;
+                    else
+                        queue.add(executor.submit(new Parser(bytes)));
+                }
+                Future<Block> future = queue.poll();
+                if (future == null)
+                    break;
+                Block block = getParsed(future);
+                if (block == null)
+                    continue;
+                Future<Block> next = queue.peek();
+                if (next != null && next.isDone() && chain instanceof FullPrunedBlockChain) {
+                    Block nextBlock = getParsedQuietly(next);
+                    if (nextBlock != null)
+                        ((FullPrunedBlockChain) chain).prefetch(nextBlock);
+                }
+                if (chain.add(block))
+                    blocksAdded.incrementAndGet();
+                else
+                    orphans.incrementAndGet();
+                maybeLogProgress();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        log.info(getProgress());
+    }
+
+    @Nullable
+    private Block getParsed(Future<Block> future) throws VerificationException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof VerificationException)
+                throw (VerificationException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    @Nullable
+    private Block getParsedQuietly(Future<Block> future) {
+        try {
+            return future.get();
+        } catch (Exception e) {
+            return null;  // Reported when the chain gets to it.
+        }
+    }
+
+    private void maybeLogProgress() {
+        long now = Utils.currentTimeMillis();
+        if (now - lastProgressTime < PROGRESS_INTERVAL_MILLIS)
+            return;
+        lastProgressTime = now;
+        log.info(getProgress());
+    }
+
+    /** Returns how many blocks were connected to the chain so far. */
+    public long getBlocksAdded() {
+        return blocksAdded.get();
+    }
+
+    /** Returns how many blocks couldn't be connected yet when they were added, and were kept as orphans. */
+    public long getOrphans() {
+        return orphans.get();
+    }
+
+    /** Returns how many bytes of serialized blocks were parsed so far. */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /** Returns a one line summary of the progress and throughput of the import. */
+    public String getProgress() {
+        long startTime = vStartTime;
+        double seconds = startTime == 0 ? 0 : Math.max(1, Utils.currentTimeMillis() - startTime) / 1000.0;
+        long blocks = blocksAdded.get();
+        double megabytes = bytesRead.get() / (1024.0 * 1024.0);
+        return String.format(Locale.US,
+                "Imported %d blocks (%d orphans, %.1f MB) up to height %d: %.1f blocks/s, %.2f MB/s",
+                blocks, orphans.get(), megabytes, chain.getBestChainHeight(),
+                seconds == 0 ? 0 : blocks / seconds, seconds == 0 ? 0 : megabytes / seconds);
+    }
+
+    private class Parser implements Callable<Block> {
+        private final ByteBuffer bytes;
+
+        Parser(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        @Nullable
+        public Block call() throws VerificationException {
+            Block block;
+            try {
+                block = params.getDefaultSerializer().makeBlock(BlockFileLoader.toArray(bytes));
+            } catch (ProtocolException e) {
+                log.warn("Skipping block that could not be parsed", e);
+                return null;
+            }
+            bytesRead.addAndGet(bytes.remaining());
+            block.verifyHeader();
+            if (block.transactions != null && !block.transactions.isEmpty()) {
+                Sha256Hash merkleRoot = block.calculateMerkleRoot();
+                if (!merkleRoot.equals(block.getMerkleRoot()))
+                    throw new VerificationException("Merkle hashes do not match for block " + block.getHashAsString()
+                            + ": " + merkleRoot + " vs " + block.getMerkleRoot());
+            }
+            return block;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package live.thought.thoughtj.core;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * <p>The answer to a {@link GetBlockTransactionsMessage}: the requested transactions of a block, in the order they
+ * were asked for. See BIP 152.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class BlockTransactionsMessage extends Message {
+    private Sha256Hash blockHash;
+    private ImmutableList<Transaction> transactions;
+
+    public BlockTransactionsMessage(NetworkParameters params, Sha256Hash blockHash, List<Transaction> transactions) {
+        super(params);
+        this.blockHash = blockHash;
+        this.transactions = ImmutableList.copyOf(transactions);
+        length = UNKNOWN_LENGTH;
+    }
+
+    public BlockTransactionsMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        blockHash = readHash();
+        long numTransactions = readVarInt();
+        if (numTransactions > payload.length - cursor)
+            throw new ProtocolException("Too many transactions in blocktxn: " + numTransactions);
+        ImmutableList.Builder<Transaction> list = ImmutableList.builder();
+        for (int i = 0; i < numTransactions; i++) {
+            Transaction tx = new Transaction(params, payload, cursor, null, serializer, UNKNOWN_LENGTH);
+            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            list.add(tx);
+            cursor += tx.getMessageSize();
+        }
+        transactions = list.build();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(transactions.size()).encode());
+        for (Transaction tx : transactions)
+            tx.bitcoinSerialize(stream);
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    @Override
+    public String toString() {
+        return "blocktxn: " + blockHash + ", " + transactions.size() + " transactions";
+    }
+}
@@ -121,6 +121,18 @@ public class BloomFilter extends Message {
         this.nFlags = (byte)(0xff & updateFlag.ordinal());
     }
     
+    private BloomFilter(BloomFilter other) {
+        data = Arrays.copyOf(other.data, other.data.length);
+        hashFuncs = other.hashFuncs;
+        nTweak = other.nTweak;
+        nFlags = other.nFlags;
+    }
+
+    /** Returns a copy of this filter, which elements can be inserted into without changing this one. */
+    public synchronized BloomFilter duplicate() {
+        return new BloomFilter(this);
+    }
+
     /**
      * Returns the theoretical false positive rate of this filter if were to contain the given number of elements.
      */
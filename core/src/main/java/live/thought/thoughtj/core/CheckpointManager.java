@@ -17,10 +17,10 @@
 package live.thought.thoughtj.core;
 
 import com.google.common.base.Charsets;
-import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
 
 import live.thought.thoughtj.store.BlockStore;
 import live.thought.thoughtj.store.BlockStoreException;
@@ -32,17 +32,23 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.*;
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.security.DigestInputStream;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.Comparator;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -67,26 +73,38 @@ import static com.google.common.base.Preconditions.*;
  *
  * <p>After the signatures come an int32 containing the number of checkpoints in the file. Then each checkpoint follows
  * one after the other. A checkpoint is 12 bytes for the total work done field, 4 bytes for the height, 80 bytes
- * for the block header and then 1 zero byte at the end (i.e. number of transactions in the block: always zero).</p>
+ * for the block header, space for the Cuckoo cycle solution and then 1 zero byte at the end (i.e. number of
+ * transactions in the block: always zero).</p>
+ *
+ * <p>The "CHECKPOINTS 2" format is the same except that an int32 holding the size of a checkpoint follows the magic
+ * string, and that the checkpoints must be sorted by block time. Such a file can be memory mapped with
+ * {@link #CheckpointManager(NetworkParameters, File)}. In any format, checkpoints are kept in their serialized form
+ * and found by binary search, so only the checkpoints that are asked for are ever parsed.</p>
  */
 public class CheckpointManager {
     private static final Logger log = LoggerFactory.getLogger(CheckpointManager.class);
 
     private static final String BINARY_MAGIC = "CHECKPOINTS 1";
+    private static final String MAPPABLE_MAGIC = "CHECKPOINTS 2";
     private static final String TEXTUAL_MAGIC = "TXT CHECKPOINTS 1";
     private static final int MAX_SIGNATURES = 256;
+    private static final int SIZE = StoredBlock.COMPACT_SERIALIZED_SIZE;
+    // Offsets of the height and the block time within a serialized checkpoint.
+    private static final int HEIGHT_OFFSET = StoredBlock.CHAIN_WORK_BYTES;
+    private static final int TIME_OFFSET = StoredBlock.CHAIN_WORK_BYTES + 4 + 4 + 32 + 32;
 
-    // Map of block header time to data.
-    protected final TreeMap<Long, StoredBlock> checkpoints = new TreeMap<Long, StoredBlock>();
+    // The serialized checkpoints, sorted by block time. Never changes after creation, so reading it is thread safe.
+    private final ByteBuffer entries;
+    private final int numCheckpoints;
 
     protected final NetworkParameters params;
-    protected final Sha256Hash dataHash;
+    private volatile Sha256Hash vDataHash;
 
     public static final BaseEncoding BASE64 = BaseEncoding.base64().omitPadding();
 
     /** Loads the default checkpoints bundled with thoughtj */
     public CheckpointManager(Context context) throws IOException {
-        this(context.getParams(), null);
+        this(context.getParams(), (InputStream) null);
     }
 
     /** Loads the checkpoints from the given stream */
@@ -96,29 +114,98 @@ public class CheckpointManager {
             inputStream = openStream(params);
         checkNotNull(inputStream);
         inputStream = new BufferedInputStream(inputStream);
-        inputStream.mark(1);
-        int first = inputStream.read();
+        inputStream.mark(MAPPABLE_MAGIC.length());
+        byte[] header = new byte[MAPPABLE_MAGIC.length()];
+        int read = ByteStreams.read(inputStream, header, 0, header.length);
         inputStream.reset();
-        if (first == BINARY_MAGIC.charAt(0))
-            dataHash = readBinary(inputStream);
-        else if (first == TEXTUAL_MAGIC.charAt(0))
-            dataHash = readTextual(inputStream);
+        if (read == header.length && Arrays.equals(header, MAPPABLE_MAGIC.getBytes("US-ASCII")))
+            entries = readMappable(ByteBuffer.wrap(ByteStreams.toByteArray(inputStream)), inputStream);
+        else if (header[0] == BINARY_MAGIC.charAt(0))
+            entries = readBinary(inputStream);
+        else if (header[0] == TEXTUAL_MAGIC.charAt(0))
+            entries = readTextual(inputStream);
         else
             throw new IOException("Unsupported format.");
+        numCheckpoints = entries.capacity() / SIZE;
+        log.info("Read {} checkpoints", numCheckpoints);
+    }
+
+    /**
+     * Loads the checkpoints from the given file. A file in the "CHECKPOINTS 2" format is memory mapped, so loading it
+     * costs next to nothing however many checkpoints it has; other formats are read as with
+     * {@link #CheckpointManager(NetworkParameters, InputStream)}.
+     */
+    public CheckpointManager(NetworkParameters params, File file) throws IOException {
+        this.params = checkNotNull(params);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] header = new byte[MAPPABLE_MAGIC.length()];
+            if (raf.read(header) == header.length && Arrays.equals(header, MAPPABLE_MAGIC.getBytes("US-ASCII"))) {
+                FileChannel channel = raf.getChannel();
+                // The mapping stays valid after the file is closed.
+                entries = readMappable(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), raf);
+            } else {
+                raf.close();
+                InputStream stream = new BufferedInputStream(new FileInputStream(file));
+                stream.mark(1);
+                int first = stream.read();
+                stream.reset();
+                if (first == BINARY_MAGIC.charAt(0))
+                    entries = readBinary(stream);
+                else if (first == TEXTUAL_MAGIC.charAt(0))
+                    entries = readTextual(stream);
+                else
+                    throw new IOException("Unsupported format.");
+            }
+        } finally {
+            raf.close();
+        }
+        numCheckpoints = entries.capacity() / SIZE;
+        log.info("Read {} checkpoints from {}", numCheckpoints, file);
     }
 
-    /** Returns a checkpoints stream pointing to inside the thoughtjj JAR */
+    /**
+     * Returns a checkpoints stream pointing to inside the thoughtj JAR. Checkpoints in the binary format are preferred
+     * over textual ones, as they are quicker to load.
+     */
     public static InputStream openStream(NetworkParameters params) {
+        InputStream stream = CheckpointManager.class.getResourceAsStream("/" + params.getId() + ".checkpoints");
+        if (stream != null)
+            return stream;
         return CheckpointManager.class.getResourceAsStream("/" + params.getId() + ".checkpoints.txt");
     }
 
-    private Sha256Hash readBinary(InputStream inputStream) throws IOException {
+    // Returns the checkpoints in the given "CHECKPOINTS 2" data without copying them.
+    private ByteBuffer readMappable(ByteBuffer buffer, Closeable source) throws IOException {
+        try {
+            buffer.position(MAPPABLE_MAGIC.length());
+            int size = buffer.getInt();
+            if (size != SIZE)
+                throw new IOException("Checkpoint size " + size + " does not match expected " + SIZE);
+            int numSignatures = checkPositionIndex(buffer.getInt(), MAX_SIGNATURES, "Num signatures out of range");
+            buffer.position(buffer.position() + numSignatures * 65);
+            // TODO: Do something with the signatures here.
+            int numCheckpoints = buffer.getInt();
+            checkState(numCheckpoints > 0);
+            if (buffer.remaining() < (long) numCheckpoints * SIZE)
+                throw new IOException("Incomplete read whilst loading checkpoints.");
+            ByteBuffer entries = buffer.slice();
+            entries.limit(numCheckpoints * SIZE);
+            entries = entries.slice().asReadOnlyBuffer();
+            if (!isSortedByTime(entries))
+                throw new IOException("Checkpoints are not sorted by time.");
+            return entries;
+        } catch (RuntimeException e) {
+            throw new IOException(e);
+        } finally {
+            source.close();
+        }
+    }
+
+    private ByteBuffer readBinary(InputStream inputStream) throws IOException {
         DataInputStream dis = null;
         try {
-            MessageDigest digest = Sha256Hash.newDigest();
-            DigestInputStream digestInputStream = new DigestInputStream(inputStream, digest);
-            dis = new DataInputStream(digestInputStream);
-            digestInputStream.on(false);
+            dis = new DataInputStream(inputStream);
             byte[] header = new byte[BINARY_MAGIC.length()];
             dis.readFully(header);
             if (!Arrays.equals(header, BINARY_MAGIC.getBytes("US-ASCII")))
@@ -129,31 +216,22 @@ public class CheckpointManager {
                 dis.readFully(sig);
                 // TODO: Do something with the signature here.
             }
-            digestInputStream.on(true);
             int numCheckpoints = dis.readInt();
             checkState(numCheckpoints > 0);
-            final int size = StoredBlock.COMPACT_SERIALIZED_SIZE;
-            ByteBuffer buffer = ByteBuffer.allocate(size);
-            for (int i = 0; i < numCheckpoints; i++) {
-                if (dis.read(buffer.array(), 0, size) < size)
-                    throw new IOException("Incomplete read whilst loading checkpoints.");
-                StoredBlock block = StoredBlock.deserializeCompact(params, buffer);
-                buffer.position(0);
-                checkpoints.put(block.getHeader().getTimeSeconds(), block);
+            byte[] bytes = new byte[numCheckpoints * SIZE];
+            try {
+                dis.readFully(bytes);
+            } catch (IOException e) {
+                throw new IOException("Incomplete read whilst loading checkpoints.", e);
             }
-            Sha256Hash dataHash = Sha256Hash.wrap(digest.digest());
-            log.info("Read {} checkpoints, hash is {}", checkpoints.size(), dataHash);
-            return dataHash;
-        } catch (ProtocolException e) {
-            throw new IOException(e);
+            return sortByTime(ByteBuffer.wrap(bytes));
         } finally {
             if (dis != null) dis.close();
             inputStream.close();
         }
     }
 
-    private Sha256Hash readTextual(InputStream inputStream) throws IOException {
-        Hasher hasher = Hashing.sha256().newHasher();
+    private ByteBuffer readTextual(InputStream inputStream) throws IOException {
         BufferedReader reader = null;
         try {
             reader = new BufferedReader(new InputStreamReader(inputStream, Charsets.US_ASCII));
@@ -165,37 +243,72 @@ public class CheckpointManager {
                 reader.readLine(); // Skip sigs for now.
             int numCheckpoints = Integer.parseInt(reader.readLine());
             checkState(numCheckpoints > 0);
-            // Hash numCheckpoints in a way compatible to the binary format.
-            hasher.putBytes(ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN).putInt(numCheckpoints).array());
-            final int size = StoredBlock.COMPACT_SERIALIZED_SIZE;
-            ByteBuffer buffer = ByteBuffer.allocate(size);
+            ByteBuffer buffer = ByteBuffer.allocate(numCheckpoints * SIZE);
             for (int i = 0; i < numCheckpoints; i++) {
                 byte[] bytes = BASE64.decode(reader.readLine());
-                hasher.putBytes(bytes);
-                buffer.position(0);
+                checkState(bytes.length == SIZE, "Checkpoint has wrong size: %s", bytes.length);
                 buffer.put(bytes);
-                buffer.position(0);
-                StoredBlock block = StoredBlock.deserializeCompact(params, buffer);
-                checkpoints.put(block.getHeader().getTimeSeconds(), block);
             }
-            HashCode hash = hasher.hash();
-            log.info("Read {} checkpoints, hash is {}", checkpoints.size(), hash);
-            return Sha256Hash.wrap(hash.asBytes());
+            return sortByTime(buffer);
         } finally {
             if (reader != null) reader.close();
         }
     }
 
-    /**
-     * Returns a {@link StoredBlock} representing the last checkpoint before the given time, for example, normally
-     * you would want to know the checkpoint before the earliest wallet birthday.
-     */
-    public StoredBlock getCheckpointBefore(long time) {
+    private static long timeAt(ByteBuffer entries, int index) {
+        // Block headers are little endian.
+        return Integer.reverseBytes(entries.getInt(index * SIZE + TIME_OFFSET)) & 0xffffffffL;
+    }
+
+    private static int heightAt(ByteBuffer entries, int index) {
+        return entries.getInt(index * SIZE + HEIGHT_OFFSET);
+    }
+
+    private static boolean isSortedByTime(ByteBuffer entries) {
+        for (int i = 1; i < entries.capacity() / SIZE; i++) {
+            if (timeAt(entries, i - 1) > timeAt(entries, i))
+                return false;
+        }
+        return true;
+    }
+
+    // Files written by BuildCheckpoints are in height order, which should also be time order. If they aren't, sort.
+    private static ByteBuffer sortByTime(ByteBuffer entries) {
+        if (isSortedByTime(entries))
+            return entries;
+        final ByteBuffer unsorted = entries;
+        Integer[] order = new Integer[entries.capacity() / SIZE];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long timeA = timeAt(unsorted, a), timeB = timeAt(unsorted, b);
+                return timeA < timeB ? -1 : (timeA == timeB ? 0 : 1);
+            }
+        });
+        ByteBuffer sorted = ByteBuffer.allocate(entries.capacity());
+        for (Integer index : order) {
+            ByteBuffer entry = unsorted.duplicate();
+            entry.position(index * SIZE);
+            entry.limit(index * SIZE + SIZE);
+            sorted.put(entry);
+        }
+        return sorted;
+    }
+
+    private StoredBlock checkpointAt(int index) {
+        ByteBuffer buffer = entries.duplicate();
+        buffer.position(index * SIZE);
+        try {
+            return StoredBlock.deserializeCompact(params, buffer);
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private StoredBlock genesis() {
         try {
-            checkArgument(time > params.getGenesisBlock().getTimeSeconds());
-            // This is thread safe because the map never changes after creation.
-            Map.Entry<Long, StoredBlock> entry = checkpoints.floorEntry(time);
-            if (entry != null) return entry.getValue();
             Block genesis = params.getGenesisBlock().cloneAsHeader();
             return new StoredBlock(genesis, genesis.getWork(), 0);
         } catch (VerificationException e) {
@@ -203,16 +316,111 @@ public class CheckpointManager {
         }
     }
 
+    /**
+     * Returns a {@link StoredBlock} representing the last checkpoint before the given time, for example, normally
+     * you would want to know the checkpoint before the earliest wallet birthday.
+     */
+    public StoredBlock getCheckpointBefore(long time) {
+        checkArgument(time > params.getGenesisBlock().getTimeSeconds());
+        // Find the last checkpoint with a time not after the given one.
+        int low = 0, high = numCheckpoints - 1, found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (timeAt(entries, mid) <= time) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found >= 0 ? checkpointAt(found) : genesis();
+    }
+
+    /**
+     * Returns a {@link StoredBlock} representing the last checkpoint at or below the given height, or the genesis
+     * block if there is none.
+     */
+    public StoredBlock getCheckpointBeforeHeight(int height) {
+        // Block times may go backwards a little, heights never do, so the checkpoints are in height order too.
+        int low = 0, high = numCheckpoints - 1, found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (heightAt(entries, mid) <= height) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found >= 0 ? checkpointAt(found) : genesis();
+    }
+
+    /**
+     * Returns the checkpoint with the greatest height, for example to pass to
+     * {@link AbstractBlockChain#setAssumeValid(StoredBlock)}.
+     */
+    public StoredBlock getLatestCheckpoint() {
+        return getCheckpointBeforeHeight(Integer.MAX_VALUE);
+    }
+
     /** Returns the number of checkpoints that were loaded. */
     public int numCheckpoints() {
-        return checkpoints.size();
+        return numCheckpoints;
     }
 
-    /** Returns a hash of the concatenated checkpoint data. */
+    /**
+     * Returns a hash of the concatenated checkpoint data. It is the same whichever format the checkpoints were read
+     * from, and is only calculated when first asked for.
+     */
     public Sha256Hash getDataHash() {
+        Sha256Hash dataHash = vDataHash;
+        if (dataHash == null) {
+            // Hash numCheckpoints in a way compatible to the binary format.
+            Hasher hasher = Hashing.sha256().newHasher();
+            hasher.putBytes(ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN).putInt(numCheckpoints).array());
+            byte[] chunk = new byte[SIZE];
+            ByteBuffer buffer = entries.duplicate();
+            buffer.position(0);
+            while (buffer.hasRemaining()) {
+                buffer.get(chunk);
+                hasher.putBytes(chunk);
+            }
+            vDataHash = dataHash = Sha256Hash.wrap(hasher.hash().asBytes());
+        }
         return dataHash;
     }
 
+    /**
+     * Writes the given checkpoints, which must be sorted by block time, in the memory mappable "CHECKPOINTS 2" format.
+     * Returns the hash of the checkpoint data, as {@link #getDataHash()} would.
+     */
+    public static Sha256Hash writeMappable(Iterable<StoredBlock> checkpoints, OutputStream outputStream)
+            throws IOException {
+        MessageDigest digest = Sha256Hash.newDigest();
+        DigestOutputStream digestOutputStream = new DigestOutputStream(outputStream, digest);
+        digestOutputStream.on(false);
+        DataOutputStream dataOutputStream = new DataOutputStream(digestOutputStream);
+        dataOutputStream.writeBytes(MAPPABLE_MAGIC);
+        dataOutputStream.writeInt(SIZE);
+        dataOutputStream.writeInt(0);  // Number of signatures to read. Do this later.
+        int count = 0;
+        for (StoredBlock ignored : checkpoints)
+            count++;
+        digestOutputStream.on(true);
+        dataOutputStream.writeInt(count);
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        long lastTime = 0;
+        for (StoredBlock block : checkpoints) {
+            checkArgument(block.getHeader().getTimeSeconds() >= lastTime, "Checkpoints must be sorted by time");
+            lastTime = block.getHeader().getTimeSeconds();
+            buffer.clear();
+            block.serializeCompact(buffer);
+            dataOutputStream.write(buffer.array());
+        }
+        dataOutputStream.flush();
+        return Sha256Hash.wrap(digest.digest());
+    }
+
     /**
      * <p>Convenience method that creates a CheckpointManager, loads the given data, gets the checkpoint for the given
      * time, then inserts it into the store and sets that to be the chain head. Useful when you have just created
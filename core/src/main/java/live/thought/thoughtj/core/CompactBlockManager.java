@@ -0,0 +1,331 @@
+package live.thought.thoughtj.core;
+
+import live.thought.thoughtj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Rebuilds blocks announced as {@link CompactBlockMessage}s (BIP 152) from transactions we have recently received
+ * from the network, so that a full node following the tip only downloads the few transactions it hasn't seen yet
+ * instead of the whole block. It is owned by a {@link PeerGroup} and shared between its peers, see
+ * {@link PeerGroup#setCompactBlocksEnabled(boolean)}.</p>
+ *
+ * <p>Every transaction a peer relays is remembered in a bounded pool. When a compact block arrives its short ids are
+ * matched against the pool; any transactions still missing are requested from the same peer with a
+ * {@link GetBlockTransactionsMessage} and the block is completed when the {@link BlockTransactionsMessage} arrives.
+ * If the short ids are ambiguous or the rebuilt block doesn't match the merkle root in its header, the full block is
+ * requested instead, so a collision costs a round trip but never a wrong block.</p>
+ */
+public class CompactBlockManager {
+    private static final Logger log = LoggerFactory.getLogger(CompactBlockManager.class);
+
+    /** The default number of recently relayed transactions kept for reconstruction. */
+    public static final int DEFAULT_POOL_SIZE = 20000;
+    /** How many blocks may wait for missing transactions at once. */
+    private static final int MAX_PENDING_BLOCKS = 16;
+    /** How long we wait for a blocktxn before forgetting the partial block. */
+    private static final long PENDING_TIMEOUT_MILLIS = 30 * 1000;
+
+    private final ReentrantLock lock = Threading.lock("compactblockmanager");
+    private final NetworkParameters params;
+
+    // Recently relayed transactions, oldest first.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Transaction> pool;
+    // Blocks waiting for a blocktxn, keyed by block hash.
+    @GuardedBy("lock") private final Map<Sha256Hash, PartialBlock> pending = new LinkedHashMap<Sha256Hash, PartialBlock>();
+
+    @GuardedBy("lock") private long blocksFromPool, blocksWithRoundTrip, blocksFallenBack;
+    @GuardedBy("lock") private long transactionsFromPool, transactionsRequested;
+
+    private static class PartialBlock {
+        final Peer peer;
+        final CompactBlockMessage message;
+        final Transaction[] transactions;
+        final List<Integer> missing;
+        final long createdMillis;
+
+        PartialBlock(Peer peer, CompactBlockMessage message, Transaction[] transactions, List<Integer> missing) {
+            this.peer = peer;
+            this.message = message;
+            this.transactions = transactions;
+            this.missing = missing;
+            this.createdMillis = Utils.currentTimeMillis();
+        }
+    }
+
+    public CompactBlockManager(NetworkParameters params) {
+        this(params, DEFAULT_POOL_SIZE);
+    }
+
+    public CompactBlockManager(NetworkParameters params, final int poolSize) {
+        checkArgument(poolSize > 0);
+        this.params = params;
+        this.pool = new LinkedHashMap<Sha256Hash, Transaction>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Transaction> eldest) {
+                return size() > poolSize;
+            }
+        };
+    }
+
+    /** Remembers a transaction relayed by a peer, so it can be used to rebuild a later compact block. */
+    public void addTransaction(Transaction tx) {
+        lock.lock();
+        try {
+            pool.put(tx.getHash(), tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Handles a compact block received from the given peer. Returns the rebuilt block if every transaction was
+     * prefilled or found in the pool. Otherwise the missing transactions (or, if reconstruction is impossible, the
+     * full block) are requested from the peer and null is returned.
+     */
+    @Nullable
+    public Block onCompactBlock(Peer peer, CompactBlockMessage message) {
+        Sha256Hash blockHash = message.getBlockHash();
+        GetBlockTransactionsMessage request;
+        lock.lock();
+        try {
+            expirePending();
+            if (pending.containsKey(blockHash)) {
+                log.debug("{}: Already rebuilding compact block {}", peer, blockHash);
+                return null;
+            }
+            int count = message.getTransactionCount();
+            Transaction[] transactions = new Transaction[count];
+            for (CompactBlockMessage.PrefilledTransaction prefilled : message.getPrefilledTransactions())
+                transactions[prefilled.getIndex()] = prefilled.getTransaction();
+
+            // Map every short id to the slot it fills. Duplicate short ids within a block can't be resolved.
+            long[] shortIds = message.getShortIds();
+            Map<Long, Integer> slots = new HashMap<Long, Integer>(shortIds.length * 2);
+            int slot = 0;
+            for (long shortId : shortIds) {
+                while (transactions[slot] != null)
+                    slot++;
+                if (slots.put(shortId, slot) != null) {
+                    log.info("{}: Duplicate short ids in compact block {}, requesting full block", peer, blockHash);
+                    requestFullBlock(peer, blockHash);
+                    return null;
+                }
+                slot++;
+            }
+
+            // Match the pool against the short ids. Two pool transactions mapping to the same slot is a collision;
+            // leave the slot empty so it gets requested explicitly.
+            Set<Integer> collisions = new HashSet<Integer>();
+            int found = 0;
+            if (!slots.isEmpty()) {
+                for (Transaction tx : pool.values()) {
+                    Integer index = slots.get(message.getShortId(tx.getHash()));
+                    if (index == null || collisions.contains(index))
+                        continue;
+                    if (transactions[index] == null) {
+                        transactions[index] = tx;
+                        found++;
+                    } else if (!transactions[index].getHash().equals(tx.getHash())) {
+                        transactions[index] = null;
+                        collisions.add(index);
+                        found--;
+                    }
+                }
+            }
+            transactionsFromPool += found;
+
+            List<Integer> missing = new ArrayList<Integer>();
+            for (int i = 0; i < count; i++) {
+                if (transactions[i] == null)
+                    missing.add(i);
+            }
+            if (missing.isEmpty()) {
+                Block block = buildBlock(message, transactions);
+                if (block == null) {
+                    requestFullBlock(peer, blockHash);
+                    return null;
+                }
+                blocksFromPool++;
+                log.info("{}: Rebuilt compact block {} from {} pool transactions", peer, blockHash, found);
+                return block;
+            }
+            if (pending.size() >= MAX_PENDING_BLOCKS) {
+                requestFullBlock(peer, blockHash);
+                return null;
+            }
+            pending.put(blockHash, new PartialBlock(peer, message, transactions, missing));
+            transactionsRequested += missing.size();
+            log.info("{}: Compact block {} missing {} of {} transactions, requesting them", peer, blockHash,
+                    missing.size(), count);
+            request = new GetBlockTransactionsMessage(params, blockHash, missing);
+        } finally {
+            lock.unlock();
+        }
+        peer.sendMessage(request);
+        return null;
+    }
+
+    /**
+     * Handles the answer to a getblocktxn we sent. Returns the completed block, or null if the message doesn't belong
+     * to a block we are rebuilding or the block couldn't be completed, in which case the full block is requested.
+     */
+    @Nullable
+    public Block onBlockTransactions(Peer peer, BlockTransactionsMessage message) {
+        Sha256Hash blockHash = message.getBlockHash();
+        lock.lock();
+        try {
+            PartialBlock partial = pending.get(blockHash);
+            if (partial == null || partial.peer != peer) {
+                log.debug("{}: Received blocktxn for a block we are not rebuilding: {}", peer, blockHash);
+                return null;
+            }
+            pending.remove(blockHash);
+            List<Transaction> transactions = message.getTransactions();
+            if (transactions.size() != partial.missing.size()) {
+                log.info("{}: Got {} transactions for compact block {} but asked for {}, requesting full block", peer,
+                        transactions.size(), blockHash, partial.missing.size());
+                requestFullBlock(peer, blockHash);
+                return null;
+            }
+            for (int i = 0; i < transactions.size(); i++)
+                partial.transactions[partial.missing.get(i)] = transactions.get(i);
+            Block block = buildBlock(partial.message, partial.transactions);
+            if (block == null) {
+                requestFullBlock(peer, blockHash);
+                return null;
+            }
+            blocksWithRoundTrip++;
+            return block;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forgets blocks being rebuilt from the given peer, for example because it disconnected. */
+    public void onPeerDisconnected(Peer peer) {
+        lock.lock();
+        try {
+            Iterator<PartialBlock> it = pending.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().peer == peer)
+                    it.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Serializes header and transactions into a regular block message and parses it back, checking the merkle root
+    // so that a short id collision we didn't notice can't produce a block that fails verification in the chain.
+    @GuardedBy("lock")
+    @Nullable
+    private Block buildBlock(CompactBlockMessage message, Transaction[] transactions) {
+        int size = Block.HEADER_SIZE + VarInt.sizeOf(transactions.length) + transactions.length * 255;
+        ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(size);
+        try {
+            bos.write(message.getHeader().bitcoinSerialize());
+            bos.write(new VarInt(transactions.length).encode());
+            for (Transaction tx : transactions)
+                tx.bitcoinSerialize(bos);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+        Block block = params.getDefaultSerializer().makeBlock(bos.toByteArray());
+        if (!block.calculateMerkleRoot().equals(block.getMerkleRoot())) {
+            log.info("Rebuilt compact block {} does not match its merkle root", block.getHashAsString());
+            return null;
+        }
+        return block;
+    }
+
+    @GuardedBy("lock")
+    private void requestFullBlock(Peer peer, Sha256Hash blockHash) {
+        blocksFallenBack++;
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addBlock(blockHash);
+        peer.sendMessage(getdata);
+    }
+
+    @GuardedBy("lock")
+    private void expirePending() {
+        long cutoff = Utils.currentTimeMillis() - PENDING_TIMEOUT_MILLIS;
+        Iterator<PartialBlock> it = pending.values().iterator();
+        while (it.hasNext()) {
+            PartialBlock partial = it.next();
+            if (partial.createdMillis < cutoff) {
+                log.info("{}: Timed out waiting for transactions of compact block {}", partial.peer,
+                        partial.message.getBlockHash());
+                it.remove();
+            }
+        }
+    }
+
+    /** Returns the number of transactions currently in the reconstruction pool. */
+    public int getPoolSize() {
+        lock.lock();
+        try {
+            return pool.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many compact blocks were rebuilt entirely from the pool. */
+    public long getBlocksFromPool() {
+        lock.lock();
+        try {
+            return blocksFromPool;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many compact blocks needed a getblocktxn round trip to complete. */
+    public long getBlocksWithRoundTrip() {
+        lock.lock();
+        try {
+            return blocksWithRoundTrip;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many compact blocks could not be rebuilt, so the full block was downloaded instead. */
+    public long getBlocksFallenBack() {
+        lock.lock();
+        try {
+            return blocksFallenBack;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "CompactBlockManager: " + pool.size() + " pooled txns, " + pending.size() + " pending, "
+                    + blocksFromPool + " from pool, " + blocksWithRoundTrip + " with round trip, " + blocksFallenBack
+                    + " full, " + transactionsFromPool + " txns from pool, " + transactionsRequested + " requested";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package live.thought.thoughtj.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>A compact block, as defined by BIP 152, carries a block header, a nonce and a 6 byte short id for every
+ * transaction in the block. The receiver rebuilds the block from transactions it already has in memory, matching them
+ * by short id, and only asks for the ones it is missing with a {@link GetBlockTransactionsMessage}. Transactions the
+ * sender expects the receiver not to have, such as the coinbase, are sent in full ("prefilled").</p>
+ *
+ * <p>Short ids are the lower 48 bits of SipHash-2-4 over the transaction hash, keyed with the first two little endian
+ * 64 bit words of SHA256(header || nonce). The nonce makes them different for every peer, so a collision can't be
+ * engineered against the whole network.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CompactBlockMessage extends Message {
+    /** Number of bytes in a short transaction id. */
+    public static final int SHORT_ID_LENGTH = 6;
+    private static final long SHORT_ID_MASK = 0xffffffffffffL;
+
+    /** A transaction sent in full, with its position in the block. */
+    public static class PrefilledTransaction {
+        private final int index;
+        private final Transaction tx;
+
+        public PrefilledTransaction(int index, Transaction tx) {
+            this.index = index;
+            this.tx = tx;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public Transaction getTransaction() {
+            return tx;
+        }
+    }
+
+    private Block header;
+    private long nonce;
+    private long[] shortIds;
+    private List<PrefilledTransaction> prefilledTransactions;
+
+    // Derived from header and nonce on first use.
+    private HashFunction shortIdFunction;
+
+    public CompactBlockMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    /**
+     * Creates a compact block for the given full block, prefilling only the coinbase transaction.
+     */
+    public CompactBlockMessage(NetworkParameters params, Block block, long nonce) {
+        super(params);
+        List<Transaction> transactions = block.getTransactions();
+        checkTransactions(transactions);
+        this.header = block.cloneAsHeader();
+        this.nonce = nonce;
+        this.prefilledTransactions = ImmutableList.of(new PrefilledTransaction(0, transactions.get(0)));
+        this.shortIds = new long[transactions.size() - 1];
+        for (int i = 1; i < transactions.size(); i++)
+            shortIds[i - 1] = getShortId(transactions.get(i).getHash());
+        this.length = UNKNOWN_LENGTH;
+    }
+
+    private static void checkTransactions(List<Transaction> transactions) {
+        if (transactions == null || transactions.isEmpty())
+            throw new IllegalArgumentException("Block has no transactions");
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        int headerLength = Block.getHeaderLength(Utils.readUint32(payload, cursor));
+        if (cursor + headerLength > payload.length)
+            throw new ProtocolException("Compact block too short for its header");
+        header = params.getDefaultSerializer().makeBlock(Arrays.copyOfRange(payload, cursor, cursor + headerLength));
+        cursor += headerLength;
+        nonce = readInt64();
+
+        long numShortIds = readVarInt();
+        if (numShortIds * SHORT_ID_LENGTH > payload.length - cursor)
+            throw new ProtocolException("Too many short ids in compact block: " + numShortIds);
+        shortIds = new long[(int) numShortIds];
+        for (int i = 0; i < numShortIds; i++) {
+            long id = 0;
+            for (int b = 0; b < SHORT_ID_LENGTH; b++)
+                id |= (payload[cursor + b] & 0xffL) << (8 * b);
+            shortIds[i] = id;
+            cursor += SHORT_ID_LENGTH;
+        }
+
+        long numPrefilled = readVarInt();
+        if (numPrefilled > payload.length - cursor)
+            throw new ProtocolException("Too many prefilled transactions in compact block: " + numPrefilled);
+        List<PrefilledTransaction> prefilled = new ArrayList<PrefilledTransaction>((int) numPrefilled);
+        long lastIndex = -1;
+        for (int i = 0; i < numPrefilled; i++) {
+            // Indexes are differentially encoded, each relative to the previous one plus one.
+            long index = lastIndex + readVarInt() + 1;
+            if (index > Character.MAX_VALUE || index >= numShortIds + numPrefilled)
+                throw new ProtocolException("Prefilled transaction index out of range: " + index);
+            Transaction tx = new Transaction(params, payload, cursor, null, serializer, UNKNOWN_LENGTH);
+            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            cursor += tx.getMessageSize();
+            prefilled.add(new PrefilledTransaction((int) index, tx));
+            lastIndex = index;
+        }
+        prefilledTransactions = prefilled;
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(header.bitcoinSerialize());
+        Utils.int64ToByteStreamLE(nonce, stream);
+        stream.write(new VarInt(shortIds.length).encode());
+        for (long id : shortIds) {
+            for (int b = 0; b < SHORT_ID_LENGTH; b++)
+                stream.write((int) (id >>> (8 * b)));
+        }
+        stream.write(new VarInt(prefilledTransactions.size()).encode());
+        int lastIndex = -1;
+        for (PrefilledTransaction prefilled : prefilledTransactions) {
+            stream.write(new VarInt(prefilled.getIndex() - lastIndex - 1).encode());
+            prefilled.getTransaction().bitcoinSerialize(stream);
+            lastIndex = prefilled.getIndex();
+        }
+    }
+
+    /** Returns the header of the block, without any transactions. */
+    public Block getHeader() {
+        return header;
+    }
+
+    /** Returns the hash of the block this message describes. */
+    public Sha256Hash getBlockHash() {
+        return header.getHash();
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    /** Returns the short ids of the transactions that were not prefilled, in block order. */
+    public long[] getShortIds() {
+        return Arrays.copyOf(shortIds, shortIds.length);
+    }
+
+    /** Returns the transactions sent in full, ordered by their index in the block. */
+    public List<PrefilledTransaction> getPrefilledTransactions() {
+        return prefilledTransactions;
+    }
+
+    /** Returns the number of transactions in the full block. */
+    public int getTransactionCount() {
+        return shortIds.length + prefilledTransactions.size();
+    }
+
+    /** Calculates the short id that a transaction with the given hash has in this compact block. */
+    public long getShortId(Sha256Hash txHash) {
+        if (shortIdFunction == null) {
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(Block.HEADER_SIZE + 8);
+            try {
+                bos.write(header.bitcoinSerialize());
+                Utils.int64ToByteStreamLE(nonce, bos);
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Cannot happen.
+            }
+            byte[] keys = Sha256Hash.hash(bos.toByteArray());
+            shortIdFunction = Hashing.sipHash24(Utils.readInt64(keys, 0), Utils.readInt64(keys, 8));
+        }
+        return shortIdFunction.hashBytes(txHash.getReversedBytes()).asLong() & SHORT_ID_MASK;
+    }
+
+    @Override
+    public String toString() {
+        return "cmpctblock: " + getBlockHash() + ", " + shortIds.length + " short ids, "
+                + prefilledTransactions.size() + " prefilled";
+    }
+}
@@ -477,6 +477,7 @@ public class Context
 
   public void updatedChainHead(StoredBlock chainHead)
   {
+    confidenceTable.setChainHeight(chainHead.getHeight());
     params.setDIPActiveAtTip(chainHead.getHeight() >= params.getDIP0001BlockHeight());
     if (initializedDash)
     {
@@ -0,0 +1,67 @@
+package live.thought.thoughtj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Adds a single element to the {@link BloomFilter} previously loaded on the remote peer (BIP 37 filteradd). This
+ * saves sending the whole filter again when only a few keys or scripts were added to the wallet.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class FilterAddMessage extends Message {
+    /** The largest element the remote peer accepts, the same as the largest script push. */
+    public static final int MAX_DATA_SIZE = 520;
+
+    private byte[] data;
+
+    public FilterAddMessage(NetworkParameters params, byte[] data) {
+        super(params);
+        checkArgument(data.length <= MAX_DATA_SIZE, "Element too large for filteradd: %s bytes", data.length);
+        this.data = data;
+        length = VarInt.sizeOf(data.length) + data.length;
+    }
+
+    public FilterAddMessage(NetworkParameters params, byte[] payloadBytes, int offset) throws ProtocolException {
+        super(params, payloadBytes, offset);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        data = readByteArray();
+        if (data.length > MAX_DATA_SIZE)
+            throw new ProtocolException("filteradd element too large: " + data.length);
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(data.length).encode());
+        stream.write(data);
+    }
+
+    /** Returns the element to add to the filter. */
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "filteradd: " + Utils.HEX.encode(data);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(data, ((FilterAddMessage) o).data);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(data);
+    }
+}
@@ -24,6 +24,7 @@ import live.thought.thoughtj.governance.Superblock;
 import live.thought.thoughtj.script.Script;
 import live.thought.thoughtj.script.Script.VerifyFlag;
 import live.thought.thoughtj.store.BlockStoreException;
+import live.thought.thoughtj.store.ConcurrentReadFullPrunedBlockStore;
 import live.thought.thoughtj.store.FullPrunedBlockStore;
 import live.thought.thoughtj.utils.*;
 import live.thought.thoughtj.wallet.Wallet;
@@ -32,9 +33,7 @@ import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Set;
-import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -57,6 +56,9 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
 
+    // Looks up the inputs of upcoming blocks in the background, if pipelined connection is enabled.
+    @Nullable private UTXOPrefetcher utxoPrefetcher;
+
     /**
      * Constructs a block chain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
      * one from scratch, or you can deserialize a saved wallet from disk using
@@ -147,39 +149,70 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
     // TODO: Remove lots of duplicated code in the two connectTransactions
 
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
+    // Checks the scripts of connected blocks. Long lived, so a failed block doesn't cost the worker threads.
+    private final ScriptVerificationScheduler scriptVerificationScheduler = new ScriptVerificationScheduler();
 
     /**
-     * A job submitted to the executor which verifies signatures.
+     * Returns the scheduler that runs the script checks, for example to read its queue depth and timing metrics.
      */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final Set<VerifyFlag> verifyFlags;
-
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
-            this.tx = tx;
-            this.prevOutScripts = prevOutScripts;
-            this.verifyFlags = verifyFlags;
-        }
+    public ScriptVerificationScheduler getScriptVerificationScheduler() {
+        return scriptVerificationScheduler;
+    }
 
-        @Nullable
-        @Override
-        public VerificationException call() throws Exception {
-            try {
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags);
-                }
-            } catch (VerificationException e) {
-                return e;
+    /**
+     * <p>Enables or disables pipelined block connection. When enabled, the outputs spent by a block can be looked up
+     * in the background with {@link #prefetch(Block)} before the block is added, whilst the chain is still busy
+     * checking and committing the blocks before it. This pays off with stores that have to go to disk for outputs.
+     * It can only be enabled with a {@link ConcurrentReadFullPrunedBlockStore}, as the prefetches read the store
+     * from another thread whilst the chain writes to it.</p>
+     *
+     * <p>Only the reads are moved off the chain thread. A block is still committed to the store before the scripts
+     * of the next one are checked, because the store holds one batch at a time and the next block has to see the
+     * outputs spent by the previous one.</p>
+     *
+     * <p>The {@link HeadersFirstDownloader} prefetches the next downloaded block automatically.</p>
+     */
+    public void setPipelinedConnect(boolean enabled) {
+        lock.lock();
+        try {
+            if (enabled && utxoPrefetcher == null) {
+                checkState(blockStore instanceof ConcurrentReadFullPrunedBlockStore,
+                        "Pipelined connect needs a store that can be read concurrently");
+                utxoPrefetcher = new UTXOPrefetcher((ConcurrentReadFullPrunedBlockStore) blockStore);
+            } else if (!enabled && utxoPrefetcher != null) {
+                utxoPrefetcher.invalidateAll();
+                utxoPrefetcher = null;
             }
-            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the prefetcher used in pipelined mode, to read its statistics, or null if the mode is disabled. */
+    @Nullable
+    public UTXOPrefetcher getUTXOPrefetcher() {
+        return utxoPrefetcher;
+    }
+
+    /**
+     * Starts looking up the outputs spent by the given block, which is expected to be added soon. Does nothing unless
+     * {@link #setPipelinedConnect(boolean)} was enabled. Waits for a block that is being connected on another thread.
+     */
+    public void prefetch(Block block) {
+        lock.lock();
+        try {
+            if (utxoPrefetcher != null)
+                utxoPrefetcher.prefetch(block);
+        } finally {
+            lock.unlock();
         }
     }
 
+    private void abortPrefetches() {
+        if (utxoPrefetcher != null)
+            utxoPrefetcher.invalidateAll();
+    }
+
     /**
      * Get the {@link Script} from the script bytes or return Script of empty byte array.
      */
@@ -223,10 +256,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         LinkedList<UTXO> txOutsCreated = new LinkedList<UTXO>();
         long sigOps = 0;
 
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        ScriptVerificationScheduler.Batch scriptVerifications = scriptVerificationScheduler.newBatch();
+        UTXOPrefetcher.Prefetch prefetched = utxoPrefetcher != null ? utxoPrefetcher.get(block.getHash()) : null;
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -249,15 +280,18 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 boolean isCoinBase = tx.isCoinBase();
                 Coin valueIn = Coin.ZERO;
                 Coin valueOut = Coin.ZERO;
-                final List<Script> prevOutScripts = new LinkedList<Script>();
+                final List<Script> prevOutScripts = new ArrayList<Script>(tx.getInputs().size());
                 final Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(block, tx, getVersionTally(), height);
                 if (!isCoinBase) {
                     // For each input of the transaction remove the corresponding output from the set of unspent
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                in.getOutpoint().getIndex());
+                        UTXO prevOut = prefetched != null ?
+                                prefetched.get(in.getOutpoint().getHash(), in.getOutpoint().getIndex()) : null;
+                        if (prevOut == null)
+                            prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
+                                    in.getOutpoint().getIndex());
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -279,6 +313,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
                         prevOutScripts.add(prevOut.getScript());
                         blockStore.removeUnspentTransactionOutput(prevOut);
+                        if (utxoPrefetcher != null)
+                            utxoPrefetcher.spent(prevOut);
                         txOutsSpent.add(prevOut);
                     }
                 }
@@ -310,9 +346,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
                 if (!isCoinBase && runScripts) {
                     // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    scriptVerifications.add(tx, prevOutScripts, verifyFlags);
                 }
             }
             boolean feesDontMatch = block.getBlockInflation(height, storedPrev.getHeader().getDifficultyTarget(), false).add(totalFees).compareTo(coinbaseValue) < 0;
@@ -320,27 +354,20 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 if(feesDontMatch && !Superblock.isValidBudgetBlockHeight(params, height))
                     throw new VerificationException("Transaction fees out of range");
             }
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            scriptVerifications.await();
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerifications.cancel();
+            abortPrefetches();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerifications.cancel();
+            abortPrefetches();
             blockStore.abortDatabaseBatchWrite();
             throw e;
+        } finally {
+            if (utxoPrefetcher != null)
+                utxoPrefetcher.remove(block.getHash());
         }
         return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
     }
@@ -355,6 +382,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         if (!params.passesCheckpoint(newBlock.getHeight(), newBlock.getHeader().getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + newBlock.getHeight());
 
+        // Prefetched outputs are only valid on top of the chain head they were looked up for.
+        abortPrefetches();
         blockStore.beginDatabaseBatchWrite();
         StoredUndoableBlock block = blockStore.getUndoBlock(newBlock.getHeader().getHash());
         if (block == null) {
@@ -363,6 +392,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerificationScheduler.Batch scriptVerifications = null;
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -380,16 +410,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
+                scriptVerifications = scriptVerificationScheduler.newBatch();
                 for (final Transaction tx : transactions) {
                     final Set<VerifyFlag> verifyFlags =
                         params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(), Integer.SIZE);
                     boolean isCoinBase = tx.isCoinBase();
                     Coin valueIn = Coin.ZERO;
                     Coin valueOut = Coin.ZERO;
-                    final List<Script> prevOutScripts = new LinkedList<Script>();
+                    final List<Script> prevOutScripts = new ArrayList<Script>(tx.getInputs().size());
 
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
@@ -444,9 +472,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
                     if (!isCoinBase) {
                         // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        scriptVerifications.add(tx, prevOutScripts, verifyFlags);
                     }
                 }
 
@@ -456,19 +482,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         throw new VerificationException("Transaction fees out of range");
                 }
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scriptVerifications.await();
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -483,11 +497,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (scriptVerifications != null)
+                scriptVerifications.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (scriptVerifications != null)
+                scriptVerifications.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -501,6 +517,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     @Override
     protected void disconnectTransactions(StoredBlock oldBlock) throws PrunedException, BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
+        abortPrefetches();
         blockStore.beginDatabaseBatchWrite();
         try {
             StoredUndoableBlock undoBlock = blockStore.getUndoBlock(oldBlock.getHeader().getHash());
@@ -528,6 +545,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
     @Override
     protected void notSettingChainHead() throws BlockStoreException {
+        abortPrefetches();
         blockStore.abortDatabaseBatchWrite();
     }
 
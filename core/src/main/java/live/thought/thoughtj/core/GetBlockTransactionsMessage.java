@@ -0,0 +1,98 @@
+package live.thought.thoughtj.core;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * <p>Asks a peer for the transactions of a block that we could not find in memory when reconstructing it from a
+ * {@link CompactBlockMessage}. The peer answers with a {@link BlockTransactionsMessage}. Transactions are identified
+ * by their index in the block; on the wire the indexes are differentially encoded as in BIP 152.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetBlockTransactionsMessage extends Message {
+    private Sha256Hash blockHash;
+    private ImmutableList<Integer> indexes;
+
+    /**
+     * Creates a request for the transactions at the given positions of a block.
+     * @param indexes Indexes into the block's transaction list, in ascending order.
+     */
+    public GetBlockTransactionsMessage(NetworkParameters params, Sha256Hash blockHash, List<Integer> indexes) {
+        super(params);
+        this.blockHash = blockHash;
+        this.indexes = ImmutableList.copyOf(indexes);
+        int lastIndex = -1;
+        for (int index : this.indexes) {
+            if (index <= lastIndex)
+                throw new IllegalArgumentException("Indexes must be in ascending order: " + this.indexes);
+            lastIndex = index;
+        }
+        length = UNKNOWN_LENGTH;
+    }
+
+    public GetBlockTransactionsMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        blockHash = readHash();
+        long numIndexes = readVarInt();
+        if (numIndexes > payload.length - cursor)
+            throw new ProtocolException("Too many indexes in getblocktxn: " + numIndexes);
+        ImmutableList.Builder<Integer> list = ImmutableList.builder();
+        long lastIndex = -1;
+        for (int i = 0; i < numIndexes; i++) {
+            long index = lastIndex + readVarInt() + 1;
+            if (index > Character.MAX_VALUE)
+                throw new ProtocolException("Transaction index out of range: " + index);
+            list.add((int) index);
+            lastIndex = index;
+        }
+        indexes = list.build();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(indexes.size()).encode());
+        int lastIndex = -1;
+        for (int index : indexes) {
+            stream.write(new VarInt(index - lastIndex - 1).encode());
+            lastIndex = index;
+        }
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the requested positions in the block's transaction list, in ascending order. */
+    public List<Integer> getIndexes() {
+        return indexes;
+    }
+
+    @Override
+    public String toString() {
+        return "getblocktxn: " + blockHash + ", " + indexes.size() + " transactions";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GetBlockTransactionsMessage other = (GetBlockTransactionsMessage) o;
+        return blockHash.equals(other.blockHash) && indexes.equals(other.indexes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(blockHash, indexes);
+    }
+}
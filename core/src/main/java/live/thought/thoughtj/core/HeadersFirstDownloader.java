@@ -0,0 +1,589 @@
+package live.thought.thoughtj.core;
+
+import live.thought.thoughtj.store.BlockStoreException;
+import live.thought.thoughtj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads block bodies from all connected peers in parallel, driven by a header chain fetched from the download
+ * peer. Without it a {@link PeerGroup} asks a single peer for blocks with getblocks/inv, so chain sync is capped by
+ * the bandwidth and latency of that one peer.</p>
+ *
+ * <p>The download peer still drives the process: instead of getblocks it sends getheaders, and each batch of
+ * headers it receives is checked for proof of work and linkage and handed to {@link #addHeaders(Peer, List)}. The
+ * blocks for a sliding window of those headers are then requested (as full or filtered blocks) from whichever peers
+ * have spare capacity, up to {@link #DEFAULT_MAX_IN_FLIGHT_PER_PEER} at a time each. Blocks arriving out of order are
+ * held until their parents have been connected, so {@link AbstractBlockChain} always sees them in height order.</p>
+ *
+ * <p>{@link #checkStalls()} is called periodically by the PeerGroup. A request that has been outstanding for longer
+ * than the stall timeout is given to another peer, so a single slow or unresponsive peer cannot hold up the window.</p>
+ *
+ * <p>Enable it with {@link PeerGroup#setHeadersFirstDownload(boolean)}.</p>
+ */
+public class HeadersFirstDownloader {
+    private static final Logger log = LoggerFactory.getLogger(HeadersFirstDownloader.class);
+
+    /** How many blocks past the next one to be connected may be requested at once. */
+    public static final int DEFAULT_WINDOW_SIZE = 1024;
+    /** How many block requests may be outstanding against a single peer. */
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_PEER = 16;
+    /** How long a block request may be outstanding before it is given to another peer. */
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 10 * 1000;
+    // Stop asking for more headers once this many are waiting for their blocks.
+    private static final int MAX_QUEUED_HEADERS = 4 * HeadersMessage.MAX_HEADERS;
+
+    private final ReentrantLock lock = Threading.lock("headersfirstdownloader");
+    // Held whilst blocks are handed to the chain, so only one thread connects at a time and order is preserved.
+    private final ReentrantLock connectLock = Threading.lock("headersfirstdownloader-connect");
+
+    private final PeerGroup peerGroup;
+    private final AbstractBlockChain chain;
+
+    private static class Slot {
+        final Block header;
+        final int height;
+        // The peer the block is currently requested from, or null if it needs to be (re)requested.
+        @Nullable Peer peer;
+        // The last peer we gave up on, which we try not to ask again.
+        @Nullable Peer stalledPeer;
+        long requestTimeMillis;
+        // A Block or FilteredBlock once received.
+        @Nullable Message data;
+        // Peers whose answer to an earlier request must be thrown away, because it was made with an outdated filter.
+        @Nullable List<Peer> staleResponses;
+
+        Slot(Block header, int height) {
+            this.header = header;
+            this.height = height;
+        }
+    }
+
+    // Headers whose blocks haven't been connected yet, in chain order.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Slot> slots = new LinkedHashMap<Sha256Hash, Slot>();
+    @GuardedBy("lock") private final Map<Peer, Integer> inFlight = new HashMap<Peer, Integer>();
+    @GuardedBy("lock") @Nullable private Slot tail;
+    @GuardedBy("lock") @Nullable private Peer headerPeer;
+    // Set when the header peer sent a full batch but we didn't ask for more because the queue was full.
+    @GuardedBy("lock") private boolean moreHeadersAvailable;
+    @GuardedBy("lock") private boolean useFilteredBlocks;
+    // Set whilst waiting for a new Bloom filter to reach the peers, see onFilterExhausted().
+    @GuardedBy("lock") private boolean paused;
+
+    private volatile int vWindowSize = DEFAULT_WINDOW_SIZE;
+    private volatile int vMaxInFlightPerPeer = DEFAULT_MAX_IN_FLIGHT_PER_PEER;
+    private volatile long vStallTimeoutMillis = DEFAULT_STALL_TIMEOUT_MILLIS;
+
+    @GuardedBy("lock") private long blocksConnected, blocksRerequested;
+
+    public HeadersFirstDownloader(PeerGroup peerGroup, AbstractBlockChain chain) {
+        this.peerGroup = checkNotNull(peerGroup);
+        this.chain = checkNotNull(chain);
+    }
+
+    /** Sets how many blocks ahead of the chain head may be requested at once. */
+    public void setWindowSize(int windowSize) {
+        checkArgument(windowSize > 0);
+        this.vWindowSize = windowSize;
+    }
+
+    /** Sets how many block requests may be outstanding against a single peer. */
+    public void setMaxInFlightPerPeer(int maxInFlightPerPeer) {
+        checkArgument(maxInFlightPerPeer > 0);
+        this.vMaxInFlightPerPeer = maxInFlightPerPeer;
+    }
+
+    /** Sets how long a block request may be outstanding before it is given to another peer. */
+    public void setStallTimeoutMillis(long stallTimeoutMillis) {
+        checkArgument(stallTimeoutMillis > 0);
+        this.vStallTimeoutMillis = stallTimeoutMillis;
+    }
+
+    /** Called by the PeerGroup when a peer is selected to provide the header chain. */
+    void setHeaderPeer(Peer peer, boolean useFilteredBlocks) {
+        lock.lock();
+        try {
+            this.headerPeer = peer;
+            this.useFilteredBlocks = useFilteredBlocks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if there are headers whose blocks are still being downloaded. */
+    public boolean isActive() {
+        lock.lock();
+        try {
+            return !slots.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the hash of the last header queued for download, which getheaders requests should continue from, or
+     * null if nothing is queued and the chain head should be used instead.
+     */
+    @Nullable
+    public Sha256Hash getQueuedTip() {
+        lock.lock();
+        try {
+            return tail != null ? tail.header.getHash() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of headers whose blocks have not been connected yet. */
+    public int getQueuedCount() {
+        lock.lock();
+        try {
+            return slots.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many blocks this downloader has connected to the chain. */
+    public long getBlocksConnected() {
+        lock.lock();
+        try {
+            return blocksConnected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many block requests were given to another peer because the first one stalled or went away. */
+    public long getBlocksRerequested() {
+        lock.lock();
+        try {
+            return blocksRerequested;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a batch of headers received from the given peer. Every header must connect to the previous one (the
+     * first to the last queued header, or to a block in the chain if nothing is queued) and carry valid proof of
+     * work. Returns true if the caller should immediately ask the peer for the next batch of headers. The caller
+     * should then call {@link #schedule()} to start requesting the blocks.
+     *
+     * @throws ProtocolException if the headers don't form a chain.
+     * @throws BlockStoreException if the block store couldn't be read to find where the first header connects.
+     */
+    public boolean addHeaders(Peer peer, List<Block> headers) throws VerificationException, BlockStoreException {
+        lock.lock();
+        try {
+            for (Block header : headers) {
+                Sha256Hash hash = header.getHash();
+                if (slots.containsKey(hash))
+                    continue;
+                int height;
+                if (tail != null && tail.header.getHash().equals(header.getPrevBlockHash())) {
+                    height = tail.height + 1;
+                } else if (tail == null) {
+                    if (chain.getBlockStore().get(hash) != null)
+                        continue;  // Already have it.
+                    StoredBlock prev = chain.getBlockStore().get(header.getPrevBlockHash());
+                    if (prev == null)
+                        throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
+                    height = prev.getHeight() + 1;
+                } else {
+                    throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
+                }
+                header.verifyHeader();
+                Slot slot = new Slot(header, height);
+                slots.put(hash, slot);
+                tail = slot;
+            }
+            boolean fullBatch = headers.size() >= HeadersMessage.MAX_HEADERS;
+            boolean requestMore = fullBatch && slots.size() < MAX_QUEUED_HEADERS;
+            moreHeadersAvailable = fullBatch && !requestMore;
+            if (log.isDebugEnabled())
+                log.debug("{}: queued {} headers, {} awaiting download", peer, headers.size(), slots.size());
+            return requestMore;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Requests blocks for queued headers from peers with spare capacity. */
+    public void schedule() {
+        Map<Peer, List<Sha256Hash>> requests = new HashMap<Peer, List<Sha256Hash>>();
+        boolean filtered;
+        lock.lock();
+        try {
+            if (paused || slots.isEmpty())
+                return;
+            filtered = useFilteredBlocks;
+            List<Peer> candidates = new ArrayList<Peer>();
+            for (Peer peer : peerGroup.getConnectedPeers()) {
+                VersionMessage ver = peer.getPeerVersionMessage();
+                if (ver == null)
+                    continue;
+                if (filtered && (!ver.isBloomFilteringSupported() || peer.getBloomFilter() == null))
+                    continue;
+                candidates.add(peer);
+            }
+            if (candidates.isEmpty())
+                return;
+            // Best scoring peers first, so they win ties.
+            PeerPerformanceTracker performance = peerGroup.getPeerPerformance();
+            candidates = performance.sortByScore(candidates);
+            Map<Peer, Double> scores = new HashMap<Peer, Double>();
+            for (Peer peer : candidates)
+                scores.put(peer, performance.getScore(peer));
+            int maxInFlight = vMaxInFlightPerPeer;
+            long now = Utils.currentTimeMillis();
+            int windowLeft = vWindowSize;
+            for (Slot slot : slots.values()) {
+                if (windowLeft-- <= 0)
+                    break;
+                if (slot.data != null || slot.peer != null)
+                    continue;
+                // Pick the peer expected to answer first: the requests already queued with it plus this one, times
+                // how long it takes to answer a request.
+                Peer best = null;
+                double bestCost = Double.MAX_VALUE;
+                for (Peer peer : candidates) {
+                    if (peer.getBestHeight() < slot.height)
+                        continue;
+                    int load = getInFlight(peer);
+                    if (load >= maxInFlight)
+                        continue;
+                    // Prefer anyone other than the peer that just let us down.
+                    if (peer == slot.stalledPeer)
+                        load += maxInFlight;
+                    double cost = (load + 1) * scores.get(peer);
+                    if (cost < bestCost) {
+                        best = peer;
+                        bestCost = cost;
+                    }
+                }
+                if (best == null)
+                    continue;
+                slot.peer = best;
+                slot.requestTimeMillis = now;
+                inFlight.put(best, getInFlight(best) + 1);
+                List<Sha256Hash> hashes = requests.get(best);
+                if (hashes == null) {
+                    hashes = new ArrayList<Sha256Hash>();
+                    requests.put(best, hashes);
+                }
+                hashes.add(slot.header.getHash());
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Peer, List<Sha256Hash>> entry : requests.entrySet())
+            entry.getKey().requestBlocksForDownload(entry.getValue(), filtered);
+    }
+
+    /**
+     * Returns true if a block with the given hash is awaited from the given peer, ie. it was requested and its
+     * answer should be accepted.
+     */
+    public boolean isAwaiting(Peer peer, Sha256Hash hash) {
+        lock.lock();
+        try {
+            Slot slot = slots.get(hash);
+            return slot != null && slot.data == null
+                    && (slot.staleResponses == null || !slot.staleResponses.contains(peer));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by a peer when it receives a block. Returns true if the block belongs to this downloader and should not
+     * be processed any further by the peer.
+     */
+    public boolean onBlock(Peer peer, Block block) {
+        return receive(peer, block.getHash(), block);
+    }
+
+    /**
+     * Called by a peer when it has received a filtered block and its matching transactions. Returns true if the
+     * block belongs to this downloader and should not be processed any further by the peer.
+     */
+    public boolean onFilteredBlock(Peer peer, FilteredBlock block) {
+        return receive(peer, block.getHash(), block);
+    }
+
+    private boolean receive(Peer peer, Sha256Hash hash, Message data) {
+        lock.lock();
+        try {
+            Slot slot = slots.get(hash);
+            if (slot == null)
+                return false;
+            if (slot.staleResponses != null && slot.staleResponses.remove(peer)) {
+                log.debug("{}: discarding block {} requested with an outdated filter", peer, hash);
+                return true;
+            }
+            if (slot.data != null)
+                return true;  // Duplicate from a peer we gave up on.
+            slot.data = data;
+            if (slot.peer != null) {
+                if (slot.peer == peer)
+                    peerGroup.getPeerPerformance().recordRequestCompleted(peer,
+                            Utils.currentTimeMillis() - slot.requestTimeMillis);
+                decrementInFlight(slot.peer);
+                slot.peer = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        connectReady();
+        schedule();
+        return true;
+    }
+
+    /** Hands every block at the front of the queue that has been received to the chain, in order. */
+    private void connectReady() {
+        while (true) {
+            // If another thread is already connecting, it will pick up what we received.
+            if (!connectLock.tryLock())
+                return;
+            try {
+                connectReadyLocked();
+            } finally {
+                connectLock.unlock();
+            }
+            // Re-check, in case a block arrived after the last check but before we released the connect lock.
+            if (!isHeadReady())
+                break;
+        }
+        maybeRequestMoreHeaders();
+    }
+
+    private boolean isHeadReady() {
+        lock.lock();
+        try {
+            if (slots.isEmpty() || paused)
+                return false;
+            return slots.values().iterator().next().data != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("connectLock")
+    private void connectReadyLocked() {
+        while (true) {
+            Slot slot;
+            Peer notify;
+            Block next = null;
+            lock.lock();
+            try {
+                if (slots.isEmpty() || paused)
+                    return;
+                Iterator<Slot> it = slots.values().iterator();
+                slot = it.next();
+                if (slot.data == null)
+                    return;
+                it.remove();
+                if (slot == tail)
+                    tail = null;
+                notify = headerPeer;
+                if (it.hasNext()) {
+                    Slot nextSlot = it.next();
+                    if (nextSlot.data instanceof Block)
+                        next = (Block) nextSlot.data;
+                }
+            } finally {
+                lock.unlock();
+            }
+            // Let a pipelining chain look up the inputs of the next block whilst it connects this one.
+            if (next != null && chain instanceof FullPrunedBlockChain)
+                ((FullPrunedBlockChain) chain).prefetch(next);
+            try {
+                boolean connected;
+                if (slot.data instanceof FilteredBlock)
+                    connected = chain.add((FilteredBlock) slot.data);
+                else
+                    connected = chain.add((Block) slot.data);
+                if (!connected) {
+                    log.warn("Block {} at height {} did not connect, abandoning parallel download",
+                            slot.header.getHashAsString(), slot.height);
+                    reset();
+                    return;
+                }
+            } catch (VerificationException e) {
+                log.warn("Block verification failed, abandoning parallel download", e);
+                reset();
+                return;
+            } catch (PrunedException e) {
+                // A full pruned chain can't reorganize past what it pruned, so the queued blocks are of no use.
+                log.error("Block connected to a pruned fork, abandoning parallel download", e);
+                reset();
+                return;
+            }
+            lock.lock();
+            try {
+                blocksConnected++;
+                if (slots.isEmpty()) {
+                    log.info("Parallel block download caught up at height {}", slot.height);
+                    // Check whether blocks were solved whilst we were busy, as their invs were ignored.
+                    moreHeadersAvailable = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (notify != null) {
+                if (slot.data instanceof FilteredBlock)
+                    notify.invokeOnBlocksDownloaded(slot.header, (FilteredBlock) slot.data);
+                else
+                    notify.invokeOnBlocksDownloaded((Block) slot.data, null);
+            }
+        }
+    }
+
+    private void maybeRequestMoreHeaders() {
+        Peer peer;
+        lock.lock();
+        try {
+            if (!moreHeadersAvailable || headerPeer == null || slots.size() >= MAX_QUEUED_HEADERS / 2)
+                return;
+            moreHeadersAvailable = false;
+            peer = headerPeer;
+        } finally {
+            lock.unlock();
+        }
+        peer.continueHeadersFirstDownload();
+    }
+
+    /** Gives requests that have been outstanding for too long to another peer. Called periodically by the PeerGroup. */
+    public void checkStalls() {
+        lock.lock();
+        try {
+            long deadline = Utils.currentTimeMillis() - vStallTimeoutMillis;
+            for (Slot slot : slots.values()) {
+                if (slot.peer == null || slot.data != null || slot.requestTimeMillis > deadline)
+                    continue;
+                log.info("{}: block {} at height {} not received in time, asking another peer", slot.peer,
+                        slot.header.getHashAsString(), slot.height);
+                peerGroup.getPeerPerformance().recordFailure(slot.peer);
+                decrementInFlight(slot.peer);
+                slot.stalledPeer = slot.peer;
+                slot.peer = null;
+                blocksRerequested++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    /** Called by the PeerGroup when a peer disconnects, so its outstanding requests go to other peers. */
+    public void onPeerDisconnected(Peer peer) {
+        lock.lock();
+        try {
+            inFlight.remove(peer);
+            for (Slot slot : slots.values()) {
+                if (slot.peer == peer) {
+                    slot.peer = null;
+                    blocksRerequested++;
+                }
+                if (slot.stalledPeer == peer)
+                    slot.stalledPeer = null;
+                if (slot.staleResponses != null)
+                    slot.staleResponses.remove(peer);
+            }
+            if (headerPeer == peer)
+                headerPeer = null;
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    /**
+     * Called when a filtered block shows the wallet's Bloom filter has run out of keys. Filtered blocks received so
+     * far may be missing transactions, so they are discarded along with the answers to requests already in flight,
+     * and nothing more is requested until {@link #onFilterUpdated()}.
+     */
+    public void onFilterExhausted() {
+        lock.lock();
+        try {
+            if (!useFilteredBlocks)
+                return;
+            log.info("Bloom filter exhausted, discarding {} queued filtered blocks until a new filter is sent", slots.size());
+            paused = true;
+            for (Slot slot : slots.values()) {
+                slot.data = null;
+                if (slot.peer != null) {
+                    if (slot.staleResponses == null)
+                        slot.staleResponses = new LinkedList<Peer>();
+                    slot.staleResponses.add(slot.peer);
+                    slot.peer = null;
+                }
+            }
+            inFlight.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called by the PeerGroup once a new Bloom filter has been sent to all peers. */
+    public void onFilterUpdated() {
+        lock.lock();
+        try {
+            if (!paused)
+                return;
+            paused = false;
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    /** Forgets all queued headers and outstanding requests. Blocks that still arrive are ignored. */
+    public void reset() {
+        lock.lock();
+        try {
+            slots.clear();
+            inFlight.clear();
+            tail = null;
+            moreHeadersAvailable = false;
+            paused = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private int getInFlight(Peer peer) {
+        Integer count = inFlight.get(peer);
+        return count == null ? 0 : count;
+    }
+
+    @GuardedBy("lock")
+    private void decrementInFlight(Peer peer) {
+        int count = getInFlight(peer) - 1;
+        if (count <= 0)
+            inFlight.remove(peer);
+        else
+            inFlight.put(peer, count);
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format(Locale.US, "HeadersFirstDownloader: %d queued, %d peers busy, %d connected, %d re-requested%s",
+                    slots.size(), inFlight.size(), blocksConnected, blocksRerequested, paused ? ", paused" : "");
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -48,6 +48,7 @@ public class InventoryItem {
         GovernanceObject,
         GovernanceObjectVote,
         MasternodeVerify,
+        CompactBlock,        // BIP 152, only requested with getdata
         None,
 
 
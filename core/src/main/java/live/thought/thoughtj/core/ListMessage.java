@@ -146,6 +146,9 @@ public abstract class ListMessage extends Message {
                 case 19:
                     type = InventoryItem.Type.MasternodeVerify;
                     break;
+                case 20:
+                    type = InventoryItem.Type.CompactBlock;
+                    break;
                 default:
                     //throw new ProtocolException("Unknown CInv type: " + typeCode);
                     type = InventoryItem.Type.None;
@@ -35,6 +35,7 @@ import live.thought.thoughtj.governance.GovernanceSyncMessage;
 import live.thought.thoughtj.governance.GovernanceVote;
 import live.thought.thoughtj.governance.GovernanceVoteConfidence;
 import live.thought.thoughtj.net.StreamConnection;
+import live.thought.thoughtj.store.BatchedBlockStore;
 import live.thought.thoughtj.store.BlockStore;
 import live.thought.thoughtj.store.BlockStoreException;
 import live.thought.thoughtj.utils.ListenerRegistration;
@@ -108,6 +109,12 @@ public class Peer extends PeerSocketHandler {
     // set AND our best block is before that date, switch to false until block headers beyond that point have been
     // received at which point it gets set to true again. This isn't relevant unless vDownloadData is true.
     @GuardedBy("lock") private boolean downloadBlockBodies = true;
+    // Headers received whilst downloading headers only that are held back until they can be linked to the block the
+    // chain assumes to be valid, see AbstractBlockChain#proveAssumedValid(List). The next getheaders continues from
+    // the last of them.
+    @GuardedBy("lock") private final List<Block> unprovenHeaders = new ArrayList<Block>();
+    // Beyond this many, held back headers are checked in full instead.
+    private static final int MAX_UNPROVEN_HEADERS = 10 * HeadersMessage.MAX_HEADERS;
     // Whether to request filtered blocks instead of full blocks if the protocol version allows for them.
     @GuardedBy("lock") private boolean useFilteredBlocks = false;
     // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us.
@@ -142,6 +149,23 @@ public class Peer extends PeerSocketHandler {
     private final HashSet<TransactionConfidence> pendingTxDownloads = new HashSet<TransactionConfidence>();
     private final HashSet<GovernanceVoteConfidence> pendingVotes = new HashSet<GovernanceVoteConfidence>();
     private static final int PENDING_TX_DOWNLOADS_LIMIT = 100;
+    // If set by the PeerGroup, a filter shared by all peers that remembers which announced items were recently
+    // requested by any of them, so the same inv arriving from many peers only results in one download.
+    @Nullable private volatile RecentInventoryFilter vInventoryFilter;
+    // Items the inventory filter let us request that we haven't received or been told about with notfound yet, with
+    // the time they were requested. When we disconnect first, or they go unanswered for too long, they are forgotten
+    // by the filter, so other peers' announcements of them aren't ignored. Oldest first, and capped so that requests
+    // that never get any reply can't grow it without bound.
+    @GuardedBy("filteredRequests") private final LinkedHashMap<Sha256Hash, Long> filteredRequests = new LinkedHashMap<Sha256Hash, Long>();
+    private static final int FILTERED_REQUESTS_LIMIT = 10000;
+    private static final long FILTERED_REQUEST_TIMEOUT_MILLIS = 60 * 1000;
+    // If set by the PeerGroup, block bodies are fetched from all peers by this downloader and we only ask our peer
+    // for headers when we are the download peer.
+    @Nullable private volatile HeadersFirstDownloader vHeadersFirstDownloader;
+    // If set by the PeerGroup, new blocks are requested as compact blocks and rebuilt from relayed transactions.
+    @Nullable private volatile CompactBlockManager vCompactBlockManager;
+    // Whether the remote peer told us with a sendcmpct message that it can serve compact blocks.
+    private volatile boolean vPeerSupportsCompactBlocks;
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
@@ -429,6 +453,17 @@ public class Peer extends PeerSocketHandler {
 
     @Override
     public void connectionClosed() {
+        RecentInventoryFilter inventoryFilter = vInventoryFilter;
+        if (inventoryFilter != null) {
+            List<Sha256Hash> inFlight;
+            synchronized (filteredRequests) {
+                inFlight = new ArrayList<Sha256Hash>(filteredRequests.keySet());
+                filteredRequests.clear();
+            }
+            // Nobody else will ask for these until the filter forgets them, so let the next announcement through.
+            for (Sha256Hash hash : inFlight)
+                inventoryFilter.forget(hash);
+        }
         for (final ListenerRegistration<PeerDisconnectedEventListener> registration : disconnectedEventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -510,6 +545,10 @@ public class Peer extends PeerSocketHandler {
                     "Received " + m.getClass().getSimpleName() + " before version handshake is complete."+ reason);
         }
 
+        expireFilteredRequests();
+        if (isFilteredItem(m))
+            filteredRequestReceived(m.getHash());
+
         if (m instanceof Ping) {
             processPing((Ping) m);
         } else if (m instanceof Pong) {
@@ -579,6 +618,12 @@ public class Peer extends PeerSocketHandler {
             context.governanceManager.processGovernanceObjectVote(this, (GovernanceVote)m);
         } else if (m instanceof SimplifiedMasternodeListDiff) {
             context.masternodeListManager.processMasternodeListDiff((SimplifiedMasternodeListDiff)m);
+        } else if (m instanceof SendCompactBlocksMessage) {
+            processSendCompactBlocks((SendCompactBlocksMessage) m);
+        } else if (m instanceof CompactBlockMessage) {
+            processCompactBlock((CompactBlockMessage) m);
+        } else if (m instanceof BlockTransactionsMessage) {
+            processBlockTransactions((BlockTransactionsMessage) m);
         } else {
             log.warn("{}: Received unhandled message: {}", this, m);
         }
@@ -670,7 +715,36 @@ public class Peer extends PeerSocketHandler {
             log.warn("Connected to a peer speaking protocol version {} but need {}, closing",
                     vPeerVersionMessage.clientVersion, version);
             close();
+            return;
+        }
+        // Tell the peer we can rebuild compact blocks, in low bandwidth mode so it still announces blocks first.
+        if (vCompactBlockManager != null)
+            sendMessage(new SendCompactBlocksMessage(params, false, SendCompactBlocksMessage.COMPACT_BLOCKS_VERSION));
+    }
+
+    private void processSendCompactBlocks(SendCompactBlocksMessage m) {
+        if (m.getVersion() == SendCompactBlocksMessage.COMPACT_BLOCKS_VERSION)
+            vPeerSupportsCompactBlocks = true;
+    }
+
+    protected void processCompactBlock(CompactBlockMessage m) {
+        CompactBlockManager manager = vCompactBlockManager;
+        if (manager == null) {
+            log.debug("{}: Received compact block we did not ask for: {}", getAddress(), m.getBlockHash());
+            return;
         }
+        Block block = manager.onCompactBlock(this, m);
+        if (block != null)
+            processBlock(block);
+    }
+
+    protected void processBlockTransactions(BlockTransactionsMessage m) {
+        CompactBlockManager manager = vCompactBlockManager;
+        if (manager == null)
+            return;
+        Block block = manager.onBlockTransactions(this, m);
+        if (block != null)
+            processBlock(block);
     }
 
     protected void startFilteredBlock(FilteredBlock m) {
@@ -694,6 +768,14 @@ public class Peer extends PeerSocketHandler {
         // the bottom of the dependency tree (where the unconfirmed transactions connect to transactions that are
         // in the chain).
         //
+        // Let another peer that announces these items fetch them instead.
+        RecentInventoryFilter inventoryFilter = vInventoryFilter;
+        if (inventoryFilter != null) {
+            for (InventoryItem item : m.getItems()) {
+                inventoryFilter.forget(item.hash);
+                filteredRequestDone(item.hash);
+            }
+        }
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
         for (GetDataRequest req : getDataFutures) {
             for (InventoryItem item : m.getItems()) {
@@ -746,49 +828,114 @@ public class Peer extends PeerSocketHandler {
         }
 
         try {
-            checkState(!downloadBlockBodies, toString());
-            for (int i = 0; i < m.getBlockHeaders().size(); i++) {
-                Block header = m.getBlockHeaders().get(i);
-                // Process headers until we pass the fast catchup time, or are about to catch up with the head
-                // of the chain - always process the last block as a full/filtered block to kick us out of the
-                // fast catchup mode (in which we ignore new blocks).
-                boolean passedTime = header.getTimeSeconds() >= fastCatchupTimeSecs;
-                boolean reachedTop = blockChain.getBestChainHeight() >= vPeerVersionMessage.bestHeight;
-                if (!passedTime && !reachedTop) {
-                    if (!vDownloadData) {
-                        // Not download peer anymore, some other peer probably became better.
-                        log.info("Lost download peer status, throwing away downloaded headers.");
-                        return;
-                    }
-                    if (blockChain.add(header)) {
-                        // The block was successfully linked into the chain. Notify the user of our progress.
-                        invokeOnBlocksDownloaded(header, null);
-                    } else {
-                        // This block is unconnected - we don't know how to get from it back to the genesis block yet.
-                        // That must mean that the peer is buggy or malicious because we specifically requested for
-                        // headers that are part of the best chain.
-                        throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
-                    }
-                } else {
+            HeadersFirstDownloader downloader = vHeadersFirstDownloader;
+            if (downloadBlockBodies && downloader != null) {
+                if (!vDownloadData) {
+                    log.info("Lost download peer status, throwing away downloaded headers.");
+                    return;
+                }
+                // Queue the headers so their bodies can be fetched from all peers, and keep the headers coming.
+                boolean requestMore = downloader.addHeaders(this, m.getBlockHeaders());
+                downloader.schedule();
+                if (requestMore) {
                     lock.lock();
                     try {
-                        log.info(
-                                "Passed the fast catchup time ({}) at height {}, discarding {} headers and requesting full blocks",
-                                Utils.dateTimeFormat(fastCatchupTimeSecs * 1000), blockChain.getBestChainHeight() + 1,
-                                m.getBlockHeaders().size() - i);
-                        this.downloadBlockBodies = true;
-                        // Prevent this request being seen as a duplicate.
-                        this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
                         blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
                     } finally {
                         lock.unlock();
                     }
-                    return;
                 }
+                return;
+            }
+            checkState(!downloadBlockBodies, toString());
+            List<Block> headers = m.getBlockHeaders();
+            boolean fullBatch = headers.size() >= HeadersMessage.MAX_HEADERS;
+            lock.lock();
+            try {
+                // Headers held back from earlier batches come first, if these continue from them.
+                if (!unprovenHeaders.isEmpty() && !headers.isEmpty() && headers.get(0).getPrevBlockHash()
+                        .equals(unprovenHeaders.get(unprovenHeaders.size() - 1).getHash())) {
+                    unprovenHeaders.addAll(headers);
+                    headers = new ArrayList<Block>(unprovenHeaders);
+                }
+                unprovenHeaders.clear();
+            } finally {
+                lock.unlock();
+            }
+            int proven = blockChain.proveAssumedValid(headers);
+            // Whilst the assumed valid block is still ahead, hold back the headers that couldn't be proven yet instead
+            // of checking them in full, unless we are about to pass the fast catchup time or have held back too many.
+            StoredBlock assumeValid = blockChain.getAssumeValid();
+            if (fullBatch && assumeValid != null && proven < headers.size() && headers.size() < MAX_UNPROVEN_HEADERS
+                    && blockChain.getBestChainHeight() + headers.size() < assumeValid.getHeight()
+                    && headers.get(headers.size() - 1).getTimeSeconds() < fastCatchupTimeSecs) {
+                lock.lock();
+                try {
+                    unprovenHeaders.addAll(headers.subList(proven, headers.size()));
+                } finally {
+                    lock.unlock();
+                }
+                headers = headers.subList(0, proven);
+            }
+            // Write the whole run of headers in one go if the store can do that.
+            BatchedBlockStore batchedStore = blockChain.getBlockStore() instanceof BatchedBlockStore ?
+                    (BatchedBlockStore) blockChain.getBlockStore() : null;
+            if (batchedStore != null)
+                batchedStore.beginBatch();
+            try {
+                for (int i = 0; i < headers.size(); i++) {
+                    Block header = headers.get(i);
+                    // Process headers until we pass the fast catchup time, or are about to catch up with the head
+                    // of the chain - always process the last block as a full/filtered block to kick us out of the
+                    // fast catchup mode (in which we ignore new blocks).
+                    boolean passedTime = header.getTimeSeconds() >= fastCatchupTimeSecs;
+                    boolean reachedTop = blockChain.getBestChainHeight() >= vPeerVersionMessage.bestHeight;
+                    if (!passedTime && !reachedTop) {
+                        if (!vDownloadData) {
+                            // Not download peer anymore, some other peer probably became better.
+                            log.info("Lost download peer status, throwing away downloaded headers.");
+                            lock.lock();
+                            try {
+                                unprovenHeaders.clear();
+                            } finally {
+                                lock.unlock();
+                            }
+                            return;
+                        }
+                        if (blockChain.add(header)) {
+                            // The block was successfully linked into the chain. Notify the user of our progress.
+                            invokeOnBlocksDownloaded(header, null);
+                        } else {
+                            // This block is unconnected - we don't know how to get from it back to the genesis block yet.
+                            // That must mean that the peer is buggy or malicious because we specifically requested for
+                            // headers that are part of the best chain.
+                            throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
+                        }
+                    } else {
+                        lock.lock();
+                        try {
+                            log.info(
+                                    "Passed the fast catchup time ({}) at height {}, discarding {} headers and requesting full blocks",
+                                    Utils.dateTimeFormat(fastCatchupTimeSecs * 1000), blockChain.getBestChainHeight() + 1,
+                                    headers.size() - i);
+                            this.downloadBlockBodies = true;
+                            unprovenHeaders.clear();
+                            // Prevent this request being seen as a duplicate.
+                            this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
+                            blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                        } finally {
+                            lock.unlock();
+                        }
+                        return;
+                    }
+                }
+            } finally {
+                if (batchedStore != null)
+                    batchedStore.commitBatch();
             }
-            // We added all headers in the message to the chain. Request some more if we got up to the limit, otherwise
-            // we are at the end of the chain.
-            if (m.getBlockHeaders().size() >= HeadersMessage.MAX_HEADERS) {
+            // We added all headers in the message to the chain, or held them back. Request some more if we got up to
+            // the limit, otherwise we are at the end of the chain.
+            if (fullBatch) {
                 lock.lock();
                 try {
                     blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
@@ -801,6 +948,8 @@ public class Peer extends PeerSocketHandler {
         } catch (PrunedException e) {
             // Unreachable when in SPV mode.
             throw new RuntimeException(e);
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
         }
     }
 
@@ -837,6 +986,10 @@ public class Peer extends PeerSocketHandler {
             // and so on.
             TransactionConfidence confidence = tx.getConfidence();
             confidence.setSource(TransactionConfidence.Source.NETWORK);
+            filteredRequestReceived(tx.getHash());
+            CompactBlockManager compactBlockManager = vCompactBlockManager;
+            if (compactBlockManager != null)
+                compactBlockManager.addTransaction(tx);
 
             pendingTxDownloads.remove(confidence);
             if (maybeHandleRequestedData(tx)) {
@@ -1069,6 +1222,10 @@ public class Peer extends PeerSocketHandler {
             log.debug("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        // Was this block requested by the parallel downloader, possibly from a peer other than the download peer?
+        HeadersFirstDownloader downloader = vHeadersFirstDownloader;
+        if (downloader != null && downloader.onBlock(this, m))
+            return;
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
@@ -1124,6 +1281,18 @@ public class Peer extends PeerSocketHandler {
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        HeadersFirstDownloader downloader = vHeadersFirstDownloader;
+        if (downloader != null && downloader.isAwaiting(this, m.getHash())) {
+            // Blocks requested by the parallel downloader are checked for filter exhaustion like any other, but the
+            // downloader takes care of discarding and re-requesting them once a new filter was sent.
+            if (checkForFilterExhaustion(m)) {
+                log.info("Bloom filter exhausted whilst processing block {}, discarding", m.getHash());
+                downloader.onFilterExhausted();
+                return;
+            }
+            downloader.onFilteredBlock(this, m);
+            return;
+        }
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -1241,7 +1410,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
+    void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1319,6 +1488,75 @@ public class Peer extends PeerSocketHandler {
         return true;
     }
 
+    // Consults the group-wide inventory filter, if any, and records that we are about to request the item.
+    private boolean shouldRequest(InventoryItem item) {
+        RecentInventoryFilter inventoryFilter = vInventoryFilter;
+        if (inventoryFilter == null)
+            return true;
+        if (!inventoryFilter.markRequested(item))
+            return false;
+        synchronized (filteredRequests) {
+            filteredRequests.remove(item.hash);  // So that it moves to the back.
+            filteredRequests.put(item.hash, Utils.currentTimeMillis());
+            if (filteredRequests.size() > FILTERED_REQUESTS_LIMIT) {
+                Iterator<Sha256Hash> eldest = filteredRequests.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        return true;
+    }
+
+    private void filteredRequestDone(Sha256Hash hash) {
+        synchronized (filteredRequests) {
+            filteredRequests.remove(hash);
+        }
+    }
+
+    // Tells the inventory filter that the item arrived, whether or not we asked this peer for it, so that other
+    // peers announcing it are ignored.
+    private void filteredRequestReceived(Sha256Hash hash) {
+        RecentInventoryFilter inventoryFilter = vInventoryFilter;
+        if (inventoryFilter == null)
+            return;
+        inventoryFilter.markSeen(hash);
+        filteredRequestDone(hash);
+    }
+
+    // The items other than transactions that shouldRequest is asked about. Their hash is the one they're announced by.
+    private static boolean isFilteredItem(Message m) {
+        return m instanceof TransactionLockVote || m instanceof MasternodePing || m instanceof MasternodeBroadcast
+                || m instanceof MasternodeVerification || m instanceof SporkMessage || m instanceof GovernanceObject
+                || m instanceof GovernanceVote;
+    }
+
+    // Forgets the requests this peer has left unanswered for too long, so that the next announcement of one of those
+    // items from another peer is requested instead of being ignored.
+    private void expireFilteredRequests() {
+        RecentInventoryFilter inventoryFilter = vInventoryFilter;
+        if (inventoryFilter == null)
+            return;
+        long expiry = Utils.currentTimeMillis() - FILTERED_REQUEST_TIMEOUT_MILLIS;
+        List<Sha256Hash> expired = null;
+        synchronized (filteredRequests) {
+            Iterator<Map.Entry<Sha256Hash, Long>> it = filteredRequests.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Sha256Hash, Long> eldest = it.next();
+                if (eldest.getValue() > expiry)
+                    break;
+                if (expired == null)
+                    expired = new ArrayList<Sha256Hash>();
+                expired.add(eldest.getKey());
+                it.remove();
+            }
+        }
+        if (expired != null) {
+            log.debug("{}: {} requested items never arrived", this, expired.size());
+            for (Sha256Hash hash : expired)
+                inventoryFilter.forget(hash);
+        }
+    }
+
     protected void processInv(InventoryMessage inv) {
         List<InventoryItem> items = inv.getItems();
 
@@ -1426,6 +1664,9 @@ public class Peer extends PeerSocketHandler {
             } else if (conf.getSource().equals(TransactionConfidence.Source.SELF)) {
                 // We created this transaction ourselves, so don't download.
                 it.remove();
+            } else if (!shouldRequest(item)) {
+                // Another peer of the group already asked for it.
+                it.remove();
             } else {
                 log.debug("{}: getdata on tx {}", getAddress(), item.hash);
                 getdata.addItem(item);
@@ -1458,6 +1699,9 @@ public class Peer extends PeerSocketHandler {
             } else if (conf.getSource().equals(TransactionConfidence.Source.SELF)) {
                 // We created this transaction ourselves, so don't download.
                 it.remove();
+            } else if (!shouldRequest(item)) {
+                // Another peer of the group already asked for it.
+                it.remove();
             } else {
                 log.debug("{}: getdata on tx {}", getAddress(), item.hash);
                 getdata.addItem(item);
@@ -1479,7 +1723,7 @@ public class Peer extends PeerSocketHandler {
             InventoryItem item = it.next();
 
 //            if(!instantSend.mapTxLockVotes.containsKey(item.hash))
-            {
+            if (shouldRequest(item)) {
                 getdata.addItem(item);
             }
         }
@@ -1495,7 +1739,7 @@ public class Peer extends PeerSocketHandler {
 
                 while (it.hasNext()) {
                     InventoryItem item = it.next();
-                    if (!alreadyHave(item)) {
+                    if (!alreadyHave(item) && shouldRequest(item)) {
                         //log.info("inv - received MasternodePing :" + item.hash + " new ping");
                         getdata.addItem(item);
                     } //else
@@ -1511,7 +1755,7 @@ public class Peer extends PeerSocketHandler {
 
                 //if(!instantSend.mapTxLockVotes.containsKey(item.hash))
                 //{
-                if(!alreadyHave(item))
+                if(!alreadyHave(item) && shouldRequest(item))
                     getdata.addItem(item);
                 //}
             }
@@ -1520,7 +1764,7 @@ public class Peer extends PeerSocketHandler {
 
             while (it.hasNext()) {
                 InventoryItem item = it.next();
-                if(!alreadyHave(item))
+                if(!alreadyHave(item) && shouldRequest(item))
                     getdata.addItem(item);
             }
         }
@@ -1531,7 +1775,8 @@ public class Peer extends PeerSocketHandler {
 
             //if(!instantSend.mapTxLockVotes.containsKey(item.hash))
             //{
-            getdata.addItem(item);
+            if (shouldRequest(item))
+                getdata.addItem(item);
             //}
         }
 
@@ -1540,14 +1785,17 @@ public class Peer extends PeerSocketHandler {
 
             while (it.hasNext()) {
                 InventoryItem item = it.next();
-                if (!alreadyHave(item))
-                    getdata.addItem(item);
-                else {
+                if (!alreadyHave(item)) {
+                    if (shouldRequest(item))
+                        getdata.addItem(item);
+                } else {
                     // The line below can trigger confidence listeners.
                     GovernanceVoteConfidence conf = context.getVoteConfidenceTable().seen(item.hash, this.getAddress());
 
-                    log.debug("{}: getdata on tx {}", getAddress(), item.hash);
-                    getdata.addItem(item);
+                    if (shouldRequest(item)) {
+                        log.debug("{}: getdata on tx {}", getAddress(), item.hash);
+                        getdata.addItem(item);
+                    }
                     // Register with the garbage collector that we care about the confidence data for a while.
                     pendingVotes.add(conf);
                 }
@@ -1560,7 +1808,10 @@ public class Peer extends PeerSocketHandler {
 
         lock.lock();
         try {
-            if (blocks.size() > 0 && downloadData && blockChain != null) {
+            // Whilst the parallel downloader is working through a header chain it requests all the blocks itself.
+            HeadersFirstDownloader downloader = vHeadersFirstDownloader;
+            boolean parallelDownloadActive = downloader != null && downloader.isActive();
+            if (blocks.size() > 0 && downloadData && blockChain != null && !parallelDownloadActive) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
@@ -1587,6 +1838,9 @@ public class Peer extends PeerSocketHandler {
                             if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
                                 getdata.addFilteredBlock(item.hash);
                                 pingAfterGetData = true;
+                            } else if (blocks.size() == 1 && vCompactBlockManager != null && vPeerSupportsCompactBlocks) {
+                                // A newly solved block: most of its transactions should already be in our pool.
+                                getdata.addItem(new InventoryItem(InventoryItem.Type.CompactBlock, item.hash));
                             } else {
                                 getdata.addItem(item);
                             }
@@ -1696,6 +1950,86 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Sets the filter, shared between the peers of a {@link PeerGroup}, that is consulted before requesting announced
+     * transactions, votes, pings and other non-block items so that they are only downloaded once. Pass null to
+     * request everything this peer announces.
+     */
+    public void setInventoryFilter(@Nullable RecentInventoryFilter inventoryFilter) {
+        this.vInventoryFilter = inventoryFilter;
+    }
+
+    /** Returns the filter set by {@link #setInventoryFilter(RecentInventoryFilter)}, or null. */
+    @Nullable
+    public RecentInventoryFilter getInventoryFilter() {
+        return vInventoryFilter;
+    }
+
+    /**
+     * Sets the downloader, shared between the peers of a {@link PeerGroup}, that fetches block bodies from many peers
+     * in parallel. When set, this peer asks only for headers when it is the download peer and hands blocks it was
+     * asked for by the downloader back to it. Pass null to use the classic single peer getblocks download.
+     */
+    public void setHeadersFirstDownloader(@Nullable HeadersFirstDownloader downloader) {
+        this.vHeadersFirstDownloader = downloader;
+    }
+
+    /** Returns the downloader set by {@link #setHeadersFirstDownloader(HeadersFirstDownloader)}, or null. */
+    @Nullable
+    public HeadersFirstDownloader getHeadersFirstDownloader() {
+        return vHeadersFirstDownloader;
+    }
+
+    /**
+     * Sets the manager, shared between the peers of a {@link PeerGroup}, that rebuilds compact blocks from relayed
+     * transactions. When set, compact block support is announced to the peer during the handshake and newly
+     * announced blocks are requested in compact form if the peer supports it. Must be set before the connection is
+     * opened. Pass null to always download full blocks.
+     */
+    public void setCompactBlockManager(@Nullable CompactBlockManager compactBlockManager) {
+        this.vCompactBlockManager = compactBlockManager;
+    }
+
+    /** Returns the manager set by {@link #setCompactBlockManager(CompactBlockManager)}, or null. */
+    @Nullable
+    public CompactBlockManager getCompactBlockManager() {
+        return vCompactBlockManager;
+    }
+
+    /** Returns true if the remote peer announced that it can serve compact blocks. */
+    public boolean isCompactBlocksSupported() {
+        return vPeerSupportsCompactBlocks;
+    }
+
+    /** Asks the remote peer for the given blocks on behalf of the {@link HeadersFirstDownloader}. */
+    void requestBlocksForDownload(List<Sha256Hash> hashes, boolean filtered) {
+        GetDataMessage getdata = new GetDataMessage(params);
+        for (Sha256Hash hash : hashes) {
+            if (filtered)
+                getdata.addFilteredBlock(hash);
+            else
+                getdata.addBlock(hash);
+        }
+        sendMessage(getdata);
+        // As in processInv, the ping marks the end of the last filtered block's transactions.
+        if (filtered)
+            sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+    }
+
+    /** Asks for the next batch of headers once the {@link HeadersFirstDownloader} has room for them. */
+    void continueHeadersFirstDownload() {
+        lock.lock();
+        try {
+            if (!vDownloadData)
+                return;
+            // Prevent this request being seen as a duplicate of the one that returned the headers just downloaded.
+            this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
+            blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Links the given wallet to this peer. If you have multiple peers, you should use a {@link PeerGroup} to manage
      * them and use the {@link PeerGroup#addWallet(Wallet)} method instead of registering the wallet with each peer
@@ -1763,6 +2097,18 @@ public class Peer extends PeerSocketHandler {
         BlockStore store = checkNotNull(blockChain).getBlockStore();
         StoredBlock chainHead = blockChain.getChainHead();
         Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
+        // With a parallel downloader we only ask for headers, continuing from the last one it has queued.
+        HeadersFirstDownloader downloader = vHeadersFirstDownloader;
+        boolean headersFirst = downloadBlockBodies && downloader != null;
+        Sha256Hash queuedTip = headersFirst ? downloader.getQueuedTip() : null;
+        if (queuedTip != null) {
+            chainHeadHash = queuedTip;
+            blockLocator.add(queuedTip);
+        } else if (!downloadBlockBodies && !unprovenHeaders.isEmpty()) {
+            // Likewise after the headers held back until they can be proven.
+            chainHeadHash = unprovenHeaders.get(unprovenHeaders.size() - 1).getHash();
+            blockLocator.add(chainHeadHash);
+        }
         // Did we already make this request? If so, don't do it again.
         if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
             log.info("blockChainDownloadLocked({}): ignoring duplicated request: {}", toHash, chainHeadHash);
@@ -1793,7 +2139,7 @@ public class Peer extends PeerSocketHandler {
         lastGetBlocksBegin = chainHeadHash;
         lastGetBlocksEnd = toHash;
 
-        if (downloadBlockBodies) {
+        if (downloadBlockBodies && !headersFirst) {
             GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
             sendMessage(message);
         } else {
@@ -2064,6 +2410,33 @@ public class Peer extends PeerSocketHandler {
         maybeRestartChainDownload();
     }
 
+    /**
+     * <p>Adds the given elements to the Bloom filter loaded on the remote peer with filteradd messages, instead of
+     * sending a whole new filter. {@code filter} must be the filter last set on this connection with the elements
+     * inserted, and replaces it locally.</p>
+     *
+     * <p>If no filter was set yet, the whole filter is sent like {@link #setBloomFilter(BloomFilter, boolean)} does.
+     * If the remote peer doesn't support Bloom filtering, then this call is ignored.</p>
+     */
+    public void addToBloomFilter(BloomFilter filter, List<byte[]> elements, boolean andQueryMemPool) {
+        checkNotNull(filter);
+        final VersionMessage ver = vPeerVersionMessage;
+        if (ver == null || !ver.isBloomFilteringSupported())
+            return;
+        if (vBloomFilter == null) {
+            setBloomFilter(filter, andQueryMemPool);
+            return;
+        }
+        vBloomFilter = filter;
+        log.debug("{}: Adding {} elements to Bloom filter{}", this, elements.size(),
+                andQueryMemPool ? " and querying mempool" : "");
+        for (byte[] element : elements)
+            sendMessage(new FilterAddMessage(params, element));
+        if (andQueryMemPool)
+            sendMessage(new MemoryPoolMessage());
+        maybeRestartChainDownload();
+    }
+
     private void maybeRestartChainDownload() {
         lock.lock();
         try {
@@ -0,0 +1,438 @@
+package live.thought.thoughtj.core;
+
+import com.google.common.io.Files;
+import live.thought.thoughtj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A persistent list of peer addresses together with what we learned about them: when we last connected
+ * successfully, when we last tried, how many attempts failed in a row and the average ping time. A {@link PeerGroup}
+ * given an address book (see {@link PeerGroup#setAddressBook(PeerAddressBook)}) starts connecting to the best known
+ * peers as soon as it starts, while the slower peer discovery runs in the background. Addresses relayed by peers
+ * are remembered as well, so there are candidates even if discovery fails.</p>
+ *
+ * <p>The file starts with a magic string and the network's packet magic and ends with a double SHA-256 checksum,
+ * like the Dash manager caches written by {@link live.thought.thoughtj.store.FlatDB}. It is written to a temporary
+ * file first and renamed, so a crash while saving leaves the previous version intact.</p>
+ */
+public class PeerAddressBook {
+    private static final Logger log = LoggerFactory.getLogger(PeerAddressBook.class);
+
+    private static final String MAGIC = "PeerAddressBook-1";
+    /** The maximum number of addresses remembered. When full, the least useful are evicted. */
+    public static final int MAX_ENTRIES = 2000;
+    /** Addresses that failed this many times in a row, without ever succeeding since, are not returned. */
+    public static final int MAX_CONSECUTIVE_FAILURES = 10;
+    // Weight of a new ping sample in the latency moving average.
+    private static final double LATENCY_ALPHA = 0.3;
+    // Bytes per entry: 16 address, 2 port, 8 services, 3 * 8 times and latency, 4 failures.
+    private static final int ENTRY_SIZE = 54;
+
+    /** What is known about a single address. */
+    public static class Entry {
+        private final InetSocketAddress address;
+        private long services;
+        private long lastSuccessMillis;
+        private long lastAttemptMillis;
+        private long latencyMillis = -1;
+        private int failures;
+
+        private Entry(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        private Entry(Entry other) {
+            this.address = other.address;
+            this.services = other.services;
+            this.lastSuccessMillis = other.lastSuccessMillis;
+            this.lastAttemptMillis = other.lastAttemptMillis;
+            this.latencyMillis = other.latencyMillis;
+            this.failures = other.failures;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public long getServices() {
+            return services;
+        }
+
+        /** Returns when a connection to this address last completed its handshake, or 0 if never. */
+        public long getLastSuccessMillis() {
+            return lastSuccessMillis;
+        }
+
+        /** Returns when we last tried to connect to this address, or 0 if never. */
+        public long getLastAttemptMillis() {
+            return lastAttemptMillis;
+        }
+
+        /** Returns the moving average of ping times to this address, or -1 if unknown. */
+        public long getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        /** Returns the number of connection failures since the last success. */
+        public int getFailures() {
+            return failures;
+        }
+
+        @Override
+        public String toString() {
+            return address + " success=" + lastSuccessMillis + " attempt=" + lastAttemptMillis + " latency="
+                    + latencyMillis + " failures=" + failures;
+        }
+    }
+
+    // Orders the most useful addresses first: previously successful, then fewest failures, then fastest, then most
+    // recently successful.
+    private static final Comparator<Entry> USEFULNESS = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            boolean aSucceeded = a.lastSuccessMillis > 0, bSucceeded = b.lastSuccessMillis > 0;
+            if (aSucceeded != bSucceeded)
+                return aSucceeded ? -1 : 1;
+            if (a.failures != b.failures)
+                return a.failures < b.failures ? -1 : 1;
+            long aLatency = a.latencyMillis < 0 ? Long.MAX_VALUE : a.latencyMillis;
+            long bLatency = b.latencyMillis < 0 ? Long.MAX_VALUE : b.latencyMillis;
+            if (aLatency != bLatency)
+                return aLatency < bLatency ? -1 : 1;
+            if (a.lastSuccessMillis != b.lastSuccessMillis)
+                return a.lastSuccessMillis > b.lastSuccessMillis ? -1 : 1;
+            return 0;
+        }
+    };
+
+    private final ReentrantLock lock = Threading.lock("peeraddressbook");
+    private final NetworkParameters params;
+    @Nullable private final File file;
+    @GuardedBy("lock") private final Map<InetSocketAddress, Entry> entries = new HashMap<InetSocketAddress, Entry>();
+    @GuardedBy("lock") private boolean dirty;
+
+    /** Creates an empty address book that is only kept in memory. */
+    public PeerAddressBook(NetworkParameters params) {
+        this(params, null);
+    }
+
+    /** Creates an empty address book that will be written to the given file by {@link #save()}. */
+    public PeerAddressBook(NetworkParameters params, @Nullable File file) {
+        this.params = checkNotNull(params);
+        this.file = file;
+    }
+
+    /**
+     * Loads an address book from the given file. If the file doesn't exist yet, or can't be read because it is
+     * corrupt or belongs to another network, an empty book is returned that will overwrite the file when saved.
+     */
+    public static PeerAddressBook load(NetworkParameters params, File file) {
+        PeerAddressBook book = new PeerAddressBook(params, file);
+        if (!file.exists())
+            return book;
+        try {
+            book.read(Files.toByteArray(file));
+            log.info("Loaded {} peer addresses from {}", book.size(), file);
+        } catch (IOException e) {
+            log.warn("Could not read peer address book {}, starting with an empty one", file, e);
+        } catch (ProtocolException e) {
+            log.warn("Peer address book {} is corrupt, starting with an empty one", file, e);
+        }
+        return book;
+    }
+
+    /** Returns the file this book is saved to, or null if it is only kept in memory. */
+    @Nullable
+    public File getFile() {
+        return file;
+    }
+
+    /** Remembers addresses learned from discovery or from addr messages, without changing what we know about them. */
+    public void addAddresses(Collection<PeerAddress> addresses) {
+        lock.lock();
+        try {
+            for (PeerAddress address : addresses) {
+                Entry entry = getOrCreate(address);
+                if (entry != null && address.getServices() != null)
+                    entry.services = address.getServices().longValue();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that we are about to connect to the given address. */
+    public void recordAttempt(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = getOrCreate(address);
+            if (entry != null)
+                entry.lastAttemptMillis = Utils.currentTimeMillis();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that a connection to the given address completed its handshake. */
+    public void recordSuccess(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = getOrCreate(address);
+            if (entry != null) {
+                entry.lastSuccessMillis = Utils.currentTimeMillis();
+                entry.failures = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that a connection attempt to the given address failed. */
+    public void recordFailure(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = getOrCreate(address);
+            if (entry != null)
+                entry.failures++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Folds a ping time measured for the given address into its moving average. */
+    public void recordLatency(PeerAddress address, long pingMillis) {
+        if (pingMillis < 0 || pingMillis == Long.MAX_VALUE)
+            return;
+        lock.lock();
+        try {
+            Entry entry = getOrCreate(address);
+            if (entry == null)
+                return;
+            if (entry.latencyMillis < 0)
+                entry.latencyMillis = pingMillis;
+            else
+                entry.latencyMillis = (long) (LATENCY_ALPHA * pingMillis + (1 - LATENCY_ALPHA) * entry.latencyMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns up to {@code max} addresses, most useful first: those we connected to before, ordered by fewest recent
+     * failures and lowest latency, followed by addresses we only heard about. Addresses that keep failing are left
+     * out.
+     */
+    public List<PeerAddress> getBestAddresses(int max) {
+        List<Entry> candidates = new ArrayList<Entry>();
+        lock.lock();
+        try {
+            for (Entry entry : entries.values()) {
+                if (entry.failures < MAX_CONSECUTIVE_FAILURES)
+                    candidates.add(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+        Collections.sort(candidates, USEFULNESS);
+        List<PeerAddress> result = new ArrayList<PeerAddress>(Math.min(max, candidates.size()));
+        for (Entry entry : candidates) {
+            if (result.size() >= max)
+                break;
+            result.add(new PeerAddress(params, entry.address));
+        }
+        return result;
+    }
+
+    /** Returns a copy of what is known about the given address, or null if it isn't in the book. */
+    @Nullable
+    public Entry getEntry(InetSocketAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address);
+            return entry == null ? null : new Entry(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the book to its file if anything changed since it was loaded or last saved. Does nothing for a book
+     * without a file.
+     */
+    public void save() throws IOException {
+        if (file == null)
+            return;
+        byte[] bytes;
+        int count;
+        lock.lock();
+        try {
+            if (!dirty)
+                return;
+            bytes = write();
+            count = entries.size();
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        Files.write(bytes, temp);
+        if (Utils.isWindows() && file.exists() && !file.delete())
+            throw new IOException("Failed to delete " + file);
+        if (!temp.renameTo(file))
+            throw new IOException("Failed to rename " + temp + " to " + file);
+        log.info("Saved {} peer addresses to {}", count, file);
+    }
+
+    @GuardedBy("lock")
+    @Nullable
+    private Entry getOrCreate(PeerAddress peerAddress) {
+        InetAddress addr = peerAddress.getAddr();
+        if (addr == null)
+            return null;  // Unresolved hostname, nothing stable to remember.
+        InetSocketAddress key = new InetSocketAddress(addr, peerAddress.getPort());
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            if (entries.size() >= MAX_ENTRIES)
+                evictLeastUseful();
+            entry = new Entry(key);
+            entries.put(key, entry);
+        }
+        dirty = true;
+        return entry;
+    }
+
+    @GuardedBy("lock")
+    private void evictLeastUseful() {
+        Entry worst = null;
+        for (Entry entry : entries.values()) {
+            if (worst == null || USEFULNESS.compare(entry, worst) > 0
+                    || (USEFULNESS.compare(entry, worst) == 0 && entry.lastAttemptMillis < worst.lastAttemptMillis))
+                worst = entry;
+        }
+        if (worst != null)
+            entries.remove(worst.address);
+    }
+
+    @GuardedBy("lock")
+    private byte[] write() {
+        byte[] magic = MAGIC.getBytes(Charset.forName("US-ASCII"));
+        ByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(magic.length + 4 + 9 + entries.size() * ENTRY_SIZE + 32);
+        try {
+            stream.write(magic);
+            Utils.uint32ToByteStreamLE(params.getPacketMagic(), stream);
+            stream.write(new VarInt(entries.size()).encode());
+            for (Entry entry : entries.values())
+                writeEntry(entry, stream);
+            Sha256Hash checksum = Sha256Hash.twiceOf(stream.toByteArray());
+            stream.write(checksum.getReversedBytes());
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+        return stream.toByteArray();
+    }
+
+    private static void writeEntry(Entry entry, OutputStream stream) throws IOException {
+        byte[] ipBytes = entry.address.getAddress().getAddress();
+        if (ipBytes.length == 4) {
+            // Map IPv4 into IPv6 space, as on the wire.
+            byte[] v6addr = new byte[16];
+            System.arraycopy(ipBytes, 0, v6addr, 12, 4);
+            v6addr[10] = (byte) 0xFF;
+            v6addr[11] = (byte) 0xFF;
+            ipBytes = v6addr;
+        }
+        stream.write(ipBytes);
+        int port = entry.address.getPort();
+        stream.write((byte) (0xFF & port >> 8));
+        stream.write((byte) (0xFF & port));
+        Utils.int64ToByteStreamLE(entry.services, stream);
+        Utils.int64ToByteStreamLE(entry.lastSuccessMillis, stream);
+        Utils.int64ToByteStreamLE(entry.lastAttemptMillis, stream);
+        Utils.int64ToByteStreamLE(entry.latencyMillis, stream);
+        Utils.uint32ToByteStreamLE(entry.failures, stream);
+    }
+
+    private void read(byte[] bytes) throws ProtocolException {
+        byte[] magic = MAGIC.getBytes(Charset.forName("US-ASCII"));
+        if (bytes.length < magic.length + 4 + 1 + 32)
+            throw new ProtocolException("Address book too short");
+        int dataLength = bytes.length - 32;
+        byte[] data = Arrays.copyOf(bytes, dataLength);
+        byte[] checksum = Sha256Hash.twiceOf(data).getReversedBytes();
+        if (!Arrays.equals(checksum, Arrays.copyOfRange(bytes, dataLength, bytes.length)))
+            throw new ProtocolException("Address book checksum mismatch");
+        if (!Arrays.equals(magic, Arrays.copyOf(data, magic.length)))
+            throw new ProtocolException("Not an address book");
+        int cursor = magic.length;
+        if (Utils.readUint32(data, cursor) != params.getPacketMagic())
+            throw new ProtocolException("Address book belongs to another network");
+        cursor += 4;
+        VarInt count = new VarInt(data, cursor);
+        cursor += count.getOriginalSizeInBytes();
+        if (count.value * ENTRY_SIZE != dataLength - cursor)
+            throw new ProtocolException("Address book has wrong size for " + count.value + " entries");
+        lock.lock();
+        try {
+            for (long i = 0; i < count.value; i++) {
+                InetAddress addr;
+                try {
+                    addr = InetAddress.getByAddress(Arrays.copyOfRange(data, cursor, cursor + 16));
+                } catch (UnknownHostException e) {
+                    throw new ProtocolException(e);  // Cannot happen for 16 bytes.
+                }
+                cursor += 16;
+                int port = ((0xFF & data[cursor]) << 8) | (0xFF & data[cursor + 1]);
+                cursor += 2;
+                Entry entry = new Entry(new InetSocketAddress(addr, port));
+                entry.services = Utils.readInt64(data, cursor);
+                entry.lastSuccessMillis = Utils.readInt64(data, cursor + 8);
+                entry.lastAttemptMillis = Utils.readInt64(data, cursor + 16);
+                entry.latencyMillis = Utils.readInt64(data, cursor + 24);
+                entry.failures = (int) Utils.readUint32(data, cursor + 32);
+                cursor += 36;
+                if (entries.size() < MAX_ENTRIES)
+                    entries.put(entry.address, entry);
+            }
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PeerAddressBook: " + size() + " addresses" + (file != null ? " in " + file : "");
+    }
+}
@@ -172,13 +172,16 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
     private int minBroadcastConnections = CoinDefinition.minBroadcastConnections;
     private final ScriptsChangeEventListener walletScriptEventListener = new ScriptsChangeEventListener() {
         @Override public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
-            recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+            if (isAddingScripts)
+                addToFilter(wallet, ImmutableList.<ECKey>of(), scripts);
+            else
+                recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
         }
     };
 
     private final KeyChainEventListener walletKeyEventListener = new KeyChainEventListener() {
         @Override public void onKeysAdded(List<ECKey> keys) {
-            recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+            addToFilter(null, keys, ImmutableList.<Script>of());
         }
     };
 
@@ -283,6 +286,42 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
     // An object that calculates bloom filters given a list of filter providers, whilst tracking some state useful
     // for privacy purposes.
     private final FilterMerger bloomFilterMerger;
+    // Remembers which announced items any of our peers recently requested, so each one is downloaded only once.
+    private final RecentInventoryFilter inventoryFilter = new RecentInventoryFilter();
+    // If set, block bodies are downloaded from all peers in parallel, driven by headers from the download peer.
+    @Nullable private volatile HeadersFirstDownloader vHeadersFirstDownloader;
+    @Nullable private volatile ListenableScheduledFuture<?> vStallCheckTask;
+    // If set, new blocks are fetched as compact blocks and rebuilt from transactions our peers relayed.
+    @Nullable private volatile CompactBlockManager vCompactBlockManager;
+    // Moving averages of how fast each peer answers us, used to pick the best peers and rotate out slow ones.
+    private final PeerPerformanceTracker peerPerformance = new PeerPerformanceTracker();
+    private volatile boolean vSlowPeerRotation = true;
+    @Nullable private volatile ListenableScheduledFuture<?> vPerformanceTask;
+    /** How often the slowest peer is checked for being far behind the others. */
+    public static final long SLOW_PEER_CHECK_INTERVAL_MILLIS = 60 * 1000;
+    // Counts the bytes each peer sends us.
+    private final PreMessageReceivedEventListener performanceListener = new PreMessageReceivedEventListener() {
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            peerPerformance.recordMessage(peer, m);
+            return m;
+        }
+    };
+    // If set, known addresses are tried at startup before discovery finishes, and what we learn about peers is saved.
+    @Nullable private volatile PeerAddressBook vAddressBook;
+    @Nullable private volatile ListenableScheduledFuture<?> vAddressBookSaveTask;
+    /** How often the address book is written to disk while running. */
+    public static final long ADDRESS_BOOK_SAVE_INTERVAL_MILLIS = 5 * 60 * 1000;
+    // Remembers addresses relayed to us by peers in the address book.
+    private final PreMessageReceivedEventListener addressBookListener = new PreMessageReceivedEventListener() {
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            PeerAddressBook addressBook = vAddressBook;
+            if (addressBook != null && m instanceof AddressMessage)
+                addressBook.addAddresses(((AddressMessage) m).getAddresses());
+            return m;
+        }
+    };
 
     /** The default timeout between when a connection attempt begins and version message exchange completes */
     public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
@@ -996,6 +1035,9 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
             for (PeerAddress address : addressList) {
                 addInactive(address);
             }
+            PeerAddressBook addressBook = vAddressBook;
+            if (addressBook != null)
+                addressBook.addAddresses(addressList);
             final ImmutableSet<PeerAddress> peersDiscoveredSet = ImmutableSet.copyOf(addressList);
             for (final ListenerRegistration<PeerDiscoveredEventListener> registration : peerDiscoveredEventListeners /* COW */) {
                 registration.executor.execute(new Runnable() {
@@ -1081,8 +1123,10 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
                     log.info("Starting ...");
                     channels.startAsync();
                     channels.awaitRunning();
+                    startWithAddressBook();
                     triggerConnections();
                     setupPinging();
+                    setupPerformanceTracking();
                 } catch (Throwable e) {
                     log.error("Exception when starting up", e);  // The executor swallows exceptions :(
                 }
@@ -1090,6 +1134,84 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
         });
     }
 
+    // Queues the best addresses from the address book so connecting can begin immediately, and runs discovery in the
+    // background to top the candidates up rather than making the first connection wait for it.
+    private void startWithAddressBook() {
+        final PeerAddressBook addressBook = vAddressBook;
+        if (addressBook == null)
+            return;
+        List<PeerAddress> known = addressBook.getBestAddresses(Math.max(getMaxConnections() * 2, 1));
+        for (PeerAddress address : known)
+            addInactive(address);
+        log.info("Queued {} peer addresses from the address book", known.size());
+        if (!known.isEmpty() && !peerDiscoverers.isEmpty()) {
+            Threading.THREAD_POOL.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (discoverPeers() > 0 && countConnectedAndPendingPeers() < getMaxConnections())
+                            triggerConnections();
+                    } catch (PeerDiscoveryException e) {
+                        log.error("Background peer discovery failure", e);
+                    }
+                }
+            });
+        }
+        vAddressBookSaveTask = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                saveAddressBook();
+            }
+        }, ADDRESS_BOOK_SAVE_INTERVAL_MILLIS, ADDRESS_BOOK_SAVE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void saveAddressBook() {
+        PeerAddressBook addressBook = vAddressBook;
+        if (addressBook == null)
+            return;
+        try {
+            addressBook.save();
+        } catch (IOException e) {
+            log.warn("Failed to save peer address book", e);
+        }
+    }
+
+    private void setupPerformanceTracking() {
+        vPerformanceTask = executor.scheduleAtFixedRate(new Runnable() {
+            private long lastSlowPeerCheck = Utils.currentTimeMillis();
+
+            @Override
+            public void run() {
+                try {
+                    peerPerformance.tick();
+                    long now = Utils.currentTimeMillis();
+                    if (now - lastSlowPeerCheck >= SLOW_PEER_CHECK_INTERVAL_MILLIS) {
+                        lastSlowPeerCheck = now;
+                        maybeRotateSlowPeer();
+                    }
+                } catch (Throwable e) {
+                    log.error("Exception in peer performance task", e);  // The executor swallows exceptions :(
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // Disconnects a peer that is far slower than the others, if we are at our connection limit, so that the
+    // connection slot goes to a new and hopefully faster peer. If it was the download peer, handlePeerDeath picks
+    // the best scoring remaining peer to continue.
+    private void maybeRotateSlowPeer() {
+        if (!vSlowPeerRotation)
+            return;
+        List<Peer> connected = getConnectedPeers();
+        if (connected.size() < getMaxConnections())
+            return;
+        Peer slow = peerPerformance.findSlowPeer(connected);
+        if (slow == null)
+            return;
+        log.info("{}: Disconnecting slow peer ({})", slow, peerPerformance.getStats(slow));
+        slow.close();
+    }
+
     /** Does a blocking startup. */
     public void start() {
         Futures.getUnchecked(startAsync());
@@ -1115,6 +1237,13 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
                     for (PeerDiscovery peerDiscovery : peerDiscoverers) {
                         peerDiscovery.shutdown();
                     }
+                    ListenableScheduledFuture<?> performanceTask = vPerformanceTask;
+                    if (performanceTask != null)
+                        performanceTask.cancel(false);
+                    ListenableScheduledFuture<?> saveTask = vAddressBookSaveTask;
+                    if (saveTask != null)
+                        saveTask.cancel(false);
+                    saveAddressBook();
                     vRunning = false;
                     log.info("Stopped.");
                 } catch (Throwable e) {
@@ -1316,6 +1445,10 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
                     // if the estimate temporarily overshoots our threshold.
                     if (chain != null)
                         chain.resetFalsePositiveEstimate();
+                    // Blocks discarded because the old filter was exhausted can now be requested again.
+                    HeadersFirstDownloader downloader = vHeadersFirstDownloader;
+                    if (downloader != null)
+                        downloader.onFilterUpdated();
                 }
                 // Do this last so that bloomFilter is already set when it gets called.
                 setFastCatchupTimeSecs(result.earliestKeyTimeSecs);
@@ -1333,6 +1466,72 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
         return future;
     }
     
+    /**
+     * Adds what the given keys or watched scripts put into the Bloom filter to the filter the peers already have, with
+     * filteradd messages, rather than calculating and sending the whole filter again. Falls back to that when the
+     * filter has no room left for them, or they could move the fast catchup time back.
+     *
+     * @param wallet the wallet the keys or scripts were added to, or null if it isn't known.
+     */
+    private void addToFilter(@Nullable final Wallet wallet, final List<ECKey> keys, final List<Script> scripts) {
+        Runnable command = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    go();
+                } catch (Throwable e) {
+                    log.error("Exception when trying to update Bloom filter", e);  // The executor swallows exceptions :(
+                }
+            }
+
+            public void go() {
+                checkState(!lock.isHeldByCurrentThread());
+                if ((chain != null && chain.shouldVerifyTransactions()) || !vBloomFilteringEnabled)
+                    return;
+                // Like recalculation, this only runs on jobQueue, so the last filter can't change underneath us.
+                List<byte[]> elements = getFilterElements(wallet, keys, scripts);
+                BloomFilter filter = elements != null ? bloomFilterMerger.insert(elements) : null;
+                if (filter == null) {
+                    recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+                    return;
+                }
+                for (Peer peer : peers /* COW */)
+                    peer.addToBloomFilter(filter, elements, true);
+                if (chain != null)
+                    chain.resetFalsePositiveEstimate();
+                HeadersFirstDownloader downloader = vHeadersFirstDownloader;
+                if (downloader != null)
+                    downloader.onFilterUpdated();
+            }
+        };
+        try {
+            executor.execute(command);
+        } catch (RejectedExecutionException e) {
+            // Can happen during shutdown.
+        }
+    }
+
+    // Returns what the keys and scripts add to the filter, or null if the whole filter must be calculated instead.
+    @Nullable
+    private List<byte[]> getFilterElements(@Nullable Wallet wallet, List<ECKey> keys, List<Script> scripts) {
+        // The fast catchup time is a week before the earliest key, see FilterMerger.
+        long fastCatchupTimeSecs = getFastCatchupTimeSecs();
+        for (ECKey key : keys)
+            if (key.getCreationTimeSeconds() - 86400 * 7 < fastCatchupTimeSecs)
+                return null;
+        for (Script script : scripts)
+            if (script.getCreationTimeSeconds() - 86400 * 7 < fastCatchupTimeSecs)
+                return null;
+        // Key events don't say which wallet the keys are from, so every wallet must agree on what they add.
+        List<byte[]> elements = null;
+        for (Wallet w : wallet != null ? ImmutableList.of(wallet) : wallets) {
+            elements = w.getBloomFilterElements(keys, scripts);
+            if (elements == null)
+                return null;
+        }
+        return elements;
+    }
+
     /**
      * <p>Sets the false positive rate of bloom filters given to peers. The default is {@link #DEFAULT_BLOOM_FILTER_FP_RATE}.</p>
      *
@@ -1415,6 +1614,15 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
         peer.addConnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.addDisconnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        peer.setInventoryFilter(inventoryFilter);
+        peer.setHeadersFirstDownloader(vHeadersFirstDownloader);
+        peer.setCompactBlockManager(vCompactBlockManager);
+        peer.addPreMessageReceivedEventListener(Threading.SAME_THREAD, performanceListener);
+        PeerAddressBook addressBook = vAddressBook;
+        if (addressBook != null) {
+            addressBook.recordAttempt(address);
+            peer.addPreMessageReceivedEventListener(Threading.SAME_THREAD, addressBookListener);
+        }
         pendingPeers.add(peer);
 
         try {
@@ -1446,6 +1654,100 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
         return new Peer(params, ver, address, chain, downloadTxDependencyDepth);
     }
 
+    /**
+     * Returns the filter shared by all peers of this group that suppresses duplicate getdata requests for items
+     * announced by more than one peer. Its per-type counters show how much redundant downloading was avoided.
+     */
+    public RecentInventoryFilter getInventoryFilter() {
+        return inventoryFilter;
+    }
+
+    /**
+     * <p>Enables or disables parallel headers-first block download. When enabled, the download peer is asked only for
+     * block headers, and the bodies (or filtered blocks) are requested in windows from all connected peers, re-asking
+     * another peer if one is too slow to answer. Blocks are still added to the chain in height order.</p>
+     *
+     * <p>This only takes effect for peers connected after the call, so it should be called before {@link #start()}.
+     * It has no effect without a block chain.</p>
+     */
+    public void setHeadersFirstDownload(boolean enabled) {
+        if (enabled && chain != null) {
+            if (vHeadersFirstDownloader == null)
+                vHeadersFirstDownloader = new HeadersFirstDownloader(this, chain);
+        } else {
+            vHeadersFirstDownloader = null;
+        }
+    }
+
+    /** Returns the parallel block downloader, or null if {@link #setHeadersFirstDownload(boolean)} was not enabled. */
+    @Nullable
+    public HeadersFirstDownloader getHeadersFirstDownloader() {
+        return vHeadersFirstDownloader;
+    }
+
+    /**
+     * <p>Enables or disables compact block relay (BIP 152). When enabled, peers that support it are asked for newly
+     * announced blocks in compact form, and the block is rebuilt from transactions recently relayed by any peer of
+     * the group. Only the few transactions we didn't see are downloaded, which makes following the tip much cheaper
+     * for a full node.</p>
+     *
+     * <p>Compact blocks carry no bloom filtering, so this only has an effect when the group was created with a chain
+     * that verifies transactions, such as {@link FullPrunedBlockChain}. Like
+     * {@link #setHeadersFirstDownload(boolean)} it only applies to peers connected after the call.</p>
+     */
+    public void setCompactBlocksEnabled(boolean enabled) {
+        if (enabled && chain != null && chain.shouldVerifyTransactions()) {
+            if (vCompactBlockManager == null)
+                vCompactBlockManager = new CompactBlockManager(params);
+        } else {
+            if (enabled)
+                log.warn("Compact blocks are only supported for chains that verify transactions, ignoring");
+            vCompactBlockManager = null;
+        }
+    }
+
+    /**
+     * Returns the per-peer moving averages of ping time, throughput, request latency and failures that are used to
+     * select the download peer and to rotate out slow peers.
+     */
+    public PeerPerformanceTracker getPeerPerformance() {
+        return peerPerformance;
+    }
+
+    /**
+     * Sets whether a peer whose requests take far longer than those of the other peers is disconnected, once a
+     * minute at most, so it can be replaced. Only happens when we are at the maximum number of connections. Defaults
+     * to true.
+     */
+    public void setSlowPeerRotation(boolean enabled) {
+        this.vSlowPeerRotation = enabled;
+    }
+
+    /**
+     * <p>Sets the address book used to remember peers across restarts. On {@link #start()} the best known addresses
+     * are queued for connection straight away and peer discovery, if any was added, runs in the background instead
+     * of delaying the first connection. Connection attempts, successes, failures, ping times and addresses relayed
+     * by peers are recorded in the book, which is saved periodically and when the group is stopped.</p>
+     *
+     * <p>Must be called before {@link #start()}.</p>
+     */
+    public void setAddressBook(@Nullable PeerAddressBook addressBook) {
+        checkState(!vUsedUp, "Address book must be set before the peer group is started");
+        this.vAddressBook = addressBook;
+    }
+
+    /** Returns the address book set by {@link #setAddressBook(PeerAddressBook)}, or null. */
+    @Nullable
+    public PeerAddressBook getAddressBook() {
+        return vAddressBook;
+    }
+
+    /** Returns the compact block manager, or null if {@link #setCompactBlocksEnabled(boolean)} was not enabled. */
+    @Nullable
+    public CompactBlockManager getCompactBlockManager() {
+        return vCompactBlockManager;
+    }
+
     /**
      * Sets the timeout between when a connection attempt to a peer begins and when the version message exchange
      * completes. This does not apply to currently pending peers.
@@ -1531,6 +1833,9 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
         try {
             groupBackoff.trackSuccess();
             backoffMap.get(peer.getAddress()).trackSuccess();
+            PeerAddressBook addressBook = vAddressBook;
+            if (addressBook != null)
+                addressBook.recordSuccess(peer.getAddress());
 
             // Sets up the newly connected peer so it can do everything it needs to.
             pendingPeers.remove(peer);
@@ -1608,6 +1913,10 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
                     for (Peer peer : getConnectedPeers()) {
                         if (peer.getPeerVersionMessage().clientVersion < params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.PONG))
                             continue;
+                        PeerAddressBook addressBook = vAddressBook;
+                        if (addressBook != null)
+                            addressBook.recordLatency(peer.getAddress(), peer.getPingTime());
+                        peerPerformance.recordPing(peer, peer.getLastPingTime());
                         peer.ping();
                     }
                 } catch (Throwable e) {
@@ -1692,10 +2001,17 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
         int numConnectedPeers = 0;
         lock.lock();
         try {
-            pendingPeers.remove(peer);
+            boolean neverConnected = pendingPeers.remove(peer);
             peers.remove(peer);
 
             PeerAddress address = peer.getAddress();
+            PeerAddressBook addressBook = vAddressBook;
+            if (addressBook != null) {
+                if (neverConnected)
+                    addressBook.recordFailure(address);
+                else
+                    addressBook.recordLatency(address, peer.getPingTime());
+            }
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
             if (peer == downloadPeer) {
@@ -1739,6 +2055,14 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
             peer.removeWallet(wallet);
         }
 
+        HeadersFirstDownloader downloader = vHeadersFirstDownloader;
+        if (downloader != null)
+            downloader.onPeerDisconnected(peer);
+        peerPerformance.remove(peer);
+        CompactBlockManager compactBlockManager = vCompactBlockManager;
+        if (compactBlockManager != null)
+            compactBlockManager.onPeerDisconnected(peer);
+
         final int fNumConnectedPeers = numConnectedPeers;
 
         for (ListenerRegistration<BlocksDownloadedEventListener> registration: peersBlocksDownloadedEventListeners)
@@ -1915,6 +2239,25 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
             }
             peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, chainDownloadSpeedCalculator);
 
+            final HeadersFirstDownloader downloader = vHeadersFirstDownloader;
+            if (downloader != null) {
+                downloader.setHeaderPeer(peer, chain != null && !chain.shouldVerifyTransactions()
+                        && bloomFilterMerger.getLastFilter() != null);
+                if (vStallCheckTask == null) {
+                    // Every second, hand block requests that are taking too long to another peer.
+                    vStallCheckTask = executor.scheduleAtFixedRate(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                downloader.checkStalls();
+                            } catch (Throwable e) {
+                                log.error("Exception in parallel download stall check", e);
+                            }
+                        }
+                    }, 1, 1, TimeUnit.SECONDS);
+                }
+            }
+
             // startBlockChainDownload will setDownloadData(true) on itself automatically.
             peer.startBlockChainDownload();
         } finally {
@@ -2274,7 +2617,8 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
-        //  - Randomly, to try and spread the load.
+        //  - Best measured performance, see PeerPerformanceTracker
+        //  - Randomly, to try and spread the load, if nothing was measured yet.
         if (peers.isEmpty())
             return null;
         // Make sure we don't select a peer that is behind/synchronizing itself.
@@ -2300,6 +2644,8 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
                 candidates2.add(peer);
             }
         }
+        if (peerPerformance.hasMeasurements(candidates2))
+            return peerPerformance.sortByScore(candidates2).get(0);
         int index = (int) (Math.random() * candidates2.size());
         return candidates2.get(index);
     }
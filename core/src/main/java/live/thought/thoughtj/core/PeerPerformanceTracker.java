@@ -0,0 +1,333 @@
+package live.thought.thoughtj.core;
+
+import live.thought.thoughtj.utils.Threading;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Keeps moving averages of how well each connected peer of a {@link PeerGroup} serves us: ping time, bytes received
+ * per second, how long block requests take to be answered and how often they fail. The group uses the resulting
+ * score to pick the download peer, the parallel {@link HeadersFirstDownloader} prefers well scoring peers when
+ * handing out block requests, and peers that are much slower than the rest are disconnected so they can be replaced
+ * by hopefully faster ones.</p>
+ *
+ * <p>A score is the expected time in milliseconds to get an answer from the peer: the average request latency, or
+ * the ping time if no request was measured yet, multiplied up by recent failures. Lower is better.</p>
+ */
+public class PeerPerformanceTracker {
+    // Weight of a new sample in the moving averages.
+    private static final double ALPHA = 0.2;
+    // How much a failure counts for in the decaying failure count, and how much it decays with each success.
+    private static final double FAILURE_DECAY = 0.8;
+    /** The score given to a peer nothing was measured for yet. */
+    public static final long UNKNOWN_LATENCY_MILLIS = 2000;
+    /** A peer is considered slow if its score is this many times worse than the median of the others. */
+    public static final double SLOW_PEER_FACTOR = 4.0;
+    /** How many samples a peer needs before it can be judged slow. */
+    public static final int MIN_SAMPLES = 5;
+
+    /** A snapshot of what is known about one peer. */
+    public static class Stats {
+        private double pingMillis = -1;
+        private double requestLatencyMillis = -1;
+        private double bytesPerSecond = -1;
+        private double recentFailures;
+        private long bytesThisSecond;
+        private long totalBytes;
+        private int pingSamples, requestSamples, failures;
+
+        private Stats() {
+        }
+
+        private Stats(Stats other) {
+            this.pingMillis = other.pingMillis;
+            this.requestLatencyMillis = other.requestLatencyMillis;
+            this.bytesPerSecond = other.bytesPerSecond;
+            this.recentFailures = other.recentFailures;
+            this.bytesThisSecond = other.bytesThisSecond;
+            this.totalBytes = other.totalBytes;
+            this.pingSamples = other.pingSamples;
+            this.requestSamples = other.requestSamples;
+            this.failures = other.failures;
+        }
+
+        /** Returns the moving average ping time, or -1 if unknown. */
+        public double getPingMillis() {
+            return pingMillis;
+        }
+
+        /** Returns the moving average time between a request and its answer, or -1 if unknown. */
+        public double getRequestLatencyMillis() {
+            return requestLatencyMillis;
+        }
+
+        /** Returns the moving average of bytes received per second, or -1 if unknown. */
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /** Returns the number of requests the peer failed to answer in time. */
+        public int getFailures() {
+            return failures;
+        }
+
+        public int getRequestSamples() {
+            return requestSamples;
+        }
+
+        public int getPingSamples() {
+            return pingSamples;
+        }
+
+        /** Returns the expected time in milliseconds to get an answer from this peer. Lower is better. */
+        public double getScore() {
+            double latency = requestLatencyMillis >= 0 ? requestLatencyMillis
+                    : pingMillis >= 0 ? pingMillis : UNKNOWN_LATENCY_MILLIS;
+            return latency * (1 + recentFailures);
+        }
+
+        private boolean isMeasured() {
+            return pingSamples + requestSamples >= MIN_SAMPLES;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "score %.0f ms, ping %.0f ms, request %.0f ms, %.1f KB/sec, %d failures",
+                    getScore(), pingMillis, requestLatencyMillis, bytesPerSecond / 1024, failures);
+        }
+    }
+
+    private final ReentrantLock lock = Threading.lock("peerperformancetracker");
+    @GuardedBy("lock") private final Map<Peer, Stats> stats = new HashMap<Peer, Stats>();
+
+    /** Records a ping time measured for the given peer. */
+    public void recordPing(Peer peer, long pingMillis) {
+        if (pingMillis < 0 || pingMillis == Long.MAX_VALUE)
+            return;
+        lock.lock();
+        try {
+            Stats s = getOrCreate(peer);
+            s.pingMillis = average(s.pingMillis, pingMillis);
+            s.pingSamples++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that the given message was received from the peer. */
+    public void recordMessage(Peer peer, Message m) {
+        // Some messages don't know their length after parsing; they are rare enough to not matter for throughput.
+        if (m.length != Message.UNKNOWN_LENGTH)
+            recordBytes(peer, m.length);
+    }
+
+    /** Records that a message of the given size was received from the peer. */
+    public void recordBytes(Peer peer, long bytes) {
+        lock.lock();
+        try {
+            Stats s = getOrCreate(peer);
+            s.bytesThisSecond += bytes;
+            s.totalBytes += bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that a request sent to the peer was answered after the given time. */
+    public void recordRequestCompleted(Peer peer, long latencyMillis) {
+        lock.lock();
+        try {
+            Stats s = getOrCreate(peer);
+            s.requestLatencyMillis = average(s.requestLatencyMillis, latencyMillis);
+            s.requestSamples++;
+            s.recentFailures *= FAILURE_DECAY;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that the peer failed to answer a request in time. */
+    public void recordFailure(Peer peer) {
+        lock.lock();
+        try {
+            Stats s = getOrCreate(peer);
+            s.recentFailures += 1;
+            s.failures++;
+            s.requestSamples++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Folds the bytes received in the last second into the throughput averages. Called once a second. */
+    public void tick() {
+        lock.lock();
+        try {
+            for (Stats s : stats.values()) {
+                s.bytesPerSecond = average(s.bytesPerSecond, s.bytesThisSecond);
+                s.bytesThisSecond = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forgets a peer, for example because it disconnected. */
+    public void remove(Peer peer) {
+        lock.lock();
+        try {
+            stats.remove(peer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns a copy of the statistics of the given peer, or null if nothing was recorded for it. */
+    @Nullable
+    public Stats getStats(Peer peer) {
+        lock.lock();
+        try {
+            Stats s = stats.get(peer);
+            return s == null ? null : new Stats(s);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the score of the given peer, see {@link Stats#getScore()}. */
+    public double getScore(Peer peer) {
+        lock.lock();
+        try {
+            Stats s = stats.get(peer);
+            return s == null ? UNKNOWN_LATENCY_MILLIS : s.getScore();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the given peers ordered best first. Peers with equal scores are ordered by throughput. The sort is
+     * stable, so the original order is kept for peers nothing is known about.
+     */
+    public List<Peer> sortByScore(List<Peer> peers) {
+        final Map<Peer, Stats> snapshot = new HashMap<Peer, Stats>();
+        lock.lock();
+        try {
+            for (Peer peer : peers) {
+                Stats s = stats.get(peer);
+                if (s != null)
+                    snapshot.put(peer, new Stats(s));
+            }
+        } finally {
+            lock.unlock();
+        }
+        List<Peer> sorted = new ArrayList<Peer>(peers);
+        Collections.sort(sorted, new Comparator<Peer>() {
+            @Override
+            public int compare(Peer a, Peer b) {
+                Stats sa = snapshot.get(a), sb = snapshot.get(b);
+                double scoreA = sa == null ? UNKNOWN_LATENCY_MILLIS : sa.getScore();
+                double scoreB = sb == null ? UNKNOWN_LATENCY_MILLIS : sb.getScore();
+                if (scoreA != scoreB)
+                    return Double.compare(scoreA, scoreB);
+                double throughputA = sa == null ? -1 : sa.bytesPerSecond;
+                double throughputB = sb == null ? -1 : sb.bytesPerSecond;
+                return Double.compare(throughputB, throughputA);
+            }
+        });
+        return sorted;
+    }
+
+    /** Returns true if a ping or request latency was measured for at least one of the given peers. */
+    public boolean hasMeasurements(List<Peer> peers) {
+        lock.lock();
+        try {
+            for (Peer peer : peers) {
+                Stats s = stats.get(peer);
+                if (s != null && s.pingSamples + s.requestSamples > 0)
+                    return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the peer whose score is worse than {@link #SLOW_PEER_FACTOR} times the median score of the others,
+     * if there is one and enough was measured about it and at least two others. Returns the worst such peer.
+     */
+    @Nullable
+    public Peer findSlowPeer(List<Peer> peers) {
+        lock.lock();
+        try {
+            List<Peer> measured = new ArrayList<Peer>();
+            for (Peer peer : peers) {
+                Stats s = stats.get(peer);
+                if (s != null && s.isMeasured())
+                    measured.add(peer);
+            }
+            if (measured.size() < 3)
+                return null;
+            Peer worst = null;
+            double worstScore = 0;
+            for (Peer peer : measured) {
+                double score = stats.get(peer).getScore();
+                if (score > worstScore) {
+                    worst = peer;
+                    worstScore = score;
+                }
+            }
+            List<Double> others = new ArrayList<Double>();
+            for (Peer peer : measured) {
+                if (peer != worst)
+                    others.add(stats.get(peer).getScore());
+            }
+            Collections.sort(others);
+            double median = others.get(others.size() / 2);
+            return worstScore > SLOW_PEER_FACTOR * median ? worst : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private Stats getOrCreate(Peer peer) {
+        Stats s = stats.get(peer);
+        if (s == null) {
+            s = new Stats();
+            stats.put(peer, s);
+        }
+        return s;
+    }
+
+    private static double average(double current, double sample) {
+        return current < 0 ? sample : ALPHA * sample + (1 - ALPHA) * current;
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            StringBuilder builder = new StringBuilder("PeerPerformanceTracker:");
+            for (Map.Entry<Peer, Stats> entry : stats.entrySet())
+                builder.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+            return builder.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
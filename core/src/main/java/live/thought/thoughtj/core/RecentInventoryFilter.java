@@ -0,0 +1,206 @@
+package live.thought.thoughtj.core;
+
+import live.thought.thoughtj.utils.Threading;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers which inventory items were recently requested by any {@link Peer} of a {@link PeerGroup}, so that
+ * when the same item is announced by many peers we only issue one getdata for it. Each peer keeps its own
+ * bookkeeping of outstanding requests, but without a shared view the same transaction, vote or ping announced by
+ * twelve peers would be downloaded and parsed twelve times.</p>
+ *
+ * <p>The filter is a pair of time bucketed hash sets. New items go into the current bucket and lookups consult
+ * both. Once the current bucket is older than the rotation period (or grows beyond the maximum size) the previous
+ * bucket is discarded and the current one takes its place, so an item is remembered for between one and two
+ * rotation periods. This bounds memory and lets us request an item again from someone else if the first peer
+ * never delivered it.</p>
+ *
+ * <p>Per-type counters of how many items were requested and how many duplicate announcements were suppressed are
+ * kept for diagnostics.</p>
+ */
+public class RecentInventoryFilter {
+    /** The default time after which the current bucket is rotated out. */
+    public static final long DEFAULT_ROTATION_PERIOD_MILLIS = 2 * 60 * 1000;
+    /** The default number of items a single bucket may hold before it is rotated early. */
+    public static final int DEFAULT_MAX_BUCKET_SIZE = 50000;
+
+    private final ReentrantLock lock = Threading.lock("recentinventoryfilter");
+
+    private final long rotationPeriodMillis;
+    private final int maxBucketSize;
+
+    @GuardedBy("lock") private HashSet<Sha256Hash> current = new HashSet<Sha256Hash>();
+    @GuardedBy("lock") private HashSet<Sha256Hash> previous = new HashSet<Sha256Hash>();
+    @GuardedBy("lock") private long currentBucketStartMillis;
+
+    @GuardedBy("lock") private final Map<InventoryItem.Type, long[]> stats =
+            new EnumMap<InventoryItem.Type, long[]>(InventoryItem.Type.class);
+
+    /** Creates a filter with the {@link #DEFAULT_ROTATION_PERIOD_MILLIS} and {@link #DEFAULT_MAX_BUCKET_SIZE}. */
+    public RecentInventoryFilter() {
+        this(DEFAULT_ROTATION_PERIOD_MILLIS, DEFAULT_MAX_BUCKET_SIZE);
+    }
+
+    /**
+     * Creates a filter.
+     * @param rotationPeriodMillis How long the current bucket collects items before it is rotated.
+     * @param maxBucketSize How many items the current bucket may hold before it is rotated early.
+     */
+    public RecentInventoryFilter(long rotationPeriodMillis, int maxBucketSize) {
+        checkArgument(rotationPeriodMillis > 0);
+        checkArgument(maxBucketSize > 0);
+        this.rotationPeriodMillis = rotationPeriodMillis;
+        this.maxBucketSize = maxBucketSize;
+        this.currentBucketStartMillis = Utils.currentTimeMillis();
+    }
+
+    /**
+     * Records that a getdata is about to be issued for the given item. Returns true if the caller should go ahead
+     * and request it, or false if some peer already requested or received it recently.
+     */
+    public boolean markRequested(InventoryItem item) {
+        lock.lock();
+        try {
+            maybeRotate();
+            long[] counters = getCounters(item.type);
+            if (current.contains(item.hash) || previous.contains(item.hash)) {
+                counters[1]++;
+                return false;
+            }
+            current.add(item.hash);
+            counters[0]++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that the item with the given hash was received, so that later announcements of it are ignored. */
+    public void markSeen(Sha256Hash hash) {
+        lock.lock();
+        try {
+            maybeRotate();
+            if (!previous.contains(hash))
+                current.add(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if the given hash was requested or seen within the last rotation period(s). */
+    public boolean contains(Sha256Hash hash) {
+        lock.lock();
+        try {
+            maybeRotate();
+            return current.contains(hash) || previous.contains(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets the given hash, so that the next announcement from any peer will be requested again. Used when a peer
+     * told us it doesn't have something we asked it for.
+     */
+    public void forget(Sha256Hash hash) {
+        lock.lock();
+        try {
+            current.remove(hash);
+            previous.remove(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many items of the given type were let through to be requested. */
+    public long getRequestedCount(InventoryItem.Type type) {
+        lock.lock();
+        try {
+            return getCounters(type)[0];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many announcements of the given type were suppressed because the item was already requested. */
+    public long getSuppressedCount(InventoryItem.Type type) {
+        lock.lock();
+        try {
+            return getCounters(type)[1];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of hashes currently remembered across both buckets. */
+    public int size() {
+        lock.lock();
+        try {
+            return current.size() + previous.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Clears all remembered hashes and statistics. */
+    public void reset() {
+        lock.lock();
+        try {
+            current = new HashSet<Sha256Hash>();
+            previous = new HashSet<Sha256Hash>();
+            currentBucketStartMillis = Utils.currentTimeMillis();
+            stats.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            StringBuilder builder = new StringBuilder("RecentInventoryFilter: ");
+            builder.append(current.size() + previous.size()).append(" remembered");
+            for (Map.Entry<InventoryItem.Type, long[]> entry : stats.entrySet()) {
+                builder.append(", ").append(entry.getKey()).append(' ')
+                        .append(entry.getValue()[0]).append('/').append(entry.getValue()[1]);
+            }
+            return builder.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private long[] getCounters(InventoryItem.Type type) {
+        long[] counters = stats.get(type);
+        if (counters == null) {
+            // [0] = requested, [1] = suppressed
+            counters = new long[2];
+            stats.put(type, counters);
+        }
+        return counters;
+    }
+
+    @GuardedBy("lock")
+    private void maybeRotate() {
+        long now = Utils.currentTimeMillis();
+        if (now - currentBucketStartMillis >= 2 * rotationPeriodMillis) {
+            // Both buckets are stale.
+            previous = new HashSet<Sha256Hash>();
+            current = new HashSet<Sha256Hash>();
+            currentBucketStartMillis = now;
+        } else if (now - currentBucketStartMillis >= rotationPeriodMillis || current.size() >= maxBucketSize) {
+            previous = current;
+            current = new HashSet<Sha256Hash>();
+            currentBucketStartMillis = now;
+        }
+    }
+}
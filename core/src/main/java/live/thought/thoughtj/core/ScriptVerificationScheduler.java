@@ -0,0 +1,335 @@
+package live.thought.thoughtj.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import live.thought.thoughtj.script.Script;
+import live.thought.thoughtj.script.Script.VerifyFlag;
+import live.thought.thoughtj.utils.ContextPropagatingThreadFactory;
+import live.thought.thoughtj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Runs the script checks of the blocks connected by a {@link FullPrunedBlockChain} on a set of long lived worker
+ * threads. A transaction is one job, except that the inputs of a big transaction are split into ranges that are
+ * spread over all cores instead of being checked one after another by a single thread. Transactions aren't thread
+ * safe, so every range other than the first checks its own copy of the transaction. Jobs wait in one shared queue
+ * ordered by the estimated cost of their transaction, the most expensive first, and any idle worker takes the next
+ * one. The thread connecting the block helps out while it waits for the result.</p>
+ *
+ * <p>The jobs of a block are grouped into a {@link Batch}. As soon as one of its inputs fails to verify, the batch is
+ * cancelled: its remaining jobs are skipped and the failure is reported straight away. The workers themselves are
+ * never shut down, so the next block doesn't pay for starting threads again.</p>
+ */
+public class ScriptVerificationScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationScheduler.class);
+
+    // A transaction is only split into ranges of at least this many inputs, so that copying it for a range costs
+    // little compared to checking the inputs: every legacy signature hash serializes the whole transaction anyway.
+    static final int MIN_INPUTS_PER_JOB = 16;
+
+    private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<Job>();
+    private final AtomicLong jobSequence = new AtomicLong();
+    private final Thread[] workers;
+    private volatile boolean vShutdown;
+
+    private final AtomicLong blocksVerified = new AtomicLong();
+    private final AtomicLong inputsVerified = new AtomicLong();
+    private final AtomicLong totalVerificationMillis = new AtomicLong();
+    private volatile long vLastVerificationMillis;
+
+    /** Creates a scheduler with one worker per available processor. */
+    public ScriptVerificationScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ScriptVerificationScheduler(int threads) {
+        this(threads, new ContextPropagatingThreadFactory("Script verification"));
+    }
+
+    @VisibleForTesting
+    ScriptVerificationScheduler(int threads, ThreadFactory factory) {
+        checkState(threads > 0);
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = factory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+            workers[i].start();
+        }
+    }
+
+    /** Starts a new group of jobs, usually all the inputs of one block. */
+    public Batch newBatch() {
+        checkState(!vShutdown, "Scheduler was shut down");
+        return new Batch();
+    }
+
+    /** Returns the number of jobs waiting to be picked up by a worker. */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /** Returns the number of batches that were awaited, whether they succeeded or not. */
+    public long getBlocksVerified() {
+        return blocksVerified.get();
+    }
+
+    /** Returns the number of inputs whose scripts were run. Skipped inputs of cancelled batches are not counted. */
+    public long getInputsVerified() {
+        return inputsVerified.get();
+    }
+
+    /** Returns how long the script checks of the last block took, from the first job to the result, in milliseconds. */
+    public long getLastBlockVerificationMillis() {
+        return vLastVerificationMillis;
+    }
+
+    /** Returns the average time in milliseconds the script checks of a block took. */
+    public long getAverageBlockVerificationMillis() {
+        long blocks = blocksVerified.get();
+        return blocks == 0 ? 0 : totalVerificationMillis.get() / blocks;
+    }
+
+    /**
+     * Stops the workers. Jobs still queued are not run but fail their batches, as do jobs added afterwards, and new
+     * batches can't be created any more.
+     */
+    public void shutdown() {
+        vShutdown = true;
+        for (Thread worker : workers)
+            worker.interrupt();
+        List<Job> abandoned = new ArrayList<Job>();
+        queue.drainTo(abandoned);
+        for (Job job : abandoned)
+            job.abandon();
+    }
+
+    private void work() {
+        while (!vShutdown) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                continue; // Probably shutting down, the loop condition will tell.
+            }
+            // Job.run() checks for a shutdown as well, which may have happened while this thread was waiting.
+            job.run();
+        }
+    }
+
+    /**
+     * Jobs that were queued together but belong to one block. Inputs are added with {@link #add} as soon as they are
+     * known and start being checked straight away; {@link #await()} then waits for the verdict.
+     */
+    public class Batch {
+        private final ReentrantLock lock = Threading.lock("scriptverificationbatch");
+        private final Condition done = lock.newCondition();
+        private final AtomicInteger pending = new AtomicInteger();
+        @GuardedBy("lock") @Nullable private VerificationException failure;
+        private volatile boolean vCancelled;
+        private long startMillis = -1;
+        private int inputs;
+
+        private Batch() {
+        }
+
+        /** Queues the checks of all inputs of the given transaction, whose connected outputs have the given scripts. */
+        public void add(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags) {
+            checkState(prevOutScripts.size() == tx.getInputs().size());
+            if (startMillis < 0)
+                startMillis = Utils.currentTimeMillis();
+            // Legacy signature hashes serialize the whole transaction for every input, so the cost of checking an
+            // input grows with the size of its transaction as well as with its own scripts.
+            int numInputs = tx.getInputs().size();
+            long cost = 0;
+            for (int index = 0; index < numInputs; index++)
+                cost += tx.getInputs().get(index).getScriptBytes().length + prevOutScripts.get(index).getProgram().length;
+            cost *= numInputs;
+            int ranges = Math.max(1, Math.min(workers.length, numInputs / MIN_INPUTS_PER_JOB));
+            int perRange = (numInputs + ranges - 1) / ranges;
+            // Serialized here, on the thread that owns the transaction, for the ranges to deserialize their copies.
+            byte[] txBytes = ranges > 1 ? tx.bitcoinSerialize() : null;
+            for (int start = 0; start < numInputs; start += perRange) {
+                int end = Math.min(start + perRange, numInputs);
+                pending.incrementAndGet();
+                Job job = new Job(this, tx.getParams(), start == 0 ? tx : null, txBytes, start, end, prevOutScripts,
+                        verifyFlags, cost, jobSequence.getAndIncrement());
+                if (vShutdown)
+                    job.abandon();
+                else
+                    queue.add(job);
+            }
+            inputs += numInputs;
+        }
+
+        /** Returns the number of inputs added to this batch. */
+        public int size() {
+            return inputs;
+        }
+
+        /** Skips all checks of this batch that didn't start yet. Safe to call more than once. */
+        public void cancel() {
+            vCancelled = true;
+            lock.lock();
+            try {
+                done.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean isCancelled() {
+            return vCancelled;
+        }
+
+        /**
+         * Waits until all inputs of the batch are checked, running queued jobs on the calling thread meanwhile.
+         * Returns as soon as one input fails, cancelling the rest of the batch.
+         *
+         * @throws VerificationException the failure of the first input that didn't verify, or if the batch was
+         * cancelled before all inputs were checked
+         */
+        public void await() throws VerificationException {
+            try {
+                while (pending.get() > 0 && !vCancelled) {
+                    // Help out instead of just sleeping. Any job is fine, as the oldest batch will be waited for first.
+                    Job job = queue.poll();
+                    if (job != null) {
+                        job.run();
+                        continue;
+                    }
+                    lock.lock();
+                    try {
+                        if (pending.get() > 0 && !vCancelled)
+                            done.await(100, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e); // Shouldn't happen
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } finally {
+                if (startMillis >= 0) {
+                    long elapsed = Utils.currentTimeMillis() - startMillis;
+                    vLastVerificationMillis = elapsed;
+                    totalVerificationMillis.addAndGet(elapsed);
+                }
+                blocksVerified.incrementAndGet();
+            }
+            lock.lock();
+            try {
+                if (failure != null)
+                    throw failure;
+                if (vCancelled && pending.get() > 0)
+                    throw new VerificationException("Script verification was cancelled");
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void jobFinished(@Nullable VerificationException e) {
+            lock.lock();
+            try {
+                if (e != null && failure == null) {
+                    failure = e;
+                    vCancelled = true;
+                }
+                if (pending.decrementAndGet() == 0 || vCancelled)
+                    done.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The checks of a range of inputs of one transaction. Ordered by the cost of the whole transaction, most expensive
+     * first, then in the order they were queued so that the ranges of a transaction stay together.
+     */
+    private class Job implements Runnable, Comparable<Job> {
+        final Batch batch;
+        final NetworkParameters params;
+        // The transaction itself for the first range, null for the others which deserialize txBytes instead.
+        @Nullable final Transaction tx;
+        @Nullable final byte[] txBytes;
+        final int start, end;
+        final List<Script> prevOutScripts;
+        final Set<VerifyFlag> verifyFlags;
+        final long cost;
+        final long sequence;
+
+        Job(Batch batch, NetworkParameters params, @Nullable Transaction tx, @Nullable byte[] txBytes, int start,
+            int end, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags, long cost, long sequence) {
+            this.batch = batch;
+            this.params = params;
+            this.tx = tx;
+            this.txBytes = txBytes;
+            this.start = start;
+            this.end = end;
+            this.prevOutScripts = prevOutScripts;
+            this.verifyFlags = verifyFlags;
+            this.cost = cost;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            // Whoever took the job out of the queue may have done so just before the scheduler was shut down.
+            if (vShutdown) {
+                abandon();
+                return;
+            }
+            if (batch.isCancelled()) {
+                batch.jobFinished(null);
+                return;
+            }
+            VerificationException result = null;
+            try {
+                Transaction checked = tx != null ? tx : new Transaction(params, txBytes);
+                for (int index = start; index < end && !batch.isCancelled() && !vShutdown; index++) {
+                    checked.getInputs().get(index).getScriptSig().correctlySpends(checked, index,
+                            prevOutScripts.get(index), verifyFlags);
+                    inputsVerified.incrementAndGet();
+                }
+            } catch (VerificationException e) {
+                result = e;
+            } catch (RuntimeException e) {
+                log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                result = new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", e);
+            }
+            if (result == null && vShutdown)
+                result = new VerificationException("Script verification scheduler was shut down");
+            batch.jobFinished(result);
+        }
+
+        /** Fails the batch without running the job, because the scheduler was shut down. */
+        void abandon() {
+            batch.jobFinished(new VerificationException("Script verification scheduler was shut down"));
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (cost != other.cost)
+                return cost > other.cost ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -1,12 +1,80 @@
 package live.thought.thoughtj.core;
 
+import com.google.common.base.Objects;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
 /**
  * Created by Hash Engineering on 06/26/2018.
+ *
+ * <p>Tells the remote peer that we understand compact block relay (BIP 152) in the given version. If
+ * {@code announce} is false the peer keeps announcing new blocks with inv or headers and we ask for the
+ * {@link CompactBlockMessage} ourselves with a getdata for {@link InventoryItem.Type#CompactBlock} (low bandwidth
+ * mode). If true the peer may push compact blocks to us unannounced (high bandwidth mode).</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
  */
-public class SendCompactBlocksMessage extends EmptyMessage {
+public class SendCompactBlocksMessage extends Message {
+    /** The compact block version in which short ids are calculated from transaction hashes. */
+    public static final long COMPACT_BLOCKS_VERSION = 1;
+
+    private boolean announce;
+    private long version;
 
     public SendCompactBlocksMessage(NetworkParameters params) {
+        this(params, false, COMPACT_BLOCKS_VERSION);
+    }
+
+    public SendCompactBlocksMessage(NetworkParameters params, boolean announce, long version) {
         super(params);
-        length = 0;
+        this.announce = announce;
+        this.version = version;
+        length = 9;
+    }
+
+    public SendCompactBlocksMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        announce = readBytes(1)[0] != 0;
+        version = readInt64();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(announce ? 1 : 0);
+        Utils.int64ToByteStreamLE(version, stream);
+    }
+
+    /** Returns true if the peer wants new blocks pushed to it as compact blocks without an announcement first. */
+    public boolean isAnnounce() {
+        return announce;
+    }
+
+    /** Returns the compact block version the peer understands, see {@link #COMPACT_BLOCKS_VERSION}. */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return "sendcmpct: announce=" + announce + ", version=" + version;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SendCompactBlocksMessage other = (SendCompactBlocksMessage) o;
+        return announce == other.announce && version == other.version;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(announce, version);
     }
 }
@@ -71,12 +71,17 @@ public class ThoughtSerializer extends MessageSerializer {
         names.put(GetAddrMessage.class, "getaddr");
         names.put(HeadersMessage.class, "headers");
         names.put(BloomFilter.class, "filterload");
+        names.put(FilterAddMessage.class, "filteradd");
         names.put(FilteredBlock.class, "merkleblock");
         names.put(NotFoundMessage.class, "notfound");
         names.put(MemoryPoolMessage.class, "mempool");
         names.put(RejectMessage.class, "reject");
         names.put(GetUTXOsMessage.class, "getutxos");
         names.put(UTXOsMessage.class, "utxos");
+        names.put(SendCompactBlocksMessage.class, "sendcmpct");
+        names.put(CompactBlockMessage.class, "cmpctblock");
+        names.put(GetBlockTransactionsMessage.class, "getblocktxn");
+        names.put(BlockTransactionsMessage.class, "blocktxn");
 
         //Dash specific messages
         names.put(DarkSendElectionEntryPingMessage.class, "dseep");
@@ -245,6 +250,8 @@ public class ThoughtSerializer extends MessageSerializer {
             return makeAlertMessage(payloadBytes);
         } else if (command.equals("filterload")) {
             return makeBloomFilter(payloadBytes);
+        } else if (command.equals("filteradd")) {
+            return new FilterAddMessage(params, payloadBytes, 0);
         } else if (command.equals("notfound")) {
             return new NotFoundMessage(params, payloadBytes);
         } else if (command.equals("mempool")) {
@@ -276,7 +283,13 @@ public class ThoughtSerializer extends MessageSerializer {
         } else if(command.equals("sendheaders")) {
             return new SendHeadersMessage(params);
         } else if(command.equals("sendcmpct")) {
-            return new SendCompactBlocksMessage(params);
+            return new SendCompactBlocksMessage(params, payloadBytes);
+        } else if(command.equals("cmpctblock")) {
+            return new CompactBlockMessage(params, payloadBytes);
+        } else if(command.equals("getblocktxn")) {
+            return new GetBlockTransactionsMessage(params, payloadBytes);
+        } else if(command.equals("blocktxn")) {
+            return new BlockTransactionsMessage(params, payloadBytes);
         } else if(command.equals("getsporks")) {
             return new GetSporksMessage(params);
         } else if(command.equals("govsync")) {
@@ -323,6 +323,11 @@ public class Transaction extends ChildMessage {
         this.hash = hash;
     }
 
+    /** Returns whether the hash was already calculated or set, see {@link TrustedTransactionHash}. */
+    boolean isHashKnown() {
+        return hash != null;
+    }
+
     public String getHashAsString() {
         return getHash().toString();
     }
@@ -687,13 +692,21 @@ public class Transaction extends ChildMessage {
      * A transaction is mature if it is either a building coinbase tx that is as deep or deeper than the required coinbase depth, or a non-coinbase tx.
      */
     public boolean isMature() {
+        return isMature(-1);
+    }
+
+    /**
+     * Like {@link #isMature()}, but with the depth taken in a chain of the given height, see
+     * {@link TransactionConfidence#getDepthInBlocks(int)}.
+     */
+    public boolean isMature(int chainHeight) {
         if (!isCoinBase())
             return true;
 
         if (getConfidence().getConfidenceType() != ConfidenceType.BUILDING)
             return false;
 
-        return getConfidence().getDepthInBlocks() >= params.getSpendableCoinbaseDepth();
+        return getConfidence().getDepthInBlocks(chainHeight) >= params.getSpendableCoinbaseDepth();
     }
 
     @Override
@@ -37,6 +37,9 @@ public interface TransactionBag {
     /** Returns true if this wallet knows the script corresponding to the given hash. */
     boolean isPayToScriptHashMine(byte[] payToScriptHash);
 
-    /** Returns transactions from a specific pool. */
+    /**
+     * Returns transactions from a specific pool. The map must not be modified, and may be a copy that doesn't follow
+     * later changes to the pool.
+     */
     Map<Sha256Hash, Transaction> getTransactionPool(WalletTransaction.Pool pool);
 }
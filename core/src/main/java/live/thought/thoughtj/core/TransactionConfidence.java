@@ -30,8 +30,6 @@ import java.util.concurrent.*;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
-// TODO: Modify the getDepthInBlocks method to require the chain height to be specified, in preparation for ceasing to touch every tx on every block.
-
 /**
  * <p>A TransactionConfidence object tracks data you can use to make a confidence decision about a transaction.
  * It also contains some pre-canned rules for common scenarios: if you aren't really sure what level of confidence
@@ -56,8 +54,10 @@ import static com.google.common.base.Preconditions.checkState;
  * <p>Alternatively, you may know that the transaction is "dead", that is, one or more of its inputs have
  * been double spent and will never confirm unless there is another re-org.</p>
  *
- * <p>TransactionConfidence is updated via the {@link live.thought.thoughtj.core.TransactionConfidence#incrementDepthInBlocks()}
- * method to ensure the block depth is up to date.</p>
+ * <p>The depth of a transaction in the chain is derived from the height it appeared at and the height of the best
+ * chain, as tracked by the {@link TxConfidenceTable} the confidence object belongs to, so nothing has to touch every
+ * transaction when a block arrives. Confidence objects that don't belong to a table, or whose table doesn't know the
+ * chain height yet, keep the depth they were given.</p>
  * To make a copy that won't be changed, use {@link live.thought.thoughtj.core.TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence {
@@ -75,8 +75,17 @@ public class TransactionConfidence {
     // Lazily created listeners array.
     private CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
 
-    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
+    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0. Only used when the
+    // depth can't be derived from the chain height.
     private int depth;
+    // The height of the best chain, shared by all confidence objects of a table.
+    @Nullable private final ChainHeightSource chainHeightSource;
+
+    /** Supplies the height of the best chain, from which the depth of transactions in it is derived. */
+    interface ChainHeightSource {
+        /** Returns the height of the best chain, or -1 if it isn't known. */
+        int getChainHeight();
+    }
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -146,10 +155,15 @@ public class TransactionConfidence {
     private Source source = Source.UNKNOWN;
 
     public TransactionConfidence(Sha256Hash hash) {
+        this(hash, null);
+    }
+
+    TransactionConfidence(Sha256Hash hash, @Nullable ChainHeightSource chainHeightSource) {
         // Assume a default number of peers for our set.
         broadcastBy = new CopyOnWriteArrayList<PeerAddress>();
         listeners = new CopyOnWriteArrayList<ListenerRegistration<Listener>>();
         this.hash = hash;
+        this.chainHeightSource = chainHeightSource;
     }
 
     /**
@@ -210,6 +224,25 @@ public class TransactionConfidence {
     // We add ourselves to this set when a listener is added and remove ourselves when the listener list is empty.
     private static final Set<TransactionConfidence> pinnedConfidenceObjects = Collections.synchronizedSet(new HashSet<TransactionConfidence>());
 
+    // Listeners that don't care about depth changes, created when the first one is added.
+    @Nullable private List<Listener> listenersIgnoringDepth;
+    // Whether any listener wants depth changes, as last told to the depth subscription listeners.
+    private boolean depthSubscribed;
+    // Lazily created, as most confidence objects only ever belong to one wallet.
+    @Nullable private CopyOnWriteArrayList<DepthSubscriptionListener> depthSubscriptionListeners;
+
+    /**
+     * Told when a confidence object gains its first or loses its last listener that wants to hear about depth changes.
+     * Wallets use this to know which of their transactions to notify when a block arrives.
+     */
+    public interface DepthSubscriptionListener {
+        /**
+         * Called on the thread that added or removed the listener, without holding the confidence object's lock.
+         * Use {@link TransactionConfidence#hasDepthSubscribers()} to read the current state.
+         */
+        void onDepthSubscriptionChanged(TransactionConfidence confidence);
+    }
+
     /**
      * <p>Adds an event listener that will be run when this confidence object is updated. The listener will be locked and
      * is likely to be invoked on a peer thread.</p>
@@ -220,9 +253,27 @@ public class TransactionConfidence {
      * a future from {@link #getDepthFuture(int)}.</p>
      */
     public void addEventListener(Executor executor, Listener listener) {
+        addEventListener(executor, listener, true);
+    }
+
+    /**
+     * Adds an event listener as {@link #addEventListener(Executor, Listener)} does. If the listener doesn't want to
+     * hear about depth changes, new blocks won't cause any work for this transaction on its account.
+     */
+    public void addEventListener(Executor executor, Listener listener, boolean wantsDepthChanges) {
         checkNotNull(listener);
-        listeners.addIfAbsent(new ListenerRegistration<Listener>(listener, executor));
+        boolean subscriptionChanged;
+        synchronized (this) {
+            if (listeners.addIfAbsent(new ListenerRegistration<Listener>(listener, executor)) && !wantsDepthChanges) {
+                if (listenersIgnoringDepth == null)
+                    listenersIgnoringDepth = new ArrayList<Listener>(1);
+                listenersIgnoringDepth.add(listener);
+            }
+            subscriptionChanged = updateDepthSubscription();
+        }
         pinnedConfidenceObjects.add(this);
+        if (subscriptionChanged)
+            informDepthSubscriptionListeners();
     }
 
     /**
@@ -241,12 +292,64 @@ public class TransactionConfidence {
 
     public boolean removeEventListener(Listener listener) {
         checkNotNull(listener);
-        boolean removed = ListenerRegistration.removeFromList(listener, listeners);
+        boolean removed, subscriptionChanged;
+        synchronized (this) {
+            removed = ListenerRegistration.removeFromList(listener, listeners);
+            if (removed && listenersIgnoringDepth != null)
+                listenersIgnoringDepth.remove(listener);
+            subscriptionChanged = updateDepthSubscription();
+        }
         if (listeners.isEmpty())
             pinnedConfidenceObjects.remove(this);
+        if (subscriptionChanged)
+            informDepthSubscriptionListeners();
         return removed;
     }
 
+    // Returns whether the depth subscription changed.
+    private synchronized boolean updateDepthSubscription() {
+        boolean subscribed = hasDepthSubscribers();
+        if (subscribed == depthSubscribed)
+            return false;
+        depthSubscribed = subscribed;
+        return true;
+    }
+
+    private void informDepthSubscriptionListeners() {
+        CopyOnWriteArrayList<DepthSubscriptionListener> subscriptionListeners;
+        synchronized (this) {
+            subscriptionListeners = depthSubscriptionListeners;
+        }
+        if (subscriptionListeners != null) {
+            for (DepthSubscriptionListener subscriptionListener : subscriptionListeners)
+                subscriptionListener.onDepthSubscriptionChanged(this);
+        }
+    }
+
+    /**
+     * Returns whether a listener is interested in depth changes, including a future from {@link #getDepthFuture(int)}
+     * that is waiting. Only such transactions need to hear about new blocks.
+     */
+    public synchronized boolean hasDepthSubscribers() {
+        int ignoringDepth = listenersIgnoringDepth == null ? 0 : listenersIgnoringDepth.size();
+        return listeners.size() > ignoringDepth;
+    }
+
+    /**
+     * Adds a listener that is told when {@link #hasDepthSubscribers()} changes. Duplicate registrations are ignored.
+     */
+    public synchronized void addDepthSubscriptionListener(DepthSubscriptionListener listener) {
+        checkNotNull(listener);
+        if (depthSubscriptionListeners == null)
+            depthSubscriptionListeners = new CopyOnWriteArrayList<DepthSubscriptionListener>();
+        depthSubscriptionListeners.addIfAbsent(listener);
+    }
+
+    public synchronized boolean removeDepthSubscriptionListener(DepthSubscriptionListener listener) {
+        checkNotNull(listener);
+        return depthSubscriptionListeners != null && depthSubscriptionListeners.remove(listener);
+    }
+
     /**
      * Returns the chain height at which the transaction appeared if confidence type is BUILDING.
      * @throws IllegalStateException if the confidence type is not BUILDING.
@@ -393,13 +496,14 @@ public class TransactionConfidence {
     }
 
     /**
-     * Called by the wallet when the tx appears on the best chain and a new block is added to the top. Updates the
-     * internal counter that tracks how deeply buried the block is.
+     * Updates the internal counter that tracks how deeply buried the block is, for a confidence object whose depth is
+     * not derived from the chain height.
      *
      * @return the new depth
      */
     public synchronized int incrementDepthInBlocks() {
-        return ++this.depth;
+        depth = getDepthInBlocks() + 1;
+        return depth;
     }
 
     /**
@@ -413,11 +517,29 @@ public class TransactionConfidence {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
+        if (confidenceType == ConfidenceType.BUILDING && appearedAtChainHeight >= 0 && chainHeightSource != null) {
+            int chainHeight = chainHeightSource.getChainHeight();
+            if (chainHeight >= appearedAtChainHeight)
+                return chainHeight - appearedAtChainHeight + 1;
+        }
         return depth;
     }
 
+    /**
+     * Returns the depth of the transaction in a chain of the given height rather than in the best chain, for example
+     * the chain as far as a wallet that is still catching up has seen it. Falls back to {@link #getDepthInBlocks()}
+     * if the height is unknown (negative) or below the height the transaction appeared at.
+     */
+    public synchronized int getDepthInBlocks(int chainHeight) {
+        if (confidenceType == ConfidenceType.BUILDING && appearedAtChainHeight >= 0
+                && chainHeight >= appearedAtChainHeight)
+            return chainHeight - appearedAtChainHeight + 1;
+        return getDepthInBlocks();
+    }
+
     /*
-     * Set the depth in blocks. Having one block confirmation is a depth of one.
+     * Set the depth in blocks. Having one block confirmation is a depth of one. Has no effect whilst the depth is
+     * derived from the chain height.
      */
     public synchronized void setDepthInBlocks(int depth) {
         this.depth = depth;
@@ -468,6 +590,8 @@ public class TransactionConfidence {
             c.confidenceType = confidenceType;
             c.overridingTransaction = overridingTransaction;
             c.appearedAtChainHeight = appearedAtChainHeight;
+            // The copy doesn't follow the chain.
+            c.depth = getDepthInBlocks();
         }
         return c;
     }
@@ -479,8 +603,10 @@ public class TransactionConfidence {
      * explicitly, more precise control is available. Note that this will run the listeners on the user code thread.
      */
     public void queueListeners(final Listener.ChangeReason reason) {
+        // A listener reads the depth when it runs, so only the last of several pending depth changes matters.
+        Object coalesceKey = reason == Listener.ChangeReason.DEPTH ? this : null;
         for (final ListenerRegistration<Listener> registration : listeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, registration.listener, coalesceKey, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onConfidenceChanged(TransactionConfidence.this, reason);
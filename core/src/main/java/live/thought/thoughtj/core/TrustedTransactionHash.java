@@ -0,0 +1,25 @@
+package live.thought.thoughtj.core;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Lets a wallet loader give a transaction that it has just rebuilt from a wallet file the hash stored for it in
+ * that file, instead of serializing and hashing it again. This is only for transactions the file can be trusted for,
+ * like old spent history buried deep in the chain: nothing checks the hash.</p>
+ *
+ * <p>Only a freshly built transaction, whose hash was never calculated, can be given one, so this can't change the
+ * identity of a transaction that is already known by its hash elsewhere.</p>
+ */
+public final class TrustedTransactionHash {
+    private TrustedTransactionHash() {}
+
+    /**
+     * Sets the hash of the given newly built transaction and returns it.
+     * @throws IllegalStateException if the transaction's hash was already calculated or set.
+     */
+    public static Transaction apply(Transaction tx, Sha256Hash hash) {
+        checkState(!tx.isHashKnown(), "Transaction hash already known");
+        tx.setHash(hash);
+        return tx;
+    }
+}
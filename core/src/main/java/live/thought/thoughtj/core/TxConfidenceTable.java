@@ -16,12 +16,16 @@
 
 package live.thought.thoughtj.core;
 
+import com.google.common.annotations.VisibleForTesting;
+
 import javax.annotation.*;
+import javax.annotation.concurrent.GuardedBy;
 
 import live.thought.thoughtj.utils.*;
 
 import java.lang.ref.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.*;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -36,44 +40,183 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Bitcoin Core memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>Every peer reports every inv it receives here, so the table is split into segments by hash. Lookups don't lock
+ * at all and adding an entry only locks its segment. When a segment is full it evicts an entry that hasn't been looked
+ * up recently, which approximates evicting the least recently used entry of the whole table.</p>
  */
 public class TxConfidenceTable {
-    protected ReentrantLock lock = Threading.lock("txconfidencetable");
-
     private static class WeakConfidenceReference extends WeakReference<TransactionConfidence> {
-        public Sha256Hash hash;
-        public WeakConfidenceReference(TransactionConfidence confidence, ReferenceQueue<TransactionConfidence> queue) {
-            super(confidence, queue);
+        public final Sha256Hash hash;
+        public final Segment segment;
+        // Set when the entry is looked up, cleared when that saves it from eviction.
+        public volatile boolean accessed;
+        // Set when the entry left the table but is still queued for eviction, guarded by the lock of the segment.
+        public boolean removed;
+        public WeakConfidenceReference(TransactionConfidence confidence, Segment segment) {
+            super(confidence, referenceQueue);
             hash = confidence.getTransactionHash();
+            this.segment = segment;
         }
     }
-    private LinkedHashMap<Sha256Hash, WeakConfidenceReference> table;
 
-    // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the TxConfidenceTable is the
-    // only thing that is tracking the confidence data anymore. We check it from time to time and delete table entries
-    // corresponding to expired transactions. In this way memory usage of the system is in line with however many
-    // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
-    // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<TransactionConfidence> referenceQueue;
+    // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, a TxConfidenceTable is the
+    // only thing that is tracking the confidence data anymore. The cleaner thread deletes the table entries
+    // corresponding to expired transactions as they arrive. In this way memory usage of the system is in line with
+    // however many transactions you actually care to track the confidence of. We can still end up with lots of hashes
+    // being stored if our peers flood us with invs but the MAX_SIZE param caps this. One queue and thread serves all
+    // tables.
+    private static final ReferenceQueue<TransactionConfidence> referenceQueue = new ReferenceQueue<TransactionConfidence>();
+
+    static {
+        Thread cleaner = new Thread(new Runnable() {
+            @SuppressWarnings("InfiniteLoopStatement") @Override
+            public void run() {
+                while (true) {
+                    try {
+                        WeakConfidenceReference ref = (WeakConfidenceReference) referenceQueue.remove();
+                        // Remove the map entry so the other bits of memory can also be reclaimed.
+                        ref.segment.remove(ref);
+                    } catch (InterruptedException e) {
+                        // Carry on, nothing else uses this thread.
+                    }
+                }
+            }
+        }, "TxConfidenceTable cleaner");
+        cleaner.setDaemon(true);
+        cleaner.start();
+    }
+
+    private static class Segment {
+        private final ReentrantLock lock = Threading.lock("txconfidencetable");
+        private final TransactionConfidence.ChainHeightSource chainHeightSource;
+        private final ConcurrentHashMap<Sha256Hash, WeakConfidenceReference> table;
+        // The references in the table, oldest first, plus those removed since that are yet to be skipped.
+        @GuardedBy("lock") private final ArrayDeque<WeakConfidenceReference> order;
+        @GuardedBy("lock") private int removed;
+        private final int size;
+
+        Segment(int size, TransactionConfidence.ChainHeightSource chainHeightSource) {
+            this.size = size;
+            this.chainHeightSource = chainHeightSource;
+            table = new ConcurrentHashMap<Sha256Hash, WeakConfidenceReference>(Math.min(size, 64), 0.75f, 4);
+            order = new ArrayDeque<WeakConfidenceReference>(Math.min(size, 64));
+        }
+
+        @Nullable
+        TransactionConfidence get(Sha256Hash hash) {
+            WeakConfidenceReference ref = table.get(hash);
+            if (ref == null)
+                return null;
+            TransactionConfidence confidence = ref.get();
+            // Only write when needed, so peers looking up the same hash don't keep invalidating each other's caches.
+            if (confidence != null && !ref.accessed)
+                ref.accessed = true;
+            return confidence;
+        }
+
+        TransactionConfidence getOrCreate(Sha256Hash hash) {
+            TransactionConfidence confidence = get(hash);
+            if (confidence != null)
+                return confidence;
+            lock.lock();
+            try {
+                WeakConfidenceReference ref = table.get(hash);
+                if (ref != null) {
+                    confidence = ref.get();
+                    if (confidence != null)
+                        return confidence;
+                    // Such a TX hash was seen, but nothing seemed to care so we ended up throwing away the data.
+                    removeLocked(ref);
+                }
+                confidence = new TransactionConfidence(hash, chainHeightSource);
+                ref = new WeakConfidenceReference(confidence, this);
+                table.put(hash, ref);
+                order.addLast(ref);
+                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
+                // of some kind of DoS attack. Entries looked up since they last came round get another go at the back.
+                while (order.size() - removed > size) {
+                    WeakConfidenceReference eldest = order.pollFirst();
+                    if (eldest.removed) {
+                        removed--;
+                    } else if (eldest.accessed) {
+                        eldest.accessed = false;
+                        order.addLast(eldest);
+                    } else {
+                        table.remove(eldest.hash, eldest);
+                    }
+                }
+                return confidence;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(WeakConfidenceReference ref) {
+            lock.lock();
+            try {
+                removeLocked(ref);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @GuardedBy("lock")
+        private void removeLocked(WeakConfidenceReference ref) {
+            // It may have been evicted or replaced already.
+            if (!table.remove(ref.hash, ref))
+                return;
+            // Taking it out of the middle of the queue would cost time in proportion to the size of the segment, so
+            // it's only marked, to be skipped when it comes round. Once more than a segment's worth of such entries
+            // has piled up, they are all dropped in one go.
+            ref.removed = true;
+            removed++;
+            if (removed > size) {
+                for (int i = order.size(); i > 0; i--) {
+                    WeakConfidenceReference next = order.pollFirst();
+                    if (!next.removed)
+                        order.addLast(next);
+                }
+                removed = 0;
+            }
+        }
+    }
+
+    // Peers announcing different transactions only share a lock if their hashes fall into the same segment. A segment
+    // holds at least MIN_SEGMENT_SIZE entries, so that evicting within it stays close to evicting across the table.
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_SIZE = 32;
+
+    /**
+     * @deprecated No longer used: the table is split into segments that each have their own lock, and holding this
+     * one doesn't keep other threads out of the table. It's only kept so that subclasses referring to it still compile.
+     */
+    @Deprecated
+    protected ReentrantLock lock = Threading.lock("txconfidencetable");
+
+    private final Segment[] segments;
+    // The height of the best chain, from which the confidence objects of the table derive the depth of transactions.
+    private volatile int vChainHeight = -1;
+    private final TransactionConfidence.ChainHeightSource chainHeightSource = new TransactionConfidence.ChainHeightSource() {
+        @Override
+        public int getChainHeight() {
+            return vChainHeight;
+        }
+    };
 
     /** The max size of a table created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
 
     /**
-     * Creates a table that will track at most the given number of transactions (allowing you to bound memory
+     * Creates a table that will track at most about the given number of transactions (allowing you to bound memory
      * usage).
      * @param size Max number of transactions to track. The table will fill up to this size then stop growing.
      */
     public TxConfidenceTable(final int size) {
-        table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
-        referenceQueue = new ReferenceQueue<TransactionConfidence>();
+        int count = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, size / MIN_SEGMENT_SIZE)));
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++)
+            segments[i] = new Segment((size + count - 1) / count, chainHeightSource);
     }
 
     /**
@@ -84,50 +227,40 @@ public class TxConfidenceTable {
         this(MAX_SIZE);
     }
 
+    private Segment segmentFor(Sha256Hash hash) {
+        int h = hash.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
     /**
-     * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
-     * table entries - it means we downloaded the transaction and sent it to various event listeners, none of
-     * which bothered to keep a reference. Typically, this is because the transaction does not involve any keys that
-     * are relevant to any of our wallets.
+     * Sets the height of the best chain. Called by the block chain whenever its head changes, after which the depth of
+     * every BUILDING transaction in the table follows from it.
      */
-    private void cleanTable() {
-        lock.lock();
-        try {
-            Reference<? extends TransactionConfidence> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                table.remove(txRef.hash);
-            }
-        } finally {
-            lock.unlock();
-        }
+    public void setChainHeight(int chainHeight) {
+        vChainHeight = chainHeight;
+    }
+
+    /** Returns the height of the best chain, or -1 if it isn't known yet. */
+    public int getChainHeight() {
+        return vChainHeight;
+    }
+
+    /** Returns how many transactions the table holds, including ones that were garbage collected very recently. */
+    @VisibleForTesting
+    int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.table.size();
+        return size;
     }
 
     /**
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
-        try {
-            cleanTable();
-            WeakConfidenceReference entry = table.get(txHash);
-            if (entry == null) {
-                return 0;  // No such TX known.
-            } else {
-                TransactionConfidence confidence = entry.get();
-                if (confidence == null) {
-                    // Such a TX hash was seen, but nothing seemed to care so we ended up throwing away the data.
-                    table.remove(txHash);
-                    return 0;
-                } else {
-                    return confidence.numBroadcastPeers();
-                }
-            }
-        } finally {
-            lock.unlock();
-        }
+        TransactionConfidence confidence = segmentFor(txHash).get(txHash);
+        // If such a TX hash was seen but nothing cared about it, the data was thrown away.
+        return confidence == null ? 0 : confidence.numBroadcastPeers();
     }
 
     /**
@@ -137,15 +270,8 @@ public class TxConfidenceTable {
      * @return the number of peers that have now announced this hash (including the caller)
      */
     public TransactionConfidence seen(Sha256Hash hash, PeerAddress byPeer) {
-        TransactionConfidence confidence;
-        boolean fresh = false;
-        lock.lock();
-        {
-            cleanTable();
-            confidence = getOrCreate(hash);
-            fresh = confidence.markBroadcastBy(byPeer);
-        }
-        lock.unlock();
+        TransactionConfidence confidence = getOrCreate(hash);
+        boolean fresh = confidence.markBroadcastBy(byPeer);
         if (fresh)
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
         return confidence;
@@ -157,20 +283,7 @@ public class TxConfidenceTable {
      */
     public TransactionConfidence getOrCreate(Sha256Hash hash) {
         checkNotNull(hash);
-        lock.lock();
-        try {
-            WeakConfidenceReference reference = table.get(hash);
-            if (reference != null) {
-                TransactionConfidence confidence = reference.get();
-                if (confidence != null)
-                    return confidence;
-            }
-            TransactionConfidence newConfidence = new TransactionConfidence(hash);
-            table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
-            return newConfidence;
-        } finally {
-            lock.unlock();
-        }
+        return segmentFor(hash).getOrCreate(hash);
     }
 
     /**
@@ -179,18 +292,6 @@ public class TxConfidenceTable {
      */
     @Nullable
     public TransactionConfidence get(Sha256Hash hash) {
-        lock.lock();
-        try {
-            WeakConfidenceReference ref = table.get(hash);
-            if (ref == null)
-                return null;
-            TransactionConfidence confidence = ref.get();
-            if (confidence != null)
-                return confidence;
-            else
-                return null;
-        } finally {
-            lock.unlock();
-        }
+        return segmentFor(hash).get(hash);
     }
 }
@@ -0,0 +1,259 @@
+package live.thought.thoughtj.core;
+
+import live.thought.thoughtj.store.BlockStoreException;
+import live.thought.thoughtj.store.ConcurrentReadFullPrunedBlockStore;
+import live.thought.thoughtj.utils.ContextPropagatingThreadFactory;
+import live.thought.thoughtj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Looks up the outputs spent by upcoming blocks on a background thread, so that a {@link FullPrunedBlockChain}
+ * finds them in memory instead of waiting for the store once it gets to connect the block. Whilst block N is having
+ * its scripts checked and its changes committed to the store, the inputs of block N+1 are already being read.</p>
+ *
+ * <p>The store is read with {@link ConcurrentReadFullPrunedBlockStore#getCommittedTransactionOutput(Sha256Hash, long)},
+ * outside of the chain's database transaction, so a prefetched output may have been spent by a
+ * block that was connected in the meantime. To handle that, every output the chain spends after a prefetch was
+ * started is remembered by that prefetch and never handed out by it, and all prefetches are thrown away whenever a
+ * block fails to connect or the chain is reorganized. Outputs that weren't found, including those created by the
+ * block itself or by blocks not yet committed, are left for the chain to look up as usual. So are all outputs of a
+ * prefetch that failed to read the store.</p>
+ */
+public class UTXOPrefetcher {
+    private static final Logger log = LoggerFactory.getLogger(UTXOPrefetcher.class);
+
+    /** How many blocks may be prefetched ahead of the one being connected. */
+    public static final int DEFAULT_MAX_PENDING = 4;
+
+    private final ConcurrentReadFullPrunedBlockStore blockStore;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ContextPropagatingThreadFactory("UTXO prefetch"));
+
+    private final ReentrantLock lock = Threading.lock("utxoprefetcher");
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Prefetch> pending = new LinkedHashMap<Sha256Hash, Prefetch>();
+    private volatile int vMaxPending = DEFAULT_MAX_PENDING;
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), failures = new AtomicLong();
+
+    private static class OutPoint {
+        final Sha256Hash hash;
+        final long index;
+
+        OutPoint(Sha256Hash hash, long index) {
+            this.hash = hash;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            OutPoint other = (OutPoint) o;
+            return index == other.index && hash.equals(other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash.hashCode() * 31 + (int) index;
+        }
+    }
+
+    /** The outputs looked up for one block. */
+    class Prefetch implements Runnable {
+        private final Block block;
+        private final ConcurrentHashMap<OutPoint, UTXO> found = new ConcurrentHashMap<OutPoint, UTXO>();
+        // Outputs spent by the chain since this prefetch was started.
+        private final Set<OutPoint> spent = Collections.newSetFromMap(new ConcurrentHashMap<OutPoint, Boolean>());
+        private volatile boolean vDone;
+        // Set when the store couldn't be read, after which nothing is handed out.
+        private volatile boolean vFailed;
+        @Nullable private Future<?> future;
+
+        Prefetch(Block block) {
+            this.block = block;
+        }
+
+        @Override
+        public void run() {
+            Set<Sha256Hash> created = new HashSet<Sha256Hash>();
+            for (Transaction tx : block.getTransactions())
+                created.add(tx.getHash());
+            try {
+                for (Transaction tx : block.getTransactions()) {
+                    if (tx.isCoinBase())
+                        continue;
+                    for (TransactionInput in : tx.getInputs()) {
+                        if (vDone)
+                            return;
+                        TransactionOutPoint outpoint = in.getOutpoint();
+                        if (created.contains(outpoint.getHash()))
+                            continue; // Created within the block, so not in the store yet.
+                        UTXO out = blockStore.getCommittedTransactionOutput(outpoint.getHash(), outpoint.getIndex());
+                        if (out != null)
+                            found.put(new OutPoint(outpoint.getHash(), outpoint.getIndex()), out);
+                    }
+                }
+            } catch (BlockStoreException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(Exception e) {
+            vFailed = true;
+            found.clear();
+            failures.incrementAndGet();
+            log.error("Prefetching inputs of block {} failed", block.getHashAsString(), e);
+        }
+
+        /**
+         * Returns the prefetched output, or null if it wasn't found (yet) or was spent since. Null means the caller
+         * has to ask the store.
+         */
+        @Nullable
+        UTXO get(Sha256Hash hash, long index) {
+            OutPoint key = new OutPoint(hash, index);
+            UTXO out = vFailed || spent.contains(key) ? null : found.get(key);
+            if (out != null)
+                hits.incrementAndGet();
+            else
+                misses.incrementAndGet();
+            return out;
+        }
+
+        private void finish() {
+            vDone = true;
+            if (future != null)
+                future.cancel(false);
+        }
+    }
+
+    public UTXOPrefetcher(ConcurrentReadFullPrunedBlockStore blockStore) {
+        this.blockStore = blockStore;
+    }
+
+    /**
+     * Sets how many blocks may be prefetched at once. Beyond that the oldest prefetch is dropped, which also takes
+     * care of prefetches of blocks that never got connected.
+     */
+    public void setMaxPending(int maxPending) {
+        checkArgument(maxPending > 0);
+        this.vMaxPending = maxPending;
+    }
+
+    /**
+     * Starts looking up the outputs spent by the given block. Must be called whilst holding the chain lock, so that
+     * no block is halfway connected: spends of blocks connected from now on are taken into account.
+     */
+    void prefetch(Block block) {
+        if (block.getTransactions() == null)
+            return;
+        lock.lock();
+        try {
+            if (pending.containsKey(block.getHash()))
+                return;
+            while (pending.size() >= vMaxPending) {
+                Iterator<Prefetch> it = pending.values().iterator();
+                it.next().finish();
+                it.remove();
+            }
+            Prefetch prefetch = new Prefetch(block);
+            pending.put(block.getHash(), prefetch);
+            prefetch.future = executor.submit(prefetch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the prefetch of the given block, or null if there is none. */
+    @Nullable
+    Prefetch get(Sha256Hash blockHash) {
+        lock.lock();
+        try {
+            return pending.get(blockHash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forgets the prefetch of the given block once it has been connected, stopping it if it is still running. */
+    void remove(Sha256Hash blockHash) {
+        lock.lock();
+        try {
+            Prefetch prefetch = pending.remove(blockHash);
+            if (prefetch != null)
+                prefetch.finish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Must be called for every output the chain spends, so no prefetch can hand it out again. */
+    void spent(UTXO out) {
+        lock.lock();
+        try {
+            if (pending.isEmpty())
+                return;
+            OutPoint key = new OutPoint(out.getHash(), out.getIndex());
+            for (Prefetch prefetch : pending.values())
+                prefetch.spent.add(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Throws away all prefetches, because a block failed to connect or the chain is being reorganized. */
+    void invalidateAll() {
+        lock.lock();
+        try {
+            for (Prefetch prefetch : pending.values())
+                prefetch.finish();
+            pending.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many outputs were served from prefetched data. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns how many outputs had to be looked up in the store by the chain, although their block was prefetched. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns how many prefetches failed because the store couldn't be read. */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /** Returns how many blocks are being or have been prefetched but are not connected yet. */
+    public int getPendingBlocks() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -22,7 +22,8 @@ import java.util.List;
  * A UTXOProvider encapsulates functionality for returning unspent transaction outputs,
  * for use by the wallet or other code that crafts spends.
  *
- * <p>A {@link live.thought.thoughtj.store.FullPrunedBlockStore} is an internal implementation within thoughtj.</p>
+ * <p>A {@link live.thought.thoughtj.store.FullPrunedBlockStore} is an internal implementation within thoughtj.
+ * Providers that can look up many addresses at once implement {@link BatchUTXOProvider} as well.</p>
  */
 public interface UTXOProvider {
 
@@ -18,7 +18,9 @@ package live.thought.thoughtj.crypto;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
+import live.thought.thoughtj.utils.Threading;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -48,6 +50,9 @@ public class DeterministicHierarchy {
 
     public static final int BIP32_STANDARDISATION_TIME_SECS = 1369267200;
 
+    /** How many children {@link #derivePublicChildren(DeterministicKey, int, int)} gives each thread at least. */
+    static final int KEYS_PER_THREAD = 25;
+
     /**
      * Constructs a new hierarchy rooted at the given key. Note that this does not have to be the top of the tree.
      * You can construct a DeterministicHierarchy for a subtree of a larger tree that you may not own.
@@ -153,6 +158,58 @@ public class DeterministicHierarchy {
         return childKey;
     }
 
+    /**
+     * <p>Derives {@code count} children of the given parent, starting at child number {@code firstChild}, and puts them
+     * into the hierarchy in order. Child numbers for which derivation fails are skipped, like
+     * {@link HDKeyDerivation#deriveThisOrNextChildKey(DeterministicKey, int)} does. The returned keys have no private
+     * key bytes.</p>
+     *
+     * <p>Children only depend on their parent, so large batches are split into ranges that are derived on
+     * {@link Threading#THREAD_POOL}, with the calling thread taking the first range. This speeds up key lookahead and
+     * restoring wallets from a seed, which are dominated by elliptic curve multiplications.</p>
+     */
+    public List<DeterministicKey> derivePublicChildren(final DeterministicKey parent, final int firstChild, int count) {
+        checkArgument(count >= 0);
+        // Decode the parent's public key before other threads share it.
+        parent.getPubKeyPoint();
+        final DeterministicKey[] derived = new DeterministicKey[count];
+        Threading.parallelRanges(count, KEYS_PER_THREAD, new Threading.RangeTask() {
+            @Override
+            public void run(int start, int end) {
+                derivePublicChildren(parent, firstChild, derived, start, end);
+            }
+        });
+
+        List<DeterministicKey> keys = new ArrayList<DeterministicKey>(count);
+        for (DeterministicKey key : derived)
+            if (key != null)
+                keys.add(key);
+        // Make up for any children that were skipped, carrying on after the batch.
+        int nextChild = firstChild + count;
+        while (keys.size() < count) {
+            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild).dropPrivateBytes();
+            keys.add(key);
+            nextChild = key.getChildNumber().num() + 1;
+        }
+        for (DeterministicKey key : keys)
+            putKey(key);
+        return keys;
+    }
+
+    private static void derivePublicChildren(DeterministicKey parent, int firstChild, DeterministicKey[] derived,
+                                             int start, int end) {
+        for (int i = start; i < end; i++) {
+            try {
+                DeterministicKey key = HDKeyDerivation.deriveChildKey(parent, new ChildNumber(firstChild + i));
+                key = key.dropPrivateBytes();
+                key.getPubKeyHash();  // Cached, and needed straight away by the key chain.
+                derived[i] = key;
+            } catch (HDDerivationException e) {
+                derived[i] = null;  // Skipped, as the sequential derivation would.
+            }
+        }
+    }
+
     /**
      * Returns the root key that the {@link DeterministicHierarchy} was created with.
      */
@@ -335,6 +335,8 @@ public class WalletAppKit extends AbstractIdleService {
                 peerAddresses = null;
             } else if (!params.getId().equals(NetworkParameters.ID_REGTEST)) {
                 vPeerGroup.addPeerDiscovery(discovery != null ? discovery : new DnsDiscovery(params));
+                // Reconnect to peers that worked last time without waiting for discovery.
+                vPeerGroup.setAddressBook(PeerAddressBook.load(params, new File(directory, filePrefix + ".peers")));
             }
             vChain.addWallet(vWallet);
             vPeerGroup.addWallet(vWallet);
@@ -21,7 +21,9 @@ import live.thought.thoughtj.core.PeerFilterProvider;
 
 import com.google.common.collect.ImmutableList;
 
+import javax.annotation.Nullable;
 import java.util.LinkedList;
+import java.util.List;
 
 // This code is unit tested by the PeerGroup tests.
 
@@ -36,6 +38,10 @@ import java.util.LinkedList;
  * not hold any locks whilst this object is used, relying on the single thread to prevent multiple filters being
  * calculated in parallel, thus a filter provider can do things like make blocking calls into PeerGroup from a separate
  * thread. However the bloomFilterFPRate property IS thread safe, for convenience.</p>
+ *
+ * <p>Elements added to the providers after a filter was calculated, such as keys from the lookahead of a key chain,
+ * can be {@link #insert(List) inserted} into the last filter for as long as it was sized to hold them at the false
+ * positive rate. Only once that room is used up does the whole filter have to be calculated again.</p>
  */
 public class FilterMerger {
     // We use a constant tweak to avoid giving up privacy when we regenerate our filter with new keys
@@ -43,6 +49,9 @@ public class FilterMerger {
 
     private volatile double vBloomFilterFPRate;
     private int lastBloomFilterElementCount;
+    // How many elements the last filter holds, including inserted ones, and the false positive rate it was sized for.
+    private int lastFilterElements;
+    private double lastFilterFPRate;
     private BloomFilter lastFilter;
 
     public FilterMerger(double bloomFilterFPRate) {
@@ -80,8 +89,10 @@ public class FilterMerger {
                 // We stair-step our element count so that we avoid creating a filter with different parameters
                 // as much as possible as that results in a loss of privacy.
                 // The constant 100 here is somewhat arbitrary, but makes sense for small to medium wallets -
-                // it will likely mean we never need to create a filter with different parameters.
-                lastBloomFilterElementCount = elements > lastBloomFilterElementCount ? elements + 100 : lastBloomFilterElementCount;
+                // it will likely mean we never need to create a filter with different parameters. Large wallets get
+                // a quarter extra so that a few rounds of key lookahead can be inserted before we have to grow again.
+                lastBloomFilterElementCount = elements > lastBloomFilterElementCount ?
+                        elements + Math.max(100, elements / 4) : lastBloomFilterElementCount;
                 BloomFilter.BloomUpdate bloomFlags =
                         requiresUpdateAll ? BloomFilter.BloomUpdate.UPDATE_ALL : BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY;
                 double fpRate = vBloomFilterFPRate;
@@ -91,6 +102,8 @@ public class FilterMerger {
 
                 result.changed = !filter.equals(lastFilter);
                 result.filter = lastFilter = filter;
+                lastFilterElements = elements;
+                lastFilterFPRate = fpRate;
             }
             // Now adjust the earliest key time backwards by a week to handle the case of clock drift. This can occur
             // both in block header timestamps and if the users clock was out of sync when the key was first created
@@ -104,6 +117,29 @@ public class FilterMerger {
         }
     }
 
+    /**
+     * Inserts the given elements into a copy of the last calculated filter, which then becomes the last filter. Returns
+     * null if there is no filter yet, if the false positive rate was changed since, or if the filter has no room left
+     * for the elements at the rate it was built for. In that case {@link #calculate(ImmutableList)} has to be used to
+     * get a bigger filter.
+     */
+    @Nullable
+    public BloomFilter insert(List<byte[]> elements) {
+        if (lastFilter == null || lastFilterFPRate != vBloomFilterFPRate)
+            return null;
+        // The filter was sized for lastBloomFilterElementCount elements, so up to that many it stays within the false
+        // positive rate it was built for. Filters that hit the maximum size are already over the configured rate and
+        // are held to the one they had when built.
+        int total = lastFilterElements + elements.size();
+        if (total > lastBloomFilterElementCount)
+            return null;
+        BloomFilter filter = lastFilter.duplicate();
+        for (byte[] element : elements)
+            filter.insert(element);
+        lastFilterElements = total;
+        return lastFilter = filter;
+    }
+
     public void setBloomFilterFPRate(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
     }
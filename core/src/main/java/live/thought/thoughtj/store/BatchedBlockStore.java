@@ -0,0 +1,13 @@
+package live.thought.thoughtj.store;
+
+/**
+ * A {@link BlockStore} that can collect the headers of a run, such as the contents of one headers message, and write
+ * them to disk in one go. Blocks put during a batch can be read back straight away.
+ */
+public interface BatchedBlockStore extends BlockStore {
+    /** Starts collecting puts and chain head changes. Batches may be nested, only the outermost one is written. */
+    void beginBatch();
+
+    /** Writes everything collected since the matching {@link #beginBatch()}. */
+    void commitBatch() throws BlockStoreException;
+}
@@ -0,0 +1,518 @@
+package live.thought.thoughtj.store;
+
+import com.google.common.collect.Lists;
+import live.thought.thoughtj.core.Address;
+import live.thought.thoughtj.core.BatchUTXOProvider;
+import live.thought.thoughtj.core.NetworkParameters;
+import live.thought.thoughtj.core.Sha256Hash;
+import live.thought.thoughtj.core.StoredBlock;
+import live.thought.thoughtj.core.StoredUndoableBlock;
+import live.thought.thoughtj.core.Transaction;
+import live.thought.thoughtj.core.UTXO;
+import live.thought.thoughtj.core.UTXOProviderException;
+import live.thought.thoughtj.core.VerificationException;
+import live.thought.thoughtj.store.MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag;
+import live.thought.thoughtj.utils.Threading;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link UTXO}s in memory like
+ * {@link MemoryFullPrunedBlockStore}, but can be read from any number of threads whilst the chain writes to it.</p>
+ *
+ * <p>The committed state is split into stripes by transaction or block hash, each a plain hash map behind its own
+ * read/write lock, so readers of different outputs hardly ever touch the same lock. Only one thread writes at a
+ * time. Between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} its changes go to a
+ * private overlay: the writing thread sees its own changes, all other threads keep seeing the last committed state.
+ * A commit applies the overlay whilst holding all stripes, so no reader ever sees half a batch. Queries over many
+ * outputs, like {@link #findOpenTransactionOutputs(Collection, UTXOReceiver)}, hold all stripes for reading and see
+ * one consistent state too.</p>
+ */
+public class ConcurrentMemoryFullPrunedBlockStore implements ConcurrentReadFullPrunedBlockStore, BatchUTXOProvider {
+    /** The default number of stripes the committed state is split into. */
+    public static final int DEFAULT_STRIPES = 16;
+
+    private static class Stripe {
+        // Many, short and always taken in stripe order, so cycle detection would only add to every read.
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final Map<StoredTransactionOutPoint, UTXO> outputs = new HashMap<StoredTransactionOutPoint, UTXO>();
+        final Map<Sha256Hash, StoredBlockAndWasUndoableFlag> blocks = new HashMap<Sha256Hash, StoredBlockAndWasUndoableFlag>();
+        final Map<Sha256Hash, StoredUndoableBlock> undoBlocks = new HashMap<Sha256Hash, StoredUndoableBlock>();
+    }
+
+    /** The changes of a batch write that are only visible to the writing thread until committed. */
+    private static class Batch {
+        final Map<StoredTransactionOutPoint, UTXO> addedOutputs = new HashMap<StoredTransactionOutPoint, UTXO>();
+        // Committed outputs to remove. An output removed and then added back is only in addedOutputs.
+        final Set<StoredTransactionOutPoint> removedOutputs = new HashSet<StoredTransactionOutPoint>();
+        final Map<Sha256Hash, StoredBlockAndWasUndoableFlag> blocks = new HashMap<Sha256Hash, StoredBlockAndWasUndoableFlag>();
+        final Map<Sha256Hash, StoredUndoableBlock> undoBlocks = new HashMap<Sha256Hash, StoredUndoableBlock>();
+        final Set<Sha256Hash> removedUndoBlocks = new HashSet<Sha256Hash>();
+    }
+
+    private final Stripe[] stripes;
+    private final NetworkParameters params;
+    private final int fullStoreDepth;
+
+    // Held by the writing thread for a whole batch, or for a single change outside of one.
+    private final ReentrantLock writeLock = Threading.lock("concurrentmemoryfullprunedblockstore");
+    @GuardedBy("writeLock") @Nullable private Batch batch;
+    @GuardedBy("writeLock") private final Map<Integer, Set<Sha256Hash>> undoBlocksByHeight = new HashMap<Integer, Set<Sha256Hash>>();
+    private volatile Thread vBatchOwner;
+
+    private volatile StoredBlock vChainHead;
+    private volatile StoredBlock vVerifiedChainHead;
+    private volatile boolean vClosed;
+
+    /**
+     * Set up the store with {@link #DEFAULT_STRIPES} stripes.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     */
+    public ConcurrentMemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
+        this(params, fullStoreDepth, DEFAULT_STRIPES);
+    }
+
+    /**
+     * Set up the store.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     * @param stripes How many independently locked parts the committed state is split into
+     */
+    public ConcurrentMemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, int stripes) {
+        checkArgument(stripes > 0);
+        this.params = params;
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++)
+            this.stripes[i] = new Stripe();
+        // Insert the genesis block.
+        try {
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private Stripe stripe(Sha256Hash hash) {
+        return stripes[(hash.hashCode() & 0x7FFFFFFF) % stripes.length];
+    }
+
+    private void checkOpen() {
+        checkState(!vClosed, "ConcurrentMemoryFullPrunedBlockStore is closed");
+    }
+
+    /** Returns the batch of the calling thread, or null if it isn't writing a batch. */
+    @Nullable
+    private Batch ownBatch() {
+        if (vBatchOwner != Thread.currentThread())
+            return null;
+        // Only the owner ever sees a non null owner equal to itself, and it holds the write lock.
+        return batch;
+    }
+
+    private void lockAll(boolean write) {
+        for (Stripe stripe : stripes) {
+            if (write)
+                stripe.lock.writeLock().lock();
+            else
+                stripe.lock.readLock().lock();
+        }
+    }
+
+    private void unlockAll(boolean write) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            if (write)
+                stripes[i].lock.writeLock().unlock();
+            else
+                stripes[i].lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        putBlock(block.getHeader().getHash(), new StoredBlockAndWasUndoableFlag(block, false));
+    }
+
+    @Override
+    public final void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        checkOpen();
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        writeLock.lock();
+        try {
+            Set<Sha256Hash> atHeight = undoBlocksByHeight.get(storedBlock.getHeight());
+            if (atHeight == null) {
+                atHeight = new HashSet<Sha256Hash>();
+                undoBlocksByHeight.put(storedBlock.getHeight(), atHeight);
+            }
+            atHeight.add(hash);
+            Batch batch = ownBatch();
+            if (batch != null) {
+                batch.removedUndoBlocks.remove(hash);
+                batch.undoBlocks.put(hash, undoableBlock);
+            } else {
+                Stripe stripe = stripe(hash);
+                stripe.lock.writeLock().lock();
+                try {
+                    stripe.undoBlocks.put(hash, undoableBlock);
+                } finally {
+                    stripe.lock.writeLock().unlock();
+                }
+            }
+            putBlock(hash, new StoredBlockAndWasUndoableFlag(storedBlock, true));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void putBlock(Sha256Hash hash, StoredBlockAndWasUndoableFlag block) {
+        checkOpen();
+        writeLock.lock();
+        try {
+            Batch batch = ownBatch();
+            if (batch != null) {
+                batch.blocks.put(hash, block);
+                return;
+            }
+            Stripe stripe = stripe(hash);
+            stripe.lock.writeLock().lock();
+            try {
+                stripe.blocks.put(hash, block);
+            } finally {
+                stripe.lock.writeLock().unlock();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Nullable
+    private StoredBlockAndWasUndoableFlag getBlock(Sha256Hash hash) {
+        checkOpen();
+        Batch batch = ownBatch();
+        if (batch != null) {
+            StoredBlockAndWasUndoableFlag block = batch.blocks.get(hash);
+            if (block != null)
+                return block;
+        }
+        Stripe stripe = stripe(hash);
+        stripe.lock.readLock().lock();
+        try {
+            return stripe.blocks.get(hash);
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        StoredBlockAndWasUndoableFlag storedBlock = getBlock(hash);
+        return storedBlock == null ? null : storedBlock.block;
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        StoredBlockAndWasUndoableFlag storedBlock = getBlock(hash);
+        return (storedBlock != null && storedBlock.wasUndoable) ? storedBlock.block : null;
+    }
+
+    @Override
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        Batch batch = ownBatch();
+        if (batch != null) {
+            StoredUndoableBlock block = batch.undoBlocks.get(hash);
+            if (block != null)
+                return block;
+            if (batch.removedUndoBlocks.contains(hash))
+                return null;
+        }
+        Stripe stripe = stripe(hash);
+        stripe.lock.readLock().lock();
+        try {
+            return stripe.undoBlocks.get(hash);
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return vChainHead;
+    }
+
+    @Override
+    public final void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        this.vChainHead = chainHead;
+    }
+
+    @Override
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        checkOpen();
+        return vVerifiedChainHead;
+    }
+
+    @Override
+    public final void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        writeLock.lock();
+        try {
+            this.vVerifiedChainHead = chainHead;
+            if (this.vChainHead.getHeight() < chainHead.getHeight())
+                setChainHead(chainHead);
+            // Like MemoryFullPrunedBlockStore, this only prunes the undo blocks at exactly this depth.
+            Set<Sha256Hash> prunable = undoBlocksByHeight.remove(chainHead.getHeight() - fullStoreDepth);
+            if (prunable == null)
+                return;
+            Batch batch = ownBatch();
+            for (Sha256Hash hash : prunable) {
+                if (batch != null) {
+                    batch.undoBlocks.remove(hash);
+                    batch.removedUndoBlocks.add(hash);
+                } else {
+                    Stripe stripe = stripe(hash);
+                    stripe.lock.writeLock().lock();
+                    try {
+                        stripe.undoBlocks.remove(hash);
+                    } finally {
+                        stripe.lock.writeLock().unlock();
+                    }
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        vClosed = true;
+    }
+
+    @Nullable
+    private UTXO getCommittedOutput(StoredTransactionOutPoint key, Sha256Hash hash) {
+        Stripe stripe = stripe(hash);
+        stripe.lock.readLock().lock();
+        try {
+            return stripe.outputs.get(key);
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        checkOpen();
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+        Batch batch = ownBatch();
+        if (batch != null) {
+            UTXO out = batch.addedOutputs.get(key);
+            if (out != null)
+                return out;
+            if (batch.removedOutputs.contains(key))
+                return null;
+        }
+        return getCommittedOutput(key, hash);
+    }
+
+    @Override
+    @Nullable
+    public UTXO getCommittedTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        checkOpen();
+        return getCommittedOutput(new StoredTransactionOutPoint(hash, index), hash);
+    }
+
+    @Override
+    public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        checkOpen();
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        writeLock.lock();
+        try {
+            Batch batch = ownBatch();
+            if (batch != null) {
+                batch.removedOutputs.remove(key);
+                batch.addedOutputs.put(key, out);
+                return;
+            }
+            Stripe stripe = stripe(out.getHash());
+            stripe.lock.writeLock().lock();
+            try {
+                stripe.outputs.put(key, out);
+            } finally {
+                stripe.lock.writeLock().unlock();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        checkOpen();
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        writeLock.lock();
+        try {
+            Batch batch = ownBatch();
+            boolean removed;
+            if (batch != null) {
+                boolean committed = !batch.removedOutputs.contains(key) && getCommittedOutput(key, out.getHash()) != null;
+                if (committed)
+                    batch.removedOutputs.add(key);
+                removed = batch.addedOutputs.remove(key) != null || committed;
+            } else {
+                Stripe stripe = stripe(out.getHash());
+                stripe.lock.writeLock().lock();
+                try {
+                    removed = stripe.outputs.remove(key) != null;
+                } finally {
+                    stripe.lock.writeLock().unlock();
+                }
+            }
+            if (!removed)
+                throw new BlockStoreException("Tried to remove a UTXO from ConcurrentMemoryFullPrunedBlockStore that it didn't have!");
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (vBatchOwner == Thread.currentThread())
+            return; // Already writing a batch.
+        // Released again when the batch is committed or aborted.
+        writeLock.lock();
+        batch = new Batch();
+        vBatchOwner = Thread.currentThread();
+    }
+
+    @Override
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        Batch batch = ownBatch();
+        if (batch == null)
+            return;
+        lockAll(true);
+        try {
+            for (StoredTransactionOutPoint key : batch.removedOutputs)
+                stripe(key.getHash()).outputs.remove(key);
+            for (Map.Entry<StoredTransactionOutPoint, UTXO> entry : batch.addedOutputs.entrySet())
+                stripe(entry.getValue().getHash()).outputs.put(entry.getKey(), entry.getValue());
+            for (Map.Entry<Sha256Hash, StoredBlockAndWasUndoableFlag> entry : batch.blocks.entrySet())
+                stripe(entry.getKey()).blocks.put(entry.getKey(), entry.getValue());
+            for (Sha256Hash hash : batch.removedUndoBlocks)
+                stripe(hash).undoBlocks.remove(hash);
+            for (Map.Entry<Sha256Hash, StoredUndoableBlock> entry : batch.undoBlocks.entrySet())
+                stripe(entry.getKey()).undoBlocks.put(entry.getKey(), entry.getValue());
+        } finally {
+            unlockAll(true);
+        }
+        endBatch();
+    }
+
+    @Override
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        if (ownBatch() != null)
+            endBatch();
+    }
+
+    private void endBatch() {
+        batch = null;
+        vBatchOwner = null;
+        writeLock.unlock();
+    }
+
+    @Override
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+        final List<UTXO> foundOutputs = new ArrayList<UTXO>();
+        findOpenTransactionOutputs(addresses, new UTXOReceiver() {
+            @Override
+            public void receive(UTXO output) {
+                foundOutputs.add(output);
+            }
+        });
+        return foundOutputs;
+    }
+
+    @Override
+    public void findOpenTransactionOutputs(Collection<Address> addresses, UTXOReceiver receiver)
+            throws UTXOProviderException {
+        checkOpen();
+        // Like MemoryFullPrunedBlockStore this goes through all outputs, which is fine for tests and tools.
+        Set<String> wanted = new HashSet<String>();
+        for (Address address : addresses)
+            wanted.add(address.toString());
+        Batch batch = ownBatch();
+        List<UTXO> found = new ArrayList<UTXO>();
+        lockAll(false);
+        try {
+            for (Stripe stripe : stripes) {
+                for (Map.Entry<StoredTransactionOutPoint, UTXO> entry : stripe.outputs.entrySet()) {
+                    if (wanted.contains(entry.getValue().getAddress())
+                            && (batch == null || (!batch.removedOutputs.contains(entry.getKey())
+                                                  && !batch.addedOutputs.containsKey(entry.getKey()))))
+                        found.add(entry.getValue());
+                }
+            }
+        } finally {
+            unlockAll(false);
+        }
+        if (batch != null) {
+            for (UTXO output : batch.addedOutputs.values()) {
+                if (wanted.contains(output.getAddress()))
+                    found.add(output);
+            }
+        }
+        // Outside of the locks, so the receiver can't hold up the writer.
+        for (UTXO output : found)
+            receiver.receive(output);
+    }
+}
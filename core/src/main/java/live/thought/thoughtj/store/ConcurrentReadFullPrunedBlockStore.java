@@ -0,0 +1,20 @@
+package live.thought.thoughtj.store;
+
+import live.thought.thoughtj.core.Sha256Hash;
+import live.thought.thoughtj.core.UTXO;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link FullPrunedBlockStore} whose unspent outputs can be read from other threads whilst the chain writes to it,
+ * as the {@link live.thought.thoughtj.core.UTXOPrefetcher} does. Such reads only see committed state: changes of a
+ * database batch in progress stay invisible to them until {@link #commitDatabaseBatchWrite()}.
+ */
+public interface ConcurrentReadFullPrunedBlockStore extends FullPrunedBlockStore {
+    /**
+     * Gets the {@link UTXO} with the given hash and index as of the last committed database batch, or null if there
+     * is none. May be called from any thread at any time.
+     */
+    @Nullable
+    UTXO getCommittedTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException;
+}
@@ -18,6 +18,8 @@
 
 package live.thought.thoughtj.store;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Functions;
 import com.google.common.collect.Lists;
 
 import live.thought.thoughtj.core.*;
@@ -88,10 +90,16 @@ import java.util.*;
  * </table>
  * </p>
  *
+ * <p>Prepared statements are cached per connection and reused. Between {@link #beginDatabaseBatchWrite()} and
+ * {@link #commitDatabaseBatchWrite()} the output changes are kept in memory, where reads on the same connection see
+ * them, and are sent to the database as two JDBC batches (deletes, then inserts) when the batch write is committed.</p>
  */
-public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore {
+public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore, BatchUTXOProvider {
     private static final Logger log = LoggerFactory.getLogger(DatabaseFullPrunedBlockStore.class);
 
+    /** How many addresses {@link #findOpenTransactionOutputs(Collection, UTXOReceiver)} looks up with one query. */
+    public static final int ADDRESSES_PER_QUERY = 100;
+
     private static final String CHAIN_HEAD_SETTING                              = "chainhead";
     private static final String VERIFIED_CHAIN_HEAD_SETTING                     = "verifiedchainhead";
     private static final String VERSION_SETTING                                 = "version";
@@ -108,7 +116,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String UPDATE_SETTINGS_SQL                             = "UPDATE settings SET value = ? WHERE name = ?";
 
     private static final String SELECT_HEADERS_SQL                              = "SELECT chainwork, height, header, cuckoo, wasundoable FROM headers WHERE hash = ?";
-    private static final String INSERT_HEADERS_SQL                              = "INSERT INTO headers(hash, chainwork, height, header, cuckoo, wasundoable) VALUES(?, ?, ?, ?, ?)";
+    private static final String INSERT_HEADERS_SQL                              = "INSERT INTO headers(hash, chainwork, height, header, cuckoo, wasundoable) VALUES(?, ?, ?, ?, ?, ?)";
     private static final String UPDATE_HEADERS_SQL                              = "UPDATE headers SET wasundoable=? WHERE hash=?";
 
     private static final String SELECT_UNDOABLEBLOCKS_SQL                       = "SELECT txoutchanges, transactions FROM undoableblocks WHERE hash = ?";
@@ -128,6 +136,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_DUMP_OPENOUTPUTS_SQL                     = "SELECT value, scriptbytes FROM openoutputs";
 
     private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
+    private static final String SELECT_TRANSACTION_OUTPUTS_FOR_ADDRESSES_SQL    = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress IN ";
 
     // Select the balance of an address SQL.
     private static final String SELECT_BALANCE_SQL                              = "select sum(value) from openoutputs where toaddress = ?";
@@ -145,6 +154,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected NetworkParameters params;
     protected ThreadLocal<Connection> conn;
     protected List<Connection> allConnections;
+    private final ThreadLocal<ConnectionState> connectionState = new ThreadLocal<ConnectionState>();
     protected String connectionURL;
     protected int fullStoreDepth;
     protected String username;
@@ -411,6 +421,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return SELECT_DUMP_UNDOABLEBLOCKS_SQL;
     }
 
+    /**
+     * Get the SQL to select the transaction outputs for many addresses, up to the list of addresses which is appended
+     * in the form "(?, ?, ...)".
+     * @return The SQL prepared statement without the list of addresses.
+     */
+    protected String getTransactionOutputsForAddressesSelectSQL() {
+        return SELECT_TRANSACTION_OUTPUTS_FOR_ADDRESSES_SQL;
+    }
+
     /**
      * Get the SQL to select the openoutouts dump fields for sizing/statistics.
      * @return The SQL select statement.
@@ -452,6 +471,127 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    /** The prepared statements of one connection, and the output changes of the batch write in progress on it. */
+    private static class ConnectionState {
+        final Connection connection;
+        final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+        @Nullable PendingOutputs pending;
+
+        ConnectionState(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    /** Output changes of a batch write that were not sent to the database yet. */
+    private static class PendingOutputs {
+        // Outputs to insert, and outputs to delete from the database. An output that was deleted and then added back
+        // is in both; outputs added and then deleted again are in neither.
+        final Map<StoredTransactionOutPoint, UTXO> added = new LinkedHashMap<StoredTransactionOutPoint, UTXO>();
+        final Map<StoredTransactionOutPoint, UTXO> removed = new LinkedHashMap<StoredTransactionOutPoint, UTXO>();
+        // Outputs read from the database during the batch, so spending them doesn't need another query.
+        final Map<StoredTransactionOutPoint, UTXO> read = new HashMap<StoredTransactionOutPoint, UTXO>();
+        // Hashes of all transactions in the above, which may make the database's answer to a query wrong.
+        final Set<Sha256Hash> hashes = new HashSet<Sha256Hash>();
+
+        boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    private ConnectionState getConnectionState() {
+        Connection connection = conn.get();
+        ConnectionState state = connectionState.get();
+        if (state == null || state.connection != connection) {
+            // The connection was replaced, its statements are gone with it.
+            state = new ConnectionState(connection);
+            connectionState.set(state);
+        }
+        return state;
+    }
+
+    /**
+     * <p>Returns a prepared statement for the given SQL on the connection of the current thread, preparing it only the
+     * first time. The statement must not be closed by the caller.</p>
+     *
+     * <p>The caller must have called {@link #maybeConnect()} before.</p>
+     */
+    protected PreparedStatement prepareCached(String sql) throws SQLException {
+        ConnectionState state = getConnectionState();
+        PreparedStatement s = state.statements.get(sql);
+        if (s == null || s.isClosed()) {
+            s = state.connection.prepareStatement(sql);
+            state.statements.put(sql, s);
+        }
+        return s;
+    }
+
+    @Nullable
+    private PendingOutputs getPendingOutputs() {
+        ConnectionState state = connectionState.get();
+        return state == null || state.connection != conn.get() ? null : state.pending;
+    }
+
+    /** Sends the output changes of the batch write in progress to the database, without committing them. */
+    private void flushPendingOutputs() throws SQLException {
+        PendingOutputs pending = getPendingOutputs();
+        if (pending == null || pending.isEmpty())
+            return;
+        if (!pending.removed.isEmpty()) {
+            PreparedStatement s = prepareCached(getDeleteOpenoutputsSQL());
+            for (UTXO out : pending.removed.values()) {
+                s.setBytes(1, out.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int) out.getIndex());
+                s.addBatch();
+            }
+            s.executeBatch();
+        }
+        if (!pending.added.isEmpty()) {
+            PreparedStatement s = prepareCached(getInsertOpenoutputsSQL());
+            for (UTXO out : pending.added.values()) {
+                setInsertOpenoutputsParameters(s, out);
+                s.addBatch();
+            }
+            try {
+                s.executeBatch();
+            } catch (BatchUpdateException e) {
+                if (!getDuplicateKeyErrorCode().equals(e.getSQLState()))
+                    throw e;
+                // Outputs that are in the database already are ignored, like when inserting them one by one. Drivers
+                // differ in whether they stop at the first failing row, so just go through them all again.
+                s.clearBatch();
+                for (UTXO out : pending.added.values())
+                    insertOpenoutput(s, out);
+            }
+        }
+        pending.added.clear();
+        pending.removed.clear();
+        pending.read.clear();
+        pending.hashes.clear();
+    }
+
+    private void setInsertOpenoutputsParameters(PreparedStatement s, UTXO out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().value);
+        s.setBytes(5, out.getScript().getProgram());
+        s.setString(6, out.getAddress());
+        s.setInt(7, out.getScript().getScriptType().ordinal());
+        s.setBoolean(8, out.isCoinbase());
+    }
+
+    private void insertOpenoutput(PreparedStatement s, UTXO out) throws SQLException {
+        setInsertOpenoutputsParameters(s, out);
+        try {
+            s.executeUpdate();
+        } catch (SQLException e) {
+            if (!(e.getSQLState().equals(getDuplicateKeyErrorCode())))
+                throw e;
+        }
+    }
+
     @Override
     public synchronized void close() {
         for (Connection conn : allConnections) {
@@ -468,6 +608,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             }
         }
         allConnections.clear();
+        connectionState.remove();
     }
 
     /**
@@ -615,8 +756,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     protected void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
-            PreparedStatement s =
-                    conn.get().prepareStatement(getInsertHeadersSQL());
+            PreparedStatement s = prepareCached(getInsertHeadersSQL());
             byte[] hashBytes = new byte[32];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 0, hashBytes, 0, 32);
             s.setBytes(1, hashBytes);
@@ -634,20 +774,18 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             }
             s.setBoolean(6, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
             if  (!(e.getSQLState().equals(getDuplicateKeyErrorCode())) || !wasUndoable)
                 throw e;
 
-            PreparedStatement s = conn.get().prepareStatement(getUpdateHeadersSQL());
+            PreparedStatement s = prepareCached(getUpdateHeadersSQL());
             s.setBoolean(1, true);
             byte[] hashBytes = new byte[32];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 0, hashBytes, 0, 32);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
-            s.close();
         }
     }
 
@@ -692,8 +830,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
         try {
             try {
-                PreparedStatement s =
-                        conn.get().prepareStatement(getInsertUndoableBlocksSQL());
+                PreparedStatement s = prepareCached(getInsertUndoableBlocksSQL());
                 s.setBytes(1, hashBytes);
                 s.setInt(2, height);
                 if (transactions == null) {
@@ -704,7 +841,6 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     s.setBytes(4, transactions);
                 }
                 s.executeUpdate();
-                s.close();
                 try {
                     putUpdateStoredBlock(storedBlock, true);
                 } catch (SQLException e) {
@@ -715,8 +851,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     throw new BlockStoreException(e);
 
                 // There is probably an update-or-insert statement, but it wasn't obvious from the docs
-                PreparedStatement s =
-                        conn.get().prepareStatement(getUpdateUndoableBlocksSQL());
+                PreparedStatement s = prepareCached(getUpdateUndoableBlocksSQL());
                 s.setBytes(3, hashBytes);
                 if (transactions == null) {
                     s.setBytes(1, txOutChanges);
@@ -726,7 +861,6 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     s.setBytes(2, transactions);
                 }
                 s.executeUpdate();
-                s.close();
             }
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
@@ -740,20 +874,19 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectHeadersSQL());
+            PreparedStatement s = prepareCached(getSelectHeadersSQL());
             byte[] hashBytes = new byte[32];
             System.arraycopy(hash.getBytes(), 0, hashBytes, 0, 32);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
             // Parse it.
 
-            if (wasUndoableOnly && !results.getBoolean(4))
+            if (wasUndoableOnly && !results.getBoolean(5))
                 return null;
 
             BigInteger chainWork = new BigInteger(results.getBytes(1));
@@ -787,13 +920,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             // blocks.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResults(results);
         }
     }
 
@@ -810,15 +937,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectUndoableBlocksSQL());
+            PreparedStatement s = prepareCached(getSelectUndoableBlocksSQL());
 
             byte[] hashBytes = new byte[32];
             System.arraycopy(hash.getBytes(), 0, hashBytes, 0, 32);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -860,13 +986,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             // Corrupted database.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResults(results);
         }
     }
 
@@ -882,12 +1002,10 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getUpdateSettingsSLQ());
+            PreparedStatement s = prepareCached(getUpdateSettingsSLQ());
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -905,12 +1023,10 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getUpdateSettingsSLQ());
+            PreparedStatement s = prepareCached(getUpdateSettingsSLQ());
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -921,13 +1037,11 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteUndoableBlocksSQL());
+            PreparedStatement s = prepareCached(getDeleteUndoableBlocksSQL());
             s.setInt(1, height);
             if (log.isDebugEnabled())
                 log.debug("Deleting undoable undoable block with height <= " + height);
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -936,14 +1050,28 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputs pending = getPendingOutputs();
+        StoredTransactionOutPoint key = null;
+        if (pending != null) {
+            key = new StoredTransactionOutPoint(hash, index);
+            if (pending.hashes.contains(hash)) {
+                UTXO added = pending.added.get(key);
+                if (added != null)
+                    return added;
+                if (pending.removed.containsKey(key))
+                    return null;
+            }
+            UTXO read = pending.read.get(key);
+            if (read != null)
+                return read;
+        }
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectOpenoutputsSQL());
+            PreparedStatement s = prepareCached(getSelectOpenoutputsSQL());
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int) index);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -960,48 +1088,33 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     coinbase,
                     new Script(scriptBytes),
                     address);
+            if (pending != null)
+                pending.read.put(key, txout);
             return txout;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResults(results);
         }
     }
 
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputs pending = getPendingOutputs();
+        if (pending != null) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            // Adding an output twice is ignored, like the duplicate key error of the insert below.
+            if (!pending.added.containsKey(key)) {
+                pending.added.put(key, out);
+                pending.hashes.add(out.getHash());
+            }
+            return;
+        }
         try {
-            s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScript().getProgram());
-            s.setString(6, out.getAddress());
-            s.setInt(7, out.getScript().getScriptType().ordinal());
-            s.setBoolean(8, out.isCoinbase());
-            s.executeUpdate();
-            s.close();
+            insertOpenoutput(prepareCached(getInsertOpenoutputsSQL()), out);
         } catch (SQLException e) {
-            if (!(e.getSQLState().equals(getDuplicateKeyErrorCode())))
-                throw new BlockStoreException(e);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException(e);
-                }
-            }
+            throw new BlockStoreException(e);
         }
     }
 
@@ -1011,14 +1124,23 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         // TODO: This should only need one query (maybe a stored procedure)
         if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
             throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+        PendingOutputs pending = getPendingOutputs();
+        if (pending != null) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            pending.read.remove(key);
+            // An output that was added within this batch never reaches the database.
+            if (pending.added.remove(key) == null) {
+                pending.removed.put(key, out);
+                pending.hashes.add(out.getHash());
+            }
+            return;
+        }
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteOpenoutputsSQL());
+            PreparedStatement s = prepareCached(getDeleteOpenoutputsSQL());
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
@@ -1034,6 +1156,9 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        ConnectionState state = getConnectionState();
+        if (state.pending == null)
+            state.pending = new PendingOutputs();
     }
 
     @Override
@@ -1042,6 +1167,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
         try {
+            flushPendingOutputs();
+            getConnectionState().pending = null;
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
@@ -1054,6 +1181,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
+        getConnectionState().pending = null;
         try {
             if (!conn.get().getAutoCommit()) {
                 conn.get().rollback();
@@ -1069,11 +1197,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get().prepareStatement(getSelectOpenoutputsCountSQL());
+            PendingOutputs pending = getPendingOutputs();
+            if (pending != null && pending.hashes.contains(hash))
+                flushPendingOutputs(); // Rare, so let the database count.
+            PreparedStatement s = prepareCached(getSelectOpenoutputsCountSQL());
             s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
@@ -1082,12 +1213,16 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
+            closeResults(results);
+        }
+    }
+
+    private static void closeResults(@Nullable ResultSet results) throws BlockStoreException {
+        if (results != null) {
+            try {
+                results.close();
+            } catch (SQLException e) {
+                throw new BlockStoreException("Failed to close ResultSet");
             }
         }
     }
@@ -1156,6 +1291,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         PreparedStatement s = null;
         try {
+            flushPendingOutputs();
             s = conn.get().prepareStatement(getBalanceSelectSQL());
             s.setString(1, address.toString());
             ResultSet rs = s.executeQuery();
@@ -1179,47 +1315,110 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
-        PreparedStatement s = null;
-        List<UTXO> outputs = new ArrayList<UTXO>();
+        final List<UTXO> outputs = new ArrayList<UTXO>();
+        findOpenTransactionOutputs(addresses, new UTXOReceiver() {
+            @Override
+            public void receive(UTXO output) {
+                outputs.add(output);
+            }
+        });
+        return outputs;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Addresses are looked up {@link #ADDRESSES_PER_QUERY} at a time, all within one repeatable read transaction
+     * unless the calling thread is in the middle of a batch write already.</p>
+     */
+    @Override
+    public void findOpenTransactionOutputs(Collection<Address> addresses, UTXOReceiver receiver)
+            throws UTXOProviderException {
+        List<String> wanted = new ArrayList<String>(new LinkedHashSet<String>(Lists.transform(
+                new ArrayList<Address>(addresses), Functions.toStringFunction())));
+        if (wanted.isEmpty())
+            return;
+        Connection connection = null;
+        boolean ownTransaction = false;
+        int isolation = Connection.TRANSACTION_NONE;
+        PreparedStatement fullChunk = null;
         try {
             maybeConnect();
-            s = conn.get().prepareStatement(getTrasactionOutputSelectSQL());
-            for (Address address : addresses) {
-                s.setString(1, address.toString());
-                ResultSet rs = s.executeQuery();
-                while (rs.next()) {
-                    Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
-                    Coin amount = Coin.valueOf(rs.getLong(2));
-                    byte[] scriptBytes = rs.getBytes(3);
-                    int height = rs.getInt(4);
-                    int index = rs.getInt(5);
-                    boolean coinbase = rs.getBoolean(6);
-                    String toAddress = rs.getString(7);
-                    UTXO output = new UTXO(hash,
-                            index,
-                            amount,
-                            height,
-                            coinbase,
-                            new Script(scriptBytes),
-                            toAddress);
-                    outputs.add(output);
+            connection = conn.get();
+            // Outputs changed by a batch write in progress on this thread have to be visible to the queries.
+            flushPendingOutputs();
+            if (connection.getAutoCommit()) {
+                ownTransaction = true;
+                isolation = connection.getTransactionIsolation();
+                if (connection.getMetaData().supportsTransactionIsolationLevel(Connection.TRANSACTION_REPEATABLE_READ))
+                    connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+                connection.setAutoCommit(false);
+            }
+            for (int from = 0; from < wanted.size(); from += ADDRESSES_PER_QUERY) {
+                List<String> chunk = wanted.subList(from, Math.min(from + ADDRESSES_PER_QUERY, wanted.size()));
+                PreparedStatement s;
+                if (chunk.size() == ADDRESSES_PER_QUERY) {
+                    if (fullChunk == null)
+                        fullChunk = prepareTransactionOutputsForAddresses(connection, ADDRESSES_PER_QUERY);
+                    s = fullChunk;
+                } else {
+                    s = prepareTransactionOutputsForAddresses(connection, chunk.size());
+                }
+                try {
+                    for (int i = 0; i < chunk.size(); i++)
+                        s.setString(i + 1, chunk.get(i));
+                    ResultSet rs = s.executeQuery();
+                    while (rs.next()) {
+                        Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
+                        Coin amount = Coin.valueOf(rs.getLong(2));
+                        byte[] scriptBytes = rs.getBytes(3);
+                        int height = rs.getInt(4);
+                        int index = rs.getInt(5);
+                        boolean coinbase = rs.getBoolean(6);
+                        String toAddress = rs.getString(7);
+                        receiver.receive(new UTXO(hash,
+                                index,
+                                amount,
+                                height,
+                                coinbase,
+                                new Script(scriptBytes),
+                                toAddress));
+                    }
+                    rs.close();
+                } finally {
+                    if (s != fullChunk)
+                        s.close();
                 }
             }
-            return outputs;
         } catch (SQLException ex) {
             throw new UTXOProviderException(ex);
         } catch (BlockStoreException bse) {
             throw new UTXOProviderException(bse);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new UTXOProviderException("Could not close statement", e);
+            try {
+                if (fullChunk != null)
+                    fullChunk.close();
+                if (ownTransaction) {
+                    // Nothing was written, so just end the transaction.
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                    connection.setTransactionIsolation(isolation);
                 }
+            } catch (SQLException e) {
+                throw new UTXOProviderException("Could not close statement", e);
+            }
         }
     }
 
+    @VisibleForTesting
+    PreparedStatement prepareTransactionOutputsForAddresses(Connection connection, int count)
+            throws SQLException {
+        StringBuilder sql = new StringBuilder(getTransactionOutputsForAddressesSelectSQL()).append('(');
+        for (int i = 0; i < count; i++)
+            sql.append(i == 0 ? "?" : ", ?");
+        return connection.prepareStatement(sql.append(')').toString());
+    }
+
     /**
      * Dumps information about the size of actual data in the database to standard output
      * The only truly useless data counted is printed in the form "N in id indexes"
@@ -45,15 +45,16 @@ public class H2FullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
             + ")";
 
     private static final String CREATE_HEADERS_TABLE = "CREATE TABLE headers ( "
-            + "hash BINARY(28) NOT NULL CONSTRAINT headers_pk PRIMARY KEY,"
+            + "hash BINARY(32) NOT NULL CONSTRAINT headers_pk PRIMARY KEY,"
             + "chainwork BLOB NOT NULL,"
             + "height INT NOT NULL,"
             + "header BLOB NOT NULL,"
+            + "cuckoo BLOB,"
             + "wasundoable BOOL NOT NULL"
             + ")";
 
     private static final String CREATE_UNDOABLE_TABLE = "CREATE TABLE undoableblocks ( "
-            + "hash BINARY(28) NOT NULL CONSTRAINT undoableblocks_pk PRIMARY KEY,"
+            + "hash BINARY(32) NOT NULL CONSTRAINT undoableblocks_pk PRIMARY KEY,"
             + "height INT NOT NULL,"
             + "txoutchanges BLOB,"
             + "transactions BLOB"
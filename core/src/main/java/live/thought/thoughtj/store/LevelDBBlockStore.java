@@ -18,25 +18,49 @@ import org.fusesource.leveldbjni.*;
 import org.iq80.leveldb.*;
 
 import live.thought.thoughtj.core.*;
+import live.thought.thoughtj.utils.Threading;
 
 import javax.annotation.*;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.*;
 import java.nio.*;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * An SPV block store that writes every header it sees to a <a href="https://github.com/fusesource/leveldbjni">LevelDB</a>.
  * This allows for fast lookup of block headers by block hash at the expense of more costly inserts and higher disk
  * usage than the {@link SPVBlockStore}. If all you want is a regular wallet you don't need this class: it exists for
  * specialised applications where you need to quickly verify a standalone SPV proof.
+ *
+ * <p>Reads only take a shared lock, so lookups from many threads don't wait for each other, and recently used headers
+ * are kept decoded in a bounded cache. Headers put within a {@link #beginBatch()}/{@link #commitBatch()} pair are
+ * written with a single {@link WriteBatch}.</p>
  */
-public class LevelDBBlockStore implements BlockStore {
+public class LevelDBBlockStore implements BatchedBlockStore {
     private static final byte[] CHAIN_HEAD_KEY = "chainhead".getBytes();
+    /** The default number of decoded headers kept in memory. */
+    public static final int DEFAULT_CACHE_SIZE = 2050;  // Slightly more than the difficulty transition period.
 
     private final Context context;
-    private DB db;
-    private final ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
     private final File path;
 
+    // Guards the database handle and the batch. The database itself is safe to read from many threads.
+    private final ReentrantReadWriteLock lock = Threading.readWriteLock("leveldbblockstore");
+    @GuardedBy("lock") private DB db;
+    @GuardedBy("lock") private final ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+    @GuardedBy("lock") private int batchDepth;
+    @GuardedBy("lock") private WriteBatch batch;
+    @GuardedBy("lock") private final Map<Sha256Hash, StoredBlock> batchBlocks = new HashMap<Sha256Hash, StoredBlock>();
+    @GuardedBy("lock") private Sha256Hash batchChainHead;
+
+    // Only held for single map operations, never whilst reading from or writing to the database.
+    private final ReentrantLock cacheLock = Threading.lock("leveldbblockstorecache");
+    @GuardedBy("cacheLock") private final LinkedHashMap<Sha256Hash, StoredBlock> cache;
+
     /** Creates a LevelDB SPV block store using the JNI/C++ version of LevelDB. */
     public LevelDBBlockStore(Context context, File directory) throws BlockStoreException {
         this(context, directory, JniDBFactory.factory);
@@ -44,8 +68,22 @@ public class LevelDBBlockStore implements BlockStore {
 
     /** Creates a LevelDB SPV block store using the given factory, which is useful if you want a pure Java version. */
     public LevelDBBlockStore(Context context, File directory, DBFactory dbFactory) throws BlockStoreException {
+        this(context, directory, dbFactory, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a LevelDB SPV block store using the given factory, keeping up to the given number of decoded headers in
+     * memory.
+     */
+    public LevelDBBlockStore(Context context, File directory, DBFactory dbFactory, final int cacheSize) throws BlockStoreException {
         this.context = context;
         this.path = directory;
+        this.cache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
+                return size() > cacheSize;
+            }
+        };
         Options options = new Options();
         options.createIfMissing();
 
@@ -61,12 +99,18 @@ public class LevelDBBlockStore implements BlockStore {
         }
     }
 
-    private synchronized void tryOpen(File directory, DBFactory dbFactory, Options options) throws IOException, BlockStoreException {
-        db = dbFactory.open(directory, options);
-        initStoreIfNeeded();
+    private void tryOpen(File directory, DBFactory dbFactory, Options options) throws IOException, BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            db = dbFactory.open(directory, options);
+            initStoreIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
-    private synchronized void initStoreIfNeeded() throws BlockStoreException {
+    @GuardedBy("lock")
+    private void initStoreIfNeeded() throws BlockStoreException {
         if (db.get(CHAIN_HEAD_KEY) != null)
             return;   // Already initialised.
         Block genesis = context.getParams().getGenesisBlock().cloneAsHeader();
@@ -76,42 +120,162 @@ public class LevelDBBlockStore implements BlockStore {
     }
 
     @Override
-    public synchronized void put(StoredBlock block) throws BlockStoreException {
-        buffer.clear();
-        block.serializeCompact(buffer);
-        db.put(block.getHeader().getHash().getBytes(), buffer.array());
+    public void put(StoredBlock block) throws BlockStoreException {
+        Sha256Hash hash = block.getHeader().getHash();
+        lock.writeLock().lock();
+        try {
+            buffer.clear();
+            block.serializeCompact(buffer);
+            // The buffer is reused, but both LevelDB and the batch copy what they are given.
+            if (batch != null) {
+                batch.put(hash.getBytes(), buffer.array());
+                batchBlocks.put(hash, block);
+            } else {
+                db.put(hash.getBytes(), buffer.array());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        cachePut(hash, block);
     }
 
     @Override @Nullable
-    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
-        byte[] bits = db.get(hash.getBytes());
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        cacheLock.lock();
+        try {
+            StoredBlock cached = cache.get(hash);
+            if (cached != null)
+                return cached;
+        } finally {
+            cacheLock.unlock();
+        }
+        byte[] bits;
+        lock.readLock().lock();
+        try {
+            StoredBlock batched = batchBlocks.get(hash);
+            if (batched != null)
+                return batched;
+            bits = db.get(hash.getBytes());
+        } finally {
+            lock.readLock().unlock();
+        }
         if (bits == null)
             return null;
-        return StoredBlock.deserializeCompact(context.getParams(), ByteBuffer.wrap(bits));
+        StoredBlock block = StoredBlock.deserializeCompact(context.getParams(), ByteBuffer.wrap(bits));
+        cachePut(hash, block);
+        return block;
+    }
+
+    private void cachePut(Sha256Hash hash, StoredBlock block) {
+        cacheLock.lock();
+        try {
+            cache.put(hash, block);
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        Sha256Hash head;
+        lock.readLock().lock();
+        try {
+            head = batchChainHead != null ? batchChainHead : Sha256Hash.wrap(db.get(CHAIN_HEAD_KEY));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return get(head);
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Sha256Hash hash = chainHead.getHeader().getHash();
+        lock.writeLock().lock();
+        try {
+            if (batch != null) {
+                batch.put(CHAIN_HEAD_KEY, hash.getBytes());
+                batchChainHead = hash;
+            } else {
+                db.put(CHAIN_HEAD_KEY, hash.getBytes());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    public synchronized StoredBlock getChainHead() throws BlockStoreException {
-        return get(Sha256Hash.wrap(db.get(CHAIN_HEAD_KEY)));
+    public void beginBatch() {
+        lock.writeLock().lock();
+        try {
+            if (batchDepth++ == 0)
+                batch = db.createWriteBatch();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
-    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        db.put(CHAIN_HEAD_KEY, chainHead.getHeader().getHash().getBytes());
+    public void commitBatch() throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            if (batchDepth == 0 || --batchDepth > 0)
+                return;
+            try {
+                db.write(batch);
+            } finally {
+                closeBatch();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void closeBatch() throws BlockStoreException {
+        try {
+            batch.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            batch = null;
+            batchDepth = 0;
+            batchBlocks.clear();
+            batchChainHead = null;
+        }
     }
 
     @Override
-    public synchronized void close() throws BlockStoreException {
+    public void close() throws BlockStoreException {
+        lock.writeLock().lock();
         try {
+            if (batch != null) {
+                // Whatever the chain has accepted must survive, even if the caller never committed.
+                try {
+                    db.write(batch);
+                } finally {
+                    closeBatch();
+                }
+            }
             db.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
     /** Erases the contents of the database (but NOT the underlying files themselves) and then reinitialises with the genesis block. */
-    public synchronized void reset() throws BlockStoreException {
+    public void reset() throws BlockStoreException {
+        lock.writeLock().lock();
         try {
+            if (batch != null)
+                closeBatch();
+            cacheLock.lock();
+            try {
+                cache.clear();
+            } finally {
+                cacheLock.unlock();
+            }
             WriteBatch batch = db.createWriteBatch();
             try {
                 DBIterator it = db.iterator();
@@ -129,11 +293,18 @@ public class LevelDBBlockStore implements BlockStore {
             initStoreIfNeeded();
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
-    public synchronized void destroy() throws IOException {
-        JniDBFactory.factory.destroy(path, new Options());
+    public void destroy() throws IOException {
+        lock.writeLock().lock();
+        try {
+            JniDBFactory.factory.destroy(path, new Options());
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
@@ -16,18 +16,24 @@
 
 package live.thought.thoughtj.store;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.io.*;
 import java.nio.ByteBuffer;
 
+import javax.annotation.Nullable;
+
 import org.iq80.leveldb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,9 +42,11 @@ import static org.fusesource.leveldbjni.JniDBFactory.*;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import live.thought.thoughtj.core.Address;
 import live.thought.thoughtj.core.AddressFormatException;
+import live.thought.thoughtj.core.BatchUTXOProvider;
 import live.thought.thoughtj.core.NetworkParameters;
 import live.thought.thoughtj.core.ScriptException;
 import live.thought.thoughtj.core.Sha256Hash;
@@ -50,6 +58,7 @@ import live.thought.thoughtj.core.UTXO;
 import live.thought.thoughtj.core.UTXOProviderException;
 import live.thought.thoughtj.core.VerificationException;
 import live.thought.thoughtj.script.Script;
+import live.thought.thoughtj.utils.Threading;
 
 /**
  * <p>
@@ -61,7 +70,7 @@ import live.thought.thoughtj.script.Script;
  * </p>
  */
 
-public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
+public class LevelDBFullPrunedBlockStore implements ConcurrentReadFullPrunedBlockStore, BatchUTXOProvider {
     private static final Logger log = LoggerFactory.getLogger(LevelDBFullPrunedBlockStore.class);
 
     NetworkParameters params;
@@ -89,12 +98,15 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                    // block!
     // ONLY used for performance benchmarking.
 
-    // LRU Cache for getTransactionOutput
-    protected Map<ByteBuffer, UTXO> utxoCache;
-    // Additional cache to cope with case when transactions are rolled back
-    // e.g. when block fails to verify.
-    protected Map<ByteBuffer, UTXO> utxoUncommittedCache;
-    protected Set<ByteBuffer> utxoUncommittedDeletedCache;
+    // Write-back cache for the unspent outputs. Changes are only written to
+    // leveldb once they take up more than utxoCacheBudget bytes, at
+    // checkpoints and on close.
+    protected UTXOCache utxoCache;
+    protected long utxoCacheBudget;
+    // The chain heads the unspent outputs on disk belong to. Only written
+    // together with them, so the three always match after a crash.
+    protected Sha256Hash committedChainHeadHash;
+    protected Sha256Hash committedVerifiedChainHeadHash;
 
     // Database folder
     protected String filename;
@@ -121,22 +133,10 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     static final long LEVELDB_READ_CACHE_DEFAULT = 100 * 1048576; // 100 meg
     static final int LEVELDB_WRITE_CACHE_DEFAULT = 10 * 1048576; // 10 meg
     static final int OPENOUT_CACHE_DEFAULT = 100000;
+    static final long UTXO_CACHE_BUDGET_DEFAULT = 100 * 1048576; // 100 meg
 
-    // LRUCache
-    public class LRUCache extends LinkedHashMap<ByteBuffer, UTXO> {
-        private static final long serialVersionUID = 1L;
-        private int capacity;
-
-        public LRUCache(int capacity, float loadFactor) {
-            super(capacity, loadFactor, true);
-            this.capacity = capacity;
-        }
-
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, UTXO> eldest) {
-            return size() > this.capacity;
-        }
-    }
+    /** Address queries are spread over more threads for each this many addresses. */
+    public static final int ADDRESSES_PER_QUERY_THREAD = 256;
 
     // Simple bloomfilter. We take advantage of fact that a Transaction Hash
     // can be split into 3 30bit numbers that are all random and uncorrelated
@@ -256,6 +256,17 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount, long leveldbReadCache,
             int leveldbWriteCache, int openOutCache, boolean instrument, int exitBlock) {
+        this(params, filename, blockCount, leveldbReadCache, leveldbWriteCache, openOutCache, UTXO_CACHE_BUDGET_DEFAULT,
+                instrument, exitBlock);
+    }
+
+    /**
+     * @param openOutCache how many unchanged unspent outputs to keep in memory
+     * @param utxoCacheBudget roughly how many bytes of memory changed unspent outputs may take up before they are
+     *                        written to leveldb. Zero writes them after every block.
+     */
+    public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount, long leveldbReadCache,
+            int leveldbWriteCache, int openOutCache, long utxoCacheBudget, boolean instrument, int exitBlock) {
         this.params = params;
         fullStoreDepth = blockCount;
         this.instrument = instrument;
@@ -268,6 +279,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         this.leveldbReadCache = leveldbReadCache;
         this.leveldbWriteCache = leveldbWriteCache;
         this.openOutCache = openOutCache;
+        this.utxoCacheBudget = utxoCacheBudget;
         bloom = new BloomFilter();
         totalStopwatch = Stopwatch.createStarted();
         openDB();
@@ -291,7 +303,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             throw new RuntimeException("Can not open DB", e);
         }
 
-        utxoCache = new LRUCache(openOutCache, 0.75f);
+        utxoCache = new UTXOCache(openOutCache);
         try {
             if (batchGet(getKey(KeyType.CREATED)) == null) {
                 createNewStore(params);
@@ -307,6 +319,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         Sha256Hash hash = Sha256Hash.wrap(batchGet(getKey(KeyType.CHAIN_HEAD_SETTING)));
         this.chainHeadBlock = get(hash);
         this.chainHeadHash = hash;
+        this.committedChainHeadHash = hash;
         if (this.chainHeadBlock == null) {
             throw new BlockStoreException("corrupt database block store - head block not found");
         }
@@ -314,9 +327,21 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         hash = Sha256Hash.wrap(batchGet(getKey(KeyType.VERIFIED_CHAIN_HEAD_SETTING)));
         this.verifiedChainHeadBlock = get(hash);
         this.verifiedChainHeadHash = hash;
+        this.committedVerifiedChainHeadHash = hash;
         if (this.verifiedChainHeadBlock == null) {
             throw new BlockStoreException("corrupt databse block store - verified head block not found");
         }
+
+        // Stores written by older versions saved the chain head with every
+        // block, so after a crash it may be ahead of the unspent outputs.
+        // Go back to where they are, the block chain verifies the blocks
+        // since again.
+        if (!chainHeadHash.equals(verifiedChainHeadHash)
+                && chainHeadBlock.getHeight() > verifiedChainHeadBlock.getHeight()) {
+            log.warn("Chain head at height {} is ahead of the unspent outputs at height {}, going back",
+                    chainHeadBlock.getHeight(), verifiedChainHeadBlock.getHeight());
+            setChainHead(verifiedChainHeadBlock);
+        }
     }
 
     private void createNewStore(NetworkParameters params) throws BlockStoreException {
@@ -338,6 +363,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             setVerifiedChainHead(storedGenesisHeader);
             batchPut(getKey(KeyType.CREATED), bytes("done"));
             commitDatabaseBatchWrite();
+            flush();
         } catch (VerificationException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
@@ -373,7 +399,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
         double dbproportion = (dbtime + 0.0) / (wallTimeNanos + 0.0);
         double hitrate = (hit + 0.0) / (hit + miss + 0.0);
-        log.info("Cache size:" + utxoCache.size() + " hit:" + hit + " miss:" + miss + " rate:"
+        log.info("Cache size:" + utxoCache.getCleanCount() + " dirty:" + utxoCache.getDirtyCount() + " ("
+                + utxoCache.getDirtyBytes() / 1024 + "KB) hit:" + hit + " miss:" + miss + " rate:"
                 + String.format("%.2f", hitrate));
         bloom.printStat();
         log.info("hasTxOut call:" + hasCall + " True:" + hasTrue + " False:" + hasFalse);
@@ -400,13 +427,20 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         Sha256Hash hash = chainHead.getHeader().getHash();
         this.chainHeadHash = hash;
         this.chainHeadBlock = chainHead;
-        batchPut(getKey(KeyType.CHAIN_HEAD_SETTING), hash.getBytes());
+        // Within a block's batch it's written with the unspent outputs in
+        // flush(), like the verified chain head. Otherwise nothing else
+        // changes with it, so it can be written straight away.
+        if (autoCommit) {
+            committedChainHeadHash = hash;
+            batchPut(getKey(KeyType.CHAIN_HEAD_SETTING), hash.getBytes());
+        }
         if (instrument)
             endMethod("setChainHead");
     }
 
     @Override
     public void close() throws BlockStoreException {
+        flush();
         try {
             db.close();
         } catch (IOException e) {
@@ -421,61 +455,146 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
-        // Run this on a snapshot of database so internally consistent result
-        // This is critical or if one address paid another could get incorrect
-        // results
-
-        List<UTXO> results = new LinkedList<UTXO>();
-        for (Address a : addresses) {
-            ByteBuffer bb = ByteBuffer.allocate(21);
-            bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-            bb.put(a.getHash160());
-
-            ReadOptions ro = new ReadOptions();
-            Snapshot sn = db.getSnapshot();
-            ro.snapshot(sn);
+        final List<UTXO> results = new ArrayList<UTXO>();
+        findOpenTransactionOutputs(addresses, new UTXOReceiver() {
+            @Override
+            public void receive(UTXO output) {
+                results.add(output);
+            }
+        });
+        return results;
+    }
 
-            // Scanning over iterator very fast
+    /**
+     * {@inheritDoc}
+     *
+     * <p>All addresses are read from one leveldb snapshot, combined with the changes the cache hasn't written yet as
+     * of that same moment. This is critical or if one address paid another could get incorrect results. The address
+     * index is scanned in key order, split into ranges that are read in parallel once there are more than
+     * {@link #ADDRESSES_PER_QUERY_THREAD} addresses.</p>
+     */
+    @Override
+    public void findOpenTransactionOutputs(Collection<Address> addresses, final UTXOReceiver receiver)
+            throws UTXOProviderException {
+        // Sorted and without duplicates, so that every thread scans one range of the index front to back.
+        TreeMap<ByteBuffer, Address> sorted = new TreeMap<ByteBuffer, Address>();
+        for (Address a : addresses)
+            sorted.put(ByteBuffer.wrap(a.getHash160()), a);
+        if (sorted.isEmpty())
+            return;
+        final List<Address> sortedAddresses = new ArrayList<Address>(sorted.values());
 
-            DBIterator iterator = db.iterator(ro);
-            for (iterator.seek(bb.array()); iterator.hasNext(); iterator.next()) {
-                ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
-                bbKey.get(); // remove the address_hashindex byte.
-                byte[] addressKey = new byte[20];
-                bbKey.get(addressKey);
-                if (!Arrays.equals(addressKey, a.getHash160())) {
-                    break;
-                }
-                byte[] hashBytes = new byte[32];
-                bbKey.get(hashBytes);
-                int index = bbKey.getInt();
-                Sha256Hash hash = Sha256Hash.wrap(hashBytes);
-                UTXO txout;
+        final Snapshot[] snapshot = new Snapshot[1];
+        final Map<UTXOCache.Key, UTXOCache.Entry> unwritten = utxoCache.copyDirty(new Runnable() {
+            @Override
+            public void run() {
+                snapshot[0] = db.getSnapshot();
+            }
+        });
+        final ReadOptions ro = new ReadOptions();
+        ro.snapshot(snapshot[0]);
+        // Receivers don't have to be thread safe.
+        final UTXOReceiver serialized = new UTXOReceiver() {
+            @Override
+            public synchronized void receive(UTXO output) {
+                receiver.receive(output);
+            }
+        };
+        try {
+            int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+                    (sortedAddresses.size() + ADDRESSES_PER_QUERY_THREAD - 1) / ADDRESSES_PER_QUERY_THREAD);
+            int perThread = (sortedAddresses.size() + threads - 1) / threads;
+            List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>();
+            for (int from = perThread; from < sortedAddresses.size(); from += perThread) {
+                final List<Address> range = sortedAddresses.subList(from, Math.min(from + perThread, sortedAddresses.size()));
+                futures.add(Threading.THREAD_POOL.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        scanAddressIndex(range, ro, unwritten, serialized);
+                        return null;
+                    }
+                }));
+            }
+            // The calling thread takes the first range itself.
+            scanAddressIndex(sortedAddresses.subList(0, Math.min(perThread, sortedAddresses.size())), ro, unwritten,
+                    serialized);
+            for (ListenableFuture<Void> future : futures) {
                 try {
-                    // TODO this should be on the SNAPSHOT too......
-                    // this is really a BUG.
-                    txout = getTransactionOutput(hash, index);
-                } catch (BlockStoreException e) {
-                    throw new UTXOProviderException("block store execption", e);
+                    future.get();
+                } catch (InterruptedException e) {
+                    throw new UTXOProviderException(e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof UTXOProviderException)
+                        throw (UTXOProviderException) e.getCause();
+                    throw new UTXOProviderException(e.getCause());
                 }
-                if (txout != null) {
-                    Script sc = txout.getScript();
-                    Address address = sc.getToAddress(params, true);
-                    UTXO output = new UTXO(txout.getHash(), txout.getIndex(), txout.getValue(), txout.getHeight(),
-                            txout.isCoinbase(), txout.getScript(), address.toString());
-                    results.add(output);
+            }
+
+            // Outputs still waiting in the cache are not in the address index yet.
+            Map<String, Address> wanted = new HashMap<String, Address>();
+            for (Address a : sortedAddresses)
+                wanted.put(a.toString(), a);
+            for (Map.Entry<UTXOCache.Key, UTXOCache.Entry> entry : unwritten.entrySet()) {
+                UTXO txout = entry.getValue().utxo;
+                if (!entry.getValue().spent && wanted.containsKey(txout.getAddress()))
+                    serialized.receive(txout);
+            }
+        } finally {
+            try {
+                snapshot[0].close();
+            } catch (IOException e) {
+                log.error("Error closing snapshot", e);
+            }
+        }
+    }
+
+    // Scans the address index for the given addresses, sorted by hash160, and hands their outputs to the receiver.
+    // Outputs the cache knows more recent data about are left to the caller.
+    private void scanAddressIndex(List<Address> addresses, ReadOptions ro, Map<UTXOCache.Key, UTXOCache.Entry> unwritten,
+            UTXOReceiver receiver) throws UTXOProviderException {
+        DBIterator iterator = db.iterator(ro);
+        try {
+            for (Address a : addresses) {
+                byte[] hash160 = a.getHash160();
+                String addressString = a.toString();
+                ByteBuffer bb = ByteBuffer.allocate(21);
+                bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
+                bb.put(hash160);
+                // Scanning over iterator very fast
+                for (iterator.seek(bb.array()); iterator.hasNext(); iterator.next()) {
+                    ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
+                    if (bbKey.remaining() != 57)
+                        break;
+                    bbKey.get(); // remove the address_hashindex byte.
+                    byte[] addressKey = new byte[20];
+                    bbKey.get(addressKey);
+                    if (!Arrays.equals(addressKey, hash160))
+                        break;
+                    byte[] hashBytes = new byte[32];
+                    bbKey.get(hashBytes);
+                    int index = bbKey.getInt();
+                    Sha256Hash hash = Sha256Hash.wrap(hashBytes);
+                    if (unwritten.containsKey(new UTXOCache.Key(hash, index)))
+                        continue;
+                    byte[] inbytes = db.get(getTxKey(KeyType.OPENOUT_ALL, hash, index), ro);
+                    if (inbytes == null)
+                        continue;
+                    UTXO txout = new UTXO(new ByteArrayInputStream(inbytes));
+                    receiver.receive(new UTXO(txout.getHash(), txout.getIndex(), txout.getValue(), txout.getHeight(),
+                            txout.isCoinbase(), txout.getScript(), addressString));
                 }
             }
+        } catch (IOException e) {
+            throw new UTXOProviderException("corrupt unspent output", e);
+        } catch (DBException e) {
+            throw new UTXOProviderException("block store exception", e);
+        } finally {
             try {
                 iterator.close();
-                ro = null;
-                sn.close();
-                sn = null;
             } catch (IOException e) {
-                log.error("Error closing snapshot/iterator?", e);
+                log.error("Error closing iterator", e);
             }
         }
-        return results;
     }
 
     @Override
@@ -707,37 +826,17 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             beginMethod("getTransactionOutput");
 
         try {
-            UTXO result = null;
-            byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash, (int) index);
-            // Use cache
-            if (autoCommit) {
-                // Simple case of auto commit on so cache is consistent.
-                result = utxoCache.get(ByteBuffer.wrap(key));
-            } else {
-                // Check if we have an uncommitted delete.
-                if (utxoUncommittedDeletedCache.contains(ByteBuffer.wrap(key))) {
-                    // has been deleted so return null;
-                    hit++;
-                    if (instrument)
-                        endMethod("getTransactionOutput");
-                    return result;
-                }
-                // Check if we have an uncommitted entry
-                result = utxoUncommittedCache.get(ByteBuffer.wrap(key));
-                if (result == null)
-                    result = utxoCache.get(ByteBuffer.wrap(key));
-                // And lastly above check if we have a committed cached entry
-
-            }
-            if (result != null) {
+            UTXOCache.Key cacheKey = new UTXOCache.Key(hash, index);
+            UTXOCache.Entry cached = utxoCache.get(cacheKey);
+            if (cached != null) {
                 hit++;
                 if (instrument)
                     endMethod("getTransactionOutput");
-                return result;
+                return cached.spent ? null : cached.utxo;
             }
             miss++;
             // If we get here have to hit the database.
-            byte[] inbytes = batchGet(key);
+            byte[] inbytes = batchGet(getTxKey(KeyType.OPENOUT_ALL, hash, (int) index));
             if (inbytes == null) {
                 if (instrument)
                     endMethod("getTransactionOutput");
@@ -745,6 +844,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             }
             ByteArrayInputStream bis = new ByteArrayInputStream(inbytes);
             UTXO txout = new UTXO(bis);
+            utxoCache.putClean(cacheKey, txout);
 
             if (instrument)
                 endMethod("getTransactionOutput");
@@ -761,6 +861,43 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         throw new BlockStoreException("problem");
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Committed changes the cache hasn't written yet are taken from the cache, anything else is read from a leveldb
+     * snapshot taken at the same moment. Neither the cache nor the statistics are updated, as those belong to the
+     * writing thread.</p>
+     */
+    @Override
+    @Nullable
+    public UTXO getCommittedTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        final Snapshot[] snapshot = new Snapshot[1];
+        UTXOCache.Entry cached = utxoCache.getCommitted(new UTXOCache.Key(hash, index), new Runnable() {
+            @Override
+            public void run() {
+                snapshot[0] = db.getSnapshot();
+            }
+        });
+        if (cached != null)
+            return cached.spent ? null : cached.utxo;
+        try {
+            ReadOptions ro = new ReadOptions();
+            ro.snapshot(snapshot[0]);
+            byte[] inbytes = db.get(getTxKey(KeyType.OPENOUT_ALL, hash, (int) index), ro);
+            return inbytes == null ? null : new UTXO(new ByteArrayInputStream(inbytes));
+        } catch (DBException e) {
+            throw new BlockStoreException("Could not read unspent output", e);
+        } catch (IOException e) {
+            throw new BlockStoreException("Corrupt unspent output", e);
+        } finally {
+            try {
+                snapshot[0].close();
+            } catch (IOException e) {
+                log.error("Error closing snapshot", e);
+            }
+        }
+    }
+
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
 
@@ -769,50 +906,59 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
         // Add to bloom filter - is very fast to add.
         bloom.add(out.getHash());
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        try {
-            out.serializeToStream(bos);
-        } catch (IOException e) {
-            throw new BlockStoreException("problem serialising utxo", e);
-        }
+        // Written to leveldb, together with the address index, when the
+        // cache is flushed.
+        utxoCache.add(new UTXOCache.Key(out.getHash(), out.getIndex()), out);
 
-        byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
-        batchPut(key, bos.toByteArray());
-
-        if (autoCommit) {
-            utxoCache.put(ByteBuffer.wrap(key), out);
-        } else {
-            utxoUncommittedCache.put(ByteBuffer.wrap(key), out);
-            // leveldb just stores the last key/value added.
-            // So if we do an add must remove any previous deletes.
-            utxoUncommittedDeletedCache.remove(ByteBuffer.wrap(key));
-        }
+        if (instrument)
+            endMethod("addUnspentTransactionOutput");
+    }
 
-        // Could run this in parallel with above too.
-        // Should update instrumentation to see if worth while.
+    // The key of the address index entry written for a newly added output,
+    // or null if it has no address.
+    private byte[] getAddressKeyForAdd(UTXO out) {
         Address a;
         if (out.getAddress() == null || out.getAddress().equals("")) {
-            if (instrument)
-                endMethod("addUnspentTransactionOutput");
-            return;
+            return null;
         } else {
             try {
                 a = Address.fromBase58(params, out.getAddress());
             } catch (AddressFormatException e) {
-                if (instrument)
-                    endMethod("addUnspentTransactionOutput");
-                return;
+                return null;
             }
         }
+        return getAddressKey(a.getHash160(), out);
+    }
+
+    // The key of the address index entry deleted for a spent output, or null
+    // if it has no address.
+    private byte[] getAddressKeyForRemove(UTXO out) {
+        // TODO storing as byte[] hash to save space. But think should just
+        // store as String of address. Might be faster. Need to test.
+        try {
+            String address = out.getAddress();
+            Address a;
+            if (address == null || address.equals("")) {
+                Script sc = out.getScript();
+                a = sc.getToAddress(params);
+            } else {
+                a = Address.fromBase58(params, out.getAddress());
+            }
+            return getAddressKey(a.getHash160(), out);
+        } catch (AddressFormatException e) {
+            return null;
+        } catch (ScriptException e) {
+            return null;
+        }
+    }
+
+    private byte[] getAddressKey(byte[] hash160, UTXO out) {
         ByteBuffer bb = ByteBuffer.allocate(57);
         bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-        bb.put(a.getHash160());
+        bb.put(hash160);
         bb.put(out.getHash().getBytes());
         bb.putInt((int) out.getIndex());
-        byte[] value = new byte[0];
-        batchPut(bb.array(), value);
-        if (instrument)
-            endMethod("addUnspentTransactionOutput");
+        return bb.array();
     }
 
     private void batchPut(byte[] key, byte[] value) {
@@ -868,51 +1014,84 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         if (instrument)
             beginMethod("removeUnspentTransactionOutput");
 
-        byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
+        // Outputs that never made it to leveldb are just forgotten, others
+        // are deleted along with their address index entry on the next flush.
+        utxoCache.remove(new UTXOCache.Key(out.getHash(), out.getIndex()), out);
 
-        if (autoCommit) {
-            utxoCache.remove(ByteBuffer.wrap(key));
-        } else {
-            utxoUncommittedDeletedCache.add(ByteBuffer.wrap(key));
-            utxoUncommittedCache.remove(ByteBuffer.wrap(key));
-        }
-
-        batchDelete(key);
-        // could run this and the above in parallel
-        // Need to update instrumentation to check if worth the effort
+        if (instrument)
+            endMethod("removeUnspentTransactionOutput");
+    }
 
-        // TODO storing as byte[] hash to save space. But think should just
-        // store as String of address. Might be faster. Need to test.
-        ByteBuffer bb = ByteBuffer.allocate(57);
-        Address a;
-        byte[] hashBytes = null;
-        try {
-            String address = out.getAddress();
-            if (address == null || address.equals("")) {
-                Script sc = out.getScript();
-                a = sc.getToAddress(params);
-                hashBytes = a.getHash160();
-            } else {
-                a = Address.fromBase58(params, out.getAddress());
-                hashBytes = a.getHash160();
+    /**
+     * Writes the unspent outputs changed by all committed blocks to leveldb, together with the chain head and verified
+     * chain head they belong to. This happens by itself whenever the changes exceed the memory budget given to the constructor,
+     * when a checkpoint is reached and on {@link #close()}.
+     */
+    public void flush() throws BlockStoreException {
+        if (instrument)
+            beginMethod("flush");
+        final boolean[] written = new boolean[1];
+        utxoCache.flush(new UTXOCache.Writer() {
+            @Override
+            public void write(Map<UTXOCache.Key, UTXOCache.Entry> dirty) throws BlockStoreException {
+                written[0] = true;
+                WriteBatch flushBatch = db.createWriteBatch();
+                try {
+                    for (UTXOCache.Entry entry : dirty.values()) {
+                        UTXO out = entry.utxo;
+                        byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
+                        if (entry.spent) {
+                            flushBatch.delete(key);
+                            byte[] addressKey = getAddressKeyForRemove(out);
+                            if (addressKey != null)
+                                flushBatch.delete(addressKey);
+                        } else {
+                            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                            out.serializeToStream(bos);
+                            flushBatch.put(key, bos.toByteArray());
+                            byte[] addressKey = getAddressKeyForAdd(out);
+                            if (addressKey != null)
+                                flushBatch.put(addressKey, new byte[0]);
+                        }
+                    }
+                    putChainHeads(flushBatch);
+                    db.write(flushBatch);
+                } catch (IOException e) {
+                    throw new BlockStoreException("problem serialising utxo", e);
+                } finally {
+                    try {
+                        flushBatch.close();
+                    } catch (IOException e) {
+                        log.error("Error closing flush batch", e);
+                    }
+                }
+                log.info("Flushed {} unspent output changes at height {}", dirty.size(),
+                        verifiedChainHeadBlock != null ? verifiedChainHeadBlock.getHeight() : -1);
+            }
+        });
+        if (!written[0]) {
+            // Blocks that didn't change any unspent outputs still move the chain heads on.
+            WriteBatch headsBatch = db.createWriteBatch();
+            try {
+                putChainHeads(headsBatch);
+                db.write(headsBatch);
+            } finally {
+                try {
+                    headsBatch.close();
+                } catch (IOException e) {
+                    log.error("Error closing flush batch", e);
+                }
             }
-        } catch (AddressFormatException e) {
-            if (instrument)
-                endMethod("removeUnspentTransactionOutput");
-            return;
-        } catch (ScriptException e) {
-            if (instrument)
-                endMethod("removeUnspentTransactionOutput");
-            return;
         }
-        bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-        bb.put(hashBytes);
-        bb.put(out.getHash().getBytes());
-        bb.putInt((int) out.getIndex());
-        batchDelete(bb.array());
-
         if (instrument)
-            endMethod("removeUnspentTransactionOutput");
+            endMethod("flush");
+    }
+
+    private void putChainHeads(WriteBatch writeBatch) {
+        if (committedChainHeadHash != null)
+            writeBatch.put(getKey(KeyType.CHAIN_HEAD_SETTING), committedChainHeadHash.getBytes());
+        if (committedVerifiedChainHeadHash != null)
+            writeBatch.put(getKey(KeyType.VERIFIED_CHAIN_HEAD_SETTING), committedVerifiedChainHeadHash.getBytes());
     }
 
     // Instrumentation of bloom filter to check theory
@@ -935,56 +1114,54 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
         // no index is fine as will find any entry with any index...
 
-        // first check the uncommitted cache
+        // first check the cache, which also knows about outputs not on disk yet
+        boolean[] spentInCache = new boolean[numOutputs];
         int foundInCache = 0;
-        for(int i = 0; i < numOutputs; ++i) {
-            byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash, i);
-            if (utxoUncommittedDeletedCache.contains(ByteBuffer.wrap(key))) {
-                // has been deleted so return false;
-                foundInCache++;
+        for (int i = 0; i < numOutputs; ++i) {
+            UTXOCache.Entry cached = utxoCache.get(new UTXOCache.Key(hash, i));
+            if (cached == null)
+                continue;
+            if (!cached.spent) {
+                hasTrue++;
+                if (instrument)
+                    endMethod("hasUnspentOutputs");
+                return true;
             }
+            spentInCache[i] = true;
+            foundInCache++;
         }
 
-        if(foundInCache == numOutputs) {
+        if (foundInCache == numOutputs) {
             hasFalse++;
             if (instrument)
                 endMethod("hasUnspentOutputs");
             return false;
         }
 
-        //now check what has been committed
+        // now check what has been written, ignoring outputs spent since
         byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash);
         byte[] subResult = new byte[key.length];
         DBIterator iterator = db.iterator();
-        for (iterator.seek(key); iterator.hasNext();) {
-            byte[] result = iterator.peekNext().getKey();
-            System.arraycopy(result, 0, subResult, 0, subResult.length);
-            if (Arrays.equals(key, subResult)) {
+        try {
+            for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
+                byte[] result = iterator.peekNext().getKey();
+                System.arraycopy(result, 0, subResult, 0, subResult.length);
+                if (!Arrays.equals(key, subResult))
+                    break;
+                int index = ByteBuffer.wrap(result, 33, 4).getInt();
+                if (index >= 0 && index < numOutputs && spentInCache[index])
+                    continue;
                 hasTrue++;
-                try {
-                    iterator.close();
-                } catch (IOException e) {
-                    log.error("Error closing iterator", e);
-                }
                 if (instrument)
                     endMethod("hasUnspentOutputs");
                 return true;
-            } else {
-                hasFalse++;
-                try {
-                    iterator.close();
-                } catch (IOException e) {
-                    log.error("Error closing iterator", e);
-                }
-                if (instrument)
-                    endMethod("hasUnspentOutputs");
-                return false;
             }
-        }
-        try {
-            iterator.close();
-        } catch (IOException e) {
-            log.error("Error closing iterator", e);
+        } finally {
+            try {
+                iterator.close();
+            } catch (IOException e) {
+                log.error("Error closing iterator", e);
+            }
         }
         hasFalse++;
         if (instrument)
@@ -1004,7 +1181,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         Sha256Hash hash = chainHead.getHeader().getHash();
         this.verifiedChainHeadHash = hash;
         this.verifiedChainHeadBlock = chainHead;
-        batchPut(getKey(KeyType.VERIFIED_CHAIN_HEAD_SETTING), hash.getBytes());
+        // Written with the unspent outputs in flush(), as they must match.
+        if (autoCommit)
+            committedVerifiedChainHeadHash = hash;
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
         removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
@@ -1060,8 +1239,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         batch = db.createWriteBatch();
         uncommited = new HashMap<ByteBuffer, byte[]>();
         uncommitedDeletes = new HashSet<ByteBuffer>();
-        utxoUncommittedCache = new HashMap<ByteBuffer, UTXO>();
-        utxoUncommittedDeletedCache = new HashSet<ByteBuffer>();
+        utxoCache.beginBatch();
         autoCommit = false;
         if (instrument)
             endMethod("beginDatabaseBatchWrite");
@@ -1075,18 +1253,10 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             beginMethod("commitDatabaseBatchWrite");
 
         db.write(batch);
-        // order of these is not important as we only allow entry to be in one
-        // or the other.
-        // must update cache with uncommitted adds/deletes.
-        for (Map.Entry<ByteBuffer, UTXO> entry : utxoUncommittedCache.entrySet()) {
-
-            utxoCache.put(entry.getKey(), entry.getValue());
-        }
-        utxoUncommittedCache = null;
-        for (ByteBuffer entry : utxoUncommittedDeletedCache) {
-            utxoCache.remove(entry);
-        }
-        utxoUncommittedDeletedCache = null;
+        // The unspent outputs stay in the cache until it is flushed.
+        utxoCache.commitBatch();
+        committedChainHeadHash = chainHeadHash;
+        committedVerifiedChainHeadHash = verifiedChainHeadHash;
 
         autoCommit = true;
 
@@ -1101,6 +1271,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         if (instrument)
             endMethod("commitDatabaseBatchWrite");
 
+        if (utxoCache.getDirtyBytes() >= utxoCacheBudget || params.isCheckpoint(verifiedChainHeadBlock.getHeight()))
+            flush();
+
         if (instrument && verifiedChainHeadBlock.getHeight() % 1000 == 0) {
             log.info("Height: " + verifiedChainHeadBlock.getHeight());
             dumpStats();
@@ -1116,8 +1289,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         try {
             uncommited = null;
             uncommitedDeletes = null;
-            utxoUncommittedCache = null;
-            utxoUncommittedDeletedCache = null;
+            utxoCache.abortBatch();
             autoCommit = true;
             if (batch != null) {
                 batch.close();
@@ -1137,7 +1309,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             uncommitedDeletes = null;
             autoCommit = true;
             bloom = new BloomFilter();
-            utxoCache = new LRUCache(openOutCache, 0.75f);
+            committedChainHeadHash = null;
+            committedVerifiedChainHeadHash = null;
         } catch (IOException e) {
             log.error("Exception in resetStore.", e);
         }
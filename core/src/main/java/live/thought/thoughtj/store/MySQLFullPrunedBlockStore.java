@@ -40,16 +40,17 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
             ")\n";
 
     private static final String CREATE_HEADERS_TABLE = "CREATE TABLE headers (\n" +
-            "    hash varbinary(28) NOT NULL,\n" +
+            "    hash varbinary(32) NOT NULL,\n" +
             "    chainwork varbinary(12) NOT NULL,\n" +
             "    height integer NOT NULL,\n" +
             "    header varbinary(80) NOT NULL,\n" +
+            "    cuckoo blob,\n" +
             "    wasundoable tinyint(1) NOT NULL,\n" +
             "    CONSTRAINT headers_pk PRIMARY KEY (hash) USING BTREE \n" +
             ")";
 
     private static final String CREATE_UNDOABLE_TABLE = "CREATE TABLE undoableblocks (\n" +
-            "    hash varbinary(28) NOT NULL,\n" +
+            "    hash varbinary(32) NOT NULL,\n" +
             "    height integer NOT NULL,\n" +
             "    txoutchanges mediumblob,\n" +
             "    transactions mediumblob,\n" +
@@ -81,6 +82,7 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND `index`= ?";
 
     private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
+    private static final String SELECT_TRANSACTION_OUTPUTS_FOR_ADDRESSES_SQL    = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress IN ";
 
     /**
      * Creates a new MySQLFullPrunedBlockStore.
@@ -123,6 +125,11 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return SELECT_TRANSACTION_OUTPUTS_SQL;
     }
 
+    @Override
+    protected String getTransactionOutputsForAddressesSelectSQL() {
+        return SELECT_TRANSACTION_OUTPUTS_FOR_ADDRESSES_SQL;
+    }
+
     @Override
     protected List<String> getCreateTablesSQL() {
         List<String> sqlStatements = new ArrayList<String>();
@@ -57,6 +57,7 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
             "    chainwork bytea NOT NULL,\n" +
             "    height integer NOT NULL,\n" +
             "    header bytea NOT NULL,\n" +
+            "    cuckoo bytea,\n" +
             "    wasundoable boolean NOT NULL,\n" +
             "    CONSTRAINT headers_pk PRIMARY KEY (hash)\n" +
             ")\n";
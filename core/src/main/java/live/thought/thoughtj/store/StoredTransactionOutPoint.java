@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package live.thought.thoughtj.store;
+
+import live.thought.thoughtj.core.Sha256Hash;
+import live.thought.thoughtj.core.TransactionOutPoint;
+import live.thought.thoughtj.core.UTXO;
+import live.thought.thoughtj.core.Utils;
+
+/**
+ * Used as a key for memory map (to avoid having to think about NetworkParameters,
+ * which is required for {@link TransactionOutPoint}). The transaction hash is kept as four longs, so hashing and
+ * comparing keys doesn't go through {@link Sha256Hash} and its byte array.
+ */
+class StoredTransactionOutPoint {
+
+    /** Hash of the transaction to which we refer. */
+    private final long h0, h1, h2, h3;
+    /** Which output of that transaction we are talking about. Actually an unsigned int. */
+    private final int index;
+    
+    StoredTransactionOutPoint(Sha256Hash hash, long index) {
+        byte[] bytes = hash.getBytes();
+        this.h0 = Utils.readInt64(bytes, 0);
+        this.h1 = Utils.readInt64(bytes, 8);
+        this.h2 = Utils.readInt64(bytes, 16);
+        this.h3 = Utils.readInt64(bytes, 24);
+        this.index = (int) index;
+    }
+    
+    StoredTransactionOutPoint(UTXO out) {
+        this(out.getHash(), out.getIndex());
+    }
+    
+    /**
+     * The hash of the transaction to which we refer
+     */
+    Sha256Hash getHash() {
+        byte[] bytes = new byte[32];
+        Utils.uint64ToByteArrayLE(h0, bytes, 0);
+        Utils.uint64ToByteArrayLE(h1, bytes, 8);
+        Utils.uint64ToByteArrayLE(h2, bytes, 16);
+        Utils.uint64ToByteArrayLE(h3, bytes, 24);
+        return Sha256Hash.wrap(bytes);
+    }
+    
+    /**
+     * The index of the output in transaction to which we refer
+     */
+    long getIndex() {
+        return index & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public int hashCode() {
+        // Transaction hashes are random, so any part of one is as good a hash code as the whole.
+        return (int) (h0 ^ (h0 >>> 32)) * 31 + index;
+    }
+    
+    @Override
+    public String toString() {
+        return "Stored transaction out point: " + getHash() + ":" + getIndex();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        StoredTransactionOutPoint other = (StoredTransactionOutPoint) o;
+        return index == other.index && h0 == other.h0 && h1 == other.h1 && h2 == other.h2 && h3 == other.h3;
+    }
+}
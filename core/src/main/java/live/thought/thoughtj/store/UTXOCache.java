@@ -0,0 +1,270 @@
+package live.thought.thoughtj.store;
+
+import live.thought.thoughtj.core.Sha256Hash;
+import live.thought.thoughtj.core.UTXO;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>A write-back cache of unspent outputs, used by {@link LevelDBFullPrunedBlockStore} so that the outputs created
+ * and spent by many blocks in a row are collected in memory and written to disk in one go. Outputs that are created
+ * and spent again before the cache is flushed never reach the disk at all.</p>
+ *
+ * <p>The cache has three levels, looked at in this order:</p>
+ * <ol>
+ *     <li>the changes of the current database batch, thrown away if the batch is aborted,</li>
+ *     <li>committed changes that are not on disk yet ("dirty"), only ever removed by {@link #flush(Writer)},</li>
+ *     <li>outputs read from disk and not changed since ("clean"), dropped least recently used first.</li>
+ * </ol>
+ *
+ * <p>A spent entry marks an output that was spent. If the output was never written to disk ("fresh") such an entry
+ * simply disappears once the batch is committed, otherwise it is kept until the flush deletes the output
+ * from disk. Outputs are keyed by a compact {@link Key} holding the transaction hash as four longs rather than a
+ * wrapped byte array.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+class UTXOCache {
+    // Rough per entry overhead of the maps, the key, the entry and the UTXO object, used for the memory budget.
+    private static final int ENTRY_OVERHEAD_BYTES = 300;
+
+    static final class Key {
+        private final long h0, h1, h2, h3;
+        private final int index;
+
+        Key(Sha256Hash hash, long index) {
+            byte[] bytes = hash.getBytes();
+            this.h0 = toLong(bytes, 0);
+            this.h1 = toLong(bytes, 8);
+            this.h2 = toLong(bytes, 16);
+            this.h3 = toLong(bytes, 24);
+            this.index = (int) index;
+        }
+
+        private static long toLong(byte[] bytes, int offset) {
+            long result = 0;
+            for (int i = 0; i < 8; i++)
+                result = (result << 8) | (bytes[offset + i] & 0xFF);
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return index == other.index && h0 == other.h0 && h1 == other.h1 && h2 == other.h2 && h3 == other.h3;
+        }
+
+        @Override
+        public int hashCode() {
+            // Transaction hashes are random, so a prefix of one is as good a hash code as any.
+            return (int) (h0 ^ (h0 >>> 32)) * 31 + index;
+        }
+    }
+
+    /** A cached output, or the fact that it was spent. */
+    static final class Entry {
+        final UTXO utxo;
+        final boolean spent;
+        // Whether the output is known not to be on disk.
+        final boolean fresh;
+
+        Entry(UTXO utxo, boolean spent, boolean fresh) {
+            this.utxo = utxo;
+            this.spent = spent;
+            this.fresh = fresh;
+        }
+
+        long estimatedBytes() {
+            return ENTRY_OVERHEAD_BYTES + utxo.getScript().getProgram().length;
+        }
+    }
+
+    /** Receives the dirty entries when the cache is flushed. */
+    interface Writer {
+        void write(Map<Key, Entry> dirty) throws BlockStoreException;
+    }
+
+    private final int cleanCapacity;
+    private final LinkedHashMap<Key, UTXO> clean;
+    private final HashMap<Key, Entry> dirty = new HashMap<Key, Entry>();
+    @Nullable private HashMap<Key, Entry> batch;
+    private long dirtyBytes;
+
+    UTXOCache(int cleanCapacity) {
+        this.cleanCapacity = cleanCapacity;
+        this.clean = new LinkedHashMap<Key, UTXO>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, UTXO> eldest) {
+                return size() > UTXOCache.this.cleanCapacity;
+            }
+        };
+    }
+
+    /**
+     * Returns what the cache knows about the given output: an unspent entry, a spent entry, or null if the cache
+     * doesn't know and the disk has to be asked.
+     */
+    @Nullable
+    synchronized Entry get(Key key) {
+        Entry entry = lookupChanged(key);
+        if (entry != null)
+            return entry;
+        UTXO utxo = clean.get(key);
+        return utxo == null ? null : new Entry(utxo, false, false);
+    }
+
+    /**
+     * Looks up an output as of the last committed batch, ignoring the batch in progress. Returns null if the cache
+     * doesn't know the output, in which case the given action is run before the cache can be flushed again, so that a
+     * database snapshot taken by it holds the output as committed.
+     */
+    @Nullable
+    synchronized Entry getCommitted(Key key, Runnable onMiss) {
+        Entry entry = dirty.get(key);
+        if (entry != null)
+            return entry;
+        UTXO utxo = clean.get(key);
+        if (utxo != null)
+            return new Entry(utxo, false, false);
+        onMiss.run();
+        return null;
+    }
+
+    /** Remembers an output that was just read from disk. */
+    synchronized void putClean(Key key, UTXO utxo) {
+        if (lookupChanged(key) == null)
+            clean.put(key, utxo);
+    }
+
+    /** Adds a newly created output, or re-adds one whilst disconnecting a block. */
+    synchronized void add(Key key, UTXO utxo) {
+        Entry previous = lookupChanged(key);
+        // If we don't know about the output it can't be on disk: it is either new, or it was spent and that spend
+        // was flushed already. If we know it was spent, the spend may not have reached the disk yet.
+        boolean fresh = previous == null ? !clean.containsKey(key) : previous.fresh;
+        clean.remove(key);
+        change(key, new Entry(utxo, false, fresh));
+    }
+
+    /** Marks an output as spent. */
+    synchronized void remove(Key key, UTXO utxo) {
+        Entry previous = lookupChanged(key);
+        boolean fresh = previous != null && previous.fresh;
+        clean.remove(key);
+        if (fresh && batch == null) {
+            // Never written, so there is nothing to delete from disk either.
+            Entry removed = dirty.remove(key);
+            if (removed != null)
+                dirtyBytes -= removed.estimatedBytes();
+        } else if (fresh && !dirty.containsKey(key)) {
+            // Only exists within the current batch.
+            batch.remove(key);
+        } else {
+            change(key, new Entry(utxo, true, fresh));
+        }
+    }
+
+    /** Starts collecting changes separately, so they can be thrown away by {@link #abortBatch()}. */
+    synchronized void beginBatch() {
+        if (batch == null)
+            batch = new HashMap<Key, Entry>();
+    }
+
+    /** Makes the changes of the current batch permanent, to be written out by the next {@link #flush}. */
+    synchronized void commitBatch() {
+        if (batch == null)
+            return;
+        HashMap<Key, Entry> changes = batch;
+        batch = null;
+        for (Map.Entry<Key, Entry> change : changes.entrySet()) {
+            Entry entry = change.getValue();
+            Entry removed;
+            if (entry.spent && entry.fresh)
+                removed = dirty.remove(change.getKey());
+            else
+                removed = putDirty(change.getKey(), entry);
+            if (removed != null)
+                dirtyBytes -= removed.estimatedBytes();
+        }
+    }
+
+    /** Throws away the changes of the current batch. */
+    synchronized void abortBatch() {
+        batch = null;
+    }
+
+    synchronized boolean isInBatch() {
+        return batch != null;
+    }
+
+    /**
+     * Hands all committed changes to the given writer and, once it succeeded, moves the outputs that are still
+     * unspent to the clean level. Changes of a batch in progress are not flushed.
+     */
+    synchronized void flush(Writer writer) throws BlockStoreException {
+        if (dirty.isEmpty())
+            return;
+        writer.write(dirty);
+        for (Map.Entry<Key, Entry> entry : dirty.entrySet()) {
+            if (!entry.getValue().spent)
+                clean.put(entry.getKey(), entry.getValue().utxo);
+        }
+        dirty.clear();
+        dirtyBytes = 0;
+    }
+
+    /** Returns the estimated memory taken up by changes that are not on disk yet. */
+    synchronized long getDirtyBytes() {
+        return dirtyBytes;
+    }
+
+    synchronized int getDirtyCount() {
+        return dirty.size();
+    }
+
+    synchronized int getCleanCount() {
+        return clean.size();
+    }
+
+    /**
+     * Returns a copy of the committed changes that are not on disk yet. The given action is run whilst the cache
+     * can't be flushed, so a database snapshot taken by it matches the copy exactly.
+     */
+    synchronized Map<Key, Entry> copyDirty(Runnable atomically) {
+        atomically.run();
+        return new HashMap<Key, Entry>(dirty);
+    }
+
+    @Nullable
+    private Entry lookupChanged(Key key) {
+        if (batch != null) {
+            Entry entry = batch.get(key);
+            if (entry != null)
+                return entry;
+        }
+        return dirty.get(key);
+    }
+
+    private void change(Key key, Entry entry) {
+        if (batch != null) {
+            batch.put(key, entry);
+        } else {
+            Entry removed = putDirty(key, entry);
+            if (removed != null)
+                dirtyBytes -= removed.estimatedBytes();
+        }
+    }
+
+    @Nullable
+    private Entry putDirty(Key key, Entry entry) {
+        dirtyBytes += entry.estimatedBytes();
+        return dirty.put(key, entry);
+    }
+}
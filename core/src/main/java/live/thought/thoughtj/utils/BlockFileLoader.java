@@ -17,19 +17,25 @@
 package live.thought.thoughtj.utils;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.NoSuchElementException;
 
+import javax.annotation.Nullable;
+
 import live.thought.thoughtj.core.Block;
 import live.thought.thoughtj.core.NetworkParameters;
 import live.thought.thoughtj.core.ProtocolException;
-import live.thought.thoughtj.core.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * <p>This class reads block files stored in the Bitcoin Core format. This is simply a way to concatenate
@@ -45,6 +51,10 @@ import live.thought.thoughtj.core.Utils;
  * for (Block block : loader) {<br>
  * &nbsp;&nbsp;try { chain.add(block); } catch (Exception e) { }<br>
  * }</p>
+ *
+ * <p>Files are memory mapped rather than read through a stream. {@link #nextRawBlock()} returns the serialized blocks
+ * without parsing them, so that parsing can be spread over several threads as
+ * {@link live.thought.thoughtj.core.BlockImportPipeline} does.</p>
  */
 public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
     /**
@@ -71,8 +81,10 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         return list;
     }
     
+    private static final Logger log = LoggerFactory.getLogger(BlockFileLoader.class);
+
     private Iterator<File> fileIt;
-    private FileInputStream currentFileStream = null;
+    private ByteBuffer currentFile = null;
     private Block nextBlock = null;
     private NetworkParameters params;
     
@@ -98,68 +110,92 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
     }
     
     private void loadNextBlock() {
-        while (true) {
+        ByteBuffer bytes;
+        while ((bytes = nextRawBlock()) != null) {
             try {
-                if (!fileIt.hasNext() && (currentFileStream == null || currentFileStream.available() < 1))
-                    break;
-            } catch (IOException e) {
-                currentFileStream = null;
+                nextBlock = params.getDefaultSerializer().makeBlock(toArray(bytes));
+                return;
+            } catch (ProtocolException e) {
+                nextBlock = null;
+            }
+        }
+    }
+
+    /** Copies the remaining bytes of the given buffer into a new array. */
+    public static byte[] toArray(ByteBuffer bytes) {
+        byte[] array = new byte[bytes.remaining()];
+        bytes.duplicate().get(array);
+        return array;
+    }
+
+    /**
+     * Returns the next serialized block without parsing it, or null once all files have been read. The buffer is a
+     * read only view of the mapped file, so it stays valid after further calls and may be handed to other threads. Files
+     * that can't be read are skipped.
+     */
+    @Nullable
+    public ByteBuffer nextRawBlock() {
+        while (true) {
+            if (currentFile == null || !currentFile.hasRemaining()) {
                 if (!fileIt.hasNext())
-                    break;
+                    return null;
+                currentFile = map(fileIt.next());
+                continue;
             }
-            while (true) {
-                try {
-                    if (currentFileStream != null && currentFileStream.available() > 0)
-                        break;
-                } catch (IOException e1) {
-                    currentFileStream = null;
-                }
-                if (!fileIt.hasNext()) {
-                    nextBlock = null;
-                    currentFileStream = null;
-                    return;
-                }
-                try {
-                    currentFileStream = new FileInputStream(fileIt.next());
-                } catch (FileNotFoundException e) {
-                    currentFileStream = null;
-                }
+            if (!skipToMagic(currentFile))
+                continue;
+            if (currentFile.remaining() < 4) {
+                currentFile.position(currentFile.limit());
+                continue;
             }
-            try {
-                int nextChar = currentFileStream.read();
-                while (nextChar != -1) {
-                    if (nextChar != ((params.getPacketMagic() >>> 24) & 0xff)) {
-                        nextChar = currentFileStream.read();
-                        continue;
-                    }
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 16) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 8) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar == (params.getPacketMagic() & 0xff))
-                        break;
-                }
-                byte[] bytes = new byte[4];
-                currentFileStream.read(bytes, 0, 4);
-                long size = Utils.readUint32BE(Utils.reverseBytes(bytes), 0);
-                // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
-                if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
-                    continue;
-                bytes = new byte[(int) size];
-                currentFileStream.read(bytes, 0, (int) size);
+            long size = currentFile.getInt() & 0xffffffffL;
+            // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+            if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
+                continue;
+            if (size > currentFile.remaining()) {
+                // Truncated, as can happen if the node writing the file was killed.
+                currentFile.position(currentFile.limit());
+                continue;
+            }
+            ByteBuffer block = currentFile.slice();
+            block.limit((int) size);
+            currentFile.position(currentFile.position() + (int) size);
+            return block;
+        }
+    }
+
+    // Moves the buffer past the next network magic, returning false if there is none.
+    private boolean skipToMagic(ByteBuffer buffer) {
+        int magic = (int) params.getPacketMagic();
+        int window = 0;
+        int seen = 0;
+        while (buffer.hasRemaining()) {
+            window = (window << 8) | (buffer.get() & 0xff);
+            if (++seen >= 4 && window == magic)
+                return true;
+        }
+        return false;
+    }
+
+    @Nullable
+    private static ByteBuffer map(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid after the channel is closed.
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return buffer.order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            log.warn("Could not read block file " + file, e);
+            return null;
+        } finally {
+            if (raf != null) {
                 try {
-                    nextBlock = params.getDefaultSerializer().makeBlock(bytes);
-                } catch (ProtocolException e) {
-                    nextBlock = null;
-                    continue;
+                    raf.close();
+                } catch (IOException e) {
+                    // Ignore.
                 }
-                break;
-            } catch (IOException e) {
-                currentFileStream = null;
-                continue;
             }
         }
     }
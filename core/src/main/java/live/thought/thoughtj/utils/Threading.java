@@ -17,6 +17,7 @@
 package live.thought.thoughtj.utils;
 
 import com.google.common.util.concurrent.CycleDetectingLockFactory;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.Uninterruptibles;
@@ -28,8 +29,17 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * Various threading related utilities. Provides a wrapper around explicit lock creation that lets you control whether
@@ -47,7 +57,8 @@ public class Threading {
     /**
      * An executor with one thread that is intended for running event listeners on. This ensures all event listener code
      * runs without any locks being held. It's intended for the API user to run things on. Callbacks registered by
-     * thoughtj internally shouldn't normally run here, although currently there are a few exceptions.
+     * thoughtj internally shouldn't normally run here, although currently there are a few exceptions. This is a
+     * {@link UserThread} unless replaced, for example by a {@link LaneDispatcher}.
      */
     public static Executor USER_THREAD;
 
@@ -67,8 +78,18 @@ public class Threading {
      * on it. You can then either block on that future, compose it, add listeners to it and so on.
      */
     public static void waitForUserCode() {
+        Executor executor = USER_THREAD;
+        if (executor instanceof LaneDispatcher) {
+            for (UserThread lane : ((LaneDispatcher) executor).lanes)
+                waitFor(lane);
+        } else {
+            waitFor(executor);
+        }
+    }
+
+    private static void waitFor(Executor executor) {
         final CountDownLatch latch = new CountDownLatch(1);
-        USER_THREAD.execute(new Runnable() {
+        executor.execute(new Runnable() {
             @Override public void run() {
                 latch.countDown();
             }
@@ -76,6 +97,35 @@ public class Threading {
         Uninterruptibles.awaitUninterruptibly(latch);
     }
 
+    /**
+     * An executor for event listeners that knows which listener each event is for. This lets it merge an event into
+     * an earlier one that is still waiting to run, and lets it run the events of different listeners on different
+     * threads while keeping the events of each listener in order.
+     */
+    public interface EventExecutor extends Executor {
+        /**
+         * Queues an event for the given listener. If the coalesce key isn't null and an event for the same listener
+         * with an equal key is still waiting to run, that event is dropped, so the listener only runs the given task.
+         * The new event still goes to the back of the queue, behind any events queued after the dropped one, so
+         * that the events of a listener keep their order. So only pass a key for events that are redundant once a
+         * newer one is queued, where the listener reads the current state when it runs, like transaction depth
+         * changes.
+         */
+        void execute(Object listener, @Nullable Object coalesceKey, Runnable command);
+    }
+
+    /**
+     * Queues an event for the given listener on the executor it was registered with. If that is an
+     * {@link EventExecutor} the event may be coalesced, see {@link EventExecutor#execute(Object, Object, Runnable)},
+     * otherwise it's simply executed.
+     */
+    public static void dispatch(Executor executor, Object listener, @Nullable Object coalesceKey, Runnable command) {
+        if (executor instanceof EventExecutor)
+            ((EventExecutor) executor).execute(listener, coalesceKey, command);
+        else
+            executor.execute(command);
+    }
+
     /**
      * An exception handler that will be invoked for any exceptions that occur in the user thread, and
      * any unhandled exceptions that are caught whilst the framework is processing network traffic or doing other
@@ -87,15 +137,25 @@ public class Threading {
     @Nullable
     public static volatile Thread.UncaughtExceptionHandler uncaughtExceptionHandler;
 
-    public static class UserThread extends Thread implements Executor {
+    public static class UserThread extends Thread implements EventExecutor {
         private static final Logger log = LoggerFactory.getLogger(UserThread.class);
         // 10,000 pending tasks is entirely arbitrary and may or may not be appropriate for the device we're
         // running on.
         public static int WARNING_THRESHOLD = 10000;
         private LinkedBlockingQueue<Runnable> tasks;
+        // Events that can still be coalesced, by listener and key. Guarded by itself.
+        private final Map<EventKey, CoalescingTask> coalescing = new HashMap<EventKey, CoalescingTask>();
+        private final AtomicInteger maxQueueDepth = new AtomicInteger();
+        private final AtomicLong coalescedCount = new AtomicLong();
+        // How many tasks were ever queued, to tell whether a coalescing task is still the last one.
+        private final AtomicLong queuedCount = new AtomicLong();
 
         public UserThread() {
-            super(CoinDefinition.coinURIScheme + "j user thread");      //Modified for CoinDefinition
+            this(CoinDefinition.coinURIScheme + "j user thread");      //Modified for CoinDefinition
+        }
+
+        public UserThread(String name) {
+            super(name);
             setDaemon(true);
             tasks = new LinkedBlockingQueue<Runnable>();
             start();
@@ -127,6 +187,167 @@ public class Threading {
                     "Threading.UserThread.WARNING_THRESHOLD upwards until it's a suitable level for your app, or Integer.MAX_VALUE to disable." , size);
             }
             Uninterruptibles.putUninterruptibly(tasks, command);
+            queuedCount.incrementAndGet();
+            int depth = size + 1;
+            while (true) {
+                int max = maxQueueDepth.get();
+                if (depth <= max || maxQueueDepth.compareAndSet(max, depth))
+                    break;
+            }
+        }
+
+        @Override
+        public void execute(Object listener, @Nullable Object coalesceKey, Runnable command) {
+            if (coalesceKey == null) {
+                execute(command);
+                return;
+            }
+            EventKey key = new EventKey(listener, coalesceKey);
+            synchronized (coalescing) {
+                CoalescingTask previous = coalescing.get(key);
+                if (previous != null) {
+                    coalescedCount.incrementAndGet();
+                    if (previous.queuedAs == queuedCount.get()) {
+                        // Nothing was queued after it, so it can simply run the new task instead.
+                        previous.command = command;
+                        return;
+                    }
+                    // It would overtake the events queued since, so it runs nothing when it comes round and the new
+                    // one goes to the back of the queue.
+                    previous.command = null;
+                }
+                CoalescingTask task = new CoalescingTask(key, command);
+                coalescing.put(key, task);
+                execute(task);
+                task.queuedAs = queuedCount.get();
+            }
+        }
+
+        /** Returns how many tasks are waiting to run, including coalesced events that will do nothing. */
+        public int getQueueDepth() {
+            return tasks.size();
+        }
+
+        /** Returns the most tasks that were ever waiting to run at once. */
+        public int getMaxQueueDepth() {
+            return maxQueueDepth.get();
+        }
+
+        /** Returns how many events were merged into one that was already waiting, rather than queued. */
+        public long getCoalescedCount() {
+            return coalescedCount.get();
+        }
+
+        private class CoalescingTask implements Runnable {
+            private final EventKey key;
+            @Nullable private Runnable command;  // Guarded by coalescing, null once superseded.
+            private long queuedAs;  // Guarded by coalescing.
+
+            CoalescingTask(EventKey key, Runnable command) {
+                this.key = key;
+                this.command = command;
+            }
+
+            @Override
+            public void run() {
+                Runnable command;
+                synchronized (coalescing) {
+                    // From now on an event with the same key has to be queued again.
+                    if (coalescing.get(key) == this)
+                        coalescing.remove(key);
+                    command = this.command;
+                }
+                if (command != null)
+                    command.run();
+            }
+        }
+    }
+
+    /** Identifies an event: the listener by identity, the coalesce key by equality. */
+    private static class EventKey {
+        private final Object listener;
+        private final Object key;
+
+        EventKey(Object listener, Object key) {
+            this.listener = listener;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            EventKey other = (EventKey) o;
+            return listener == other.listener && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(listener) + key.hashCode();
+        }
+    }
+
+    /**
+     * <p>An {@link EventExecutor} that runs listeners on several {@link UserThread}s, called lanes. The lane is picked
+     * by listener, so the events of each listener still run one at a time and in order, but a slow listener only
+     * holds up the others that happen to share its lane. Tasks given to {@link #execute(Runnable)}, which don't say
+     * what listener they're for, all run on the first lane.</p>
+     *
+     * <p>This is not the default because event listeners no longer all run on one thread, so listeners that share
+     * state have to synchronize. To use it, set {@link #USER_THREAD} before creating any thoughtj objects.</p>
+     */
+    public static class LaneDispatcher implements EventExecutor {
+        private final UserThread[] lanes;
+
+        public LaneDispatcher(int lanes) {
+            checkArgument(lanes > 0, "Need at least one lane");
+            this.lanes = new UserThread[lanes];
+            for (int i = 0; i < lanes; i++)
+                this.lanes[i] = new UserThread(CoinDefinition.coinURIScheme + "j user thread " + i);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            lanes[0].execute(command);
+        }
+
+        @Override
+        public void execute(Object listener, @Nullable Object coalesceKey, Runnable command) {
+            lanes[(System.identityHashCode(listener) & Integer.MAX_VALUE) % lanes.length]
+                    .execute(listener, coalesceKey, command);
+        }
+
+        public int getLaneCount() {
+            return lanes.length;
+        }
+
+        /** Returns how many tasks are waiting to run on the given lane. */
+        public int getQueueDepth(int lane) {
+            return lanes[lane].getQueueDepth();
+        }
+
+        /** Returns how many tasks are waiting to run on all lanes together. */
+        public int getQueueDepth() {
+            int depth = 0;
+            for (UserThread lane : lanes)
+                depth += lane.getQueueDepth();
+            return depth;
+        }
+
+        /** Returns the most tasks that were ever waiting to run at once on any one lane. */
+        public int getMaxQueueDepth() {
+            int max = 0;
+            for (UserThread lane : lanes)
+                max = Math.max(max, lane.getMaxQueueDepth());
+            return max;
+        }
+
+        /** Returns how many events were merged into one that was already waiting, rather than queued. */
+        public long getCoalescedCount() {
+            long coalesced = 0;
+            for (UserThread lane : lanes)
+                coalesced += lane.getCoalescedCount();
+            return coalesced;
         }
     }
 
@@ -161,6 +382,13 @@ public class Threading {
             return factory.newReentrantLock(name);
     }
 
+    public static ReentrantReadWriteLock readWriteLock(String name) {
+        if (Utils.isAndroidRuntime())
+            return new ReentrantReadWriteLock(true);
+        else
+            return factory.newReentrantReadWriteLock(name);
+    }
+
     public static void warnOnLockCycles() {
         setPolicy(CycleDetectingLockFactory.Policies.WARN);
     }
@@ -200,4 +428,52 @@ public class Threading {
                 }
             })
     );
+
+    /** Work on one range of items, from start (inclusive) to end (exclusive), for {@link #parallelRanges}. */
+    public interface RangeTask {
+        void run(int start, int end);
+    }
+
+    /**
+     * Runs the given task over the items from 0 to count, split into ranges of at least minPerThread items with at
+     * most one range per processor. The ranges run on {@link #THREAD_POOL}, the calling thread doing the first one,
+     * and this returns once all of them are done. Tasks must only touch state of their own range. If a range throws,
+     * that exception is rethrown here. Waiting for the other ranges isn't interruptible, the work being short and CPU
+     * bound, but the interrupt flag is set again afterwards.
+     */
+    public static void parallelRanges(int count, int minPerThread, final RangeTask task) {
+        checkArgument(count >= 0 && minPerThread > 0);
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                (count + minPerThread - 1) / minPerThread));
+        int perThread = Math.max(1, (count + threads - 1) / threads);
+        List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>();
+        for (int from = perThread; from < count; from += perThread) {
+            final int start = from, end = Math.min(from + perThread, count);
+            futures.add(THREAD_POOL.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    task.run(start, end);
+                    return null;
+                }
+            }));
+        }
+        RuntimeException failure = null;
+        try {
+            task.run(0, Math.min(perThread, count));
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        // Always wait for every range, so nothing is still running when this returns or throws.
+        for (ListenableFuture<Void> future : futures) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                            : new RuntimeException(e.getCause());
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
 }
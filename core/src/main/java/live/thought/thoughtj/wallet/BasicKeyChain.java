@@ -16,6 +16,7 @@
 
 package live.thought.thoughtj.wallet;
 
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
@@ -45,6 +46,12 @@ import static com.google.common.base.Preconditions.*;
 public class BasicKeyChain implements EncryptableKeyChain {
     private final ReentrantLock lock = Threading.lock("BasicKeyChain");
 
+    /**
+     * How many keys {@link #toEncrypted(KeyCrypter, KeyParameter)} and {@link #toDecrypted(KeyParameter)} give each
+     * thread at least.
+     */
+    static final int KEYS_PER_THREAD = 50;
+
     // Maps used to let us quickly look up a key given data we find in transcations or the block chain.
     private final LinkedHashMap<ByteString, ECKey> hashToKeys;
     private final LinkedHashMap<ByteString, ECKey> pubkeyToKeys;
@@ -458,23 +465,28 @@ public class BasicKeyChain implements EncryptableKeyChain {
      * @throws KeyCrypterException Thrown if the wallet encryption fails. If so, the wallet state is unchanged.
      */
     @Override
-    public BasicKeyChain toEncrypted(KeyCrypter keyCrypter, KeyParameter aesKey) {
+    public BasicKeyChain toEncrypted(final KeyCrypter keyCrypter, final KeyParameter aesKey) {
         lock.lock();
         try {
             checkNotNull(keyCrypter);
             checkState(this.keyCrypter == null, "Key chain is already encrypted");
             BasicKeyChain encrypted = new BasicKeyChain(keyCrypter);
-            for (ECKey key : hashToKeys.values()) {
-                ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
-                // Check that the encrypted key can be successfully decrypted.
-                // This is done as it is a critical failure if the private key cannot be decrypted successfully
-                // (all bitcoin controlled by that private key is lost forever).
-                // For a correctly constructed keyCrypter the encryption should always be reversible so it is just
-                // being as cautious as possible.
-                if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey))
-                    throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
+            List<ECKey> encryptedKeys = transformKeys(new ArrayList<ECKey>(hashToKeys.values()), new Function<ECKey, ECKey>() {
+                @Override
+                public ECKey apply(ECKey key) {
+                    ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
+                    // Check that the encrypted key can be successfully decrypted.
+                    // This is done as it is a critical failure if the private key cannot be decrypted successfully
+                    // (all bitcoin controlled by that private key is lost forever).
+                    // For a correctly constructed keyCrypter the encryption should always be reversible so it is just
+                    // being as cautious as possible.
+                    if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey))
+                        throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
+                    return encryptedKey;
+                }
+            });
+            for (ECKey encryptedKey : encryptedKeys)
                 encrypted.importKeyLocked(encryptedKey);
-            }
             return encrypted;
         } finally {
             lock.unlock();
@@ -489,7 +501,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     }
 
     @Override
-    public BasicKeyChain toDecrypted(KeyParameter aesKey) {
+    public BasicKeyChain toDecrypted(final KeyParameter aesKey) {
         lock.lock();
         try {
             checkState(keyCrypter != null, "Wallet is already decrypted");
@@ -497,15 +509,43 @@ public class BasicKeyChain implements EncryptableKeyChain {
             if (numKeys() > 0 && !checkAESKey(aesKey))
                 throw new KeyCrypterException("Password/key was incorrect.");
             BasicKeyChain decrypted = new BasicKeyChain();
-            for (ECKey key : hashToKeys.values()) {
-                decrypted.importKeyLocked(key.decrypt(aesKey));
-            }
+            List<ECKey> decryptedKeys = transformKeys(new ArrayList<ECKey>(hashToKeys.values()), new Function<ECKey, ECKey>() {
+                @Override
+                public ECKey apply(ECKey key) {
+                    return key.decrypt(aesKey);
+                }
+            });
+            for (ECKey decryptedKey : decryptedKeys)
+                decrypted.importKeyLocked(decryptedKey);
             return decrypted;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Applies the given encryption or decryption to each key, returning the results in the same order. The AES key
+     * has already been derived from the password by then, so what is left is the AES and elliptic curve work for
+     * each key: big chains are split into ranges of at least {@link #KEYS_PER_THREAD} keys, done on
+     * {@link Threading#THREAD_POOL}.
+     */
+    private static List<ECKey> transformKeys(final List<ECKey> keys, final Function<ECKey, ECKey> transform) {
+        final ECKey[] transformed = new ECKey[keys.size()];
+        Threading.parallelRanges(keys.size(), KEYS_PER_THREAD, new Threading.RangeTask() {
+            @Override
+            public void run(int start, int end) {
+                transformKeys(keys, transform, transformed, start, end);
+            }
+        });
+        return Arrays.asList(transformed);
+    }
+
+    private static void transformKeys(List<ECKey> keys, Function<ECKey, ECKey> transform, ECKey[] transformed,
+                                      int start, int end) {
+        for (int i = start; i < end; i++)
+            transformed[i] = transform.apply(keys.get(i));
+    }
+
     /**
      * Returns whether the given password is correct for this key chain.
      * @throws IllegalStateException if the chain is not encrypted at all.
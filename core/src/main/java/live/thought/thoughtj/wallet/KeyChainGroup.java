@@ -604,6 +604,14 @@ public class KeyChainGroup implements KeyBag {
         return filter;
     }
 
+    // Whether any chain puts P2SH script hashes into the filter instead of its keys.
+    boolean hasMarriedKeyChain() {
+        for (DeterministicKeyChain chain : chains)
+            if (chain.isMarried())
+                return true;
+        return false;
+    }
+
     /** {@inheritDoc} */
     public boolean isRequiringUpdateAllBloomFilter() {
         throw new UnsupportedOperationException();   // Unused.
@@ -0,0 +1,236 @@
+package live.thought.thoughtj.wallet;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import live.thought.thoughtj.core.Sha256Hash;
+import live.thought.thoughtj.core.Transaction;
+
+import javax.annotation.Nullable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>A pool of wallet transactions by hash that can hand out immutable snapshots of itself. The transactions are
+ * spread over {@link #SHARDS} shards by hash, and a snapshot only copies the shards that changed since the previous
+ * one, taking over the others as they are. Publishing a change to a few transactions therefore costs time in
+ * proportion to the shards they're in rather than to the size of the pool.</p>
+ *
+ * <p>Not thread safe: the wallet lock protects it. Snapshots can be read from any thread.</p>
+ */
+class SnapshotPool extends AbstractMap<Sha256Hash, Transaction> {
+    static final int SHARDS = 256;
+
+    // Created when first used.
+    private final HashMap<Sha256Hash, Transaction>[] shards;
+    // Shards changed since the last snapshot.
+    private final BitSet changed = new BitSet(SHARDS);
+    private int size;
+    @Nullable private Snapshot last;
+    @Nullable private Set<Entry<Sha256Hash, Transaction>> entrySet;
+
+    @SuppressWarnings("unchecked")
+    SnapshotPool() {
+        shards = (HashMap<Sha256Hash, Transaction>[]) new HashMap[SHARDS];
+        changed.set(0, SHARDS);
+    }
+
+    private static int shardOf(Object hash) {
+        return hash.hashCode() & (SHARDS - 1);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object hash) {
+        if (hash == null)
+            return false;
+        HashMap<Sha256Hash, Transaction> shard = shards[shardOf(hash)];
+        return shard != null && shard.containsKey(hash);
+    }
+
+    @Override
+    public Transaction get(Object hash) {
+        if (hash == null)
+            return null;
+        HashMap<Sha256Hash, Transaction> shard = shards[shardOf(hash)];
+        return shard != null ? shard.get(hash) : null;
+    }
+
+    @Override
+    public Transaction put(Sha256Hash hash, Transaction tx) {
+        int index = shardOf(hash);
+        HashMap<Sha256Hash, Transaction> shard = shards[index];
+        if (shard == null)
+            shards[index] = shard = new HashMap<Sha256Hash, Transaction>();
+        Transaction previous = shard.put(hash, tx);
+        if (previous == null)
+            size++;
+        changed.set(index);
+        return previous;
+    }
+
+    @Override
+    public Transaction remove(Object hash) {
+        if (hash == null)
+            return null;
+        int index = shardOf(hash);
+        HashMap<Sha256Hash, Transaction> shard = shards[index];
+        Transaction previous = shard != null ? shard.remove(hash) : null;
+        if (previous != null) {
+            size--;
+            changed.set(index);
+        }
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < SHARDS; i++) {
+            if (shards[i] != null && !shards[i].isEmpty()) {
+                shards[i].clear();
+                changed.set(i);
+            }
+        }
+        size = 0;
+    }
+
+    @Override
+    public Set<Entry<Sha256Hash, Transaction>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<Sha256Hash, Transaction>>() {
+                @Override
+                public Iterator<Entry<Sha256Hash, Transaction>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    // Walks the shards in turn, keeping track of changes made through remove().
+    private class EntryIterator implements Iterator<Entry<Sha256Hash, Transaction>> {
+        private int index = -1;
+        private Iterator<Entry<Sha256Hash, Transaction>> current =
+                ImmutableSet.<Entry<Sha256Hash, Transaction>>of().iterator();
+        // Where the last entry came from, as hasNext() may have moved on to the next shard since.
+        @Nullable private Iterator<Entry<Sha256Hash, Transaction>> lastIterator;
+        private int lastIndex = -1;
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (++index >= SHARDS)
+                    return false;
+                if (shards[index] != null)
+                    current = shards[index].entrySet().iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public Entry<Sha256Hash, Transaction> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            lastIterator = current;
+            lastIndex = index;
+            return current.next();
+        }
+
+        @Override
+        public void remove() {
+            if (lastIterator == null)
+                throw new IllegalStateException();
+            lastIterator.remove();
+            lastIterator = null;
+            size--;
+            changed.set(lastIndex);
+        }
+    }
+
+    /** Returns true if the pool changed since the last {@link #snapshot()}. */
+    boolean isChanged() {
+        return !changed.isEmpty();
+    }
+
+    /** Returns an immutable copy of the pool as it is now, sharing the shards that didn't change with the last one. */
+    Snapshot snapshot() {
+        if (last != null && changed.isEmpty())
+            return last;
+        List<ImmutableMap<Sha256Hash, Transaction>> copies = last != null
+                ? new ArrayList<ImmutableMap<Sha256Hash, Transaction>>(last.shards)
+                : new ArrayList<ImmutableMap<Sha256Hash, Transaction>>(SHARDS);
+        for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+            ImmutableMap<Sha256Hash, Transaction> copy = shards[i] != null
+                    ? ImmutableMap.copyOf(shards[i]) : ImmutableMap.<Sha256Hash, Transaction>of();
+            if (i < copies.size())
+                copies.set(i, copy);
+            else
+                copies.add(copy);
+        }
+        changed.clear();
+        last = new Snapshot(copies, size);
+        return last;
+    }
+
+    /** An immutable copy of a {@link SnapshotPool}. */
+    static final class Snapshot extends AbstractMap<Sha256Hash, Transaction> {
+        private final List<ImmutableMap<Sha256Hash, Transaction>> shards;
+        private final int size;
+        private final Set<Entry<Sha256Hash, Transaction>> entrySet = new AbstractSet<Entry<Sha256Hash, Transaction>>() {
+            @Override
+            public Iterator<Entry<Sha256Hash, Transaction>> iterator() {
+                List<Iterator<Entry<Sha256Hash, Transaction>>> iterators =
+                        new ArrayList<Iterator<Entry<Sha256Hash, Transaction>>>(SHARDS);
+                for (ImmutableMap<Sha256Hash, Transaction> shard : shards)
+                    iterators.add(shard.entrySet().iterator());
+                return Iterators.unmodifiableIterator(Iterators.concat(iterators.iterator()));
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+
+        private Snapshot(List<ImmutableMap<Sha256Hash, Transaction>> shards, int size) {
+            this.shards = shards;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean containsKey(Object hash) {
+            return hash != null && shards.get(shardOf(hash)).containsKey(hash);
+        }
+
+        @Override
+        public Transaction get(Object hash) {
+            return hash != null ? shards.get(shardOf(hash)).get(hash) : null;
+        }
+
+        @Override
+        public Set<Entry<Sha256Hash, Transaction>> entrySet() {
+            return entrySet;
+        }
+    }
+}
@@ -20,6 +20,7 @@ package live.thought.thoughtj.wallet;
 import com.google.common.annotations.*;
 import com.google.common.base.*;
 import com.google.common.collect.*;
+import com.google.common.io.Files;
 import com.google.common.primitives.*;
 import com.google.common.util.concurrent.*;
 import com.google.protobuf.*;
@@ -48,6 +49,7 @@ import org.spongycastle.crypto.params.*;
 import javax.annotation.*;
 import java.io.*;
 import java.math.BigInteger;
+import java.security.DigestOutputStream;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
@@ -102,7 +104,17 @@ public class Wallet extends BaseTaggableObject
 
     // Ordering: lock > keyChainGroupLock. KeyChainGroup is protected separately to allow fast querying of current receive address
     // even if the wallet itself is busy e.g. saving or processing a big reorg. Useful for reducing UI latency.
-    protected final ReentrantLock lock = Threading.lock("wallet");
+    // Anything that changes the wallet takes the write side, named lock as it's what most of the code needs. Queries
+    // that only look at the pools take readLock, so that they can run at the same time as each other. A thread that
+    // holds readLock must not take lock, as the read side can't be upgraded. getBalance, getTransactions and
+    // getTransactionPool don't lock at all: they read the latest PoolSnapshot, which is published whenever lock is
+    // released for the last time after a change.
+    //
+    // Note for subclasses: lock used to be a ReentrantLock. Code calling lock(), unlock(), tryLock(),
+    // isHeldByCurrentThread() or getHoldCount() on it compiles unchanged, but has to be recompiled.
+    private final ReentrantReadWriteLock walletLock = Threading.readWriteLock("wallet");
+    protected final ReentrantReadWriteLock.WriteLock lock = new PublishingWriteLock(walletLock);
+    protected final ReentrantReadWriteLock.ReadLock readLock = walletLock.readLock();
     protected final ReentrantLock keyChainGroupLock = Threading.lock("wallet-keychaingroup");
 
     // The various pools below give quick access to wallet-relevant transactions by the state they're in:
@@ -124,17 +136,118 @@ public class Wallet extends BaseTaggableObject
     //           to the user in the UI, etc). A transaction can leave dead and move into spent/unspent if there is a
     //           re-org to a chain that doesn't include the double spend.
 
-    private final Map<Sha256Hash, Transaction> pending;
-    private final Map<Sha256Hash, Transaction> unspent;
-    private final Map<Sha256Hash, Transaction> spent;
-    private final Map<Sha256Hash, Transaction> dead;
+    private final SnapshotPool pending;
+    private final SnapshotPool unspent;
+    private final SnapshotPool spent;
+    private final SnapshotPool dead;
 
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
 
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
     // Used to speed up various calculations.
+    // Only change it through addToMyUnspents() and removeFromMyUnspents(), which keep the running totals below.
     protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
+    // The value of myUnspents, and of the outputs in it that we can't sign for, so that the ESTIMATED balances don't
+    // have to be added up on every query. Which outputs we can sign for is worked out again when keys change.
+    @GuardedBy("lock") private long myUnspentsValue;
+    @GuardedBy("lock") private final HashSet<TransactionOutput> myUnsignableUnspents = Sets.newHashSet();
+    @GuardedBy("lock") private long myUnsignableUnspentsValue;
+    private volatile boolean vKeysChanged;
+    // The AVAILABLE balances depend on the coin selector and on the confidence of transactions, so they are
+    // remembered until anything that could affect them changes.
+    @GuardedBy("lock") private final EnumMap<BalanceType, Coin> availableBalances = new EnumMap<BalanceType, Coin>(BalanceType.class);
+
+    /**
+     * An immutable copy of the pools and balances, so that the most common queries never wait for block processing.
+     * Readers see the wallet as it was when the write lock was last released.
+     */
+    private static class PoolSnapshot {
+        final SnapshotPool.Snapshot unspent, spent, pending, dead;
+        // Filled in as balances are asked for, see getBalance(BalanceType). A change that affects the balances
+        // publishes a new, empty map rather than working them out straight away.
+        final ConcurrentMap<BalanceType, Coin> balances;
+
+        PoolSnapshot(SnapshotPool.Snapshot unspent, SnapshotPool.Snapshot spent, SnapshotPool.Snapshot pending,
+                     SnapshotPool.Snapshot dead, ConcurrentMap<BalanceType, Coin> balances) {
+            this.unspent = unspent;
+            this.spent = spent;
+            this.pending = pending;
+            this.dead = dead;
+            this.balances = balances;
+        }
+
+        Map<Sha256Hash, Transaction> get(Pool pool) {
+            switch (pool) {
+                case UNSPENT:
+                    return unspent;
+                case SPENT:
+                    return spent;
+                case PENDING:
+                    return pending;
+                case DEAD:
+                    return dead;
+                default:
+                    throw new RuntimeException("Unknown wallet transaction type " + pool);
+            }
+        }
+    }
+
+    @Nullable private volatile PoolSnapshot vPoolSnapshot;
+    // Whether the balances changed since the last snapshot. The pools keep track of their own changes.
+    @GuardedBy("lock") private boolean balancesChanged = true;
+
+    /**
+     * The write side of {@link #walletLock}. Before it is released for the last time after the pools or balances
+     * changed, it publishes a new {@link PoolSnapshot}, so readers see every change once the writer lets go.
+     */
+    private class PublishingWriteLock extends ReentrantReadWriteLock.WriteLock {
+        private static final long serialVersionUID = 1L;
+
+        private final ReentrantReadWriteLock.WriteLock delegate;
+
+        PublishingWriteLock(ReentrantReadWriteLock walletLock) {
+            super(walletLock);
+            // Locking goes through the lock's own write side, which may be checked for lock cycles.
+            this.delegate = walletLock.writeLock();
+        }
+
+        @Override
+        public void lock() {
+            delegate.lock();
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            delegate.lockInterruptibly();
+        }
+
+        @Override
+        public boolean tryLock() {
+            return delegate.tryLock();
+        }
+
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.tryLock(timeout, unit);
+        }
+
+        @Override
+        public void unlock() {
+            try {
+                if (delegate.getHoldCount() == 1 && (balancesChanged || unspent.isChanged() || spent.isChanged()
+                        || pending.isChanged() || dead.isChanged()))
+                    publishPoolSnapshot();
+            } finally {
+                delegate.unlock();
+            }
+        }
+
+        @Override
+        public Condition newCondition() {
+            return delegate.newCondition();
+        }
+    }
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -161,7 +274,8 @@ public class Wallet extends BaseTaggableObject
     protected final NetworkParameters params;
 
     @Nullable private Sha256Hash lastBlockSeenHash;
-    private int lastBlockSeenHeight;
+    // Volatile so that the depth of transactions can be derived from it without taking the wallet lock.
+    private volatile int vLastBlockSeenHeight;
     private long lastBlockSeenTimeSecs;
 
     private final CopyOnWriteArrayList<ListenerRegistration<WalletChangeEventListener>> changeListeners
@@ -185,6 +299,15 @@ public class Wallet extends BaseTaggableObject
     // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
     // it sent transactions to the wallet, without this we'd double count.
     private HashSet<Sha256Hash> ignoreNextNewBlock;
+    // Transactions that appeared in the best chain no more than the event horizon ago, by the height they appeared at.
+    // When a block arrives only these, and the ones with listeners that want to know about depth changes, are told.
+    // Entries for transactions that left the best chain are skipped and dropped once they pass the event horizon.
+    private TreeMap<Integer, Set<Transaction>> recentlyConfirmed;
+    // The confidence objects of our transactions that have a listener wanting depth changes, kept up to date by
+    // depthSubscriptionListener. Only these are told about every block. Read under the wallet lock, but changed
+    // without it by whichever thread adds or removes a listener.
+    private Set<TransactionConfidence> depthSubscribers;
+    private TransactionConfidence.DepthSubscriptionListener depthSubscriptionListener;
     // Whether or not to ignore pending transactions that are considered risky by the configured risk analyzer.
     private boolean acceptRiskyTransactions;
     // Object that performs risk analysis of pending transactions. We might reject transactions that seem like
@@ -198,6 +321,9 @@ public class Wallet extends BaseTaggableObject
     private boolean insideReorg;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     protected volatile WalletFiles vFileManager;
+    // Hashes of the transactions that changed since they were last written to the journal, or null if the wallet
+    // isn't saved with one. A hash of a transaction that's no longer in the wallet means it was removed.
+    @GuardedBy("lock") @Nullable private Set<Sha256Hash> journalChanges;
     // Object that is used to send transactions asynchronously when the wallet requires it.
     protected volatile TransactionBroadcaster vTransactionBroadcaster;
     // UNIX time in seconds. Money controlled by keys created before this time will be automatically respent to a key
@@ -307,10 +433,10 @@ public class Wallet extends BaseTaggableObject
         if (this.keyChainGroup.numKeys() == 0)
             this.keyChainGroup.createAndActivateNewHDChain();
         watchedScripts = Sets.newHashSet();
-        unspent = new HashMap<Sha256Hash, Transaction>();
-        spent = new HashMap<Sha256Hash, Transaction>();
-        pending = new HashMap<Sha256Hash, Transaction>();
-        dead = new HashMap<Sha256Hash, Transaction>();
+        unspent = new SnapshotPool();
+        spent = new SnapshotPool();
+        pending = new SnapshotPool();
+        dead = new SnapshotPool();
         transactions = new HashMap<Sha256Hash, Transaction>();
         extensions = new HashMap<String, WalletExtension>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
@@ -322,6 +448,20 @@ public class Wallet extends BaseTaggableObject
 
     private void createTransientState() {
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        recentlyConfirmed = new TreeMap<Integer, Set<Transaction>>();
+        depthSubscribers = Collections.newSetFromMap(new ConcurrentHashMap<TransactionConfidence, Boolean>());
+        depthSubscriptionListener = new TransactionConfidence.DepthSubscriptionListener() {
+            @Override
+            public void onDepthSubscriptionChanged(TransactionConfidence confidence) {
+                // Checked again under the set's lock, so that of two changes racing, the state after both wins.
+                synchronized (depthSubscribers) {
+                    if (confidence.hasDepthSubscribers())
+                        depthSubscribers.add(confidence);
+                    else
+                        depthSubscribers.remove(confidence);
+                }
+            }
+        };
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(TransactionConfidence confidence, TransactionConfidence.Listener.ChangeReason reason) {
@@ -334,6 +474,8 @@ public class Wallet extends BaseTaggableObject
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
+                        invalidateBalances();
+                        markChangedForJournal(confidence.getTransactionHash());
                         checkBalanceFuturesLocked(null);
                         Transaction tx = getTransaction(confidence.getTransactionHash());
                         queueOnTransactionConfidenceChanged(tx);
@@ -345,6 +487,8 @@ public class Wallet extends BaseTaggableObject
                         confidence.getIXType() == TransactionConfidence.IXType.IX_LOCKED) {
                     lock.lock();
                     try {
+                        invalidateBalances();
+                        markChangedForJournal(confidence.getTransactionHash());
                         Transaction tx = getTransaction(confidence.getTransactionHash());
                         queueOnTransactionConfidenceChanged(tx);
                         //save the wallet when an InstantSend transaction is locked
@@ -606,6 +750,7 @@ public class Wallet extends BaseTaggableObject
     public boolean removeKey(ECKey key) {
         keyChainGroupLock.lock();
         try {
+            vKeysChanged = true;
             return keyChainGroup.removeImportedKey(key);
         } finally {
             keyChainGroupLock.unlock();
@@ -698,6 +843,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             result = keyChainGroup.importKeys(keys);
+            vKeysChanged = true;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -728,6 +874,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             checkNoDeterministicKeys(keys);
+            vKeysChanged = true;
             return keyChainGroup.importKeysAndEncrypt(keys, aesKey);
         } finally {
             keyChainGroupLock.unlock();
@@ -750,6 +897,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.addAndActivateHDChain(chain);
+            vKeysChanged = true;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1286,13 +1434,28 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
-    /** Saves the wallet first to the given temp file, then renames to the dest file. */
+    /**
+     * Saves the wallet first to the given temp file, then renames to the dest file. If the dest file is the one this
+     * wallet is auto-saved to with a journal, the journal is started over for the new file.
+     */
     public void saveToFile(File temp, File destFile) throws IOException {
+        WalletFiles files = vFileManager;
+        WalletJournal journal = files != null ? files.getJournalFor(destFile) : null;
+        if (journal != null)
+            saveSnapshot(temp, destFile, journal);
+        else
+            saveToFileAndHash(temp, destFile);
+    }
+
+    // Like saveToFile(), returning the hash of what was written.
+    private Sha256Hash saveToFileAndHash(File temp, File destFile) throws IOException {
         FileOutputStream stream = null;
         lock.lock();
         try {
             stream = new FileOutputStream(temp);
-            saveToFileStream(stream);
+            DigestOutputStream digestStream = new DigestOutputStream(stream, Sha256Hash.newDigest());
+            saveToFileStream(digestStream);
+            Sha256Hash hash = Sha256Hash.wrap(digestStream.getMessageDigest().digest());
             // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
             // to not write through to physical media for at least a few seconds, but this is the best we can do.
             stream.flush();
@@ -1305,11 +1468,12 @@ public class Wallet extends BaseTaggableObject
                 if (canonical.exists() && !canonical.delete())
                     throw new IOException("Failed to delete canonical wallet file for replacement with autosave");
                 if (temp.renameTo(canonical))
-                    return;  // else fall through.
+                    return hash;  // else fall through.
                 throw new IOException("Failed to rename " + temp + " to " + canonical);
             } else if (!temp.renameTo(destFile)) {
                 throw new IOException("Failed to rename " + temp + " to " + destFile);
             }
+            return hash;
         } catch (RuntimeException e) {
             log.error("Failed whilst saving wallet", e);
             throw e;
@@ -1324,6 +1488,73 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Writes the whole wallet to the given file like {@link #saveToFile(File, File)}, and starts the given journal over
+     * for it. Internal use only.
+     */
+    void saveSnapshot(File temp, File destFile, WalletJournal journal) throws IOException {
+        lock.lock();
+        try {
+            Sha256Hash hash = saveToFileAndHash(temp, destFile);
+            // If we crash before the journal is reset, the old one won't match the new file and is ignored.
+            journal.reset(hash);
+            journalChanges = new HashSet<Sha256Hash>();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends what changed since the last snapshot or journal write to the given journal, without forcing it to disk.
+     * Internal use only.
+     *
+     * @return the number of records appended.
+     */
+    int writeJournal(WalletJournal journal) throws IOException {
+        lock.lock();
+        try {
+            checkState(journalChanges != null, "No snapshot was written for the journal");
+            int records = 0;
+            for (Sha256Hash hash : journalChanges) {
+                Transaction tx = transactions.get(hash);
+                if (tx == null) {
+                    journal.appendRemovedTransaction(hash);
+                } else {
+                    journal.appendTransaction(WalletProtobufSerializer.makeTxProto(new WalletTransaction(getPool(tx), tx),
+                            vLastBlockSeenHeight));
+                }
+                records++;
+            }
+            // Keys, scripts, extensions and the last seen block are small next to the transactions. Rather than
+            // tracking every change to them, they're written whenever their serialized form differs.
+            if (journal.appendWalletIfChanged(new WalletProtobufSerializer().walletToProto(this, false)))
+                records++;
+            journalChanges.clear();
+            return records;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Pool getPool(Transaction tx) {
+        Sha256Hash hash = tx.getHash();
+        if (unspent.containsKey(hash))
+            return Pool.UNSPENT;
+        if (spent.containsKey(hash))
+            return Pool.SPENT;
+        if (pending.containsKey(hash))
+            return Pool.PENDING;
+        if (dead.containsKey(hash))
+            return Pool.DEAD;
+        throw new IllegalStateException("Transaction not in any pool: " + hash);
+    }
+
+    private void markChangedForJournal(Sha256Hash txHash) {
+        checkState(lock.isHeldByCurrentThread());
+        if (journalChanges != null)
+            journalChanges.add(txHash);
+    }
+
     /**
      * Uses protobuf serialization to save the wallet to the given file. To learn more about this file format, see
      * {@link WalletProtobufSerializer}. Writes out first to a temporary file in the same directory and then renames
@@ -1503,6 +1734,14 @@ public class Wallet extends BaseTaggableObject
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
         try {
+            File journalFile = WalletJournal.fileFor(file);
+            if (journalFile.exists()) {
+                // Apply the changes saved after the file was written.
+                byte[] bytes = Files.toByteArray(file);
+                Protos.Wallet walletProto = WalletProtobufSerializer.parseToProto(new ByteArrayInputStream(bytes));
+                walletProto = WalletJournal.replay(walletProto, Sha256Hash.of(bytes), journalFile);
+                return loadFromFileStream(new ByteArrayInputStream(walletProto.toByteArray()), walletExtensions);
+            }
             FileInputStream stream = null;
             try {
                 stream = new FileInputStream(file);
@@ -1569,6 +1808,18 @@ public class Wallet extends BaseTaggableObject
                     throw new IllegalStateException("Inconsistent spent tx: " + tx.getHashAsString());
                 }
             }
+
+            // Check the running totals against adding up the outputs.
+            if (vUTXOProvider == null) {
+                for (BalanceType balanceType : EnumSet.of(BalanceType.ESTIMATED, BalanceType.ESTIMATED_SPENDABLE)) {
+                    Coin balance = getBalance(balanceType);
+                    Coin calculated = calculateBalance(balanceType);
+                    if (!balance.equals(calculated)) {
+                        throw new IllegalStateException("Inconsistent " + balanceType + " balance: " + balance + ", "
+                                + calculated);
+                    }
+                }
+            }
         } finally {
             lock.unlock();
         }
@@ -1723,7 +1974,7 @@ public class Wallet extends BaseTaggableObject
 
             Transaction lockedTx = pending.get(tx.getHash());
             //lockedTx.getConfidence().setConfidenceType(ConfidenceType.INSTANTX_LOCKED);
-            confidenceChanged.put(lockedTx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            markConfidenceChanged(lockedTx, TransactionConfidence.Listener.ChangeReason.TYPE);
 
             //TODO:  this is causing problems later, the transaction doesn't get setAppearedInBlock, etc, Wallet crashes.
             //unspent.put(lockedTx.getHash(), lockedTx);
@@ -1840,23 +2091,28 @@ public class Wallet extends BaseTaggableObject
      * it will not be considered relevant.</p>
      */
     public boolean isTransactionRelevant(Transaction tx) throws ScriptException {
-        lock.lock();
+        readLock.lock();
         try {
             return tx.getValueSentFromMe(this).signum() > 0 ||
                    tx.getValueSentToMe(this).signum() > 0 ||
                    !findDoubleSpendsAgainst(tx, transactions).isEmpty();
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
+    // Whether the current thread may read the pools, holding either side of the wallet lock.
+    private boolean isReadLockedByCurrentThread() {
+        return lock.isHeldByCurrentThread() || walletLock.getReadHoldCount() > 0;
+    }
+
     /**
      * Finds transactions in the specified candidates that double spend "tx". Not a general check, but it can work even if
      * the double spent inputs are not ours.
      * @return The set of transactions that double spend "tx".
      */
     private Set<Transaction> findDoubleSpendsAgainst(Transaction tx, Map<Sha256Hash, Transaction> candidates) {
-        checkState(lock.isHeldByCurrentThread());
+        checkState(isReadLockedByCurrentThread());
         if (tx.isCoinBase()) return Sets.newHashSet();
         // Compile a set of outpoints that are spent by tx.
         HashSet<TransactionOutPoint> outpoints = new HashSet<TransactionOutPoint>();
@@ -1985,7 +2241,7 @@ public class Wallet extends BaseTaggableObject
                 for (TransactionOutput output : tx.getOutputs()) {
                     final TransactionInput spentBy = output.getSpentBy();
                     if (spentBy != null) {
-                        checkState(myUnspents.add(output));
+                        checkState(addToMyUnspents(output));
                         spentBy.disconnect();
                     }
                 }
@@ -2017,6 +2273,7 @@ public class Wallet extends BaseTaggableObject
             // confidence object about the block and sets its depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
             if (bestChain) {
+                trackDepth(tx);
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
                 // count.
@@ -2033,7 +2290,7 @@ public class Wallet extends BaseTaggableObject
                     if (txDependency.getConfidence().getConfidenceType().equals(ConfidenceType.IN_CONFLICT)) {
                         if (isNotSpendingTxnsInConfidenceType(txDependency, ConfidenceType.IN_CONFLICT)) {
                             txDependency.getConfidence().setConfidenceType(ConfidenceType.PENDING);
-                            confidenceChanged.put(txDependency, TransactionConfidence.Listener.ChangeReason.TYPE);
+                            markConfidenceChanged(txDependency, TransactionConfidence.Listener.ChangeReason.TYPE);
                         }
                     }
                 }
@@ -2045,7 +2302,7 @@ public class Wallet extends BaseTaggableObject
         // Side chains don't affect confidence.
         if (bestChain) {
             // notifyNewBestBlock will be invoked next and will then call maybeQueueOnWalletChanged for us.
-            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
         } else {
             maybeQueueOnWalletChanged();
         }
@@ -2127,6 +2384,17 @@ public class Wallet extends BaseTaggableObject
         return false;
     }
 
+    // Remembers to run the confidence listeners of the transaction, which may also have changed what we can spend.
+    private void markConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
+        confidenceChanged.put(tx, reason);
+        // Balances only depend on depth through coinbase maturity, which setLastBlockSeenHeight takes care of.
+        if (reason != TransactionConfidence.Listener.ChangeReason.DEPTH)
+            invalidateBalances();
+        // The depth isn't worth journaling as it follows from the last seen block height.
+        if (reason != TransactionConfidence.Listener.ChangeReason.DEPTH)
+            markChangedForJournal(tx.getHash());
+    }
+
     private void informConfidenceListenersIfNotReorganizing() {
         if (insideReorg)
             return;
@@ -2159,31 +2427,11 @@ public class Wallet extends BaseTaggableObject
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // increment the tx confidence depth twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                    //TODO:  put this code below, this part has been changed.
-                } else {
-                    TransactionConfidence confidence = tx.getConfidence();
-                    if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
-                        // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
-                        // pending again. We could clear this data the moment a tx is seen in the block chain, but
-                        // in cases where the chain re-orgs, this would mean that wallets would perceive a newly
-                        // pending tx has zero confidence at all, which would not be right: we expect it to be
-                        // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
-                        // but this way is backwards compatible with existing software, and the new state probably
-                        // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
-                            confidence.clearBroadcastBy();
-                        confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-                    }
-                }
-            }
+            // The depth of BUILDING transactions follows from the height set above, so only the ones that may be of
+            // interest have to be notified of the new block.
+            queueDepthChanges(block.getHeight());
+            // The transactions in here were already notified by receive() due to appearing in this block.
+            ignoreNextNewBlock.clear();
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
@@ -2200,6 +2448,79 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Queues a DEPTH change for the BUILDING transactions that confirmed within the event horizon and for those with
+     * listeners that want to know about depth changes, except those that were received in the block at the top.
+     */
+    private void queueDepthChanges(int chainHeight) {
+        checkState(lock.isHeldByCurrentThread());
+        int eventHorizon = context.getEventHorizon();
+        Iterator<Map.Entry<Integer, Set<Transaction>>> it = recentlyConfirmed.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Set<Transaction>> entry = it.next();
+            int appearedAt = entry.getKey();
+            boolean beyondHorizon = chainHeight - appearedAt + 1 > eventHorizon;
+            for (Transaction tx : entry.getValue()) {
+                TransactionConfidence confidence = tx.getConfidence();
+                if (!transactions.containsKey(tx.getHash())
+                        || confidence.getConfidenceType() != ConfidenceType.BUILDING
+                        || confidence.getAppearedAtChainHeight() != appearedAt)
+                    continue;  // Removed from the wallet or from the best chain since.
+                // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
+                // pending again. We could clear this data the moment a tx is seen in the block chain, but
+                // in cases where the chain re-orgs, this would mean that wallets would perceive a newly
+                // pending tx has zero confidence at all, which would not be right: we expect it to be
+                // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
+                // but this way is backwards compatible with existing software, and the new state probably
+                // wouldn't mean anything different to just remembering peers anyway.
+                if (beyondHorizon)
+                    confidence.clearBroadcastBy();
+                if (!ignoreNextNewBlock.contains(tx.getHash()))
+                    markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+            }
+            if (beyondHorizon)
+                it.remove();
+        }
+        for (TransactionConfidence confidence : depthSubscribers) {
+            Transaction tx = transactions.get(confidence.getTransactionHash());
+            if (tx == null) {
+                depthSubscribers.remove(confidence);  // No longer ours.
+                continue;
+            }
+            if (confidence.getConfidenceType() == ConfidenceType.BUILDING && !ignoreNextNewBlock.contains(tx.getHash()))
+                markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+        }
+    }
+
+    /**
+     * Remembers the given transaction until it passes the event horizon if it's BUILDING, so that it is told about
+     * new blocks until then.
+     */
+    private void trackDepth(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() != ConfidenceType.BUILDING)
+            return;
+        int lastSeenHeight = vLastBlockSeenHeight;
+        int appearedAt = confidence.getAppearedAtChainHeight();
+        if (appearedAt < 0) {
+            // Old wallets may only know the depth, but that's enough to work out the height.
+            int depth = confidence.getDepthInBlocks();
+            if (depth <= 0 || lastSeenHeight - depth + 1 < 0)
+                return;
+            appearedAt = lastSeenHeight - depth + 1;
+            confidence.setAppearedAtChainHeight(appearedAt);
+        }
+        if (lastSeenHeight - appearedAt + 1 > context.getEventHorizon())
+            return;
+        Set<Transaction> txns = recentlyConfirmed.get(appearedAt);
+        if (txns == null) {
+            txns = new HashSet<Transaction>();
+            recentlyConfirmed.put(appearedAt, txns);
+        }
+        txns.add(tx);
+    }
+
     /**
      * Handle when a transaction becomes newly active on the best chain, either due to receiving a new block or a
      * re-org. Places the tx into the right pool, handles coinbase transactions, handles double-spends and so on.
@@ -2324,7 +2645,7 @@ public class Wallet extends BaseTaggableObject
                 maybeMovePool(connected, "prevtx");
                 // Just because it's connected doesn't mean it's actually ours: sometimes we have total visibility.
                 if (output.isMineOrWatched(this)) {
-                    checkState(myUnspents.remove(output));
+                    checkState(removeFromMyUnspents(output));
                 }
             }
         }
@@ -2348,7 +2669,7 @@ public class Wallet extends BaseTaggableObject
 
                     // The unspents map might not have it if we never saw this tx until it was included in the chain
                     // and thus becomes spent the moment we become aware of it.
-                    if (myUnspents.remove(input.getConnectedOutput()))
+                    if (removeFromMyUnspents(input.getConnectedOutput()))
                         log.info("Removed from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2378,17 +2699,17 @@ public class Wallet extends BaseTaggableObject
                 Transaction connected = deadInput.getConnectedTransaction();
                 if (connected == null) continue;
                 if (connected.getConfidence().getConfidenceType() != ConfidenceType.DEAD && deadInput.getConnectedOutput().getSpentBy() != null && deadInput.getConnectedOutput().getSpentBy().equals(deadInput)) {
-                    checkState(myUnspents.add(deadInput.getConnectedOutput()));
+                    checkState(addToMyUnspents(deadInput.getConnectedOutput()));
                     log.info("Added to UNSPENTS: {} in {}", deadInput.getConnectedOutput(), deadInput.getConnectedOutput().getParentTransaction().getHash());
                 }
                 deadInput.disconnect();
                 maybeMovePool(connected, "kill");
             }
             tx.getConfidence().setOverridingTransaction(overridingTx);
-            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
             // Now kill any transactions we have that depended on this one.
             for (TransactionOutput deadOutput : tx.getOutputs()) {
-                if (myUnspents.remove(deadOutput))
+                if (removeFromMyUnspents(deadOutput))
                     log.info("XX Removed from UNSPENTS: {}", deadOutput);
                 TransactionInput connected = deadOutput.getSpentBy();
                 if (connected == null) continue;
@@ -2404,13 +2725,13 @@ public class Wallet extends BaseTaggableObject
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
                 maybeMovePool(input.getConnectedTransaction(), "kill");
-                myUnspents.remove(input.getConnectedOutput());
+                removeFromMyUnspents(input.getConnectedOutput());
                 log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
             } else {
                 result = input.connect(spent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
                 if (result == TransactionInput.ConnectionResult.SUCCESS) {
                     maybeMovePool(input.getConnectedTransaction(), "kill");
-                    myUnspents.remove(input.getConnectedOutput());
+                    removeFromMyUnspents(input.getConnectedOutput());
                     log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2423,6 +2744,8 @@ public class Wallet extends BaseTaggableObject
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        // Called whenever outputs of the transaction were spent or unspent, which is part of what is saved for it.
+        markChangedForJournal(tx.getHash());
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -2482,7 +2805,7 @@ public class Wallet extends BaseTaggableObject
                 // Add tx to the dead pool and schedule confidence listener notifications.
                 log.info("->dead: {}", tx.getHashAsString());
                 tx.getConfidence().setConfidenceType(ConfidenceType.DEAD);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 addWalletTransaction(Pool.DEAD, tx);
             } else if (!doubleSpendPendingTxns.isEmpty() ||
                 !isNotSpendingTxnsInConfidenceType(tx, ConfidenceType.IN_CONFLICT)) {
@@ -2495,7 +2818,7 @@ public class Wallet extends BaseTaggableObject
                 addTransactionsDependingOn(doubleSpendPendingTxns, getTransactions(true));
                 for (Transaction doubleSpendTx : doubleSpendPendingTxns) {
                     doubleSpendTx.getConfidence().setConfidenceType(ConfidenceType.IN_CONFLICT);
-                    confidenceChanged.put(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                    markConfidenceChanged(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 }
             } else {
                 // No conflict detected.
@@ -2506,7 +2829,7 @@ public class Wallet extends BaseTaggableObject
                         (InstantSend.canAutoLock() && tx.isSimple())) //TODO:InstantX - may need to adjust the ones above too?
                     tx.getConfidence().setIXType(IXType.IX_REQUEST);//setConfidenceType(ConfidenceType.INSTANTX_PENDING);
                 //else tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 addWalletTransaction(Pool.PENDING, tx);
             }
             if (log.isInfoEnabled())
@@ -2789,7 +3112,8 @@ public class Wallet extends BaseTaggableObject
             if (registration.executor == Threading.SAME_THREAD) {
                 registration.listener.onTransactionConfidenceChanged(this, tx);
             } else {
-                registration.executor.execute(new Runnable() {
+                // The listener reads the confidence when it runs, so a pending event for the same tx covers this one.
+                Threading.dispatch(registration.executor, registration.listener, tx, new Runnable() {
                     @Override
                     public void run() {
                         registration.listener.onTransactionConfidenceChanged(Wallet.this, tx);
@@ -2806,7 +3130,7 @@ public class Wallet extends BaseTaggableObject
         checkState(onWalletChangedSuppressions >= 0);
         if (onWalletChangedSuppressions > 0) return;
         for (final ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, registration.listener, Wallet.this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onWalletChanged(Wallet.this);
@@ -2818,7 +3142,7 @@ public class Wallet extends BaseTaggableObject
     protected void queueOnCoinsReceived(final Transaction tx, final Coin balance, final Coin newBalance) {
         checkState(lock.isHeldByCurrentThread());
         for (final ListenerRegistration<WalletCoinsReceivedEventListener> registration : coinsReceivedListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, registration.listener, null, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onCoinsReceived(Wallet.this, tx, balance, newBalance);
@@ -2830,7 +3154,7 @@ public class Wallet extends BaseTaggableObject
     protected void queueOnCoinsSent(final Transaction tx, final Coin prevBalance, final Coin newBalance) {
         checkState(lock.isHeldByCurrentThread());
         for (final ListenerRegistration<WalletCoinsSentEventListener> registration : coinsSentListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, registration.listener, null, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onCoinsSent(Wallet.this, tx, prevBalance, newBalance);
@@ -2843,7 +3167,7 @@ public class Wallet extends BaseTaggableObject
         checkState(lock.isHeldByCurrentThread());
         checkState(insideReorg);
         for (final ListenerRegistration<WalletReorganizeEventListener> registration : reorganizeListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, registration.listener, null, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onReorganize(Wallet.this);
@@ -2855,7 +3179,7 @@ public class Wallet extends BaseTaggableObject
 
     protected void queueOnScriptsChanged(final List<Script> scripts, final boolean isAddingScripts) {
         for (final ListenerRegistration<ScriptsChangeEventListener> registration : scriptChangeListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, registration.listener, null, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onScriptsChanged(Wallet.this, scripts, isAddingScripts);
@@ -2875,7 +3199,17 @@ public class Wallet extends BaseTaggableObject
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
-        lock.lock();
+        PoolSnapshot snapshot = getPoolSnapshot();
+        if (snapshot != null) {
+            Set<Transaction> all = new HashSet<Transaction>();
+            all.addAll(snapshot.unspent.values());
+            all.addAll(snapshot.spent.values());
+            all.addAll(snapshot.pending.values());
+            if (includeDead)
+                all.addAll(snapshot.dead.values());
+            return all;
+        }
+        readLock.lock();
         try {
             Set<Transaction> all = new HashSet<Transaction>();
             all.addAll(unspent.values());
@@ -2885,7 +3219,7 @@ public class Wallet extends BaseTaggableObject
                 all.addAll(dead.values());
             return all;
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -2893,7 +3227,7 @@ public class Wallet extends BaseTaggableObject
      * Returns a set of all WalletTransactions in the wallet.
      */
     public Iterable<WalletTransaction> getWalletTransactions() {
-        lock.lock();
+        readLock.lock();
         try {
             Set<WalletTransaction> all = new HashSet<WalletTransaction>();
             addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
@@ -2902,7 +3236,7 @@ public class Wallet extends BaseTaggableObject
             addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
             return all;
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -2955,12 +3289,17 @@ public class Wallet extends BaseTaggableObject
         if (pool == Pool.UNSPENT || pool == Pool.PENDING) {
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.isAvailableForSpending() && output.isMineOrWatched(this))
-                    myUnspents.add(output);
+                    addToMyUnspents(output);
             }
         }
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
-        tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
+        // The listener doesn't care about depth changes, so new blocks don't have to visit every transaction for it.
+        tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener, false);
+        tx.getConfidence().addDepthSubscriptionListener(depthSubscriptionListener);
+        depthSubscriptionListener.onDepthSubscriptionChanged(tx.getConfidence());
+        trackDepth(tx);
+        markChangedForJournal(tx.getHash());
     }
 
     /**
@@ -2979,7 +3318,7 @@ public class Wallet extends BaseTaggableObject
      * depending on how the wallet is implemented (eg if backed by a database).
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
-        lock.lock();
+        readLock.lock();
         try {
             checkArgument(numTransactions >= 0);
             // Firstly, put all transactions into an array.
@@ -2997,7 +3336,7 @@ public class Wallet extends BaseTaggableObject
                 return all;
             }
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -3006,17 +3345,27 @@ public class Wallet extends BaseTaggableObject
      */
     @Nullable
     public Transaction getTransaction(Sha256Hash hash) {
-        lock.lock();
+        readLock.lock();
         try {
             return transactions.get(hash);
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Returns an immutable copy of the pool as of the last change, unless the calling thread holds the wallet lock,
+     * in which case it gets the pool itself. Earlier versions always returned the pool itself: callers that kept the
+     * map around to watch it change have to call this again instead, and callers must not modify it.</p>
+     */
     @Override
     public Map<Sha256Hash, Transaction> getTransactionPool(Pool pool) {
-        lock.lock();
+        PoolSnapshot snapshot = getPoolSnapshot();
+        if (snapshot != null)
+            return snapshot.get(pool);
+        readLock.lock();
         try {
             switch (pool) {
                 case UNSPENT:
@@ -3033,7 +3382,7 @@ public class Wallet extends BaseTaggableObject
                     throw new RuntimeException("Unknown wallet transaction type " + pool);
             }
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -3047,7 +3396,7 @@ public class Wallet extends BaseTaggableObject
         try {
             clearTransactions();
             lastBlockSeenHash = null;
-            lastBlockSeenHeight = -1; // Magic value for 'never'.
+            vLastBlockSeenHeight = -1; // Magic value for 'never'.
             lastBlockSeenTimeSecs = 0;
             saveLater();
             maybeQueueOnWalletChanged();
@@ -3075,13 +3424,94 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    private boolean addToMyUnspents(TransactionOutput output) {
+        checkState(lock.isHeldByCurrentThread());
+        if (!myUnspents.add(output))
+            return false;
+        myUnspentsValue += output.getValue().value;
+        if (!canSignFor(output.getScriptPubKey())) {
+            myUnsignableUnspents.add(output);
+            myUnsignableUnspentsValue += output.getValue().value;
+        }
+        invalidateBalances();
+        return true;
+    }
+
+    private boolean removeFromMyUnspents(TransactionOutput output) {
+        checkState(lock.isHeldByCurrentThread());
+        if (!myUnspents.remove(output))
+            return false;
+        myUnspentsValue -= output.getValue().value;
+        if (myUnsignableUnspents.remove(output))
+            myUnsignableUnspentsValue -= output.getValue().value;
+        invalidateBalances();
+        return true;
+    }
+
+    // Works out again which of myUnspents we can't sign for, if keys were added or removed since the last time.
+    private void maybeUpdateUnsignableUnspents() {
+        checkState(lock.isHeldByCurrentThread());
+        if (!vKeysChanged)
+            return;
+        // Cleared first, so that keys changing whilst we're at it cause another update.
+        vKeysChanged = false;
+        myUnsignableUnspents.clear();
+        myUnsignableUnspentsValue = 0;
+        for (TransactionOutput output : myUnspents) {
+            if (!canSignFor(output.getScriptPubKey())) {
+                myUnsignableUnspents.add(output);
+                myUnsignableUnspentsValue += output.getValue().value;
+            }
+        }
+        invalidateBalances();
+    }
+
+    // Forgets the AVAILABLE balances, and makes the next snapshot start without them.
+    private void invalidateBalances() {
+        availableBalances.clear();
+        balancesChanged = true;
+    }
+
+    /** Returns the snapshot to answer queries from, or null if the calling thread has to look at the pools itself. */
+    @Nullable
+    private PoolSnapshot getPoolSnapshot() {
+        // Whilst changing the wallet, a thread must see its own changes.
+        return lock.isHeldByCurrentThread() ? null : vPoolSnapshot;
+    }
+
+    // Publishes the current pools, copying only what changed. Of the balances only those kept as running totals are
+    // filled in, the others are worked out when first asked for.
+    private void publishPoolSnapshot() {
+        checkState(lock.getHoldCount() == 1);
+        PoolSnapshot previous = vPoolSnapshot;
+        ConcurrentMap<BalanceType, Coin> balances;
+        if (previous != null && !balancesChanged) {
+            balances = previous.balances;
+        } else {
+            balances = new ConcurrentHashMap<BalanceType, Coin>();
+            balances.put(BalanceType.ESTIMATED, Coin.valueOf(myUnspentsValue));
+            if (!vKeysChanged)
+                balances.put(BalanceType.ESTIMATED_SPENDABLE, Coin.valueOf(myUnspentsValue - myUnsignableUnspentsValue));
+        }
+        vPoolSnapshot = new PoolSnapshot(unspent.snapshot(), spent.snapshot(), pending.snapshot(), dead.snapshot(),
+                balances);
+        balancesChanged = false;
+    }
+
     private void clearTransactions() {
+        if (journalChanges != null)
+            journalChanges.addAll(transactions.keySet());
         unspent.clear();
         spent.clear();
         pending.clear();
         dead.clear();
         transactions.clear();
         myUnspents.clear();
+        myUnspentsValue = 0;
+        myUnsignableUnspents.clear();
+        myUnsignableUnspentsValue = 0;
+        invalidateBalances();
+        recentlyConfirmed.clear();
     }
 
     /**
@@ -3095,7 +3525,7 @@ public class Wallet extends BaseTaggableObject
         try {
             LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
             for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
+                if (excludeImmatureCoinbases && !isMature(tx)) continue;
                 for (TransactionOutput output : tx.getOutputs()) {
                     if (!output.isAvailableForSpending()) continue;
                     try {
@@ -3132,14 +3562,16 @@ public class Wallet extends BaseTaggableObject
                             TransactionOutput output = input.getConnectedOutput();
                             if (output == null) continue;
                             if (output.isMineOrWatched(this))
-                                checkState(myUnspents.add(output));
+                                checkState(addToMyUnspents(output));
+                            markChangedForJournal(input.getOutpoint().getHash());
                             input.disconnect();
                         }
                         for (TransactionOutput output : tx.getOutputs())
-                            myUnspents.remove(output);
+                            removeFromMyUnspents(output);
 
                         i.remove();
                         transactions.remove(tx.getHash());
+                        markChangedForJournal(tx.getHash());
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -3185,7 +3617,7 @@ public class Wallet extends BaseTaggableObject
 
     @VisibleForTesting
     public int getPoolSize(WalletTransaction.Pool pool) {
-        lock.lock();
+        readLock.lock();
         try {
             switch (pool) {
                 case UNSPENT:
@@ -3199,13 +3631,13 @@ public class Wallet extends BaseTaggableObject
             }
             throw new RuntimeException("Unreachable");
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
     @VisibleForTesting
     public boolean poolContainsTxHash(final WalletTransaction.Pool pool, final Sha256Hash txHash) {
-        lock.lock();
+        readLock.lock();
         try {
             switch (pool) {
                 case UNSPENT:
@@ -3219,17 +3651,17 @@ public class Wallet extends BaseTaggableObject
             }
             throw new RuntimeException("Unreachable");
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
     /** Returns a copy of the internal unspent outputs list */
     public List<TransactionOutput> getUnspents() {
-        lock.lock();
+        readLock.lock();
         try {
             return new ArrayList<TransactionOutput>(myUnspents);
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -3352,11 +3784,11 @@ public class Wallet extends BaseTaggableObject
      * Returns an immutable view of the transactions currently waiting for network confirmations.
      */
     public Collection<Transaction> getPendingTransactions() {
-        lock.lock();
+        readLock.lock();
         try {
             return Collections.unmodifiableCollection(pending.values());
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -3390,11 +3822,11 @@ public class Wallet extends BaseTaggableObject
     /** Returns the hash of the last seen best-chain block, or null if the wallet is too old to store this data. */
     @Nullable
     public Sha256Hash getLastBlockSeenHash() {
-        lock.lock();
+        readLock.lock();
         try {
             return lastBlockSeenHash;
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -3410,7 +3842,9 @@ public class Wallet extends BaseTaggableObject
     public void setLastBlockSeenHeight(int lastBlockSeenHeight) {
         lock.lock();
         try {
-            this.lastBlockSeenHeight = lastBlockSeenHeight;
+            this.vLastBlockSeenHeight = lastBlockSeenHeight;
+            // Coinbases may have matured.
+            invalidateBalances();
         } finally {
             lock.unlock();
         }
@@ -3433,11 +3867,11 @@ public class Wallet extends BaseTaggableObject
      * time then this method returns zero.
      */
     public long getLastBlockSeenTimeSecs() {
-        lock.lock();
+        readLock.lock();
         try {
             return lastBlockSeenTimeSecs;
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -3462,12 +3896,21 @@ public class Wallet extends BaseTaggableObject
      * is old and doesn't have that data.
      */
     public int getLastBlockSeenHeight() {
-        lock.lock();
-        try {
-            return lastBlockSeenHeight;
-        } finally {
-            lock.unlock();
-        }
+        return vLastBlockSeenHeight;
+    }
+
+    /**
+     * Returns the depth of the given transaction as this wallet sees it, that is in the chain up to the last block it
+     * has seen. This can differ from {@link TransactionConfidence#getDepthInBlocks()}, which counts from the head of
+     * the best chain, if the wallet isn't in sync with the block chain.
+     */
+    public int getDepthInBlocks(Transaction tx) {
+        return tx.getConfidence().getDepthInBlocks(vLastBlockSeenHeight);
+    }
+
+    // Whether a coinbase can be spent yet, judged by the last block this wallet has seen.
+    private boolean isMature(Transaction tx) {
+        return tx.isMature(vLastBlockSeenHeight);
     }
 
     /**
@@ -3565,20 +4008,66 @@ public class Wallet extends BaseTaggableObject
      * Returns the balance of this wallet as calculated by the provided balanceType.
      */
     public Coin getBalance(BalanceType balanceType) {
+        // Usually the last snapshot answers this without locking.
+        PoolSnapshot snapshot = getPoolSnapshot();
+        if (snapshot != null && vUTXOProvider == null && !vKeysChanged) {
+            Coin balance = snapshot.balances.get(balanceType);
+            if (balance != null)
+                return balance;
+        }
         lock.lock();
         try {
-            if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
-                List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
-                CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
-                return selection.valueGathered;
-            } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
-                List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
-                Coin value = Coin.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+            if (vUTXOProvider != null)
+                return calculateBalance(balanceType);
+            maybeUpdateUnsignableUnspents();
+            Coin balance;
+            if (balanceType == BalanceType.ESTIMATED) {
+                balance = Coin.valueOf(myUnspentsValue);
+            } else if (balanceType == BalanceType.ESTIMATED_SPENDABLE) {
+                balance = Coin.valueOf(myUnspentsValue - myUnsignableUnspentsValue);
+            } else {
+                balance = availableBalances.get(balanceType);
+                if (balance == null) {
+                    balance = calculateBalance(balanceType);
+                    availableBalances.put(balanceType, balance);
+                }
+            }
+            // Nothing that affects the balances changed since the last snapshot, so it can answer this from now on.
+            PoolSnapshot current = vPoolSnapshot;
+            if (!balancesChanged && current != null)
+                current.balances.put(balanceType, balance);
+            return balance;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Works out the balance of the given type from scratch, without the running totals and the index of outputs we
+     * can't sign for that {@link #getBalance(BalanceType)} uses.
+     */
+    @VisibleForTesting
+    Coin calculateBalance(BalanceType balanceType) {
+        lock.lock();
+        try {
+            boolean available = balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE;
+            boolean spendable = balanceType == BalanceType.AVAILABLE_SPENDABLE || balanceType == BalanceType.ESTIMATED_SPENDABLE;
+            List<TransactionOutput> candidates;
+            if (vUTXOProvider == null) {
+                candidates = new ArrayList<TransactionOutput>(myUnspents.size());
+                for (TransactionOutput output : myUnspents) {
+                    if (spendable && !canSignFor(output.getScriptPubKey())) continue;
+                    if (available && !isMature(checkNotNull(output.getParentTransaction()))) continue;
+                    candidates.add(output);
+                }
             } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
+                candidates = calculateAllSpendCandidatesFromUTXOProvider(available);
             }
+            if (available)
+                return coinSelector.select(NetworkParameters.MAX_MONEY, candidates).valueGathered;
+            Coin value = Coin.ZERO;
+            for (TransactionOutput out : candidates) value = value.add(out.getValue());
+            return value;
         } finally {
             lock.unlock();
         }
@@ -4196,11 +4685,12 @@ public class Wallet extends BaseTaggableObject
         try {
             List<TransactionOutput> candidates;
             if (vUTXOProvider == null) {
+                maybeUpdateUnsignableUnspents();
                 candidates = new ArrayList<TransactionOutput>(myUnspents.size());
                 for (TransactionOutput output : myUnspents) {
-                    if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
+                    if (excludeUnsignable && myUnsignableUnspents.contains(output)) continue;
                     Transaction transaction = checkNotNull(output.getParentTransaction());
-                    if (excludeImmatureCoinbases && !transaction.isMature())
+                    if (excludeImmatureCoinbases && !isMature(transaction))
                         continue;
                     candidates.add(output);
                 }
@@ -4281,7 +4771,7 @@ public class Wallet extends BaseTaggableObject
                 }
             }
             // Add change outputs. Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-            if (!excludeImmatureCoinbases || tx.isMature()) {
+            if (!excludeImmatureCoinbases || isMature(tx)) {
                 for (TransactionOutput output : tx.getOutputs()) {
                     if (output.isAvailableForSpending() && output.isMine(this)) {
                         candidates.add(output);
@@ -4331,6 +4821,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            invalidateBalances();
         } finally {
             lock.unlock();
         }
@@ -4372,6 +4863,7 @@ public class Wallet extends BaseTaggableObject
         try {
             checkArgument(provider == null || provider.getParams().equals(params));
             this.vUTXOProvider = provider;
+            invalidateBalances();
         } finally {
             lock.unlock();
         }
@@ -4528,7 +5020,7 @@ public class Wallet extends BaseTaggableObject
                             TransactionInput input = output.getSpentBy();
                             if (input != null) {
                                 if (output.isMineOrWatched(this))
-                                    checkState(myUnspents.add(output));
+                                    checkState(addToMyUnspents(output));
                                 input.disconnect();
                             }
                         }
@@ -4549,7 +5041,7 @@ public class Wallet extends BaseTaggableObject
                 log.info("  ->pending {}", tx.getHash());
 
                 tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);  // Wipe height/depth/work data.
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 addWalletTransaction(Pool.PENDING, tx);
                 updateForSpends(tx, false);
             }
@@ -4559,18 +5051,11 @@ public class Wallet extends BaseTaggableObject
             // doesn't matter - the miners deleted T1 from their mempool, will resurrect T2 and put that into the
             // mempool and so T1 is still seen as a losing double spend.
 
-            // The old blocks have contributed to the depth for all the transactions in the
-            // wallet that are in blocks up to and including the chain split block.
-            // The total depth is calculated here and then subtracted from the appropriate transactions.
-            int depthToSubtract = oldBlocks.size();
-            log.info("depthToSubtract = " + depthToSubtract);
-            // Remove depthToSubtract from all transactions in the wallet except for pending.
-            subtractDepth(depthToSubtract, spent.values());
-            subtractDepth(depthToSubtract, unspent.values());
-            subtractDepth(depthToSubtract, dead.values());
-
-            // The effective last seen block is now the split point so set the lastSeenBlockHash.
+            // The effective last seen block is now the split point so set the lastSeenBlockHash. The depth of the
+            // transactions that stay in the best chain follows from the height of the new chain by itself.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
+            setLastBlockSeenHeight(splitPoint.getHeight());
+            queueDepthChanges(splitPoint.getHeight());
 
             // For each block in the new chain, work forwards calling receive() and notifyNewBestBlock().
             // This will pull them back out of the pending pool, or if the tx didn't appear in the old chain and
@@ -4604,18 +5089,6 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
-    /**
-     * Subtract the supplied depth from the given transactions.
-     */
-    private void subtractDepth(int depthToSubtract, Collection<Transaction> transactions) {
-        for (Transaction tx : transactions) {
-            if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-            }
-        }
-    }
-
     //endregion
 
     /******************************************************************************************************************/
@@ -4731,16 +5204,9 @@ public class Wallet extends BaseTaggableObject
         beginBloomFilterCalculation();
         try {
             BloomFilter filter = keyChainGroup.getBloomFilter(size, falsePositiveRate, nTweak);
-            for (Script script : watchedScripts) {
-                for (ScriptChunk chunk : script.getChunks()) {
-                    // Only add long (at least 64 bit) data to the bloom filter.
-                    // If any long constants become popular in scripts, we will need logic
-                    // here to exclude them.
-                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
-                    }
-                }
-            }
+            for (Script script : watchedScripts)
+                for (byte[] data : getBloomFilterData(script))
+                    filter.insert(data);
             for (TransactionOutPoint point : bloomOutPoints)
                 filter.insert(point.unsafeBitcoinSerialize());
             return filter;
@@ -4749,6 +5215,44 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    private static List<byte[]> getBloomFilterData(Script script) {
+        List<byte[]> data = new ArrayList<byte[]>();
+        for (ScriptChunk chunk : script.getChunks()) {
+            // Only add long (at least 64 bit) data to the bloom filter.
+            // If any long constants become popular in scripts, we will need logic
+            // here to exclude them.
+            if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
+                data.add(chunk.data);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Returns what {@link #getBloomFilter(int, double, long)} inserts into the filter for the given newly added keys
+     * and watched scripts, so that a filter calculated before they were added can be brought up to date without
+     * inserting everything again. Returns null if that can't be worked out from the keys alone, which is the case
+     * for married key chains as their filter holds the hashes of P2SH scripts.
+     */
+    @Nullable
+    public List<byte[]> getBloomFilterElements(List<? extends ECKey> keys, List<Script> scripts) {
+        keyChainGroupLock.lock();
+        try {
+            if (!keys.isEmpty() && keyChainGroup.hasMarriedKeyChain())
+                return null;
+            List<byte[]> elements = new ArrayList<byte[]>(keys.size() * 2);
+            for (ECKey key : keys) {
+                elements.add(key.getPubKey());
+                elements.add(key.getPubKeyHash());
+            }
+            for (Script script : scripts)
+                elements.addAll(getBloomFilterData(script));
+            return elements;
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         Script script = out.getScriptPubKey();
@@ -5387,8 +5891,10 @@ public class Wallet extends BaseTaggableObject
         try {
             keyChainGroupLock.lock();
 
-            if(!hasKeyChain(path))
+            if(!hasKeyChain(path)) {
                 keyChainGroup.addAndActivateHDChain(new DeterministicKeyChain(getKeyChainSeed(), path));
+                vKeysChanged = true;
+            }
         }
         finally {
             keyChainGroupLock.unlock();
@@ -33,10 +33,13 @@ import java.util.concurrent.atomic.*;
 import static com.google.common.base.Preconditions.*;
 
 /**
- * A class that handles atomic and optionally delayed writing of the wallet file to disk. In future: backups too.
+ * <p>A class that handles atomic and optionally delayed writing of the wallet file to disk. In future: backups too.
  * It can be useful to delay writing of a wallet file to disk on slow devices where disk and serialization overhead
  * can come to dominate the chain processing speed, i.e. on Android phones. By coalescing writes and doing serialization
- * and disk IO on a background thread performance can be improved.
+ * and disk IO on a background thread performance can be improved.</p>
+ *
+ * <p>For large wallets, {@link #enableJournal()} makes saves append only what changed to a {@link WalletJournal}, and
+ * the wallet file is only written in full from time to time.</p>
  */
 public class WalletFiles {
     private static final Logger log = LoggerFactory.getLogger(WalletFiles.class);
@@ -51,6 +54,14 @@ public class WalletFiles {
 
     private volatile Listener vListener;
 
+    /** The journal is compacted once it's larger than this, or than half the wallet file if that's larger. */
+    public static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    @Nullable private volatile WalletJournal vJournal;
+    private volatile long vWalletFileSize;
+    private final AtomicBoolean compactionPending = new AtomicBoolean();
+    private final Runnable compactor;
+
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
      */
@@ -101,6 +112,20 @@ public class WalletFiles {
                 return null;
             }
         };
+        this.compactor = new Runnable() {
+            @Override public void run() {
+                // Runs in an auto save thread.
+                try {
+                    WalletJournal journal = vJournal;
+                    if (journal != null)
+                        saveSnapshot(journal);
+                } catch (IOException e) {
+                    log.error("Failed to compact wallet journal", e);
+                } finally {
+                    compactionPending.set(false);
+                }
+            }
+        };
     }
 
     /** Get the {@link Wallet} this {@link WalletFiles} is managing. */
@@ -109,7 +134,53 @@ public class WalletFiles {
     }
 
     /**
-     * The given listener will be called on the autosave thread before and after the wallet is saved to disk.
+     * <p>Makes further saves append the changes since the last one to a journal next to the wallet file, so that
+     * saving takes time proportional to what changed rather than to the size of the wallet. The wallet file is
+     * written in full first, and again on the auto-save thread whenever the journal grows larger than half of it
+     * (and at least {@link #MIN_COMPACTION_BYTES}), after which the journal starts over.</p>
+     *
+     * <p>{@link Wallet#loadFromFile(File, WalletExtension...)} applies the journal when loading the wallet file.
+     * Changes made to transactions by the application, such as setting a memo, are only saved with the next full
+     * write of the wallet file.</p>
+     */
+    public void enableJournal() throws IOException {
+        checkState(vJournal == null, "Journal already enabled");
+        WalletJournal journal = new WalletJournal(WalletJournal.fileFor(file));
+        saveSnapshot(journal);
+        vJournal = journal;
+    }
+
+    /**
+     * Returns the journal if one is enabled and the given file is the wallet file it goes with, or null otherwise.
+     * Whole saves of that file must start the journal over, or later records would be ignored when loading.
+     */
+    @Nullable
+    WalletJournal getJournalFor(File destFile) throws IOException {
+        WalletJournal journal = vJournal;
+        if (journal == null || !file.getCanonicalFile().equals(destFile.getCanonicalFile()))
+            return null;
+        return journal;
+    }
+
+    // Writes the whole wallet file and starts the journal over.
+    private void saveSnapshot(WalletJournal journal) throws IOException {
+        final Stopwatch watch = Stopwatch.createStarted();
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("wallet", null, directory);
+        final Listener listener = vListener;
+        if (listener != null)
+            listener.onBeforeAutoSave(temp);
+        wallet.saveSnapshot(temp, file, journal);
+        vWalletFileSize = file.length();
+        if (listener != null)
+            listener.onAfterAutoSave(file);
+        watch.stop();
+        log.info("Save completed in {}, journal restarted", watch);
+    }
+
+    /**
+     * The given listener will be called on the autosave thread before and after the wallet is saved to disk. When a
+     * journal is used, it's only called when the wallet file is written in full.
      */
     public void setListener(@Nonnull Listener listener) {
         this.vListener = checkNotNull(listener);
@@ -130,6 +201,18 @@ public class WalletFiles {
 
     private void saveNowInternal() throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
+        WalletJournal journal = vJournal;
+        if (journal != null) {
+            int records = wallet.writeJournal(journal);
+            // Outside the wallet lock if we're on the auto-save thread, so other savers can share the fsync.
+            journal.sync();
+            watch.stop();
+            log.info("Journaled {} changes in {}", records, watch);
+            if (journal.size() > Math.max(MIN_COMPACTION_BYTES, vWalletFileSize / 2)
+                    && !executor.isShutdown() && !compactionPending.getAndSet(true))
+                executor.execute(compactor);
+            return;
+        }
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
@@ -157,5 +240,13 @@ public class WalletFiles {
         } catch (InterruptedException x) {
             throw new RuntimeException(x);
         }
+        WalletJournal journal = vJournal;
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.error("Failed to close wallet journal", e);
+            }
+        }
     }
 }
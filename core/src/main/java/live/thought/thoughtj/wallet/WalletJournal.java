@@ -0,0 +1,276 @@
+package live.thought.thoughtj.wallet;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import live.thought.thoughtj.core.Sha256Hash;
+import live.thought.thoughtj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>An append-only log of the changes made to a wallet since its file was last written in full. Each record holds
+ * either a transaction as it is now, the hash of a transaction that was removed, or the rest of the wallet (keys,
+ * scripts, extensions and so on) when that changed. Loading the wallet file and then applying the records gives the
+ * wallet as it was when the last record was written.</p>
+ *
+ * <p>The journal starts with the hash of the wallet file it applies to, so one left over from before the wallet file
+ * was replaced is ignored. Records are checksummed, and a record that was only partly written when the process died
+ * ends the journal.</p>
+ *
+ * <p>Records are written as they are appended but only forced to disk by {@link #sync()}. Threads that sync at the
+ * same time share a single fsync.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    private static final byte[] MAGIC = "thoughtj-journal".getBytes();
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 4 + Sha256Hash.LENGTH;
+    // Protects against reading garbage lengths from a damaged journal.
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    private static final byte RECORD_TRANSACTION = 1;
+    private static final byte RECORD_REMOVED_TRANSACTION = 2;
+    private static final byte RECORD_WALLET = 3;
+
+    private final ReentrantLock lock = Threading.lock("walletjournal");
+    private final Object syncLock = new Object();
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    // Bytes appended since the journal was opened, across resets. Syncs compare against this.
+    @GuardedBy("lock") private long appended;
+    @GuardedBy("syncLock") private long synced;
+    // Hash of the last wallet record, so that it's only written again when it changed.
+    @GuardedBy("lock") @Nullable private Sha256Hash lastWalletRecordHash;
+
+    /** Returns the journal that goes with the given wallet file. */
+    public static File fileFor(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /**
+     * Opens the given journal file for writing. Nothing is written before {@link #reset(Sha256Hash)} is called, which
+     * discards whatever the file contained.
+     */
+    public WalletJournal(File file) throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+    }
+
+    /**
+     * Discards all records and starts a journal for the wallet file with the given hash. This is forced to disk
+     * straight away.
+     */
+    public void reset(Sha256Hash walletFileHash) throws IOException {
+        lock.lock();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.put(MAGIC).putInt(VERSION).put(walletFileHash.getBytes());
+            header.flip();
+            channel.truncate(0);
+            channel.position(0);
+            while (header.hasRemaining())
+                channel.write(header);
+            channel.force(true);
+            lastWalletRecordHash = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Appends the given transaction as it is now, replacing any earlier state of it. */
+    public void appendTransaction(Protos.Transaction tx) throws IOException {
+        append(RECORD_TRANSACTION, tx.toByteArray());
+    }
+
+    /** Appends the removal of the transaction with the given hash. */
+    public void appendRemovedTransaction(Sha256Hash txHash) throws IOException {
+        append(RECORD_REMOVED_TRANSACTION, txHash.getBytes());
+    }
+
+    /**
+     * Appends everything but the transactions of the wallet, unless it's the same as last time.
+     *
+     * @param wallet the wallet without transactions.
+     * @return whether a record was appended.
+     */
+    public boolean appendWalletIfChanged(Protos.Wallet wallet) throws IOException {
+        checkState(wallet.getTransactionCount() == 0);
+        byte[] bytes = wallet.toByteArray();
+        Sha256Hash hash = Sha256Hash.of(bytes);
+        lock.lock();
+        try {
+            if (hash.equals(lastWalletRecordHash))
+                return false;
+            append(RECORD_WALLET, bytes);
+            lastWalletRecordHash = hash;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void append(byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(4 + 1 + payload.length + 4);
+        record.putInt(1 + payload.length).put(type).put(payload).putInt((int) crc.getValue());
+        record.flip();
+        lock.lock();
+        try {
+            channel.position(channel.size());
+            while (record.hasRemaining())
+                channel.write(record);
+            appended += record.limit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces everything appended so far to disk. If another thread is already doing so, waits for it and only forces
+     * again if something was appended in the meantime.
+     */
+    public void sync() throws IOException {
+        long target;
+        lock.lock();
+        try {
+            target = appended;
+        } finally {
+            lock.unlock();
+        }
+        synchronized (syncLock) {
+            if (synced >= target)
+                return;  // Somebody else's sync covered our records.
+            long upTo;
+            lock.lock();
+            try {
+                upTo = appended;
+            } finally {
+                lock.unlock();
+            }
+            channel.force(false);
+            synced = upTo;
+        }
+    }
+
+    /** Returns the length of the journal in bytes. */
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            channel.close();
+            raf.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies the records of the given journal to the wallet read from the wallet file. If the journal was written for
+     * a different wallet file it's ignored, and the wallet is returned as it is.
+     *
+     * @param wallet the wallet read from the wallet file.
+     * @param walletFileHash the hash of the contents of the wallet file.
+     */
+    public static Protos.Wallet replay(Protos.Wallet wallet, Sha256Hash walletFileHash, File journalFile)
+            throws IOException {
+        DataInputStream input = new DataInputStream(new FileInputStream(journalFile));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            byte[] hash = new byte[Sha256Hash.LENGTH];
+            try {
+                input.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC) || input.readInt() != VERSION)
+                    throw new IOException("Not a wallet journal: " + journalFile);
+                input.readFully(hash);
+            } catch (EOFException e) {
+                log.warn("Ignoring truncated wallet journal {}", journalFile);
+                return wallet;
+            }
+            if (!walletFileHash.equals(Sha256Hash.wrap(hash))) {
+                log.info("Ignoring wallet journal {} that was written for an older wallet file", journalFile);
+                return wallet;
+            }
+
+            Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<ByteString, Protos.Transaction>();
+            for (Protos.Transaction tx : wallet.getTransactionList())
+                transactions.put(tx.getHash(), tx);
+            Protos.Wallet.Builder result = wallet.toBuilder().clearTransaction();
+            int records = 0;
+            while (true) {
+                byte[] record = readRecord(input);
+                if (record == null)
+                    break;
+                byte[] payload = Arrays.copyOfRange(record, 1, record.length);
+                switch (record[0]) {
+                case RECORD_TRANSACTION:
+                    Protos.Transaction tx = Protos.Transaction.parseFrom(payload);
+                    transactions.put(tx.getHash(), tx);
+                    break;
+                case RECORD_REMOVED_TRANSACTION:
+                    transactions.remove(ByteString.copyFrom(payload));
+                    break;
+                case RECORD_WALLET:
+                    result = Protos.Wallet.parseFrom(payload).toBuilder();
+                    break;
+                default:
+                    throw new IOException("Unknown wallet journal record type " + record[0]);
+                }
+                records++;
+            }
+            log.info("Replayed {} wallet journal records", records);
+            return result.addAllTransaction(transactions.values()).build();
+        } catch (InvalidProtocolBufferException e) {
+            throw new IOException("Corrupt wallet journal record", e);
+        } finally {
+            input.close();
+        }
+    }
+
+    // Returns the type and payload of the next record, or null at the end of the journal or a torn record.
+    @Nullable
+    private static byte[] readRecord(DataInputStream input) throws IOException {
+        try {
+            int length = input.readInt();
+            if (length < 1 || length > MAX_RECORD_LENGTH) {
+                log.warn("Wallet journal ends with a damaged record");
+                return null;
+            }
+            byte[] record = new byte[length];
+            input.readFully(record);
+            int checksum = input.readInt();
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            if ((int) crc.getValue() != checksum) {
+                log.warn("Wallet journal ends with a damaged record");
+                return null;
+            }
+            return record;
+        } catch (EOFException e) {
+            return null;  // The end, or a record that wasn't completely written.
+        }
+    }
+}
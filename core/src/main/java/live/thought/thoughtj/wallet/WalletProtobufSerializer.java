@@ -30,6 +30,7 @@ import live.thought.thoughtj.crypto.KeyCrypterScrypt;
 import live.thought.thoughtj.script.Script;
 import live.thought.thoughtj.signers.LocalTransactionSigner;
 import live.thought.thoughtj.signers.TransactionSigner;
+import live.thought.thoughtj.utils.ContextPropagatingThreadFactory;
 import live.thought.thoughtj.utils.ExchangeRate;
 import live.thought.thoughtj.utils.Fiat;
 import live.thought.thoughtj.wallet.Protos.Wallet.EncryptionType;
@@ -45,7 +46,13 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -78,6 +85,8 @@ public class WalletProtobufSerializer {
     protected Map<ByteString, Transaction> txMap;
 
     private boolean requireMandatoryExtensions = true;
+    private int loadingThreads = 1;
+    private int trustedHashDepth = -1;
 
     public interface WalletFactory {
         Wallet create(NetworkParameters params, KeyChainGroup keyChainGroup);
@@ -114,6 +123,27 @@ public class WalletProtobufSerializer {
         requireMandatoryExtensions = value;
     }
 
+    /**
+     * Sets how many threads are used to read a wallet. With more than one, the key chains are read whilst the
+     * transactions are parsed, and the transactions are split into batches that are parsed in parallel. They are
+     * still added to the wallet in the order of the file. The default is one, which reads everything on the calling
+     * thread.
+     */
+    public void setLoadingThreads(int threads) {
+        checkArgument(threads > 0);
+        loadingThreads = threads;
+    }
+
+    /**
+     * Transactions in the spent pool that are buried at least this many blocks deep are given the hash stored in the
+     * wallet file instead of being serialized and hashed to check it. Their serialized form is then only computed when
+     * something needs it, such as saving the wallet. Old, fully spent history is most of a large wallet, and nothing
+     * about it changes once it's buried. The default is -1, which checks every transaction.
+     */
+    public void setTrustedHashDepth(int depth) {
+        trustedHashDepth = depth;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *
@@ -141,15 +171,22 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        return walletToProto(wallet, true);
+    }
+
+    /** Converts the given wallet like {@link #walletToProto(Wallet)}, but optionally leaves out the transactions. */
+    Protos.Wallet walletToProto(Wallet wallet, boolean includeTransactions) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
-            Protos.Transaction txProto = makeTxProto(wtx);
-            walletBuilder.addTransaction(txProto);
+        if (includeTransactions) {
+            for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+                Protos.Transaction txProto = makeTxProto(wtx, wallet.getLastBlockSeenHeight());
+                walletBuilder.addTransaction(txProto);
+            }
         }
 
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
@@ -228,7 +265,8 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    // The depth is written as seen from the given height, the last block seen by the wallet.
+    static Protos.Transaction makeTxProto(WalletTransaction wtx, int chainHeight) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -284,7 +322,7 @@ public class WalletProtobufSerializer {
         if (tx.hasConfidence()) {
             TransactionConfidence confidence = tx.getConfidence();
             Protos.TransactionConfidence.Builder confidenceBuilder = Protos.TransactionConfidence.newBuilder();
-            writeConfidence(txBuilder, confidence, confidenceBuilder);
+            writeConfidence(txBuilder, confidence, confidenceBuilder, chainHeight);
         }
 
         Protos.Transaction.Purpose purpose;
@@ -332,12 +370,13 @@ public class WalletProtobufSerializer {
 
     private static void writeConfidence(Protos.Transaction.Builder txBuilder,
                                         TransactionConfidence confidence,
-                                        Protos.TransactionConfidence.Builder confidenceBuilder) {
+                                        Protos.TransactionConfidence.Builder confidenceBuilder,
+                                        int chainHeight) {
         synchronized (confidence) {
             confidenceBuilder.setType(Protos.TransactionConfidence.Type.valueOf(confidence.getConfidenceType().getValue()));
             if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
                 confidenceBuilder.setAppearedAtHeight(confidence.getAppearedAtChainHeight());
-                confidenceBuilder.setDepth(confidence.getDepthInBlocks());
+                confidenceBuilder.setDepth(confidence.getDepthInBlocks(chainHeight));
             }
             if (confidence.getConfidenceType() == ConfidenceType.DEAD) {
                 // Copy in the overriding transaction, if available.
@@ -481,14 +520,34 @@ public class WalletProtobufSerializer {
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
             throw new UnreadableWalletException.WrongNetwork();
 
-        // Read the scrypt parameters that specify how encryption and decryption is performed.
+        ExecutorService executor = loadingThreads > 1 ? Executors.newFixedThreadPool(loadingThreads,
+                new ContextPropagatingThreadFactory("wallet loading")) : null;
+        try {
+            return readWallet(params, extensions, walletProto, forceReset, executor);
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
+        }
+    }
+
+    private Wallet readWallet(final NetworkParameters params, @Nullable WalletExtension[] extensions,
+                              final Protos.Wallet walletProto, boolean forceReset,
+                              @Nullable ExecutorService executor) throws UnreadableWalletException {
         KeyChainGroup keyChainGroup;
-        if (walletProto.hasEncryptionParameters()) {
-            Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
-            final KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(encryptionParameters);
-            keyChainGroup = KeyChainGroup.fromProtobufEncrypted(params, walletProto.getKeyList(), keyCrypter, keyChainFactory);
+        List<Future<List<Transaction>>> parsedTransactions = null;
+        if (executor != null) {
+            // The key chains and the transactions don't depend on each other, so read them at the same time.
+            Future<KeyChainGroup> keyChainGroupFuture = executor.submit(new Callable<KeyChainGroup>() {
+                @Override
+                public KeyChainGroup call() throws UnreadableWalletException {
+                    return readKeyChainGroup(params, walletProto);
+                }
+            });
+            if (!forceReset)
+                parsedTransactions = parseTransactions(params, walletProto, executor);
+            keyChainGroup = getLoaded(keyChainGroupFuture);
         } else {
-            keyChainGroup = KeyChainGroup.fromProtobufUnencrypted(params, walletProto.getKeyList(), keyChainFactory);
+            keyChainGroup = readKeyChainGroup(params, walletProto);
         }
         Wallet wallet = factory.create(params, keyChainGroup);
 
@@ -516,18 +575,8 @@ public class WalletProtobufSerializer {
             wallet.setLastBlockSeenHeight(-1);
             wallet.setLastBlockSeenTimeSecs(0);
         } else {
-            // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto, wallet.getParams());
-            }
-
-            // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
-                wallet.addWalletTransaction(wtx);
-            }
-
-            // Update the lastBlockSeenHash.
+            // Update the lastBlockSeenHash. The height must be known before the transactions are added, as the
+            // appearance height of transactions in wallets that only stored their depth is worked out from it.
             if (!walletProto.hasLastSeenBlockHash()) {
                 wallet.setLastBlockSeenHash(null);
             } else {
@@ -541,6 +590,23 @@ public class WalletProtobufSerializer {
             // Will default to zero if not present.
             wallet.setLastBlockSeenTimeSecs(walletProto.getLastSeenBlockTimeSecs());
 
+            // Read all transactions and insert into the txMap.
+            if (parsedTransactions != null) {
+                int i = 0;
+                for (Future<List<Transaction>> batch : parsedTransactions)
+                    for (Transaction tx : getLoaded(batch))
+                        putTransaction(walletProto.getTransaction(i++), tx);
+            } else {
+                for (Protos.Transaction txProto : walletProto.getTransactionList())
+                    putTransaction(txProto, readTransaction(txProto, params, isHashTrusted(walletProto, txProto)));
+            }
+
+            // Update transaction outputs to point to inputs that spend them
+            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
+                wallet.addWalletTransaction(wtx);
+            }
+
             if (walletProto.hasKeyRotationTime()) {
                 wallet.setKeyRotationTime(new Date(walletProto.getKeyRotationTime() * 1000));
             }
@@ -616,7 +682,74 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    // Starts parsing the transactions of the wallet in batches, one future per batch in the order of the file.
+    private List<Future<List<Transaction>>> parseTransactions(final NetworkParameters params,
+                                                              final Protos.Wallet walletProto,
+                                                              ExecutorService executor) {
+        final List<Protos.Transaction> txProtos = walletProto.getTransactionList();
+        // A few batches per thread, so that a thread that got expensive transactions doesn't hold up the rest.
+        int batchSize = Math.max(1, (txProtos.size() + loadingThreads * 4 - 1) / (loadingThreads * 4));
+        List<Future<List<Transaction>>> batches = new ArrayList<Future<List<Transaction>>>();
+        for (int start = 0; start < txProtos.size(); start += batchSize) {
+            final List<Protos.Transaction> batch = txProtos.subList(start, Math.min(start + batchSize, txProtos.size()));
+            batches.add(executor.submit(new Callable<List<Transaction>>() {
+                @Override
+                public List<Transaction> call() throws UnreadableWalletException {
+                    List<Transaction> transactions = new ArrayList<Transaction>(batch.size());
+                    for (Protos.Transaction txProto : batch)
+                        transactions.add(readTransaction(txProto, params, isHashTrusted(walletProto, txProto)));
+                    return transactions;
+                }
+            }));
+        }
+        return batches;
+    }
+
+    private boolean isHashTrusted(Protos.Wallet walletProto, Protos.Transaction txProto) {
+        if (trustedHashDepth < 0 || txProto.getPool() != Protos.Transaction.Pool.SPENT)
+            return false;
+        Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
+        if (confidenceProto.getType() != Protos.TransactionConfidence.Type.BUILDING)
+            return false;
+        int depth;
+        if (confidenceProto.hasAppearedAtHeight() && walletProto.hasLastSeenBlockHeight())
+            depth = walletProto.getLastSeenBlockHeight() - confidenceProto.getAppearedAtHeight() + 1;
+        else
+            depth = confidenceProto.getDepth();
+        return depth >= trustedHashDepth;
+    }
+
+    private KeyChainGroup readKeyChainGroup(NetworkParameters params, Protos.Wallet walletProto)
+            throws UnreadableWalletException {
+        // Read the scrypt parameters that specify how encryption and decryption is performed.
+        if (walletProto.hasEncryptionParameters()) {
+            Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
+            final KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(encryptionParameters);
+            return KeyChainGroup.fromProtobufEncrypted(params, walletProto.getKeyList(), keyCrypter, keyChainFactory);
+        } else {
+            return KeyChainGroup.fromProtobufUnencrypted(params, walletProto.getKeyList(), keyChainFactory);
+        }
+    }
+
+    private static <T> T getLoaded(Future<T> future) throws UnreadableWalletException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnreadableWalletException)
+                throw (UnreadableWalletException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new UnreadableWalletException("Could not read wallet", cause);
+        }
+    }
+
+    private Transaction readTransaction(Protos.Transaction txProto, NetworkParameters params,
+                                        boolean trustHash) throws UnreadableWalletException {
         boolean isIX = txProto.getConfidence().hasIxType() && txProto.getConfidence().getIxType() != Protos.TransactionConfidence.IXType.IX_NONE;
         Transaction tx = !isIX ? new Transaction(params) : new TransactionLockRequest(params);
 
@@ -688,8 +821,14 @@ public class WalletProtobufSerializer {
 
         // Transaction should now be complete.
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
-        if (!tx.getHash().equals(protoHash))
+        if (trustHash)
+            TrustedTransactionHash.apply(tx, protoHash);
+        else if (!tx.getHash().equals(protoHash))
             throw new UnreadableWalletException(String.format(Locale.US, "Transaction did not deserialize completely: %s vs %s", tx.getHash(), protoHash));
+        return tx;
+    }
+
+    private void putTransaction(Protos.Transaction txProto, Transaction tx) throws UnreadableWalletException {
         if (txMap.containsKey(txProto.getHash()))
             throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
         txMap.put(txProto.getHash(), tx);
@@ -0,0 +1,165 @@
+package live.thought.thoughtj.core;
+
+import com.google.common.collect.ImmutableList;
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AssumeValidTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private BlockChain chain;
+    private List<StoredBlock> headers;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        // Start far above the hard coded checkpoints, as if the store had been seeded from a checkpoint file.
+        MemoryBlockStore store = new MemoryBlockStore(PARAMS);
+        Block genesis = PARAMS.getGenesisBlock().cloneAsHeader();
+        StoredBlock prev = new StoredBlock(genesis, genesis.getWork(), 10000000);
+        store.put(prev);
+        store.setChainHead(prev);
+        chain = new BlockChain(PARAMS, store);
+        // Headers that link up but don't carry any real proof of work.
+        headers = new ArrayList<StoredBlock>();
+        for (int i = 1; i <= 20; i++) {
+            Block header = prev.getHeader().cloneAsHeader();
+            header.setPrevBlockHash(prev.getHeader().getHash());
+            header.setTime(prev.getHeader().getTimeSeconds() + 60);
+            prev = prev.build(header);
+            headers.add(prev);
+        }
+    }
+
+    private List<Block> blocks(int from, int to) {
+        List<Block> blocks = new ArrayList<Block>();
+        for (int i = from; i < to; i++)
+            blocks.add(headers.get(i).getHeader());
+        return blocks;
+    }
+
+    private static void assertRejected(BlockChain chain, Block header) throws Exception {
+        try {
+            chain.add(header);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void headersCheckedInFullByDefault() throws Exception {
+        assertEquals(0, chain.proveAssumedValid(blocks(0, 20)));
+        assertRejected(chain, headers.get(0).getHeader());
+        assertEquals(10000000, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void unprovenHeadersCheckedInFull() throws Exception {
+        chain.setAssumeValid(headers.get(9));
+        assertRejected(chain, headers.get(0).getHeader());
+        // A run of headers that stops short of the assumed valid block proves nothing.
+        assertEquals(0, chain.proveAssumedValid(blocks(0, 9)));
+        assertRejected(chain, headers.get(0).getHeader());
+        assertEquals(10000000, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void provenHeadersSkipProofOfWork() throws Exception {
+        chain.setAssumeValid(headers.get(9));
+        assertEquals(10, chain.proveAssumedValid(blocks(0, 20)));
+        for (int i = 0; i < 10; i++)
+            assertTrue(chain.add(headers.get(i).getHeader()));
+        assertEquals(headers.get(9), chain.getChainHead());
+        // Above the assumed valid block everything is checked again.
+        assertRejected(chain, headers.get(10).getHeader());
+        assertEquals(10000010, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void brokenRunProvesNothing() throws Exception {
+        chain.setAssumeValid(headers.get(9));
+        List<Block> blocks = blocks(0, 10);
+        // A header that doesn't link up, but has the height and work the walk back from the anchor expects.
+        Block other = blocks.get(3).cloneAsHeader();
+        other.setNonce(other.getNonce() + 1);
+        blocks.set(3, other);
+        assertEquals(0, chain.proveAssumedValid(blocks));
+        assertRejected(chain, other);
+        assertRejected(chain, headers.get(0).getHeader());
+    }
+
+    @Test
+    public void checkpointsProveEarlierRuns() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CheckpointManager.writeMappable(ImmutableList.of(headers.get(4), headers.get(14)), bytes);
+        chain.setAssumeValid(new CheckpointManager(PARAMS, new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(headers.get(14), chain.getAssumeValid());
+        assertEquals(5, chain.proveAssumedValid(blocks(0, 10)));
+        for (int i = 0; i < 5; i++)
+            assertTrue(chain.add(headers.get(i).getHeader()));
+        assertRejected(chain, headers.get(5).getHeader());
+        assertEquals(10, chain.proveAssumedValid(blocks(5, 20)));
+        for (int i = 5; i < 15; i++)
+            assertTrue(chain.add(headers.get(i).getHeader()));
+        assertEquals(headers.get(14), chain.getChainHead());
+    }
+
+    @Test
+    public void proofIsForgottenByTheNextOne() throws Exception {
+        chain.setAssumeValid(headers.get(9));
+        assertEquals(10, chain.proveAssumedValid(blocks(0, 10)));
+        assertEquals(0, chain.proveAssumedValid(blocks(0, 5)));
+        assertRejected(chain, headers.get(0).getHeader());
+        assertEquals(10, chain.proveAssumedValid(blocks(0, 10)));
+        chain.setAssumeValid((StoredBlock) null);
+        assertRejected(chain, headers.get(0).getHeader());
+    }
+
+    @Test
+    public void otherBlockAtAssumeValidHeight() throws Exception {
+        StoredBlock assumeValid = headers.get(4);
+        Block other = assumeValid.getHeader().cloneAsHeader();
+        other.setNonce(other.getNonce() + 1);
+        chain.setAssumeValid(new StoredBlock(other, assumeValid.getChainWork(), assumeValid.getHeight()));
+        try {
+            chain.proveAssumedValid(blocks(0, 10));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertRejected(chain, headers.get(0).getHeader());
+        assertEquals(10000000, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void assumeValidChainWorkMustMatch() throws Exception {
+        StoredBlock assumeValid = headers.get(9);
+        chain.setAssumeValid(new StoredBlock(assumeValid.getHeader(), headers.get(2).getChainWork(),
+                assumeValid.getHeight()));
+        try {
+            chain.proveAssumedValid(blocks(0, 10));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertRejected(chain, headers.get(0).getHeader());
+    }
+
+    @Test
+    public void settingIsPerChain() throws Exception {
+        chain.setAssumeValid(headers.get(9));
+        BlockChain other = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+        assertNull(other.getAssumeValid());
+        assertEquals(headers.get(9), chain.getAssumeValid());
+    }
+}
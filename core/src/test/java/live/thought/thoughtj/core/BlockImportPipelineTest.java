@@ -0,0 +1,78 @@
+package live.thought.thoughtj.core;
+
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.store.MemoryBlockStore;
+import live.thought.thoughtj.utils.BlockFileLoader;
+import live.thought.thoughtj.utils.BlockFileLoaderTest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BlockImportPipelineTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private File file;
+    private BlockChain chain;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        file = File.createTempFile("blk", ".dat");
+        chain = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private BlockFileLoader writeBlocks(byte[]... blocks) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] block : blocks)
+            BlockFileLoaderTest.writeBlock(out, PARAMS, block);
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(out.toByteArray());
+        } finally {
+            stream.close();
+        }
+        return new BlockFileLoader(PARAMS, Arrays.asList(file));
+    }
+
+    @Test
+    public void importsInOrder() throws Exception {
+        // The chain accepts the genesis block as a duplicate of its head, so it can stand in for a run of blocks.
+        byte[] genesis = PARAMS.getGenesisBlock().bitcoinSerialize();
+        byte[][] blocks = new byte[100][];
+        Arrays.fill(blocks, genesis);
+        BlockImportPipeline pipeline = new BlockImportPipeline(chain, writeBlocks(blocks), 4);
+        pipeline.run();
+        assertEquals(100, pipeline.getBlocksAdded());
+        assertEquals(0, pipeline.getOrphans());
+        assertEquals(100L * genesis.length, pipeline.getBytesRead());
+    }
+
+    @Test
+    public void badMerkleRoot() throws Exception {
+        // Change a byte of the coinbase output script. The header, and so its proof of work, is untouched.
+        byte[] bytes = PARAMS.getGenesisBlock().bitcoinSerialize();
+        bytes[bytes.length - 6] ^= 1;
+        BlockImportPipeline pipeline = new BlockImportPipeline(chain,
+                writeBlocks(PARAMS.getGenesisBlock().bitcoinSerialize(), bytes), 2);
+        try {
+            pipeline.run();
+            fail();
+        } catch (VerificationException e) {
+            // Caught by a worker before the chain saw the block.
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Merkle hashes do not match"));
+        }
+        assertEquals(1, pipeline.getBlocksAdded());
+    }
+}
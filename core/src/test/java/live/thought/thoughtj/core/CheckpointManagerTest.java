@@ -0,0 +1,115 @@
+package live.thought.thoughtj.core;
+
+import live.thought.thoughtj.params.MainNetParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CheckpointManagerTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+    private static final long GENESIS_TIME = PARAMS.getGenesisBlock().getTimeSeconds();
+
+    private List<StoredBlock> checkpoints;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        // The checkpoints don't need to be valid blocks, only distinct ones with increasing heights and times.
+        checkpoints = new ArrayList<StoredBlock>();
+        for (int i = 1; i <= 50; i++) {
+            Block header = PARAMS.getGenesisBlock().cloneAsHeader();
+            header.setTime(GENESIS_TIME + i * 1000);
+            checkpoints.add(new StoredBlock(header, BigInteger.valueOf(i), i * 10));
+        }
+        file = File.createTempFile("checkpoints", null);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private byte[] textual() {
+        StringBuilder builder = new StringBuilder("TXT CHECKPOINTS 1\n0\n" + checkpoints.size() + "\n");
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        for (StoredBlock block : checkpoints) {
+            buffer.clear();
+            block.serializeCompact(buffer);
+            builder.append(CheckpointManager.BASE64.encode(buffer.array())).append('\n');
+        }
+        return builder.toString().getBytes();
+    }
+
+    private byte[] binary() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBytes("CHECKPOINTS 1");
+        out.writeInt(0);
+        out.writeInt(checkpoints.size());
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        for (StoredBlock block : checkpoints) {
+            buffer.clear();
+            block.serializeCompact(buffer);
+            out.write(buffer.array());
+        }
+        return bytes.toByteArray();
+    }
+
+    private void checkLookups(CheckpointManager manager) {
+        assertEquals(checkpoints.size(), manager.numCheckpoints());
+        assertEquals(0, manager.getCheckpointBefore(GENESIS_TIME + 999).getHeight());
+        assertEquals(checkpoints.get(0), manager.getCheckpointBefore(GENESIS_TIME + 1000));
+        assertEquals(checkpoints.get(24), manager.getCheckpointBefore(GENESIS_TIME + 25500));
+        assertEquals(checkpoints.get(49), manager.getCheckpointBefore(Long.MAX_VALUE));
+        assertEquals(0, manager.getCheckpointBeforeHeight(9).getHeight());
+        assertEquals(checkpoints.get(4), manager.getCheckpointBeforeHeight(59));
+        assertEquals(checkpoints.get(49), manager.getCheckpointBeforeHeight(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void allFormatsAgree() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        Sha256Hash written;
+        try {
+            written = CheckpointManager.writeMappable(checkpoints, out);
+        } finally {
+            out.close();
+        }
+        CheckpointManager mapped = new CheckpointManager(PARAMS, file);
+        CheckpointManager textual = new CheckpointManager(PARAMS, new ByteArrayInputStream(textual()));
+        CheckpointManager binary = new CheckpointManager(PARAMS, new ByteArrayInputStream(binary()));
+        checkLookups(mapped);
+        checkLookups(textual);
+        checkLookups(binary);
+        assertEquals(written, mapped.getDataHash());
+        assertEquals(written, textual.getDataHash());
+        assertEquals(written, binary.getDataHash());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CheckpointManager.writeMappable(checkpoints, bytes);
+        checkLookups(new CheckpointManager(PARAMS, new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test
+    public void unsortedTextualCheckpoints() throws Exception {
+        StoredBlock last = checkpoints.remove(checkpoints.size() - 1);
+        checkpoints.add(0, last);
+        CheckpointManager manager = new CheckpointManager(PARAMS, new ByteArrayInputStream(textual()));
+        checkpoints.remove(0);
+        checkpoints.add(last);
+        checkLookups(manager);
+    }
+}
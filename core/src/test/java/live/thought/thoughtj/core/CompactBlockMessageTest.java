@@ -0,0 +1,86 @@
+package live.thought.thoughtj.core;
+
+import com.google.common.collect.ImmutableList;
+import live.thought.thoughtj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompactBlockMessageTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private Block block;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        Block genesis = PARAMS.getGenesisBlock();
+        block = genesis.cloneAsHeader();
+        block.addTransaction(new Transaction(PARAMS, genesis.getTransactions().get(0).bitcoinSerialize()));
+        for (int i = 1; i <= 3; i++)
+            block.addTransaction(makeTransaction(i));
+    }
+
+    private static Transaction makeTransaction(int seed) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[0],
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { (byte) seed }))));
+        tx.addOutput(new TransactionOutput(PARAMS, tx, Coin.COIN.multiply(seed), new byte[] { (byte) seed }));
+        return tx;
+    }
+
+    @Test
+    public void roundTrip() {
+        CompactBlockMessage message = new CompactBlockMessage(PARAMS, block, 12345);
+        CompactBlockMessage parsed = new CompactBlockMessage(PARAMS, message.bitcoinSerialize());
+        assertEquals(block.getHash(), parsed.getBlockHash());
+        assertEquals(12345, parsed.getNonce());
+        assertEquals(4, parsed.getTransactionCount());
+        assertArrayEquals(message.getShortIds(), parsed.getShortIds());
+        assertEquals(1, parsed.getPrefilledTransactions().size());
+        assertEquals(0, parsed.getPrefilledTransactions().get(0).getIndex());
+        assertEquals(block.getTransactions().get(0).getHash(),
+                parsed.getPrefilledTransactions().get(0).getTransaction().getHash());
+    }
+
+    @Test
+    public void shortIdsDependOnNonce() {
+        Sha256Hash txHash = block.getTransactions().get(1).getHash();
+        long id1 = new CompactBlockMessage(PARAMS, block, 1).getShortId(txHash);
+        long id2 = new CompactBlockMessage(PARAMS, block, 2).getShortId(txHash);
+        assertNotEquals(id1, id2);
+        assertEquals(0, id1 >>> (8 * CompactBlockMessage.SHORT_ID_LENGTH));
+        assertEquals(0, id2 >>> (8 * CompactBlockMessage.SHORT_ID_LENGTH));
+    }
+
+    @Test
+    public void differentialIndexes() {
+        GetBlockTransactionsMessage request = new GetBlockTransactionsMessage(PARAMS, block.getHash(),
+                ImmutableList.of(0, 3, 4, 10));
+        byte[] bytes = request.bitcoinSerialize();
+        // Hash, count, then each index relative to the previous one plus one.
+        assertEquals(32 + 5, bytes.length);
+        assertArrayEquals(new byte[] { 4, 0, 2, 0, 5 }, Arrays.copyOfRange(bytes, 32, 37));
+        GetBlockTransactionsMessage parsed = new GetBlockTransactionsMessage(PARAMS, bytes);
+        assertEquals(request, parsed);
+    }
+
+    @Test
+    public void rebuildFromPool() {
+        CompactBlockManager manager = new CompactBlockManager(PARAMS);
+        List<Transaction> transactions = block.getTransactions();
+        for (int i = 1; i < transactions.size(); i++)
+            manager.addTransaction(transactions.get(i));
+        CompactBlockMessage message = new CompactBlockMessage(PARAMS, block, 7);
+        Block rebuilt = manager.onCompactBlock(null, new CompactBlockMessage(PARAMS, message.bitcoinSerialize()));
+        assertNotNull(rebuilt);
+        assertEquals(block.getHash(), rebuilt.getHash());
+        assertEquals(4, rebuilt.getTransactions().size());
+        assertEquals(block.getMerkleRoot(), rebuilt.getMerkleRoot());
+        assertEquals(1, manager.getBlocksFromPool());
+    }
+}
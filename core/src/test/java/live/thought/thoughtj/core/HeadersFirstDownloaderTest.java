@@ -0,0 +1,315 @@
+package live.thought.thoughtj.core;
+
+import com.google.common.collect.ImmutableList;
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.store.MemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeadersFirstDownloaderTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+    // Easy enough that solving a header takes a few hundred tries.
+    private static final long EASY_TARGET = 0x2000ffffL;
+
+    private final List<Block> connected = new ArrayList<Block>();
+    private final List<Peer> peers = new ArrayList<Peer>();
+    private AbstractBlockChain chain;
+    private PeerGroup peerGroup;
+    private HeadersFirstDownloader downloader;
+    private List<Block> headers;
+    // Thrown by the chain instead of connecting the next block, if set.
+    private PrunedException pruned;
+
+    // Records what it's asked for instead of talking to the network.
+    private static class FakePeer extends Peer {
+        final VersionMessage peerVersion = new VersionMessage(PARAMS, 100);
+        final List<Sha256Hash> requested = new ArrayList<Sha256Hash>();
+        boolean requestedFiltered;
+        int headerRequests;
+
+        FakePeer(int i, AbstractBlockChain chain) throws Exception {
+            super(PARAMS, new VersionMessage(PARAMS, 1),
+                    new PeerAddress(PARAMS, InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) i }), 10618), chain);
+        }
+
+        @Override
+        public VersionMessage getPeerVersionMessage() {
+            return peerVersion;
+        }
+
+        @Override
+        public long getBestHeight() {
+            return peerVersion.bestHeight;
+        }
+
+        @Override
+        public BloomFilter getBloomFilter() {
+            return new BloomFilter(1, 0.01, 0);
+        }
+
+        @Override
+        void requestBlocksForDownload(List<Sha256Hash> hashes, boolean filtered) {
+            requested.addAll(hashes);
+            requestedFiltered = filtered;
+        }
+
+        @Override
+        void continueHeadersFirstDownload() {
+            headerRequests++;
+        }
+
+        @Override
+        void invokeOnBlocksDownloaded(Block block, FilteredBlock fb) {
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        Context.propagate(new Context(PARAMS));
+        // A chain that takes blocks in whatever order the downloader hands them over.
+        chain = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS)) {
+            @Override
+            public boolean add(Block block) throws PrunedException {
+                if (pruned != null)
+                    throw pruned;
+                connected.add(block);
+                return true;
+            }
+
+            @Override
+            public boolean add(FilteredBlock block) {
+                connected.add(block.getBlockHeader());
+                return true;
+            }
+        };
+        peerGroup = new PeerGroup(PARAMS, chain) {
+            @Override
+            public List<Peer> getConnectedPeers() {
+                return new ArrayList<Peer>(peers);
+            }
+        };
+        downloader = new HeadersFirstDownloader(peerGroup, chain);
+        headers = new ArrayList<Block>();
+        Block prev = PARAMS.getGenesisBlock();
+        for (int i = 0; i < 10; i++) {
+            Block header = prev.cloneAsHeader();
+            header.setPrevBlockHash(prev.getHash());
+            header.setTime(prev.getTimeSeconds() + 60);
+            header.setDifficultyTarget(EASY_TARGET);
+            header.solve();
+            headers.add(header);
+            prev = header;
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Utils.mockTime = null;
+    }
+
+    private FakePeer connect(int i) throws Exception {
+        FakePeer peer = new FakePeer(i, chain);
+        peers.add(peer);
+        return peer;
+    }
+
+    private List<Sha256Hash> hashes(int from, int to) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (int i = from; i < to; i++)
+            hashes.add(headers.get(i).getHash());
+        return hashes;
+    }
+
+    private static FilteredBlock filtered(Block header) {
+        Sha256Hash leaf = Sha256Hash.of(header.getHash().getBytes());
+        return new FilteredBlock(PARAMS, header,
+                PartialMerkleTree.buildFromLeaves(PARAMS, new byte[] { 0 }, ImmutableList.of(leaf)));
+    }
+
+    @Test
+    public void blocksConnectInOrder() throws Exception {
+        FakePeer peer = connect(1);
+        downloader.setHeaderPeer(peer, false);
+        assertFalse(downloader.addHeaders(peer, headers.subList(0, 5)));
+        assertEquals(headers.get(4).getHash(), downloader.getQueuedTip());
+        downloader.schedule();
+        assertEquals(hashes(0, 5), peer.requested);
+        assertFalse(peer.requestedFiltered);
+
+        for (int i = 4; i > 0; i--)
+            assertTrue(downloader.onBlock(peer, headers.get(i)));
+        assertTrue(connected.isEmpty());
+        assertEquals(5, downloader.getQueuedCount());
+        assertTrue(downloader.onBlock(peer, headers.get(0)));
+        assertEquals(headers.subList(0, 5), connected);
+        assertEquals(5, downloader.getBlocksConnected());
+        assertFalse(downloader.isActive());
+        // Having caught up, it asks whether more blocks were solved in the meantime.
+        assertEquals(1, peer.headerRequests);
+        assertFalse(downloader.onBlock(peer, headers.get(5)));
+    }
+
+    @Test
+    public void unconnectedHeadersRejected() throws Exception {
+        FakePeer peer = connect(1);
+        try {
+            downloader.addHeaders(peer, headers.subList(1, 3));
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+        downloader.addHeaders(peer, headers.subList(0, 2));
+        try {
+            downloader.addHeaders(peer, headers.subList(3, 5));
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void windowLimitsRequests() throws Exception {
+        FakePeer peer = connect(1);
+        downloader.setWindowSize(3);
+        downloader.addHeaders(peer, headers);
+        downloader.schedule();
+        assertEquals(hashes(0, 3), peer.requested);
+        // Out of order blocks don't move the window.
+        downloader.onBlock(peer, headers.get(1));
+        assertEquals(hashes(0, 3), peer.requested);
+        // Connecting the first two slides it along by two.
+        downloader.onBlock(peer, headers.get(0));
+        assertEquals(hashes(0, 5), peer.requested);
+        assertEquals(headers.subList(0, 2), connected);
+    }
+
+    @Test
+    public void requestsSpreadOverPeers() throws Exception {
+        FakePeer first = connect(1), second = connect(2);
+        downloader.setMaxInFlightPerPeer(2);
+        downloader.addHeaders(first, headers);
+        downloader.schedule();
+        assertEquals(2, first.requested.size());
+        assertEquals(2, second.requested.size());
+        List<Sha256Hash> all = new ArrayList<Sha256Hash>(first.requested);
+        all.addAll(second.requested);
+        Collections.sort(all);
+        List<Sha256Hash> expected = hashes(0, 4);
+        Collections.sort(expected);
+        assertEquals(expected, all);
+        // An answer frees up room for the next block.
+        Sha256Hash answered = first.requested.get(0);
+        downloader.onBlock(first, headers.get(hashes(0, 10).indexOf(answered)));
+        assertEquals(3, first.requested.size());
+        assertEquals(headers.get(4).getHash(), first.requested.get(2));
+    }
+
+    @Test
+    public void stalledRequestGoesToAnotherPeer() throws Exception {
+        FakePeer first = connect(1), second = connect(2);
+        // The first peer has answered faster so far, so it gets the request.
+        peerGroup.getPeerPerformance().recordRequestCompleted(first, 100);
+        peerGroup.getPeerPerformance().recordRequestCompleted(second, 150);
+        downloader.setStallTimeoutMillis(5000);
+        downloader.addHeaders(first, headers.subList(0, 1));
+        downloader.schedule();
+        assertEquals(hashes(0, 1), first.requested);
+        assertTrue(second.requested.isEmpty());
+
+        Utils.rollMockClockMillis(4000);
+        downloader.checkStalls();
+        assertTrue(second.requested.isEmpty());
+        Utils.rollMockClockMillis(2000);
+        downloader.checkStalls();
+        assertEquals(hashes(0, 1), second.requested);
+        assertEquals(hashes(0, 1), first.requested);
+        assertEquals(1, downloader.getBlocksRerequested());
+        assertEquals(1, peerGroup.getPeerPerformance().getStats(first).getFailures());
+
+        // Whoever answers first wins, after which the late answer is no longer the downloader's business.
+        assertTrue(downloader.onBlock(second, headers.get(0)));
+        assertEquals(headers.subList(0, 1), connected);
+        assertFalse(downloader.onBlock(first, headers.get(0)));
+        assertEquals(1, connected.size());
+    }
+
+    @Test
+    public void disconnectRequeuesRequests() throws Exception {
+        FakePeer first = connect(1);
+        downloader.addHeaders(first, headers.subList(0, 3));
+        downloader.schedule();
+        assertEquals(hashes(0, 3), first.requested);
+        downloader.onBlock(first, headers.get(0));
+
+        FakePeer second = connect(2);
+        peers.remove(first);
+        downloader.onPeerDisconnected(first);
+        assertEquals(hashes(1, 3), second.requested);
+        assertEquals(2, downloader.getBlocksRerequested());
+        downloader.onBlock(second, headers.get(2));
+        downloader.onBlock(second, headers.get(1));
+        assertEquals(headers.subList(0, 3), connected);
+    }
+
+    @Test
+    public void exhaustedFilterDiscardsFilteredBlocks() throws Exception {
+        FakePeer peer = connect(1);
+        downloader.setHeaderPeer(peer, true);
+        downloader.addHeaders(peer, headers.subList(0, 2));
+        downloader.schedule();
+        assertEquals(hashes(0, 2), peer.requested);
+        assertTrue(peer.requestedFiltered);
+        assertTrue(downloader.onFilteredBlock(peer, filtered(headers.get(1))));
+
+        downloader.onFilterExhausted();
+        // Nothing is requested until the new filter is out, and answers to the old requests are thrown away.
+        downloader.schedule();
+        assertEquals(2, peer.requested.size());
+        assertFalse(downloader.isAwaiting(peer, headers.get(0).getHash()));
+        assertTrue(downloader.onFilteredBlock(peer, filtered(headers.get(0))));
+        assertTrue(connected.isEmpty());
+        assertEquals(2, downloader.getQueuedCount());
+
+        downloader.onFilterUpdated();
+        assertEquals(4, peer.requested.size());
+        assertEquals(hashes(0, 2), peer.requested.subList(2, 4));
+        assertTrue(downloader.isAwaiting(peer, headers.get(0).getHash()));
+        downloader.onFilteredBlock(peer, filtered(headers.get(1)));
+        downloader.onFilteredBlock(peer, filtered(headers.get(0)));
+        assertEquals(headers.subList(0, 2), connected);
+    }
+
+    @Test
+    public void exhaustedFilterIgnoredForFullBlocks() throws Exception {
+        FakePeer peer = connect(1);
+        downloader.setHeaderPeer(peer, false);
+        downloader.addHeaders(peer, headers.subList(0, 2));
+        downloader.schedule();
+        downloader.onBlock(peer, headers.get(1));
+        downloader.onFilterExhausted();
+        downloader.onBlock(peer, headers.get(0));
+        assertEquals(headers.subList(0, 2), connected);
+    }
+
+    @Test
+    public void prunedForkAbandonsDownload() throws Exception {
+        FakePeer peer = connect(1);
+        downloader.addHeaders(peer, headers.subList(0, 3));
+        downloader.schedule();
+        pruned = new PrunedException(headers.get(0).getHash());
+        assertTrue(downloader.onBlock(peer, headers.get(0)));
+        assertTrue(connected.isEmpty());
+        assertFalse(downloader.isActive());
+        assertEquals(0, downloader.getQueuedCount());
+        assertFalse(downloader.onBlock(peer, headers.get(1)));
+    }
+}
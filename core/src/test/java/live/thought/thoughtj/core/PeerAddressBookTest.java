@@ -0,0 +1,99 @@
+package live.thought.thoughtj.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.params.TestNet3Params;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PeerAddressBookTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PeerAddress a, b, c;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        a = new PeerAddress(PARAMS, InetAddress.getByName("10.0.0.1"), 10618);
+        b = new PeerAddress(PARAMS, InetAddress.getByName("10.0.0.2"), 10618);
+        c = new PeerAddress(PARAMS, InetAddress.getByName("2001:db8::1"), 10618);
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        File file = new File(folder.getRoot(), "test.peers");
+        PeerAddressBook book = new PeerAddressBook(PARAMS, file);
+        book.addAddresses(ImmutableList.of(a, b, c));
+        book.recordAttempt(a);
+        book.recordSuccess(a);
+        book.recordLatency(a, 120);
+        book.recordFailure(c);
+        book.save();
+
+        PeerAddressBook loaded = PeerAddressBook.load(PARAMS, file);
+        assertEquals(3, loaded.size());
+        PeerAddressBook.Entry entry = loaded.getEntry(new InetSocketAddress(a.getAddr(), a.getPort()));
+        assertNotNull(entry);
+        assertEquals(Utils.currentTimeMillis(), entry.getLastSuccessMillis());
+        assertEquals(Utils.currentTimeMillis(), entry.getLastAttemptMillis());
+        assertEquals(120, entry.getLatencyMillis());
+        assertEquals(1, loaded.getEntry(new InetSocketAddress(c.getAddr(), c.getPort())).getFailures());
+    }
+
+    @Test
+    public void bestAddressesFirst() {
+        PeerAddressBook book = new PeerAddressBook(PARAMS);
+        book.addAddresses(ImmutableList.of(a, b, c));
+        book.recordSuccess(b);
+        book.recordLatency(b, 300);
+        book.recordSuccess(c);
+        book.recordLatency(c, 50);
+        List<PeerAddress> best = book.getBestAddresses(3);
+        assertEquals(3, best.size());
+        assertEquals(c.getAddr(), best.get(0).getAddr());
+        assertEquals(b.getAddr(), best.get(1).getAddr());
+        assertEquals(a.getAddr(), best.get(2).getAddr());
+        assertEquals(1, book.getBestAddresses(1).size());
+    }
+
+    @Test
+    public void failingAddressesLeftOut() {
+        PeerAddressBook book = new PeerAddressBook(PARAMS);
+        for (int i = 0; i < PeerAddressBook.MAX_CONSECUTIVE_FAILURES; i++)
+            book.recordFailure(a);
+        book.addAddresses(ImmutableList.of(b));
+        List<PeerAddress> best = book.getBestAddresses(10);
+        assertEquals(1, best.size());
+        assertEquals(b.getAddr(), best.get(0).getAddr());
+        // A success clears the failures.
+        book.recordSuccess(a);
+        assertEquals(2, book.getBestAddresses(10).size());
+    }
+
+    @Test
+    public void corruptOrForeignFileIgnored() throws Exception {
+        File file = new File(folder.getRoot(), "test.peers");
+        PeerAddressBook book = new PeerAddressBook(PARAMS, file);
+        book.addAddresses(ImmutableList.of(a));
+        book.save();
+        assertEquals(0, PeerAddressBook.load(TestNet3Params.get(), file).size());
+
+        byte[] bytes = Files.toByteArray(file);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(bytes, file);
+        assertEquals(0, PeerAddressBook.load(PARAMS, file).size());
+    }
+}
@@ -0,0 +1,81 @@
+package live.thought.thoughtj.core;
+
+import com.google.common.collect.ImmutableList;
+import live.thought.thoughtj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+
+public class PeerPerformanceTrackerTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private PeerPerformanceTracker tracker;
+    private Peer fast, medium, slow;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        tracker = new PeerPerformanceTracker();
+        fast = createPeer(1);
+        medium = createPeer(2);
+        slow = createPeer(3);
+    }
+
+    private static Peer createPeer(int i) throws Exception {
+        PeerAddress address = new PeerAddress(PARAMS, InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) i }), 10618);
+        return new Peer(PARAMS, new VersionMessage(PARAMS, 1), address, null);
+    }
+
+    @Test
+    public void sortsByLatency() {
+        assertFalse(tracker.hasMeasurements(ImmutableList.of(fast, medium, slow)));
+        tracker.recordPing(slow, 900);
+        tracker.recordPing(fast, 20);
+        tracker.recordRequestCompleted(medium, 200);
+        assertTrue(tracker.hasMeasurements(ImmutableList.of(fast, medium, slow)));
+        assertEquals(ImmutableList.of(fast, medium, slow), tracker.sortByScore(ImmutableList.of(slow, medium, fast)));
+    }
+
+    @Test
+    public void failuresWorsenScore() {
+        tracker.recordRequestCompleted(fast, 100);
+        tracker.recordRequestCompleted(medium, 150);
+        tracker.recordFailure(fast);
+        assertEquals(200, tracker.getScore(fast), 0.01);
+        assertEquals(ImmutableList.of(medium, fast), tracker.sortByScore(ImmutableList.of(fast, medium)));
+        // Successes let the failure fade away again.
+        for (int i = 0; i < 10; i++)
+            tracker.recordRequestCompleted(fast, 100);
+        assertEquals(ImmutableList.of(fast, medium), tracker.sortByScore(ImmutableList.of(fast, medium)));
+        assertEquals(1, tracker.getStats(fast).getFailures());
+    }
+
+    @Test
+    public void throughput() {
+        tracker.recordBytes(fast, 1000);
+        tracker.tick();
+        assertEquals(1000, tracker.getStats(fast).getBytesPerSecond(), 0.01);
+        tracker.tick();
+        assertEquals(800, tracker.getStats(fast).getBytesPerSecond(), 0.01);
+        assertEquals(1000, tracker.getStats(fast).getTotalBytes());
+    }
+
+    @Test
+    public void findsSlowPeer() {
+        for (int i = 0; i < PeerPerformanceTracker.MIN_SAMPLES; i++) {
+            tracker.recordRequestCompleted(fast, 100);
+            tracker.recordRequestCompleted(medium, 150);
+            tracker.recordRequestCompleted(slow, 400);
+        }
+        ImmutableList<Peer> peers = ImmutableList.of(fast, medium, slow);
+        assertNull(tracker.findSlowPeer(peers));
+        for (int i = 0; i < 20; i++)
+            tracker.recordRequestCompleted(slow, 2000);
+        assertEquals(slow, tracker.findSlowPeer(peers));
+        tracker.remove(slow);
+        assertNull(tracker.findSlowPeer(peers));
+    }
+}
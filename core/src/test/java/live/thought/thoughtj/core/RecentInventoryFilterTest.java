@@ -0,0 +1,158 @@
+package live.thought.thoughtj.core;
+
+import com.google.common.primitives.Longs;
+import live.thought.thoughtj.net.MessageWriteTarget;
+import live.thought.thoughtj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+
+public class RecentInventoryFilterTest {
+    private static final long ROTATION_MILLIS = 60 * 1000;
+
+    private RecentInventoryFilter filter;
+
+    @Before
+    public void setUp() {
+        Utils.setMockClock();
+        filter = new RecentInventoryFilter(ROTATION_MILLIS, 100);
+    }
+
+    @Test
+    public void duplicatesSuppressed() {
+        InventoryItem vote = new InventoryItem(InventoryItem.Type.TransactionLockVote, Sha256Hash.of(new byte[] { 1 }));
+        InventoryItem ping = new InventoryItem(InventoryItem.Type.MasternodePing, Sha256Hash.of(new byte[] { 2 }));
+        assertTrue(filter.markRequested(vote));
+        assertFalse(filter.markRequested(vote));
+        assertFalse(filter.markRequested(vote));
+        assertTrue(filter.markRequested(ping));
+        assertEquals(1, filter.getRequestedCount(InventoryItem.Type.TransactionLockVote));
+        assertEquals(2, filter.getSuppressedCount(InventoryItem.Type.TransactionLockVote));
+        assertEquals(1, filter.getRequestedCount(InventoryItem.Type.MasternodePing));
+        assertEquals(0, filter.getSuppressedCount(InventoryItem.Type.MasternodePing));
+    }
+
+    @Test
+    public void seenItemsSuppressed() {
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 3 });
+        filter.markSeen(hash);
+        assertFalse(filter.markRequested(new InventoryItem(InventoryItem.Type.Transaction, hash)));
+    }
+
+    @Test
+    public void forgetAllowsRerequest() {
+        InventoryItem tx = new InventoryItem(InventoryItem.Type.Transaction, Sha256Hash.of(new byte[] { 4 }));
+        assertTrue(filter.markRequested(tx));
+        filter.forget(tx.hash);
+        assertTrue(filter.markRequested(tx));
+    }
+
+    @Test
+    public void expiresAfterTwoRotations() {
+        InventoryItem tx = new InventoryItem(InventoryItem.Type.Transaction, Sha256Hash.of(new byte[] { 5 }));
+        assertTrue(filter.markRequested(tx));
+        Utils.rollMockClockMillis(ROTATION_MILLIS);
+        // Moved to the previous bucket but still remembered.
+        assertTrue(filter.contains(tx.hash));
+        assertFalse(filter.markRequested(tx));
+        Utils.rollMockClockMillis(ROTATION_MILLIS);
+        assertFalse(filter.contains(tx.hash));
+        assertTrue(filter.markRequested(tx));
+    }
+
+    @Test
+    public void rotatesWhenFull() {
+        Sha256Hash first = Sha256Hash.of(new byte[] { 6 });
+        filter.markSeen(first);
+        for (int i = 0; i < 250; i++)
+            filter.markSeen(Sha256Hash.of(Longs.toByteArray(i)));
+        assertFalse(filter.contains(first));
+        assertTrue(filter.size() <= 200);
+    }
+
+    private Peer connectedPeer(NetworkParameters params) throws Exception {
+        Peer peer = new Peer(params, new VersionMessage(params, 0),
+                new PeerAddress(params, InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 })), null);
+        peer.setInventoryFilter(filter);
+        peer.setWriteTarget(new MessageWriteTarget() {
+            @Override public void writeBytes(byte[] message) {}
+            @Override public void closeConnection() {}
+        });
+        return peer;
+    }
+
+    @Test
+    public void disconnectForgetsInFlightRequests() throws Exception {
+        NetworkParameters params = MainNetParams.get();
+        Context.propagate(new Context(params));
+        Peer peer = connectedPeer(params);
+        InventoryItem item = new InventoryItem(InventoryItem.Type.Transaction, Sha256Hash.of(new byte[] { 1 }));
+        InventoryMessage inv = new InventoryMessage(params);
+        inv.addItem(item);
+        peer.processInv(inv);
+        assertEquals(1, filter.getRequestedCount(InventoryItem.Type.Transaction));
+        assertTrue(filter.contains(item.hash));
+
+        // The peer goes away without delivering it, so it can be requested from someone else now.
+        peer.connectionClosed();
+        assertFalse(filter.contains(item.hash));
+        assertTrue(filter.markRequested(item));
+    }
+
+    private static void completeHandshake(Peer peer, NetworkParameters params) throws Exception {
+        VersionMessage version = new VersionMessage(params, 100);
+        version.localServices = VersionMessage.NODE_NETWORK;
+        peer.processMessage(version);
+        peer.processMessage(new VersionAck());
+    }
+
+    @Test
+    public void arrivalClearsRequest() throws Exception {
+        NetworkParameters params = MainNetParams.get();
+        Context context = new Context(params);
+        context.initDash(true, false);
+        Context.propagate(context);
+        Peer peer = connectedPeer(params);
+        completeHandshake(peer, params);
+        SporkMessage spork = new SporkMessage(params);
+        spork.nSporkID = 10001;
+        InventoryItem item = new InventoryItem(InventoryItem.Type.Spork, spork.getHash());
+        InventoryMessage inv = new InventoryMessage(params);
+        inv.addItem(item);
+        peer.processMessage(inv);
+        assertEquals(1, filter.getRequestedCount(InventoryItem.Type.Spork));
+
+        // Once it arrived it's no longer in flight, so disconnecting doesn't let other peers' announcements through.
+        peer.processMessage(spork);
+        peer.connectionClosed();
+        assertTrue(filter.contains(item.hash));
+        assertFalse(filter.markRequested(item));
+    }
+
+    @Test
+    public void unansweredRequestsExpire() throws Exception {
+        NetworkParameters params = MainNetParams.get();
+        Context.propagate(new Context(params));
+        // The filter itself would remember the request for much longer.
+        filter = new RecentInventoryFilter(10 * ROTATION_MILLIS, 100);
+        Peer peer = connectedPeer(params);
+        completeHandshake(peer, params);
+        InventoryItem item = new InventoryItem(InventoryItem.Type.Transaction, Sha256Hash.of(new byte[] { 2 }));
+        InventoryMessage inv = new InventoryMessage(params);
+        inv.addItem(item);
+        peer.processMessage(inv);
+        assertTrue(filter.contains(item.hash));
+
+        Utils.rollMockClock(59);
+        peer.processMessage(new Ping(1));
+        assertTrue(filter.contains(item.hash));
+        // The peer keeps answering pings but never sends the transaction.
+        Utils.rollMockClock(2);
+        peer.processMessage(new Ping(2));
+        assertFalse(filter.contains(item.hash));
+        assertTrue(filter.markRequested(item));
+    }
+}
@@ -0,0 +1,175 @@
+package live.thought.thoughtj.core;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.script.Script;
+import live.thought.thoughtj.script.Script.VerifyFlag;
+import live.thought.thoughtj.script.ScriptOpCodes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+
+import static org.junit.Assert.*;
+
+public class ScriptVerificationSchedulerTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+    private static final Set<VerifyFlag> FLAGS = EnumSet.noneOf(VerifyFlag.class);
+    private static final Script TRUE = new Script(new byte[] { ScriptOpCodes.OP_1 });
+    private static final Script FALSE = new Script(new byte[] { ScriptOpCodes.OP_0 });
+
+    private ScriptVerificationScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        scheduler = new ScriptVerificationScheduler(2);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    private static Transaction makeTransaction(int inputs) {
+        Transaction tx = new Transaction(PARAMS);
+        for (int i = 0; i < inputs; i++)
+            tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { ScriptOpCodes.OP_1 },
+                    new TransactionOutPoint(PARAMS, i, Sha256Hash.of(new byte[] { (byte) inputs }))));
+        tx.addOutput(new TransactionOutput(PARAMS, tx, Coin.COIN, new byte[] { ScriptOpCodes.OP_1 }));
+        return tx;
+    }
+
+    private static List<Script> scripts(int count, Script script) {
+        List<Script> scripts = new ArrayList<Script>();
+        for (int i = 0; i < count; i++)
+            scripts.add(script);
+        return scripts;
+    }
+
+    // Workers that don't start until the latch is released, so nothing is checked behind the test's back.
+    private static ScriptVerificationScheduler blockedScheduler(final CountDownLatch start) {
+        return new ScriptVerificationScheduler(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Uninterruptibles.awaitUninterruptibly(start);
+                        runnable.run();
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void verifiesAllInputs() throws Exception {
+        ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+        for (int i = 1; i <= 10; i++)
+            batch.add(makeTransaction(i), scripts(i, TRUE), FLAGS);
+        assertEquals(55, batch.size());
+        batch.await();
+        assertEquals(55, scheduler.getInputsVerified());
+        assertEquals(1, scheduler.getBlocksVerified());
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void failureCancelsBatch() throws Exception {
+        ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+        batch.add(makeTransaction(3), scripts(3, FALSE), FLAGS);
+        for (int i = 0; i < 100; i++)
+            batch.add(makeTransaction(1), scripts(1, TRUE), FLAGS);
+        try {
+            batch.await();
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+        assertTrue(batch.isCancelled());
+
+        // The workers survive a failed block.
+        ScriptVerificationScheduler.Batch next = scheduler.newBatch();
+        next.add(makeTransaction(2), scripts(2, TRUE), FLAGS);
+        next.await();
+        assertEquals(2, scheduler.getBlocksVerified());
+    }
+
+    @Test
+    public void bigTransactionSplitIntoRanges() throws Exception {
+        int inputs = ScriptVerificationScheduler.MIN_INPUTS_PER_JOB * 4;
+        ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+        batch.add(makeTransaction(inputs), scripts(inputs, TRUE), FLAGS);
+        batch.await();
+        assertEquals(inputs, scheduler.getInputsVerified());
+
+        // A failure in a range checked on a copy of the transaction fails the batch just the same.
+        List<Script> scripts = scripts(inputs, TRUE);
+        scripts.set(inputs - 1, FALSE);
+        ScriptVerificationScheduler.Batch failing = scheduler.newBatch();
+        failing.add(makeTransaction(inputs), scripts, FLAGS);
+        assertEquals(inputs, failing.size());
+        try {
+            failing.await();
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void cancelledBatchFails() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ScriptVerificationScheduler blocked = blockedScheduler(start);
+        try {
+            ScriptVerificationScheduler.Batch batch = blocked.newBatch();
+            batch.add(makeTransaction(1), scripts(1, TRUE), FLAGS);
+            batch.cancel();
+            try {
+                batch.await();
+                fail();
+            } catch (VerificationException e) {
+                // Expected.
+            }
+            assertEquals(0, blocked.getInputsVerified());
+        } finally {
+            blocked.shutdown();
+            start.countDown();
+        }
+    }
+
+    @Test
+    public void shutdownFailsQueuedJobs() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ScriptVerificationScheduler blocked = blockedScheduler(start);
+        ScriptVerificationScheduler.Batch batch = blocked.newBatch();
+        for (int i = 0; i < 10; i++)
+            batch.add(makeTransaction(1), scripts(1, TRUE), FLAGS);
+        blocked.shutdown();
+        assertEquals(0, blocked.getQueueDepth());
+        // Jobs added after the shutdown fail as well.
+        batch.add(makeTransaction(1), scripts(1, TRUE), FLAGS);
+        assertEquals(0, blocked.getQueueDepth());
+        start.countDown();
+        try {
+            batch.await();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(0, blocked.getInputsVerified());
+        try {
+            blocked.newBatch();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package live.thought.thoughtj.core;
+
+import com.google.common.collect.ImmutableList;
+import live.thought.thoughtj.core.TransactionConfidence.ConfidenceType;
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.utils.Threading;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransactionConfidenceTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private TxConfidenceTable table;
+    private TransactionConfidence confidence;
+    private final TransactionConfidence.Listener listener = new TransactionConfidence.Listener() {
+        @Override
+        public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        table = new TxConfidenceTable();
+        confidence = table.getOrCreate(Sha256Hash.of(new byte[] { 1 }));
+    }
+
+    @Test
+    public void depthDerivedFromChainHeight() throws Exception {
+        confidence.setAppearedAtChainHeight(100);
+        // The table doesn't know the chain yet, so the stored depth is used.
+        assertEquals(1, confidence.getDepthInBlocks());
+        table.setChainHeight(105);
+        assertEquals(6, confidence.getDepthInBlocks());
+        TransactionConfidence copy = confidence.duplicate();
+        table.setChainHeight(110);
+        assertEquals(11, confidence.getDepthInBlocks());
+        assertEquals(6, copy.getDepthInBlocks());
+        // Relative to a chain that hasn't got as far, such as that of a wallet that is catching up.
+        assertEquals(3, confidence.getDepthInBlocks(102));
+        assertEquals(11, confidence.getDepthInBlocks(-1));
+
+        // A chain that isn't there yet, or a transaction that left it, falls back to the stored depth.
+        table.setChainHeight(99);
+        assertEquals(1, confidence.getDepthInBlocks());
+        confidence.setConfidenceType(ConfidenceType.PENDING);
+        table.setChainHeight(110);
+        assertEquals(0, confidence.getDepthInBlocks());
+    }
+
+    @Test
+    public void depthWithoutTable() throws Exception {
+        confidence = new TransactionConfidence(Sha256Hash.of(new byte[] { 2 }));
+        confidence.setAppearedAtChainHeight(100);
+        assertEquals(2, confidence.incrementDepthInBlocks());
+        confidence.setDepthInBlocks(5);
+        assertEquals(5, confidence.getDepthInBlocks());
+    }
+
+    @Test
+    public void depthSubscribers() throws Exception {
+        // Two wallets holding the same transaction both hear about its subscription.
+        final List<Boolean> first = new ArrayList<Boolean>(), second = new ArrayList<Boolean>();
+        confidence.addDepthSubscriptionListener(new TransactionConfidence.DepthSubscriptionListener() {
+            @Override
+            public void onDepthSubscriptionChanged(TransactionConfidence confidence) {
+                first.add(confidence.hasDepthSubscribers());
+            }
+        });
+        confidence.addDepthSubscriptionListener(new TransactionConfidence.DepthSubscriptionListener() {
+            @Override
+            public void onDepthSubscriptionChanged(TransactionConfidence confidence) {
+                second.add(confidence.hasDepthSubscribers());
+            }
+        });
+        confidence.addEventListener(Threading.SAME_THREAD, listener, false);
+        assertFalse(confidence.hasDepthSubscribers());
+        assertTrue(first.isEmpty());
+        confidence.getDepthFuture(3, Threading.SAME_THREAD);
+        assertTrue(confidence.hasDepthSubscribers());
+
+        // Reaching the depth removes the future's listener, leaving only the one that doesn't care.
+        table.setChainHeight(12);
+        confidence.setAppearedAtChainHeight(10);
+        confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.DEPTH);
+        Threading.waitForUserCode();
+        assertFalse(confidence.hasDepthSubscribers());
+        assertTrue(confidence.removeEventListener(listener));
+        assertFalse(confidence.hasDepthSubscribers());
+        assertEquals(ImmutableList.of(true, false), first);
+        assertEquals(first, second);
+    }
+}
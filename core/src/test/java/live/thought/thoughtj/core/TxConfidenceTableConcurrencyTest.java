@@ -0,0 +1,127 @@
+package live.thought.thoughtj.core;
+
+import live.thought.thoughtj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class TxConfidenceTableConcurrencyTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+    }
+
+    private static Sha256Hash hash(int i) {
+        return Sha256Hash.of(("tx " + i).getBytes());
+    }
+
+    private static PeerAddress peer(int i) throws Exception {
+        return new PeerAddress(PARAMS, InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >> 8), (byte) i }));
+    }
+
+    @Test
+    public void evictsEntriesNotLookedUp() throws Exception {
+        // Small enough to be a single segment, so eviction is exact.
+        TxConfidenceTable table = new TxConfidenceTable(32);
+        List<TransactionConfidence> held = new ArrayList<TransactionConfidence>();
+        for (int i = 0; i < 32; i++)
+            held.add(table.getOrCreate(hash(i)));
+        assertSame(held.get(0), table.get(hash(0)));
+        held.add(table.getOrCreate(hash(32)));
+        assertEquals(32, table.size());
+        // The oldest entry was looked up so it stays, the next oldest goes.
+        assertSame(held.get(0), table.get(hash(0)));
+        assertNull(table.get(hash(1)));
+        assertSame(held.get(2), table.get(hash(2)));
+        assertSame(held.get(32), table.get(hash(32)));
+    }
+
+    @Test
+    public void cleansCollectedEntries() throws Exception {
+        TxConfidenceTable table = new TxConfidenceTable(1000);
+        TransactionConfidence kept = table.getOrCreate(hash(0));
+        for (int i = 1; i < 100; i++)
+            table.getOrCreate(hash(i));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (table.size() > 1 && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, table.size());
+        assertSame(kept, table.get(hash(0)));
+        assertEquals(0, table.numBroadcastPeers(hash(1)));
+        // A collected entry is simply created again.
+        assertEquals(hash(1), table.getOrCreate(hash(1)).getTransactionHash());
+    }
+
+    @Test
+    public void collectedEntriesDontTakeRoom() throws Exception {
+        TxConfidenceTable table = new TxConfidenceTable(32);
+        // Enough rounds for the entries left behind in the eviction queue to be dropped in one go.
+        for (int round = 0; round < 3; round++) {
+            List<TransactionConfidence> held = new ArrayList<TransactionConfidence>();
+            for (int i = 0; i < 32; i++)
+                held.add(table.getOrCreate(hash(round * 32 + i)));
+            assertEquals(32, table.size());
+            for (int i = 0; i < 32; i++)
+                assertSame(held.get(i), table.get(hash(round * 32 + i)));
+            held = null;
+            long deadline = System.currentTimeMillis() + 10000;
+            while (table.size() > 0 && System.currentTimeMillis() < deadline) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertEquals(0, table.size());
+        }
+    }
+
+    @Test
+    public void manyPeersAnnounceTheSameTransactions() throws Exception {
+        final TxConfidenceTable table = new TxConfidenceTable();
+        final int peers = 16, transactions = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(peers);
+        List<Future<List<TransactionConfidence>>> results = new ArrayList<Future<List<TransactionConfidence>>>();
+        for (int p = 0; p < peers; p++) {
+            final PeerAddress address = peer(p);
+            results.add(executor.submit(new Callable<List<TransactionConfidence>>() {
+                @Override
+                public List<TransactionConfidence> call() throws Exception {
+                    start.await();
+                    List<TransactionConfidence> seen = new ArrayList<TransactionConfidence>();
+                    for (int i = 0; i < transactions; i++)
+                        seen.add(table.seen(hash(i), address));
+                    return seen;
+                }
+            }));
+        }
+        start.countDown();
+        List<List<TransactionConfidence>> seen = new ArrayList<List<TransactionConfidence>>();
+        try {
+            for (Future<List<TransactionConfidence>> result : results)
+                seen.add(result.get());
+        } finally {
+            executor.shutdown();
+        }
+        // Every peer got the same object for each hash and every announcement counted.
+        for (int i = 0; i < transactions; i++) {
+            TransactionConfidence confidence = seen.get(0).get(i);
+            for (List<TransactionConfidence> list : seen)
+                assertSame(confidence, list.get(i));
+            assertEquals(peers, table.numBroadcastPeers(hash(i)));
+            assertEquals(TransactionConfidence.ConfidenceType.PENDING, confidence.getConfidenceType());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package live.thought.thoughtj.core;
+
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.script.Script;
+import live.thought.thoughtj.store.ConcurrentMemoryFullPrunedBlockStore;
+import live.thought.thoughtj.store.MemoryFullPrunedBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UTXOPrefetcherTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private ConcurrentMemoryFullPrunedBlockStore store;
+    private UTXOPrefetcher prefetcher;
+    private UTXO a, b;
+    private Block block;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        store = new ConcurrentMemoryFullPrunedBlockStore(PARAMS, 10);
+        prefetcher = new UTXOPrefetcher(store);
+        a = makeOutput(1);
+        b = makeOutput(2);
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+
+        Block genesis = PARAMS.getGenesisBlock();
+        block = genesis.cloneAsHeader();
+        block.addTransaction(new Transaction(PARAMS, genesis.getTransactions().get(0).bitcoinSerialize()));
+        Transaction spend = new Transaction(PARAMS);
+        spend.addInput(new TransactionInput(PARAMS, spend, new byte[0], new TransactionOutPoint(PARAMS, 0, a.getHash())));
+        spend.addInput(new TransactionInput(PARAMS, spend, new byte[0], new TransactionOutPoint(PARAMS, 0, b.getHash())));
+        spend.addOutput(new TransactionOutput(PARAMS, spend, Coin.COIN, new byte[0]));
+        block.addTransaction(spend);
+        // Spends an output created within the same block, which can't be prefetched.
+        Transaction child = new Transaction(PARAMS);
+        child.addInput(new TransactionInput(PARAMS, child, new byte[0], new TransactionOutPoint(PARAMS, 0, spend.getHash())));
+        child.addOutput(new TransactionOutput(PARAMS, child, Coin.COIN, new byte[0]));
+        block.addTransaction(child);
+    }
+
+    private static UTXO makeOutput(int seed) {
+        return new UTXO(Sha256Hash.of(new byte[] { (byte) seed }), 0, Coin.COIN, 1, false, new Script(new byte[0]));
+    }
+
+    private UTXOPrefetcher.Prefetch prefetchAndWait(UTXO expected) throws Exception {
+        prefetcher.prefetch(block);
+        UTXOPrefetcher.Prefetch prefetch = prefetcher.get(block.getHash());
+        assertNotNull(prefetch);
+        for (int i = 0; i < 500 && prefetch.get(expected.getHash(), expected.getIndex()) == null; i++)
+            Thread.sleep(10);
+        return prefetch;
+    }
+
+    @Test
+    public void prefetchesInputs() throws Exception {
+        UTXOPrefetcher.Prefetch prefetch = prefetchAndWait(b);
+        assertEquals(a, prefetch.get(a.getHash(), a.getIndex()));
+        assertEquals(b, prefetch.get(b.getHash(), b.getIndex()));
+        Sha256Hash spendHash = block.getTransactions().get(1).getHash();
+        assertNull(prefetch.get(spendHash, 0));
+        assertTrue(prefetcher.getHits() > 0);
+
+        prefetcher.remove(block.getHash());
+        assertNull(prefetcher.get(block.getHash()));
+    }
+
+    @Test
+    public void spentOutputsNotHandedOut() throws Exception {
+        UTXOPrefetcher.Prefetch prefetch = prefetchAndWait(b);
+        // Spent by a block connected after the prefetch started, or earlier in the same block.
+        prefetcher.spent(a);
+        assertNull(prefetch.get(a.getHash(), a.getIndex()));
+        assertEquals(b, prefetch.get(b.getHash(), b.getIndex()));
+    }
+
+    @Test
+    public void invalidatedOnAbort() throws Exception {
+        prefetchAndWait(b);
+        assertEquals(1, prefetcher.getPendingBlocks());
+        prefetcher.invalidateAll();
+        assertEquals(0, prefetcher.getPendingBlocks());
+        assertNull(prefetcher.get(block.getHash()));
+    }
+
+    @Test
+    public void uncommittedChangesNotSeen() throws Exception {
+        // The chain is halfway through a block that spends a and creates c.
+        UTXO c = makeOutput(3);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(c);
+        Transaction spend = block.getTransactions().get(1);
+        spend.addInput(new TransactionInput(PARAMS, spend, new byte[0], new TransactionOutPoint(PARAMS, 0, c.getHash())));
+        UTXOPrefetcher.Prefetch prefetch = prefetchAndWait(b);
+        assertEquals(a, prefetch.get(a.getHash(), a.getIndex()));
+        assertNull(prefetch.get(c.getHash(), c.getIndex()));
+        store.abortDatabaseBatchWrite();
+    }
+
+    @Test
+    public void failedReadHandsOutNothing() throws Exception {
+        store.close();
+        prefetcher.prefetch(block);
+        UTXOPrefetcher.Prefetch prefetch = prefetcher.get(block.getHash());
+        for (int i = 0; i < 500 && prefetcher.getFailures() == 0; i++)
+            Thread.sleep(10);
+        assertEquals(1, prefetcher.getFailures());
+        assertNull(prefetch.get(a.getHash(), a.getIndex()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void needsConcurrentlyReadableStore() throws Exception {
+        new FullPrunedBlockChain(PARAMS, new MemoryFullPrunedBlockStore(PARAMS, 10)).setPipelinedConnect(true);
+    }
+}
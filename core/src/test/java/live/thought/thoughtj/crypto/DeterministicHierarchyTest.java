@@ -0,0 +1,48 @@
+package live.thought.thoughtj.crypto;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeterministicHierarchyTest {
+    private static final DeterministicKey ROOT = HDKeyDerivation.createMasterPrivateKey("derivation test seed".getBytes());
+
+    private void assertSameAsSequential(DeterministicKey parent, int firstChild, int count) {
+        DeterministicHierarchy hierarchy = new DeterministicHierarchy(ROOT);
+        hierarchy.putKey(parent);
+        List<DeterministicKey> keys = hierarchy.derivePublicChildren(parent, firstChild, count);
+        assertEquals(count, keys.size());
+        for (int i = 0; i < count; i++) {
+            DeterministicKey expected = HDKeyDerivation.deriveThisOrNextChildKey(parent, firstChild + i);
+            DeterministicKey key = keys.get(i);
+            assertEquals(expected.getPath(), key.getPath());
+            assertArrayEquals(expected.getPubKey(), key.getPubKey());
+            assertArrayEquals(expected.getChainCode(), key.getChainCode());
+            assertSame(key, hierarchy.get(key.getPath(), false, false));
+        }
+        assertEquals(firstChild + count, hierarchy.getNumChildren(parent.getPath()));
+    }
+
+    @Test
+    public void derivePublicChildrenFromPrivateParent() throws Exception {
+        DeterministicKey parent = HDKeyDerivation.deriveChildKey(ROOT, ChildNumber.ZERO_HARDENED);
+        assertSameAsSequential(parent, 0, DeterministicHierarchy.KEYS_PER_THREAD * 4 + 3);
+    }
+
+    @Test
+    public void derivePublicChildrenFromPublicParent() throws Exception {
+        DeterministicKey parent = HDKeyDerivation.deriveChildKey(ROOT, ChildNumber.ONE).dropPrivateBytes();
+        assertSameAsSequential(parent, 10, DeterministicHierarchy.KEYS_PER_THREAD * 2);
+    }
+
+    @Test
+    public void smallBatches() throws Exception {
+        DeterministicKey parent = HDKeyDerivation.deriveChildKey(ROOT, ChildNumber.ZERO);
+        assertSameAsSequential(parent, 0, 1);
+        DeterministicHierarchy hierarchy = new DeterministicHierarchy(ROOT);
+        assertEquals(ImmutableList.of(), hierarchy.derivePublicChildren(parent, 0, 0));
+    }
+}
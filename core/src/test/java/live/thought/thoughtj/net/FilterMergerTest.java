@@ -0,0 +1,138 @@
+package live.thought.thoughtj.net;
+
+import com.google.common.collect.ImmutableList;
+import live.thought.thoughtj.core.BloomFilter;
+import live.thought.thoughtj.core.Context;
+import live.thought.thoughtj.core.ECKey;
+import live.thought.thoughtj.core.FilterAddMessage;
+import live.thought.thoughtj.core.NetworkParameters;
+import live.thought.thoughtj.core.PeerFilterProvider;
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.script.Script;
+import live.thought.thoughtj.script.ScriptBuilder;
+import live.thought.thoughtj.wallet.Wallet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FilterMergerTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private FilterMerger merger;
+    private ListProvider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        merger = new FilterMerger(0.001);
+        provider = new ListProvider();
+    }
+
+    private static byte[] element(int i) {
+        return new byte[] { (byte) i, (byte) (i >> 8), 1, 2, 3, 4, 5, 6 };
+    }
+
+    private static class ListProvider implements PeerFilterProvider {
+        final List<byte[]> elements = new ArrayList<byte[]>();
+
+        @Override public long getEarliestKeyCreationTime() { return 0; }
+        @Override public void beginBloomFilterCalculation() {}
+        @Override public int getBloomFilterElementCount() { return elements.size(); }
+        @Override public boolean isRequiringUpdateAllBloomFilter() { return false; }
+        @Override public void endBloomFilterCalculation() {}
+
+        @Override
+        public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
+            BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
+            for (byte[] element : elements)
+                filter.insert(element);
+            return filter;
+        }
+    }
+
+    @Test
+    public void insertWithinBudget() throws Exception {
+        assertNull(merger.insert(ImmutableList.of(element(0))));
+        for (int i = 0; i < 10; i++)
+            provider.elements.add(element(i));
+        BloomFilter calculated = merger.calculate(ImmutableList.<PeerFilterProvider>of(provider)).filter;
+
+        List<byte[]> added = ImmutableList.of(element(10), element(11));
+        provider.elements.addAll(added);
+        BloomFilter inserted = merger.insert(added);
+        assertNotNull(inserted);
+        assertSame(inserted, merger.getLastFilter());
+        assertTrue(inserted.contains(element(0)));
+        assertTrue(inserted.contains(element(11)));
+        // The filter the peers were given before isn't touched.
+        assertNotSame(calculated, inserted);
+        assertNotEquals(calculated, inserted);
+
+        // Recalculating gives the same filter, so there's nothing to send.
+        FilterMerger.Result result = merger.calculate(ImmutableList.<PeerFilterProvider>of(provider));
+        assertFalse(result.changed);
+        assertEquals(inserted, result.filter);
+    }
+
+    @Test
+    public void regeneratesWhenFull() throws Exception {
+        for (int i = 0; i < 10; i++)
+            provider.elements.add(element(i));
+        BloomFilter calculated = merger.calculate(ImmutableList.<PeerFilterProvider>of(provider)).filter;
+        // The filter has room for 100 more elements than it was calculated with.
+        List<byte[]> added = new ArrayList<byte[]>();
+        for (int i = 10; i < 111; i++)
+            added.add(element(i));
+        assertNull(merger.insert(added));
+        assertNotNull(merger.insert(added.subList(0, 100)));
+
+        provider.elements.addAll(added);
+        FilterMerger.Result result = merger.calculate(ImmutableList.<PeerFilterProvider>of(provider));
+        assertTrue(result.changed);
+        assertTrue(result.filter.bitcoinSerialize().length > calculated.bitcoinSerialize().length);
+        for (byte[] element : provider.elements)
+            assertTrue(result.filter.contains(element));
+
+        // Changing the false positive rate needs a new filter.
+        merger.setBloomFilterFPRate(0.0001);
+        assertNull(merger.insert(ImmutableList.of(element(200))));
+    }
+
+    @Test
+    public void walletElements() throws Exception {
+        Wallet wallet = new Wallet(PARAMS);
+        merger.calculate(ImmutableList.<PeerFilterProvider>of(wallet));
+
+        ECKey key = new ECKey();
+        wallet.importKey(key);
+        Script script = ScriptBuilder.createOutputScript(new ECKey().toAddress(PARAMS));
+        wallet.addWatchedScripts(ImmutableList.of(script));
+        List<byte[]> elements = wallet.getBloomFilterElements(ImmutableList.of(key), ImmutableList.of(script));
+        assertEquals(3, elements.size());
+        BloomFilter inserted = merger.insert(elements);
+        assertNotNull(inserted);
+
+        // What the wallet says it adds is exactly what calculating the whole filter again adds.
+        FilterMerger.Result result = merger.calculate(ImmutableList.<PeerFilterProvider>of(wallet));
+        assertFalse(result.changed);
+        assertEquals(inserted, result.filter);
+    }
+
+    @Test
+    public void filterAddMessage() throws Exception {
+        FilterAddMessage message = new FilterAddMessage(PARAMS, element(1));
+        FilterAddMessage parsed = new FilterAddMessage(PARAMS, message.bitcoinSerialize(), 0);
+        assertEquals(message, parsed);
+        assertArrayEquals(element(1), parsed.getData());
+        try {
+            new FilterAddMessage(PARAMS, new byte[FilterAddMessage.MAX_DATA_SIZE + 1]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package live.thought.thoughtj.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import live.thought.thoughtj.core.Address;
+import live.thought.thoughtj.core.BatchUTXOProvider;
+import live.thought.thoughtj.core.Coin;
+import live.thought.thoughtj.core.Context;
+import live.thought.thoughtj.core.ECKey;
+import live.thought.thoughtj.core.NetworkParameters;
+import live.thought.thoughtj.core.Sha256Hash;
+import live.thought.thoughtj.core.UTXO;
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.script.Script;
+import live.thought.thoughtj.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentMemoryFullPrunedBlockStoreTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private ConcurrentMemoryFullPrunedBlockStore store;
+    private Address address;
+    private Script script;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        store = new ConcurrentMemoryFullPrunedBlockStore(PARAMS, 10, 4);
+        address = new ECKey().toAddress(PARAMS);
+        script = ScriptBuilder.createOutputScript(address);
+    }
+
+    private UTXO makeOutput(int seed) {
+        return new UTXO(Sha256Hash.of(new byte[] { (byte) seed, (byte) (seed >> 8) }), 0, Coin.COIN, 1, false, script,
+                address.toString());
+    }
+
+    private UTXO getFromOtherThread(final UTXO out) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            return executor.submit(new Callable<UTXO>() {
+                @Override
+                public UTXO call() throws Exception {
+                    return store.getTransactionOutput(out.getHash(), out.getIndex());
+                }
+            }).get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void otherThreadsSeeCommittedState() throws Exception {
+        UTXO a = makeOutput(1), b = makeOutput(2);
+        store.addUnspentTransactionOutput(a);
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        assertNull(store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertEquals(b, store.getTransactionOutput(b.getHash(), b.getIndex()));
+        assertEquals(a, getFromOtherThread(a));
+        assertNull(getFromOtherThread(b));
+        store.commitDatabaseBatchWrite();
+
+        assertNull(getFromOtherThread(a));
+        assertEquals(b, getFromOtherThread(b));
+    }
+
+    @Test
+    public void abortDiscardsBatch() throws Exception {
+        UTXO a = makeOutput(1), b = makeOutput(2);
+        store.addUnspentTransactionOutput(a);
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.abortDatabaseBatchWrite();
+
+        assertEquals(a, store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertNull(store.getTransactionOutput(b.getHash(), b.getIndex()));
+        try {
+            store.removeUnspentTransactionOutput(b);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void findsOutputsOfManyAddresses() throws Exception {
+        final Address other = new ECKey().toAddress(PARAMS), unrelated = new ECKey().toAddress(PARAMS);
+        UTXO a = makeOutput(1), b = makeOutput(2);
+        final UTXO c = new UTXO(Sha256Hash.of(new byte[] { 3 }), 0, Coin.COIN, 1, false,
+                ScriptBuilder.createOutputScript(other), other.toString());
+        UTXO d = new UTXO(Sha256Hash.of(new byte[] { 4 }), 0, Coin.COIN, 1, false,
+                ScriptBuilder.createOutputScript(unrelated), unrelated.toString());
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.addUnspentTransactionOutput(d);
+
+        // Changes of a batch in progress are seen by the thread making them only.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(b);
+        store.addUnspentTransactionOutput(c);
+        final List<Address> wanted = ImmutableList.of(address, other, address);
+        assertEquals(ImmutableSet.of(a, c), find(wanted));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertEquals(ImmutableSet.of(a, b), executor.submit(new Callable<Set<UTXO>>() {
+                @Override
+                public Set<UTXO> call() throws Exception {
+                    return find(wanted);
+                }
+            }).get());
+        } finally {
+            executor.shutdown();
+        }
+        store.commitDatabaseBatchWrite();
+        assertEquals(ImmutableSet.of(a, c), find(wanted));
+    }
+
+    // Collects the outputs handed over, failing if any of them comes twice.
+    private Set<UTXO> find(List<Address> addresses) throws Exception {
+        final Set<UTXO> found = new HashSet<UTXO>();
+        store.findOpenTransactionOutputs(addresses, new BatchUTXOProvider.UTXOReceiver() {
+            @Override
+            public void receive(UTXO output) {
+                assertTrue(found.add(output));
+            }
+        });
+        return found;
+    }
+
+    @Test
+    public void readersNeverSeeHalfABatch() throws Exception {
+        // Every batch spends the only output and creates the next one, so readers must always find exactly one.
+        store.addUnspentTransactionOutput(makeOutput(0));
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService readers = Executors.newFixedThreadPool(3);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 3; i++) {
+            results.add(readers.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int reads = 0;
+                    while (!done.get()) {
+                        assertEquals(1, store.getOpenTransactionOutputs(ImmutableList.of(address)).size());
+                        reads++;
+                    }
+                    return reads;
+                }
+            }));
+        }
+        try {
+            for (int i = 1; i < 500; i++) {
+                store.beginDatabaseBatchWrite();
+                store.removeUnspentTransactionOutput(makeOutput(i - 1));
+                store.addUnspentTransactionOutput(makeOutput(i));
+                store.commitDatabaseBatchWrite();
+            }
+        } finally {
+            done.set(true);
+            readers.shutdown();
+        }
+        for (Future<Integer> result : results)
+            assertTrue(result.get() > 0);
+        assertEquals(makeOutput(499), store.getOpenTransactionOutputs(ImmutableList.of(address)).get(0));
+    }
+}
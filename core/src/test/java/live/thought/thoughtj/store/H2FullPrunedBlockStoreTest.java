@@ -0,0 +1,158 @@
+package live.thought.thoughtj.store;
+
+import com.google.common.collect.ImmutableList;
+import live.thought.thoughtj.core.Address;
+import live.thought.thoughtj.core.BatchUTXOProvider;
+import live.thought.thoughtj.core.Coin;
+import live.thought.thoughtj.core.Context;
+import live.thought.thoughtj.core.ECKey;
+import live.thought.thoughtj.core.NetworkParameters;
+import live.thought.thoughtj.core.Sha256Hash;
+import live.thought.thoughtj.core.UTXO;
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.script.Script;
+import live.thought.thoughtj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class H2FullPrunedBlockStoreTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private File dir;
+    private H2FullPrunedBlockStore store;
+    private final List<Integer> preparedQuerySizes = new ArrayList<Integer>();
+    private Address address;
+    private Script script;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        dir = File.createTempFile("h2fullprunedblockstore", null);
+        dir.delete();
+        dir.mkdir();
+        store = new H2FullPrunedBlockStore(PARAMS, new File(dir, "store").getAbsolutePath(), 10) {
+            @Override
+            PreparedStatement prepareTransactionOutputsForAddresses(Connection connection, int count)
+                    throws SQLException {
+                preparedQuerySizes.add(count);
+                return super.prepareTransactionOutputsForAddresses(connection, count);
+            }
+        };
+        address = new ECKey().toAddress(PARAMS);
+        script = ScriptBuilder.createOutputScript(address);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        dir.delete();
+    }
+
+    private UTXO makeOutput(int seed, int index) {
+        return new UTXO(Sha256Hash.of(new byte[] { (byte) seed }), index, Coin.COIN, 1, false, script,
+                address.toString());
+    }
+
+    @Test
+    public void batchedChangesVisibleBeforeCommit() throws Exception {
+        UTXO a = makeOutput(1, 0), b = makeOutput(1, 1), c = makeOutput(2, 0);
+        store.addUnspentTransactionOutput(a);
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(b);
+        store.addUnspentTransactionOutput(c);
+        assertEquals(b, store.getTransactionOutput(b.getHash(), b.getIndex()));
+        store.removeUnspentTransactionOutput(a);
+        store.removeUnspentTransactionOutput(c);
+        assertNull(store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertNull(store.getTransactionOutput(c.getHash(), c.getIndex()));
+        assertTrue(store.hasUnspentOutputs(a.getHash(), 2));
+        assertFalse(store.hasUnspentOutputs(c.getHash(), 1));
+        assertEquals(ImmutableList.of(b), store.getOpenTransactionOutputs(ImmutableList.of(address)));
+        store.commitDatabaseBatchWrite();
+
+        assertNull(store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertEquals(b, store.getTransactionOutput(b.getHash(), b.getIndex()));
+        assertNull(store.getTransactionOutput(c.getHash(), c.getIndex()));
+    }
+
+    @Test
+    public void abortDiscardsBatchedChanges() throws Exception {
+        UTXO a = makeOutput(1, 0), b = makeOutput(2, 0);
+        store.addUnspentTransactionOutput(a);
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.abortDatabaseBatchWrite();
+
+        assertEquals(a, store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertNull(store.getTransactionOutput(b.getHash(), b.getIndex()));
+        assertFalse(store.hasUnspentOutputs(b.getHash(), 1));
+    }
+
+    @Test
+    public void removedAndAddedBackInOneBatch() throws Exception {
+        UTXO a = makeOutput(1, 0);
+        store.addUnspentTransactionOutput(a);
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(a);
+        // Adding an output that is there already is ignored.
+        store.addUnspentTransactionOutput(makeOutput(1, 0));
+        store.commitDatabaseBatchWrite();
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(makeOutput(2, 0));
+        store.commitDatabaseBatchWrite();
+
+        assertEquals(a, store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertEquals(2, store.getOpenTransactionOutputs(ImmutableList.of(address)).size());
+    }
+
+    @Test
+    public void findsOutputsOfManyAddressesInChunks() throws Exception {
+        List<Address> addresses = new ArrayList<Address>();
+        Set<UTXO> expected = new HashSet<UTXO>();
+        for (int i = 0; i < 250; i++) {
+            Address a = new Address(PARAMS, Arrays.copyOf(Sha256Hash.of(new byte[] { (byte) i }).getBytes(), 20));
+            addresses.add(a);
+            UTXO out = new UTXO(Sha256Hash.of(new byte[] { (byte) i, 1 }), 0, Coin.COIN, 1, false,
+                    ScriptBuilder.createOutputScript(a), a.toString());
+            store.addUnspentTransactionOutput(out);
+            expected.add(out);
+        }
+        // Asking twice for an address still hands its outputs over once.
+        addresses.addAll(addresses.subList(0, 10));
+        final Set<UTXO> found = new HashSet<UTXO>();
+        store.findOpenTransactionOutputs(addresses, new BatchUTXOProvider.UTXOReceiver() {
+            @Override
+            public void receive(UTXO output) {
+                assertTrue(found.add(output));
+            }
+        });
+        assertEquals(expected, found);
+        // Two full chunks sharing one statement, and the rest.
+        assertEquals(ImmutableList.of(DatabaseFullPrunedBlockStore.ADDRESSES_PER_QUERY, 50), preparedQuerySizes);
+        assertEquals(250, store.getOpenTransactionOutputs(addresses).size());
+    }
+}
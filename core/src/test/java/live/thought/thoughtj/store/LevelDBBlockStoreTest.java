@@ -20,9 +20,12 @@ import live.thought.thoughtj.core.*;
 import live.thought.thoughtj.params.*;
 import live.thought.thoughtj.store.LevelDBBlockStore;
 
+import org.fusesource.leveldbjni.JniDBFactory;
+
 import java.io.*;
+import java.math.BigInteger;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class LevelDBBlockStoreTest {
     @Test
@@ -60,4 +63,44 @@ public class LevelDBBlockStoreTest {
             store.destroy();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void batchedHeaders() throws Exception {
+        File f = File.createTempFile("leveldbblockstore", null);
+        f.delete();
+
+        NetworkParameters params = MainNetParams.get();
+        Context context = new Context(params);
+        LevelDBBlockStore store = new LevelDBBlockStore(context, f);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock[] blocks = new StoredBlock[10];
+        try {
+            store.beginBatch();
+            for (int i = 0; i < blocks.length; i++) {
+                // The store doesn't check proof of work, so vary the nonce to get distinct headers.
+                Block header = genesis.getHeader().cloneAsHeader();
+                header.setNonce(i);
+                blocks[i] = new StoredBlock(header, BigInteger.valueOf(i + 1), i + 1);
+                store.put(blocks[i]);
+                store.setChainHead(blocks[i]);
+                // Blocks in the batch are visible straight away.
+                assertEquals(blocks[i], store.getChainHead());
+            }
+            store.commitBatch();
+        } finally {
+            store.close();
+        }
+
+        // A store with no cache has to read everything back from disk.
+        store = new LevelDBBlockStore(context, f, JniDBFactory.factory, 0);
+        try {
+            assertEquals(blocks[blocks.length - 1], store.getChainHead());
+            for (StoredBlock block : blocks)
+                assertEquals(block, store.get(block.getHeader().getHash()));
+            assertNull(store.get(Sha256Hash.ZERO_HASH));
+        } finally {
+            store.close();
+            store.destroy();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package live.thought.thoughtj.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import live.thought.thoughtj.core.Address;
+import live.thought.thoughtj.core.Block;
+import live.thought.thoughtj.core.BatchUTXOProvider;
+import live.thought.thoughtj.core.Coin;
+import live.thought.thoughtj.core.Context;
+import live.thought.thoughtj.core.NetworkParameters;
+import live.thought.thoughtj.core.Sha256Hash;
+import live.thought.thoughtj.core.StoredBlock;
+import live.thought.thoughtj.core.StoredUndoableBlock;
+import live.thought.thoughtj.core.Transaction;
+import live.thought.thoughtj.core.UTXO;
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LevelDBFullPrunedBlockStoreTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private File dir;
+    private LevelDBFullPrunedBlockStore store;
+    private Address first, second;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        dir = File.createTempFile("leveldbfullprunedblockstore", null);
+        dir.delete();
+        store = new LevelDBFullPrunedBlockStore(PARAMS, dir.getAbsolutePath(), 10);
+        first = address(1);
+        second = address(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        dir.delete();
+    }
+
+    private static Address address(int seed) {
+        return new Address(PARAMS, Arrays.copyOf(Sha256Hash.of(new byte[] { (byte) seed, (byte) (seed >> 8) }).getBytes(), 20));
+    }
+
+    private static UTXO makeOutput(int seed, Address address) {
+        return new UTXO(Sha256Hash.of(new byte[] { (byte) seed, (byte) (seed >> 8), 1 }), 0, Coin.COIN, 1, false,
+                ScriptBuilder.createOutputScript(address), address.toString());
+    }
+
+    // Collects the outputs handed over, failing if any of them comes twice.
+    private Set<UTXO> find(Collection<Address> addresses) throws Exception {
+        final Set<UTXO> found = new HashSet<UTXO>();
+        store.findOpenTransactionOutputs(addresses, new BatchUTXOProvider.UTXOReceiver() {
+            @Override
+            public void receive(UTXO output) {
+                assertTrue(found.add(output));
+            }
+        });
+        return found;
+    }
+
+    @Test
+    public void findsWrittenAndCachedOutputs() throws Exception {
+        UTXO a = makeOutput(1, first), b = makeOutput(2, second);
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.flush();
+        // Still in the cache: a new output and the spend of a written one.
+        UTXO c = makeOutput(3, first);
+        store.addUnspentTransactionOutput(c);
+        store.removeUnspentTransactionOutput(b);
+        assertEquals(ImmutableSet.of(a, c), find(ImmutableList.of(first, second, first)));
+        store.flush();
+        assertEquals(ImmutableSet.of(a, c), find(ImmutableList.of(first, second)));
+    }
+
+    @Test
+    public void changesDuringAQueryAreNotSeen() throws Exception {
+        final UTXO a = makeOutput(1, first), b = makeOutput(2, first), c = makeOutput(3, second);
+        final UTXO d = makeOutput(4, first), e = makeOutput(5, second);
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.flush();
+        store.addUnspentTransactionOutput(c);
+        final Set<UTXO> found = new HashSet<UTXO>();
+        store.findOpenTransactionOutputs(ImmutableList.of(first, second), new BatchUTXOProvider.UTXOReceiver() {
+            @Override
+            public void receive(UTXO output) {
+                try {
+                    if (found.isEmpty()) {
+                        // Move everything while the query is still going, both in the cache and in leveldb.
+                        for (UTXO out : ImmutableList.of(a, b, c))
+                            store.removeUnspentTransactionOutput(out);
+                        store.addUnspentTransactionOutput(d);
+                        store.addUnspentTransactionOutput(e);
+                        store.flush();
+                    }
+                } catch (BlockStoreException x) {
+                    throw new RuntimeException(x);
+                }
+                assertTrue(found.add(output));
+            }
+        });
+        assertEquals(ImmutableSet.of(a, b, c), found);
+        assertEquals(ImmutableSet.of(d, e), find(ImmutableList.of(first, second)));
+    }
+
+    @Test
+    public void manyAddressesAreScannedInParallel() throws Exception {
+        int count = LevelDBFullPrunedBlockStore.ADDRESSES_PER_QUERY_THREAD * 3;
+        List<Address> addresses = new ArrayList<Address>();
+        Set<UTXO> expected = new HashSet<UTXO>();
+        for (int i = 0; i < count; i++) {
+            Address a = address(i);
+            addresses.add(a);
+            UTXO out = makeOutput(i, a);
+            store.addUnspentTransactionOutput(out);
+            expected.add(out);
+        }
+        store.flush();
+        // Half of them spent again, but only in the cache.
+        for (int i = 0; i < count; i += 2)
+            expected.remove(makeOutput(i, addresses.get(i)));
+        for (int i = 0; i < count; i += 2)
+            store.removeUnspentTransactionOutput(makeOutput(i, addresses.get(i)));
+        addresses.addAll(addresses.subList(0, 10));
+        assertEquals(expected, find(addresses));
+    }
+
+    @Test
+    public void committedReadsIgnoreBatchInProgress() throws Exception {
+        UTXO a = makeOutput(1, first), b = makeOutput(2, first), c = makeOutput(3, second);
+        store.addUnspentTransactionOutput(a);
+        store.flush();
+        store.addUnspentTransactionOutput(b);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.removeUnspentTransactionOutput(b);
+        store.addUnspentTransactionOutput(c);
+        assertNull(store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertEquals(a, store.getCommittedTransactionOutput(a.getHash(), a.getIndex()));
+        assertEquals(b, store.getCommittedTransactionOutput(b.getHash(), b.getIndex()));
+        assertNull(store.getCommittedTransactionOutput(c.getHash(), c.getIndex()));
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getCommittedTransactionOutput(a.getHash(), a.getIndex()));
+        assertEquals(c, store.getCommittedTransactionOutput(c.getHash(), c.getIndex()));
+        store.flush();
+        assertNull(store.getCommittedTransactionOutput(a.getHash(), a.getIndex()));
+        assertEquals(c, store.getCommittedTransactionOutput(c.getHash(), c.getIndex()));
+    }
+
+    @Test
+    public void reopeningWithoutFlushGoesBackToTheWrittenOutputs() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        Block parent = genesis.getHeader();
+        // Easy enough to solve quickly, the store checks the proof of work when it reads the header back.
+        Block header = new Block(PARAMS, parent.getVersion(), parent.getHash(), parent.getMerkleRoot(),
+                parent.getTimeSeconds() + 60, 0x2000ffffL, 0, new ArrayList<Transaction>());
+        header.solve();
+        StoredBlock next = genesis.build(header);
+        UTXO a = makeOutput(1, first);
+        store.beginDatabaseBatchWrite();
+        store.put(next, new StoredUndoableBlock(next.getHeader().getHash(), new ArrayList<Transaction>()));
+        store.addUnspentTransactionOutput(a);
+        store.setVerifiedChainHead(next);
+        store.commitDatabaseBatchWrite();
+        assertEquals(next, store.getChainHead());
+        assertEquals(next, store.getVerifiedChainHead());
+
+        // Crash before the cache is flushed: both heads are where the unspent outputs on disk are.
+        store.db.close();
+        store = new LevelDBFullPrunedBlockStore(PARAMS, dir.getAbsolutePath(), 10);
+        assertEquals(genesis, store.getChainHead());
+        assertEquals(genesis, store.getVerifiedChainHead());
+        assertNull(store.getTransactionOutput(a.getHash(), a.getIndex()));
+
+        // Once flushed, they all move on together.
+        store.beginDatabaseBatchWrite();
+        store.put(next, new StoredUndoableBlock(next.getHeader().getHash(), new ArrayList<Transaction>()));
+        store.addUnspentTransactionOutput(a);
+        store.setVerifiedChainHead(next);
+        store.commitDatabaseBatchWrite();
+        store.flush();
+        store.db.close();
+        store = new LevelDBFullPrunedBlockStore(PARAMS, dir.getAbsolutePath(), 10);
+        assertEquals(next, store.getChainHead());
+        assertEquals(next, store.getVerifiedChainHead());
+        assertEquals(a, store.getTransactionOutput(a.getHash(), a.getIndex()));
+    }
+}
@@ -0,0 +1,96 @@
+package live.thought.thoughtj.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import live.thought.thoughtj.core.Address;
+import live.thought.thoughtj.core.BatchUTXOProvider;
+import live.thought.thoughtj.core.Coin;
+import live.thought.thoughtj.core.Context;
+import live.thought.thoughtj.core.ECKey;
+import live.thought.thoughtj.core.NetworkParameters;
+import live.thought.thoughtj.core.Sha256Hash;
+import live.thought.thoughtj.core.UTXO;
+import live.thought.thoughtj.core.UTXOProvider;
+import live.thought.thoughtj.core.UTXOProviderException;
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MemoryFullPrunedBlockStoreTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private MemoryFullPrunedBlockStore store;
+    private Address first, second;
+    private UTXO a, b, c, d;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        store = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        first = new ECKey().toAddress(PARAMS);
+        second = new ECKey().toAddress(PARAMS);
+        Address unrelated = new ECKey().toAddress(PARAMS);
+        a = makeOutput(1, first);
+        b = makeOutput(2, first);
+        c = makeOutput(3, second);
+        d = makeOutput(4, unrelated);
+        for (UTXO out : ImmutableList.of(a, b, c, d))
+            store.addUnspentTransactionOutput(out);
+    }
+
+    private static UTXO makeOutput(int seed, Address address) {
+        return new UTXO(Sha256Hash.of(new byte[] { (byte) seed }), 0, Coin.COIN, 1, false,
+                ScriptBuilder.createOutputScript(address), address.toString());
+    }
+
+    // Collects the outputs handed over, failing if any of them comes twice.
+    private static Set<UTXO> find(UTXOProvider provider, Collection<Address> addresses) throws Exception {
+        final Set<UTXO> found = new HashSet<UTXO>();
+        BatchUTXOProvider.Helper.findOpenTransactionOutputs(provider, addresses, new BatchUTXOProvider.UTXOReceiver() {
+            @Override
+            public void receive(UTXO output) {
+                assertTrue(found.add(output));
+            }
+        });
+        return found;
+    }
+
+    @Test
+    public void findsOutputsOfManyAddresses() throws Exception {
+        assertEquals(ImmutableSet.of(a, b, c), find(store, ImmutableList.of(first, second, first)));
+        assertEquals(ImmutableSet.of(c), find(store, ImmutableList.of(second)));
+        assertEquals(ImmutableSet.of(), find(store, ImmutableList.<Address>of()));
+        store.removeUnspentTransactionOutput(a);
+        assertEquals(ImmutableSet.of(b, c), find(store, ImmutableList.of(first, second)));
+    }
+
+    @Test
+    public void helperFallsBackToListQuery() throws Exception {
+        // A provider that only implements UTXOProvider.
+        UTXOProvider plain = new UTXOProvider() {
+            @Override
+            public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+                return store.getOpenTransactionOutputs(addresses);
+            }
+
+            @Override
+            public int getChainHeadHeight() throws UTXOProviderException {
+                return store.getChainHeadHeight();
+            }
+
+            @Override
+            public NetworkParameters getParams() {
+                return PARAMS;
+            }
+        };
+        assertEquals(ImmutableSet.of(a, b, c), find(plain, ImmutableList.of(first, second)));
+    }
+}
@@ -0,0 +1,104 @@
+package live.thought.thoughtj.store;
+
+import live.thought.thoughtj.core.Coin;
+import live.thought.thoughtj.core.Sha256Hash;
+import live.thought.thoughtj.core.UTXO;
+import live.thought.thoughtj.script.Script;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class UTXOCacheTest {
+    private UTXOCache cache;
+    private Map<UTXOCache.Key, UTXOCache.Entry> written;
+    private final UTXOCache.Writer writer = new UTXOCache.Writer() {
+        @Override
+        public void write(Map<UTXOCache.Key, UTXOCache.Entry> dirty) {
+            written = new HashMap<UTXOCache.Key, UTXOCache.Entry>(dirty);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        cache = new UTXOCache(100);
+        written = null;
+    }
+
+    private static UTXO makeOutput(int seed) {
+        return new UTXO(Sha256Hash.of(new byte[] { (byte) seed }), 0, Coin.COIN, 1, false, new Script(new byte[0]));
+    }
+
+    private static UTXOCache.Key key(UTXO out) {
+        return new UTXOCache.Key(out.getHash(), out.getIndex());
+    }
+
+    @Test
+    public void createdAndSpentNeverWritten() throws Exception {
+        UTXO a = makeOutput(1), b = makeOutput(2);
+        cache.beginBatch();
+        cache.add(key(a), a);
+        cache.add(key(b), b);
+        cache.commitBatch();
+        cache.beginBatch();
+        cache.remove(key(a), a);
+        assertTrue(cache.get(key(a)).spent);
+        cache.commitBatch();
+        assertNull(cache.get(key(a)));
+        assertEquals(1, cache.getDirtyCount());
+
+        cache.flush(writer);
+        assertEquals(1, written.size());
+        assertFalse(written.get(key(b)).spent);
+        assertEquals(0, cache.getDirtyCount());
+        assertEquals(0, cache.getDirtyBytes());
+        // Still cached, now as clean.
+        assertEquals(b, cache.get(key(b)).utxo);
+    }
+
+    @Test
+    public void spendOfOutputOnDiskIsWritten() throws Exception {
+        UTXO a = makeOutput(1);
+        cache.putClean(key(a), a);
+        cache.beginBatch();
+        cache.remove(key(a), a);
+        cache.commitBatch();
+        assertTrue(cache.get(key(a)).spent);
+        cache.flush(writer);
+        assertTrue(written.get(key(a)).spent);
+        assertNull(cache.get(key(a)));
+
+        // Spent outputs that are re-added whilst disconnecting are written again.
+        cache.add(key(a), a);
+        assertTrue(cache.get(key(a)).fresh);
+    }
+
+    @Test
+    public void abortDiscardsBatch() throws Exception {
+        UTXO a = makeOutput(1), b = makeOutput(2);
+        cache.beginBatch();
+        cache.add(key(a), a);
+        cache.commitBatch();
+        cache.beginBatch();
+        cache.remove(key(a), a);
+        cache.add(key(b), b);
+        cache.abortBatch();
+        assertEquals(a, cache.get(key(a)).utxo);
+        assertNull(cache.get(key(b)));
+        assertFalse(cache.isInBatch());
+    }
+
+    @Test
+    public void keysCompareWholeHash() {
+        UTXO a = makeOutput(1);
+        assertEquals(key(a), new UTXOCache.Key(a.getHash(), 0));
+        assertEquals(key(a).hashCode(), new UTXOCache.Key(a.getHash(), 0).hashCode());
+        assertNotEquals(key(a), new UTXOCache.Key(a.getHash(), 1));
+        byte[] bytes = a.getHash().getBytes().clone();
+        bytes[31] ^= 1;
+        assertNotEquals(key(a), new UTXOCache.Key(Sha256Hash.wrap(bytes), 0));
+    }
+}
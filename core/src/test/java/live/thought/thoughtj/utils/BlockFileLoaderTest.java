@@ -0,0 +1,99 @@
+package live.thought.thoughtj.utils;
+
+import live.thought.thoughtj.core.Block;
+import live.thought.thoughtj.core.Context;
+import live.thought.thoughtj.core.NetworkParameters;
+import live.thought.thoughtj.core.Utils;
+import live.thought.thoughtj.params.MainNetParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockFileLoaderTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private List<File> files = new ArrayList<File>();
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : files)
+            file.delete();
+    }
+
+    /** Writes a block file in the reference client format. */
+    public static void writeBlock(ByteArrayOutputStream out, NetworkParameters params, byte[] block) throws Exception {
+        byte[] magic = new byte[4];
+        Utils.uint32ToByteArrayBE(params.getPacketMagic(), magic, 0);
+        out.write(magic);
+        Utils.uint32ToByteStreamLE(block.length, out);
+        out.write(block);
+    }
+
+    private File writeFile(byte[] contents) throws Exception {
+        File file = File.createTempFile("blk", ".dat");
+        files.add(file);
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(contents);
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void readsBlocksAcrossFiles() throws Exception {
+        byte[] genesis = PARAMS.getGenesisBlock().bitcoinSerialize();
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        writeBlock(first, PARAMS, genesis);
+        first.write(new byte[] { 1, 2, 3 });  // Garbage between blocks is skipped.
+        writeBlock(first, PARAMS, genesis);
+        first.write(new byte[16]);  // As is the zero padding at the end of a file.
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        writeBlock(second, PARAMS, genesis);
+        // A block cut off by the end of the file is dropped.
+        writeBlock(second, PARAMS, genesis);
+        byte[] truncated = Arrays.copyOf(second.toByteArray(), second.size() - 10);
+        // Files that can't be read are skipped.
+        File missing = new File("does-not-exist.dat");
+
+        BlockFileLoader loader = new BlockFileLoader(PARAMS,
+                Arrays.asList(writeFile(first.toByteArray()), missing, writeFile(truncated)));
+        int blocks = 0;
+        for (Block block : loader) {
+            assertEquals(PARAMS.getGenesisBlock(), block);
+            blocks++;
+        }
+        assertEquals(3, blocks);
+    }
+
+    @Test
+    public void rawBlocks() throws Exception {
+        byte[] genesis = PARAMS.getGenesisBlock().bitcoinSerialize();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeBlock(out, PARAMS, genesis);
+        writeBlock(out, PARAMS, genesis);
+        BlockFileLoader loader = new BlockFileLoader(PARAMS, Arrays.asList(writeFile(out.toByteArray())));
+        ByteBuffer first = loader.nextRawBlock();
+        ByteBuffer second = loader.nextRawBlock();
+        assertNull(loader.nextRawBlock());
+        // Earlier buffers stay valid.
+        assertArrayEquals(genesis, BlockFileLoader.toArray(first));
+        assertArrayEquals(genesis, BlockFileLoader.toArray(second));
+    }
+}
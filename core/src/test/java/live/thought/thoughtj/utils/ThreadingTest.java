@@ -0,0 +1,185 @@
+package live.thought.thoughtj.utils;
+
+import live.thought.thoughtj.core.Sha256Hash;
+import live.thought.thoughtj.core.TransactionConfidence;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class ThreadingTest {
+    // Blocks the executor until the returned latch is counted down.
+    private static CountDownLatch block(Executor executor) throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        started.await();
+        return release;
+    }
+
+    private static Runnable add(final List<String> events, final String event) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                events.add(event);
+            }
+        };
+    }
+
+    @Test
+    public void coalescing() throws Exception {
+        Threading.UserThread thread = new Threading.UserThread();
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        Object listener1 = new Object(), listener2 = new Object();
+        CountDownLatch release = block(thread);
+        thread.execute(listener1, "depth", add(events, "1 depth 0"));
+        thread.execute(listener1, null, add(events, "1 other"));
+        thread.execute(listener2, "depth", add(events, "2 depth 0"));
+        for (int i = 1; i < 10; i++)
+            thread.execute(listener1, "depth", add(events, "1 depth " + i));
+        thread.execute(add(events, "unkeyed"));
+        // Only the first coalesced event is queued again, the later ones find it at the back of the queue.
+        assertEquals(5, thread.getQueueDepth());
+        assertEquals(9, thread.getCoalescedCount());
+        assertEquals(5, thread.getMaxQueueDepth());
+        release.countDown();
+
+        final CountDownLatch done = new CountDownLatch(1);
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        done.await();
+        // The coalesced event runs the latest task once, after the events queued before it.
+        assertEquals("1 other", events.get(0));
+        assertEquals("2 depth 0", events.get(1));
+        assertEquals("1 depth 9", events.get(2));
+        assertEquals("unkeyed", events.get(3));
+        assertEquals(4, events.size());
+        assertEquals(0, thread.getQueueDepth());
+    }
+
+    @Test
+    public void lanes() throws Exception {
+        Threading.LaneDispatcher dispatcher = new Threading.LaneDispatcher(4);
+        assertEquals(4, dispatcher.getLaneCount());
+        final int listeners = 16, eventsPerListener = 50;
+        List<List<Integer>> received = new ArrayList<List<Integer>>();
+        for (int i = 0; i < listeners; i++)
+            received.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        for (int n = 0; n < eventsPerListener; n++) {
+            for (int i = 0; i < listeners; i++) {
+                final List<Integer> list = received.get(i);
+                final int event = n;
+                dispatcher.execute(list, null, new Runnable() {
+                    @Override
+                    public void run() {
+                        list.add(event);
+                    }
+                });
+            }
+        }
+
+        Executor saved = Threading.USER_THREAD;
+        Threading.USER_THREAD = dispatcher;
+        try {
+            Threading.waitForUserCode();
+        } finally {
+            Threading.USER_THREAD = saved;
+        }
+        // Each listener got all its events, in order.
+        for (List<Integer> list : received) {
+            assertEquals(eventsPerListener, list.size());
+            for (int n = 0; n < eventsPerListener; n++)
+                assertEquals(n, (int) list.get(n));
+        }
+        assertEquals(0, dispatcher.getQueueDepth());
+        assertEquals(0, dispatcher.getCoalescedCount());
+    }
+
+    @Test
+    public void confidenceDepthChangesCoalesce() throws Exception {
+        Threading.UserThread thread = new Threading.UserThread();
+        TransactionConfidence confidence = new TransactionConfidence(Sha256Hash.ZERO_HASH);
+        final List<TransactionConfidence.Listener.ChangeReason> reasons =
+                Collections.synchronizedList(new ArrayList<TransactionConfidence.Listener.ChangeReason>());
+        confidence.addEventListener(thread, new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+                reasons.add(reason);
+            }
+        });
+        CountDownLatch release = block(thread);
+        for (int i = 0; i < 100; i++)
+            confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.DEPTH);
+        confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.TYPE);
+        confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.TYPE);
+        assertEquals(99, thread.getCoalescedCount());
+        release.countDown();
+
+        final CountDownLatch done = new CountDownLatch(1);
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        done.await();
+        assertEquals(3, reasons.size());
+        assertEquals(TransactionConfidence.Listener.ChangeReason.DEPTH, reasons.get(0));
+    }
+
+    @Test
+    public void parallelRanges() throws Exception {
+        final int[] counts = new int[1000];
+        Threading.parallelRanges(counts.length, 10, new Threading.RangeTask() {
+            @Override
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++)
+                    counts[i]++;
+            }
+        });
+        for (int count : counts)
+            assertEquals(1, count);
+        Threading.parallelRanges(0, 10, new Threading.RangeTask() {
+            @Override
+            public void run(int start, int end) {
+                assertEquals(start, end);
+            }
+        });
+    }
+
+    @Test
+    public void parallelRangesRethrows() throws Exception {
+        final int count = Runtime.getRuntime().availableProcessors() * 10;
+        try {
+            Threading.parallelRanges(count, 1, new Threading.RangeTask() {
+                @Override
+                public void run(int start, int end) {
+                    if (end == count)
+                        throw new IllegalStateException("last range");
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("last range", e.getMessage());
+        }
+    }
+}
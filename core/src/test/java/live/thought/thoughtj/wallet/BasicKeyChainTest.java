@@ -34,6 +34,7 @@ import live.thought.thoughtj.wallet.listeners.AbstractKeyChainEventListener;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
 
 import java.util.ArrayList;
 import java.util.Date;
@@ -172,6 +173,34 @@ public class BasicKeyChainTest {
         key.getPrivKeyBytes();
     }
 
+    @Test
+    public void encryptDecryptManyKeys() {
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < BasicKeyChain.KEYS_PER_THREAD * 3 + 7; i++)
+            keys.add(new ECKey());
+        chain.importKeys(keys);
+        KeyCrypter keyCrypter = new KeyCrypterScrypt();
+        KeyParameter aesKey = keyCrypter.deriveKey("foobar");
+        BasicKeyChain encrypted = chain.toEncrypted(keyCrypter, aesKey);
+
+        // Keys are split across threads but still come out in the order they were imported.
+        List<ECKey> encryptedKeys = encrypted.getKeys();
+        assertEquals(keys.size(), encryptedKeys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertTrue(encryptedKeys.get(i).isEncrypted());
+            assertArrayEquals(keys.get(i).getPubKey(), encryptedKeys.get(i).getPubKey());
+        }
+
+        try {
+            encrypted.toDecrypted(keyCrypter.deriveKey("wrong"));
+            fail();
+        } catch (KeyCrypterException e) {}
+        List<ECKey> decryptedKeys = encrypted.toDecrypted(aesKey).getKeys();
+        assertEquals(keys, decryptedKeys);
+        for (int i = 0; i < keys.size(); i++)
+            assertArrayEquals(keys.get(i).getPrivKeyBytes(), decryptedKeys.get(i).getPrivKeyBytes());
+    }
+
     @Test(expected = KeyCrypterException.class)
     public void cannotImportEncryptedKey() {
         final ECKey key1 = new ECKey();
@@ -0,0 +1,123 @@
+package live.thought.thoughtj.wallet;
+
+import live.thought.thoughtj.core.Context;
+import live.thought.thoughtj.core.NetworkParameters;
+import live.thought.thoughtj.core.Sha256Hash;
+import live.thought.thoughtj.core.Transaction;
+import live.thought.thoughtj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SnapshotPoolTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private SnapshotPool pool;
+    private Map<Sha256Hash, Transaction> expected;
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        pool = new SnapshotPool();
+        expected = new HashMap<Sha256Hash, Transaction>();
+        tx = new Transaction(PARAMS);
+        for (int i = 0; i < 1000; i++)
+            put(i);
+    }
+
+    private static Sha256Hash hash(int i) {
+        return Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) });
+    }
+
+    private void put(int i) {
+        assertNull(pool.put(hash(i), tx));
+        expected.put(hash(i), tx);
+    }
+
+    @Test
+    public void behavesLikeAMap() {
+        assertEquals(expected, pool);
+        assertEquals(expected.hashCode(), pool.hashCode());
+        assertSame(tx, pool.get(hash(5)));
+        assertTrue(pool.containsKey(hash(5)));
+        assertFalse(pool.containsKey(hash(1000)));
+        assertNull(pool.get(null));
+        assertSame(tx, pool.remove(hash(5)));
+        assertNull(pool.remove(hash(5)));
+        assertEquals(999, pool.size());
+        assertEquals(999, pool.values().size());
+        for (Iterator<Sha256Hash> it = pool.keySet().iterator(); it.hasNext();) {
+            Sha256Hash hash = it.next();
+            // hasNext() may move on to the next shard before the removal.
+            it.hasNext();
+            it.remove();
+            assertFalse(pool.containsKey(hash));
+        }
+        assertTrue(pool.isEmpty());
+    }
+
+    @Test
+    public void snapshotsDontChange() {
+        SnapshotPool.Snapshot first = pool.snapshot();
+        assertFalse(pool.isChanged());
+        assertEquals(expected, first);
+        assertSame(first, pool.snapshot());
+
+        pool.remove(hash(0));
+        put(1000);
+        assertTrue(pool.isChanged());
+        SnapshotPool.Snapshot second = pool.snapshot();
+        assertFalse(pool.isChanged());
+        assertEquals(1000, first.size());
+        assertTrue(first.containsKey(hash(0)));
+        assertFalse(first.containsKey(hash(1000)));
+        expected.remove(hash(0));
+        assertEquals(expected, second);
+
+        pool.clear();
+        assertEquals(expected, second);
+        assertTrue(pool.snapshot().isEmpty());
+        assertEquals(0, pool.snapshot().entrySet().size());
+    }
+
+    @Test
+    public void removalsThroughIteratorsAreSnapshotted() {
+        pool.snapshot();
+        for (Iterator<Transaction> it = pool.values().iterator(); it.hasNext();) {
+            it.next();
+            it.remove();
+        }
+        assertTrue(pool.isChanged());
+        assertTrue(pool.snapshot().isEmpty());
+    }
+
+    @Test
+    public void snapshotsAreImmutable() {
+        SnapshotPool.Snapshot snapshot = pool.snapshot();
+        try {
+            snapshot.put(hash(1000), tx);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        }
+        try {
+            snapshot.values().iterator().remove();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        }
+        try {
+            snapshot.clear();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        }
+        assertEquals(expected, snapshot);
+    }
+}
@@ -0,0 +1,127 @@
+package live.thought.thoughtj.wallet;
+
+import live.thought.thoughtj.core.AbstractBlockChain;
+import live.thought.thoughtj.core.Address;
+import live.thought.thoughtj.core.Block;
+import live.thought.thoughtj.core.Coin;
+import live.thought.thoughtj.core.Context;
+import live.thought.thoughtj.core.ECKey;
+import live.thought.thoughtj.core.NetworkParameters;
+import live.thought.thoughtj.core.StoredBlock;
+import live.thought.thoughtj.core.Transaction;
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.testing.FakeTxBuilder;
+import live.thought.thoughtj.wallet.Wallet.BalanceType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static live.thought.thoughtj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletBalanceTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private Wallet wallet;
+    private Address myAddress;
+    private int height = 100;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        wallet = new Wallet(PARAMS);
+        myAddress = wallet.freshReceiveAddress();
+    }
+
+    private StoredBlock nextBlock() {
+        Block header = PARAMS.getGenesisBlock().cloneAsHeader();
+        header.setNonce(height);
+        return new StoredBlock(header, BigInteger.ONE, height++);
+    }
+
+    private Transaction receiveInBlock(Coin value, Address to) throws Exception {
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, value, to);
+        StoredBlock block = nextBlock();
+        wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block);
+        return wallet.getTransaction(tx.getHash());
+    }
+
+    private void assertBalances(Coin estimated, Coin available, Coin estimatedSpendable, Coin availableSpendable) {
+        assertEquals(estimated, wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(available, wallet.getBalance(BalanceType.AVAILABLE));
+        assertEquals(estimatedSpendable, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(availableSpendable, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        for (BalanceType type : BalanceType.values())
+            assertEquals(type.toString(), wallet.calculateBalance(type), wallet.getBalance(type));
+        assertTrue(wallet.isConsistent());
+    }
+
+    @Test
+    public void receiveAndSpend() throws Exception {
+        assertBalances(ZERO, ZERO, ZERO, ZERO);
+        receiveInBlock(COIN, myAddress);
+        assertBalances(COIN, COIN, COIN, COIN);
+        receiveInBlock(CENT, myAddress);
+        assertBalances(COIN.add(CENT), COIN.add(CENT), COIN.add(CENT), COIN.add(CENT));
+
+        // Spending our own money makes the change show up in the estimated balance straight away, but it isn't
+        // available before it confirms or is seen on the network.
+        Address other = new ECKey().toAddress(PARAMS);
+        SendRequest req = SendRequest.to(other, CENT.multiply(5));
+        req.feePerKb = ZERO;
+        req.ensureMinRequiredFee = false;
+        wallet.completeTx(req);
+        wallet.commitTx(req.tx);
+        Coin change = COIN.subtract(CENT.multiply(5));
+        assertEquals(2, wallet.calculateAllSpendCandidates().size());
+        assertBalances(change.add(CENT), CENT, change.add(CENT), CENT);
+    }
+
+    @Test
+    public void watchedOutputsAndImportedKeys() throws Exception {
+        ECKey key = new ECKey();
+        Address watched = key.toAddress(PARAMS);
+        wallet.addWatchedAddress(watched);
+        receiveInBlock(COIN, myAddress);
+        receiveInBlock(CENT, watched);
+        assertBalances(COIN.add(CENT), COIN.add(CENT), COIN, COIN);
+        assertEquals(1, wallet.calculateAllSpendCandidates(true, true).size());
+        assertEquals(2, wallet.calculateAllSpendCandidates(true, false).size());
+
+        // Once we have the key the watched output can be spent too.
+        wallet.importKey(key);
+        assertBalances(COIN.add(CENT), COIN.add(CENT), COIN.add(CENT), COIN.add(CENT));
+        wallet.removeKey(key);
+        assertBalances(COIN.add(CENT), COIN.add(CENT), COIN, COIN);
+    }
+
+    @Test
+    public void coinSelectorChange() throws Exception {
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, COIN, myAddress);
+        wallet.receivePending(tx, null);
+        assertBalances(COIN, ZERO, COIN, ZERO);
+        wallet.allowSpendingUnconfirmedTransactions();
+        assertBalances(COIN, COIN, COIN, COIN);
+    }
+
+    @Test
+    public void depthIsRelativeToTheWallet() throws Exception {
+        Wallet other = new Wallet(PARAMS);
+        other.addWatchedAddress(myAddress);
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, COIN, myAddress);
+        StoredBlock block = nextBlock();
+        for (Wallet w : new Wallet[] { wallet, other }) {
+            w.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+            w.notifyNewBestBlock(block);
+        }
+        // Only the first wallet keeps up with the chain.
+        for (int i = 0; i < 5; i++)
+            wallet.notifyNewBestBlock(nextBlock());
+        Context.get().getConfidenceTable().setChainHeight(height + 10);
+        assertEquals(6, wallet.getDepthInBlocks(wallet.getTransaction(tx.getHash())));
+        assertEquals(1, other.getDepthInBlocks(other.getTransaction(tx.getHash())));
+        assertBalances(COIN, COIN, COIN, COIN);
+    }
+}
@@ -0,0 +1,202 @@
+package live.thought.thoughtj.wallet;
+
+import com.google.common.collect.ImmutableList;
+import live.thought.thoughtj.core.AbstractBlockChain;
+import live.thought.thoughtj.core.Address;
+import live.thought.thoughtj.core.Block;
+import live.thought.thoughtj.core.Coin;
+import live.thought.thoughtj.core.Context;
+import live.thought.thoughtj.core.ECKey;
+import live.thought.thoughtj.core.NetworkParameters;
+import live.thought.thoughtj.core.StoredBlock;
+import live.thought.thoughtj.core.Transaction;
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.testing.FakeTxBuilder;
+import live.thought.thoughtj.wallet.Wallet.BalanceType;
+import live.thought.thoughtj.wallet.WalletTransaction.Pool;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static live.thought.thoughtj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletConcurrencyTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+    private static final int BLOCKS = 200;
+    private static final int READERS = 4;
+
+    private Wallet wallet;
+    private Address myAddress;
+    private int height = 100;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        wallet = new Wallet(PARAMS);
+        myAddress = wallet.freshReceiveAddress();
+    }
+
+    private void receiveInBlock(Coin value) throws Exception {
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, value, myAddress);
+        Block header = PARAMS.getGenesisBlock().cloneAsHeader();
+        header.setNonce(height);
+        StoredBlock block = new StoredBlock(header, BigInteger.ONE, height++);
+        wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block);
+    }
+
+    @Test
+    public void readersDuringSync() throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        final Transaction unrelated = FakeTxBuilder.createFakeTx(PARAMS, COIN, new ECKey().toAddress(PARAMS));
+        final CountDownLatch started = new CountDownLatch(READERS);
+        ExecutorService readers = Executors.newFixedThreadPool(READERS);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < READERS; i++) {
+            results.add(readers.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    // Every block pays us a coin and nothing is spent, so everything we see only ever grows.
+                    int reads = 0;
+                    long lastBalance = 0;
+                    int lastSize = 0;
+                    while (!done.get()) {
+                        Coin balance = wallet.getBalance(BalanceType.ESTIMATED);
+                        assertTrue(balance.value >= lastBalance);
+                        lastBalance = balance.value;
+                        int size = wallet.getTransactions(true).size();
+                        assertTrue(size >= lastSize);
+                        lastSize = size;
+                        assertTrue(wallet.getPoolSize(Pool.UNSPENT) <= BLOCKS);
+                        assertNotNull(wallet.getBalance());
+                        assertNotNull(wallet.currentReceiveAddress());
+                        assertFalse(wallet.isTransactionRelevant(unrelated));
+                        if (reads++ == 0)
+                            started.countDown();
+                    }
+                    return reads;
+                }
+            }));
+        }
+        try {
+            // Every reader is going before the sync starts.
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < BLOCKS; i++)
+                receiveInBlock(COIN);
+        } finally {
+            done.set(true);
+            readers.shutdown();
+        }
+        for (Future<Integer> result : results)
+            assertTrue(result.get() > 0);
+        assertEquals(COIN.multiply(BLOCKS), wallet.getBalance());
+        assertEquals(BLOCKS, wallet.getTransactions(true).size());
+        assertTrue(wallet.isConsistent());
+    }
+
+    @Test
+    public void readersDontWaitForEachOther() throws Exception {
+        receiveInBlock(COIN);
+        // Fill the balance cache first, as filling it needs the write lock.
+        assertEquals(COIN, wallet.getBalance());
+
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService holder = Executors.newSingleThreadExecutor();
+        Future<?> held = holder.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                wallet.readLock.lock();
+                try {
+                    locked.countDown();
+                    release.await();
+                } finally {
+                    wallet.readLock.unlock();
+                }
+                return null;
+            }
+        });
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            assertTrue(locked.await(10, TimeUnit.SECONDS));
+            Future<Coin> balance = reader.submit(new Callable<Coin>() {
+                @Override
+                public Coin call() throws Exception {
+                    wallet.getTransactions(true);
+                    wallet.getTransactionPool(Pool.UNSPENT);
+                    return wallet.getBalance();
+                }
+            });
+            assertEquals(COIN, balance.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            held.get();
+            holder.shutdown();
+            reader.shutdown();
+        }
+    }
+
+    @Test
+    public void readersDontWaitForBlockProcessing() throws Exception {
+        receiveInBlock(COIN);
+        // The AVAILABLE balance is in snapshots once it was asked for.
+        assertEquals(COIN, wallet.getBalance());
+
+        final CountDownLatch received = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService processor = Executors.newSingleThreadExecutor();
+        Future<?> processed = processor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                // Holds the wallet lock like a block being processed, halfway through its changes.
+                wallet.lock.lock();
+                try {
+                    receiveInBlock(COIN);
+                    assertEquals(2, wallet.getTransactions(true).size());
+                    received.countDown();
+                    release.await();
+                } finally {
+                    wallet.lock.unlock();
+                }
+                return null;
+            }
+        });
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            assertTrue(received.await(10, TimeUnit.SECONDS));
+            Future<List<Object>> read = reader.submit(new Callable<List<Object>>() {
+                @Override
+                public List<Object> call() throws Exception {
+                    List<Object> results = new ArrayList<Object>();
+                    results.add(wallet.getBalance());
+                    results.add(wallet.getBalance(BalanceType.ESTIMATED));
+                    results.add(wallet.getTransactions(true).size());
+                    results.add(wallet.getTransactionPool(Pool.UNSPENT).size());
+                    return results;
+                }
+            });
+            // The state before the block.
+            assertEquals(ImmutableList.<Object>of(COIN, COIN, 1, 1), read.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            processed.get();
+            processor.shutdown();
+            reader.shutdown();
+        }
+        // Published once the lock was released.
+        assertEquals(COIN.multiply(2), wallet.getBalance());
+        assertEquals(2, wallet.getTransactions(true).size());
+        assertEquals(2, wallet.getTransactionPool(Pool.UNSPENT).size());
+    }
+}
@@ -0,0 +1,134 @@
+package live.thought.thoughtj.wallet;
+
+import live.thought.thoughtj.core.AbstractBlockChain;
+import live.thought.thoughtj.core.Block;
+import live.thought.thoughtj.core.Context;
+import live.thought.thoughtj.core.NetworkParameters;
+import live.thought.thoughtj.core.StoredBlock;
+import live.thought.thoughtj.core.Transaction;
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.testing.FakeTxBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import static live.thought.thoughtj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private File file;
+    private Wallet wallet;
+    private WalletFiles files;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        file = File.createTempFile("walletjournal", ".wallet");
+        wallet = new Wallet(PARAMS);
+        files = wallet.autosaveToFile(file, 1, TimeUnit.DAYS, null);
+        files.enableJournal();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        wallet.shutdownAutosaveAndWait();
+        file.delete();
+        WalletJournal.fileFor(file).delete();
+    }
+
+    private Transaction receiveInBlock(int height) throws Exception {
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, COIN, wallet.currentReceiveAddress());
+        Block header = PARAMS.getGenesisBlock().cloneAsHeader();
+        header.setNonce(height);
+        StoredBlock block = new StoredBlock(header, BigInteger.ONE, height);
+        // As the block chain does before telling the wallets.
+        Context.get().updatedChainHead(block);
+        wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block);
+        return tx;
+    }
+
+    private Protos.Wallet readFileOnly() throws Exception {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            return WalletProtobufSerializer.parseToProto(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    @Test
+    public void changesAreReplayed() throws Exception {
+        Transaction tx1 = receiveInBlock(100);
+        Transaction tx2 = receiveInBlock(101);
+        files.saveNow();
+
+        // The wallet file wasn't written again, but loading it applies the journal.
+        assertEquals(0, readFileOnly().getTransactionCount());
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(COIN.multiply(2), loaded.getBalance());
+        assertNotNull(loaded.getTransaction(tx1.getHash()));
+        assertNotNull(loaded.getTransaction(tx2.getHash()));
+        assertEquals(101, loaded.getLastBlockSeenHeight());
+        assertEquals(2, loaded.getTransaction(tx1.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(wallet.currentReceiveAddress(), loaded.currentReceiveAddress());
+    }
+
+    @Test
+    public void tornRecordIsIgnored() throws Exception {
+        Transaction tx = receiveInBlock(100);
+        files.saveNow();
+        FileOutputStream output = new FileOutputStream(WalletJournal.fileFor(file), true);
+        output.write(new byte[] { 0, 0, 1, 0, 1, 2, 3 });
+        output.close();
+
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertNotNull(loaded.getTransaction(tx.getHash()));
+        assertEquals(COIN, loaded.getBalance());
+    }
+
+    @Test
+    public void journalOfOlderFileIsIgnored() throws Exception {
+        receiveInBlock(100);
+        files.saveNow();
+        // Replacing the wallet file leaves the journal behind, which must not be applied to the new file.
+        new Wallet(PARAMS).saveToFile(file);
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(0, loaded.getTransactions(true).size());
+    }
+
+    @Test
+    public void directSaveStartsJournalOver() throws Exception {
+        Transaction tx1 = receiveInBlock(100);
+        files.saveNow();
+        wallet.saveToFile(file);
+        Transaction tx2 = receiveInBlock(101);
+        files.saveNow();
+
+        assertEquals(1, readFileOnly().getTransactionCount());
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertNotNull(loaded.getTransaction(tx1.getHash()));
+        assertNotNull(loaded.getTransaction(tx2.getHash()));
+        assertEquals(COIN.multiply(2), loaded.getBalance());
+        assertEquals(101, loaded.getLastBlockSeenHeight());
+    }
+
+    @Test
+    public void removedTransactions() throws Exception {
+        receiveInBlock(100);
+        files.saveNow();
+        wallet.reset();
+        files.saveNow();
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(0, loaded.getTransactions(true).size());
+        assertEquals(-1, loaded.getLastBlockSeenHeight());
+    }
+}
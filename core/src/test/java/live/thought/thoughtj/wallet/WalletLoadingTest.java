@@ -0,0 +1,104 @@
+package live.thought.thoughtj.wallet;
+
+import com.google.protobuf.ByteString;
+import live.thought.thoughtj.core.AbstractBlockChain;
+import live.thought.thoughtj.core.Block;
+import live.thought.thoughtj.core.Context;
+import live.thought.thoughtj.core.ECKey;
+import live.thought.thoughtj.core.NetworkParameters;
+import live.thought.thoughtj.core.StoredBlock;
+import live.thought.thoughtj.core.Transaction;
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.testing.FakeTxBuilder;
+import live.thought.thoughtj.wallet.WalletTransaction.Pool;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static live.thought.thoughtj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletLoadingTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private Wallet wallet;
+    private int height = 100;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        wallet = new Wallet(PARAMS);
+        for (int i = 0; i < 20; i++)
+            confirm(FakeTxBuilder.createFakeTx(PARAMS, COIN, wallet.freshReceiveAddress()));
+        SendRequest req = SendRequest.to(new ECKey().toAddress(PARAMS), COIN.multiply(5));
+        req.feePerKb = ZERO;
+        req.ensureMinRequiredFee = false;
+        wallet.completeTx(req);
+        wallet.commitTx(req.tx);
+        confirm(req.tx);
+        // Bury the spent history.
+        for (int i = 0; i < 10; i++)
+            wallet.notifyNewBestBlock(nextBlock());
+    }
+
+    private StoredBlock nextBlock() {
+        Block header = PARAMS.getGenesisBlock().cloneAsHeader();
+        header.setNonce(height);
+        return new StoredBlock(header, BigInteger.ONE, height++);
+    }
+
+    private void confirm(Transaction tx) throws Exception {
+        StoredBlock block = nextBlock();
+        wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block);
+    }
+
+    private Wallet load(Protos.Wallet proto, int threads, int trustedHashDepth) throws Exception {
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoadingThreads(threads);
+        serializer.setTrustedHashDepth(trustedHashDepth);
+        return serializer.readWallet(PARAMS, null, proto);
+    }
+
+    @Test
+    public void parallelLoadingMatchesSequential() throws Exception {
+        assertTrue(wallet.getPoolSize(Pool.SPENT) > 0);
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(wallet);
+        Wallet sequential = load(proto, 1, -1);
+        Wallet parallel = load(proto, 4, 5);
+
+        assertEquals(wallet.getTransactions(true), sequential.getTransactions(true));
+        assertEquals(wallet.getTransactions(true), parallel.getTransactions(true));
+        for (Pool pool : new Pool[] { Pool.UNSPENT, Pool.SPENT, Pool.PENDING, Pool.DEAD })
+            assertEquals(pool.toString(), sequential.getPoolSize(pool), parallel.getPoolSize(pool));
+        assertEquals(wallet.getBalance(), parallel.getBalance());
+        assertEquals(sequential.currentReceiveAddress(), parallel.currentReceiveAddress());
+        assertEquals(wallet.getLastBlockSeenHeight(), parallel.getLastBlockSeenHeight());
+        assertTrue(parallel.isConsistent());
+
+        // The serialized form of the transactions that were loaded without it is computed when needed.
+        for (Transaction tx : wallet.getTransactions(true))
+            assertArrayEquals(tx.bitcoinSerialize(), parallel.getTransaction(tx.getHash()).bitcoinSerialize());
+    }
+
+    @Test
+    public void parallelLoadingReportsBadTransactions() throws Exception {
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(wallet);
+        int unspent = -1;
+        for (int i = 0; i < proto.getTransactionCount(); i++)
+            if (proto.getTransaction(i).getPool() == Protos.Transaction.Pool.UNSPENT)
+                unspent = i;
+        Protos.Transaction tx = proto.getTransaction(unspent);
+        byte[] hash = tx.getHash().toByteArray();
+        hash[0]++;
+        Protos.Wallet damaged = proto.toBuilder()
+                .setTransaction(unspent, tx.toBuilder().setHash(ByteString.copyFrom(hash))).build();
+        try {
+            load(damaged, 4, 5);
+            fail();
+        } catch (UnreadableWalletException e) {
+            // Expected: only buried, spent transactions are trusted to have the right hash.
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package live.thought.thoughtj.examples;
+
+import live.thought.thoughtj.core.Coin;
+import live.thought.thoughtj.core.Context;
+import live.thought.thoughtj.core.ECKey;
+import live.thought.thoughtj.core.NetworkParameters;
+import live.thought.thoughtj.core.Sha256Hash;
+import live.thought.thoughtj.core.UTXO;
+import live.thought.thoughtj.params.MainNetParams;
+import live.thought.thoughtj.script.Script;
+import live.thought.thoughtj.script.ScriptBuilder;
+import live.thought.thoughtj.store.BlockStoreException;
+import live.thought.thoughtj.store.H2FullPrunedBlockStore;
+import org.h2.tools.Server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures how many blocks per second an {@link H2FullPrunedBlockStore} can connect. Every simulated block does what
+ * a {@link live.thought.thoughtj.core.FullPrunedBlockChain} does to the store: inside one batch write it checks every
+ * transaction hash for unspent outputs, looks up and spends every input, and adds every output.
+ *
+ * <p>Embedded H2 runs in the same process, so statements cost no round trip. Pass "tcp" to go through an H2 server
+ * on localhost instead, which behaves more like a MySQL or PostgreSQL backend.</p>
+ *
+ * <p>Usage: H2StoreBenchmark [directory] [blocks] [transactions per block] [tcp]</p>
+ */
+public class H2StoreBenchmark {
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"), "h2-store-benchmark");
+        int blocks = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int txPerBlock = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        boolean tcp = args.length > 3 && args[3].equals("tcp");
+
+        NetworkParameters params = MainNetParams.get();
+        Context.propagate(new Context(params));
+        deleteStore(dir);
+        dir.mkdirs();
+        String dbName = new File(dir, "store").getAbsolutePath();
+        Server server = null;
+        if (tcp) {
+            server = Server.createTcpServer("-tcpPort", "0").start();
+            dbName = "tcp://localhost:" + server.getPort() + "/" + dbName;
+        }
+        H2FullPrunedBlockStore store = new H2FullPrunedBlockStore(params, dbName, 100);
+        try {
+            Script script = ScriptBuilder.createOutputScript(new ECKey().toAddress(params));
+            String address = script.getToAddress(params).toString();
+
+            // Outputs that the next block spends, two per transaction.
+            List<UTXO> unspent = new ArrayList<UTXO>();
+            store.beginDatabaseBatchWrite();
+            for (int i = 0; i < txPerBlock; i++) {
+                Sha256Hash hash = Sha256Hash.of(("funding " + i).getBytes());
+                for (int index = 0; index < 2; index++) {
+                    UTXO out = new UTXO(hash, index, Coin.CENT, 0, false, script, address);
+                    store.addUnspentTransactionOutput(out);
+                    unspent.add(out);
+                }
+            }
+            store.commitDatabaseBatchWrite();
+
+            // Warm up the JIT and the database before measuring.
+            int warmup = Math.max(1, blocks / 10);
+            unspent = connectBlocks(store, unspent, 1, warmup, script, address);
+            long start = System.nanoTime();
+            connectBlocks(store, unspent, 1 + warmup, blocks, script, address);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format(Locale.US,
+                    "%d blocks of %d transactions in %.2f s: %.1f blocks/s, %.0f outputs/s%s", blocks, txPerBlock,
+                    seconds, blocks / seconds, blocks * txPerBlock * 4 / seconds, tcp ? " (tcp)" : ""));
+        } finally {
+            store.close();
+            if (server != null)
+                server.stop();
+            deleteStore(dir);
+        }
+    }
+
+    private static List<UTXO> connectBlocks(H2FullPrunedBlockStore store, List<UTXO> unspent, int firstHeight,
+                                            int blocks, Script script, String address) throws BlockStoreException {
+        for (int height = firstHeight; height < firstHeight + blocks; height++) {
+            List<UTXO> created = new ArrayList<UTXO>(unspent.size());
+            store.beginDatabaseBatchWrite();
+            for (int i = 0; i < unspent.size() / 2; i++) {
+                Sha256Hash hash = Sha256Hash.of(("block " + height + " tx " + i).getBytes());
+                if (store.hasUnspentOutputs(hash, 2))
+                    throw new IllegalStateException("Duplicate transaction");
+                for (int input = 0; input < 2; input++) {
+                    UTXO prevOut = unspent.get(2 * i + input);
+                    UTXO stored = store.getTransactionOutput(prevOut.getHash(), prevOut.getIndex());
+                    if (stored == null)
+                        throw new IllegalStateException("Missing output");
+                    store.removeUnspentTransactionOutput(stored);
+                }
+                for (int index = 0; index < 2; index++) {
+                    UTXO out = new UTXO(hash, index, Coin.CENT, height, false, script, address);
+                    store.addUnspentTransactionOutput(out);
+                    created.add(out);
+                }
+            }
+            store.commitDatabaseBatchWrite();
+            unspent = created;
+        }
+        return unspent;
+    }
+
+    private static void deleteStore(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        dir.delete();
+    }
+}
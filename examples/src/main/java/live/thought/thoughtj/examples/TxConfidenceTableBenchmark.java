@@ -0,0 +1,90 @@
+package live.thought.thoughtj.examples;
+
+import live.thought.thoughtj.core.Context;
+import live.thought.thoughtj.core.NetworkParameters;
+import live.thought.thoughtj.core.PeerAddress;
+import live.thought.thoughtj.core.Sha256Hash;
+import live.thought.thoughtj.core.TxConfidenceTable;
+import live.thought.thoughtj.params.MainNetParams;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures how many inv announcements per second a {@link TxConfidenceTable} takes when many peers announce the same
+ * transactions at once, as happens when a transaction propagates through the network. Every peer runs on its own
+ * thread and calls {@link TxConfidenceTable#seen(Sha256Hash, PeerAddress)} for each transaction, starting at a
+ * different point so that peers announce the same hashes at around the same time. Nothing else holds on to the
+ * confidence objects, so the table also has to keep up with the garbage collector clearing them.
+ *
+ * <p>Usage: TxConfidenceTableBenchmark [peers] [transactions] [rounds]</p>
+ */
+public class TxConfidenceTableBenchmark {
+    public static void main(String[] args) throws Exception {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int transactions = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        NetworkParameters params = MainNetParams.get();
+        Context.propagate(new Context(params));
+        Sha256Hash[] hashes = new Sha256Hash[transactions];
+        for (int i = 0; i < transactions; i++)
+            hashes[i] = Sha256Hash.of(("tx " + i).getBytes());
+        PeerAddress[] addresses = new PeerAddress[peers];
+        for (int i = 0; i < peers; i++)
+            addresses[i] = new PeerAddress(params, InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >> 8), (byte) i }));
+
+        // Warm up the JIT before measuring.
+        run(addresses, hashes, Math.max(1, rounds / 10));
+        for (int threads = 1; threads <= peers; threads *= 2) {
+            PeerAddress[] announcing = new PeerAddress[threads];
+            System.arraycopy(addresses, 0, announcing, 0, threads);
+            long start = System.nanoTime();
+            long announcements = run(announcing, hashes, rounds);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format(Locale.US, "%2d peers: %d announcements in %.2f s, %.0f per second",
+                    threads, announcements, seconds, announcements / seconds));
+        }
+    }
+
+    private static long run(PeerAddress[] peers, final Sha256Hash[] hashes, final int rounds) throws Exception {
+        final TxConfidenceTable table = new TxConfidenceTable();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(peers.length);
+        try {
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (int p = 0; p < peers.length; p++) {
+                final PeerAddress peer = peers[p];
+                final int offset = p * 7;
+                results.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        start.await();
+                        long announcements = 0;
+                        for (int round = 0; round < rounds; round++) {
+                            for (int i = 0; i < hashes.length; i++) {
+                                table.seen(hashes[(i + offset) % hashes.length], peer);
+                                announcements++;
+                            }
+                        }
+                        return announcements;
+                    }
+                }));
+            }
+            start.countDown();
+            long total = 0;
+            for (Future<Long> result : results)
+                total += result.get();
+            return total;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -23,14 +23,21 @@ import live.thought.thoughtj.store.*;
 import live.thought.thoughtj.utils.BlockFileLoader;
 
 import java.io.File;
+import java.util.Arrays;
 
-/** Very thin wrapper around {@link live.thought.thoughtj.utils.BlockFileLoader} */
+/** Thin wrapper around {@link live.thought.thoughtj.utils.BlockFileLoader} and {@link BlockImportPipeline} */
 public class BlockImporter {
     public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
-        System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore]");
+        System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore] [threads=N]");
         System.out.println("       blockStore is required unless type is Mem or MemFull");
         System.out.println("       eg BlockImporter prod H2 /home/user/thoughtj.h2store");
         System.out.println("       Does full verification if the store supports it");
+        System.out.println("       Blocks are parsed and checked on one thread per core unless threads is given");
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length > 0 && args[args.length - 1].startsWith("threads=")) {
+            threads = Integer.parseInt(args[args.length - 1].substring("threads=".length()));
+            args = Arrays.copyOf(args, args.length - 1);
+        }
         Preconditions.checkArgument(args.length == 2 || args.length == 3);
         
         NetworkParameters params;
@@ -58,14 +65,23 @@ public class BlockImporter {
         }
         
         AbstractBlockChain chain = null;
-        if (store instanceof FullPrunedBlockStore)
-            chain = new FullPrunedBlockChain(params, (FullPrunedBlockStore) store);
-        else
+        if (store instanceof FullPrunedBlockStore) {
+            FullPrunedBlockChain fullChain = new FullPrunedBlockChain(params, (FullPrunedBlockStore) store);
+            // Look up the inputs of the next block whilst the current one is connected, if the store can be read
+            // from another thread meanwhile.
+            fullChain.setPipelinedConnect(store instanceof ConcurrentReadFullPrunedBlockStore);
+            chain = fullChain;
+        } else {
             chain = new BlockChain(params, store);
+        }
         
         BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
-        
-        for (Block block : loader)
-            chain.add(block);
+        BlockImportPipeline pipeline = new BlockImportPipeline(chain, loader, threads);
+        try {
+            pipeline.run();
+        } finally {
+            System.out.println(pipeline.getProgress());
+            store.close();
+        }
     }
 }
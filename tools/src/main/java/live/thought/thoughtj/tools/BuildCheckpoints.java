@@ -32,7 +32,6 @@ import live.thought.thoughtj.store.MemoryBlockStore;
 import live.thought.thoughtj.utils.BriefLogFormatter;
 import live.thought.thoughtj.utils.Threading;
 
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -42,8 +41,6 @@ import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.security.DigestOutputStream;
-import java.security.MessageDigest;
 import java.util.Date;
 import java.util.TreeMap;
 
@@ -152,31 +149,21 @@ public class BuildCheckpoints {
         store.close();
 
         // Sanity check the created files.
-        sanityCheck(plainFile, checkpoints.size());
-        sanityCheck(textFile, checkpoints.size());
+        CheckpointManager binary = new CheckpointManager(params, plainFile);
+        checkState(binary.numCheckpoints() == checkpoints.size());
+        CheckpointManager textual = sanityCheck(textFile, checkpoints.size());
+        checkState(binary.getDataHash().equals(textual.getDataHash()));
     }
 
     private static void writeBinaryCheckpoints(TreeMap<Integer, StoredBlock> checkpoints, File file) throws Exception {
+        // Written in the memory mappable format, so that it can be loaded without reading every checkpoint.
         final FileOutputStream fileOutputStream = new FileOutputStream(file, false);
-        MessageDigest digest = Sha256Hash.newDigest();
-        final DigestOutputStream digestOutputStream = new DigestOutputStream(fileOutputStream, digest);
-        digestOutputStream.on(false);
-        final DataOutputStream dataOutputStream = new DataOutputStream(digestOutputStream);
-        dataOutputStream.writeBytes("CHECKPOINTS 1");
-        dataOutputStream.writeInt(0);  // Number of signatures to read. Do this later.
-        digestOutputStream.on(true);
-        dataOutputStream.writeInt(checkpoints.size());
-        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
-        for (StoredBlock block : checkpoints.values()) {
-            block.serializeCompact(buffer);
-            dataOutputStream.write(buffer.array());
-            buffer.position(0);
+        try {
+            Sha256Hash checkpointsHash = CheckpointManager.writeMappable(checkpoints.values(), fileOutputStream);
+            System.out.println("Hash of checkpoints data is " + checkpointsHash);
+        } finally {
+            fileOutputStream.close();
         }
-        dataOutputStream.close();
-        Sha256Hash checkpointsHash = Sha256Hash.wrap(digest.digest());
-        System.out.println("Hash of checkpoints data is " + checkpointsHash);
-        digestOutputStream.close();
-        fileOutputStream.close();
         System.out.println("Checkpoints written to '" + file.getCanonicalPath() + "'.");
     }
 
@@ -195,7 +182,7 @@ public class BuildCheckpoints {
         System.out.println("Checkpoints written to '" + file.getCanonicalPath() + "'.");
     }
 
-    private static void sanityCheck(File file, int expectedSize) throws IOException {
+    private static CheckpointManager sanityCheck(File file, int expectedSize) throws IOException {
         FileInputStream fis = new FileInputStream(file);
         CheckpointManager manager;
         try {
@@ -218,5 +205,6 @@ public class BuildCheckpoints {
             checkState(test.getHeader().getHashAsString()
                     .equals("0000000000035ae7d5025c2538067fe7adb1cf5d5d9c31b024137d9090ed13a9"));
         }*/
+        return manager;
     }
 }